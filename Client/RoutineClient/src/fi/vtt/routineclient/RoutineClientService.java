@@ -49,6 +49,7 @@ import android.util.Log;
 import com.google.gson.Gson;
 import fi.vtt.routinelibrary.RoutineLibraryCallback;
 import fi.vtt.routinelibrary.VTTRoutineLibrary;
+import fi.vtt.routinelibrary.common.CompactCodec;
 import fi.vtt.routinelibrary.common.RawLogData;
 import fi.vtt.routinelibrary.common.RoutineData;
 import fi.vtt.routinelibrary.internal.HTTPUploader;
@@ -148,6 +149,18 @@ public class RoutineClientService extends Service implements RoutineLibraryCallb
 
     public final static boolean UPLOAD_ENABLED = true;
 
+	/**
+	 * Set to true to upload raw data and recognized routines in the compact binary format (CompactCodec) instead of JSON. 
+	 * <p> 
+	 * The Content-Type is application/x-routine-compact. A server that does not accept it answers "415 Unsupported Media Type", 
+	 * and the data is then sent as JSON (see HTTPUploader.sendBytes()). 
+	 * 
+	 * @see  fi.vtt.routinelibrary.common.CompactCodec 
+	 * 
+	 */
+
+    public final static boolean UPLOAD_COMPACT = true;
+
     /**
      * If you are using the provided server-side components, your server upload URL is base URL + additional path. 
      * <p> 
@@ -249,7 +262,12 @@ public class RoutineClientService extends Service implements RoutineLibraryCallb
 
             String rawUploadPath = RAW_PATH + userHashStringIncoming;
 
-            uploadData(rawDataHttpUploader, rawUploadPath, rawLogDataIncoming);
+            if (UPLOAD_COMPACT) {
+            	uploadCompactData(rawDataHttpUploader, rawUploadPath, CompactCodec.encode(rawLogDataIncoming), rawLogDataIncoming);
+            }
+            else {
+            	uploadData(rawDataHttpUploader, rawUploadPath, rawLogDataIncoming);
+            }
         } 
         else {
             Log.d("newRawLoggedData", "Upload disabled");
@@ -374,7 +392,12 @@ public class RoutineClientService extends Service implements RoutineLibraryCallb
 
             String recognizedPath = RECOGNIZED_ROUTINE_PATH + userHashStringIncoming;
 
-            uploadData(recognizedRoutineHttpUploader, recognizedPath, routineDataIncoming);
+            if (UPLOAD_COMPACT) {
+            	uploadCompactData(recognizedRoutineHttpUploader, recognizedPath, CompactCodec.encode(routineDataIncoming), routineDataIncoming);
+            }
+            else {
+            	uploadData(recognizedRoutineHttpUploader, recognizedPath, routineDataIncoming);
+            }
         }
         else {
             Log.d("routineRecognized", "Upload DISABLED");
@@ -408,4 +431,29 @@ public class RoutineClientService extends Service implements RoutineLibraryCallb
         }
     }
 
+    /**
+	 * Upload method for data encoded with CompactCodec, uploads it using the given HTTPUploader. 
+	 * 
+	 * @param  httpUploaderIncoming  The HTTPUploader object to be user for data uploading. 
+	 * @param  additionalPathStringIncoming  Additional URL path. 
+	 * @param  uploadDataBytesIncoming  The encoded data. 
+	 * @param  uploadDataObjectIncoming  The same data as an object, uploaded as JSON if the server does not accept the compact format. 
+	 * 
+	 * @see  fi.vtt.routinelibrary.common.CompactCodec 
+	 * @see  fi.vtt.routinelibrary.internal.HTTPUploader 
+	 * 
+	 */
+
+    public void uploadCompactData(HTTPUploader httpUploaderIncoming, String additionalPathStringIncoming, byte[] uploadDataBytesIncoming, Object uploadDataObjectIncoming) {
+        Log.d("upload compact", uploadDataBytesIncoming.length + " bytes");
+
+        try {
+        	httpUploaderIncoming.sendBytes(uploadDataBytesIncoming, CompactCodec.MEDIA_TYPE, uploadDataObjectIncoming, additionalPathStringIncoming);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            Log.w("HttpUpload", e.getMessage());
+        }
+    }
+
 }
\ No newline at end of file
@@ -50,6 +50,8 @@ public class RawLogData extends Data {
 
     private String                 timeStringPresentation = "";
 
+    private long                   sequenceNumber         = -1; // Increasing per device, lets the server recognize re-sent uploads.
+
     public ArrayList<Application> getApps() {
         return apps;
     }
@@ -66,6 +68,10 @@ public class RawLogData extends Data {
         return timestamp;
     }
 
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
     public RawLogData() {}
 
     public String getTimeStringPresentation() {
@@ -110,6 +116,10 @@ public class RawLogData extends Data {
         timestamp = timeStampLongIncoming;
     }
 
+    public void setSequenceNumber(long sequenceNumberLongIncoming) {
+        sequenceNumber = sequenceNumberLongIncoming;
+    }
+
     public void setTimeStringPresentation(String timeStringPresentationStringIncoming) {
         timeStringPresentation = timeStringPresentationStringIncoming;
     }
@@ -48,6 +48,8 @@ public class RoutineData extends Data {
 
 	private int                    routineId       = UNKNOWN_ROUTINE;
 
+	private long                   sequenceNumber  = -1; // Increasing per device (shared with RawLogData), lets the server recognize re-sent uploads.
+
 	public ArrayList<Application> getApps() {
         return applications;
     }
@@ -60,6 +62,10 @@ public class RoutineData extends Data {
         return routineId;
     }
 
+	public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
     public RoutineData() {}
 
     @Override
@@ -87,6 +93,10 @@ public class RoutineData extends Data {
         routineChanged = routineChangedBooleanIncoming;
     }
 
+    public void setSequenceNumber(long sequenceNumberLongIncoming) {
+        sequenceNumber = sequenceNumberLongIncoming;
+    }
+
     public void setRoutineId(int routineIDIntegerIncoming) {
         routineId = routineIDIntegerIncoming;
     }
@@ -32,17 +32,21 @@ package fi.vtt.routinelibrary.internal;
 import android.content.Context;
 import android.util.Base64;
 import android.util.Log;
+import com.google.gson.Gson;
 import fi.vtt.routinelibrary.R;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyStore;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.Header;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
@@ -66,6 +70,20 @@ public class HTTPUploader implements Runnable {
     private String baseURLString = null;
     private String fullURLString = null; // baseURLString + additional path
     private String uploadDataString = null;
+    private byte[] uploadDataBytes = null;  // Binary upload instead of uploadDataString, see sendBytes()
+    private String contentTypeString = null;
+    private Object fallbackObject = null;   // Sent as JSON if the server does not accept contentTypeString, see sendBytes()
+
+    /**
+     * Uploads smaller than this are not compressed: {@value} bytes. 
+     * 
+     */
+
+    public final static int GZIP_MIN_SIZE = 256;
+
+    private volatile boolean serverAcceptsGzip = false; // Learned from the Accept-Encoding header of the server responses.
+
+    private volatile boolean serverRejectsBytes = false; // Learned from a "415 Unsupported Media Type" to a binary upload.
 
     private SSLSocketFactory mySSLSocketFactory() {
         try {
@@ -108,38 +126,297 @@ public class HTTPUploader implements Runnable {
         defaultHttpClient = new DefaultHttpClient(threadSafeClientConnManager, httpParams);
     }
 
+    /**
+     * Number of times an upload is tried before it is given up: {@value}. Uploads carry sequence numbers, so the server
+     * does not store the same data twice when a try that timed out had reached it after all. 
+     * 
+     */
+
+    public final static int MAX_ATTEMPTS = 4;
+
+    /**
+     * Wait before the first retry, doubled before each further retry: {@value} ms. 
+     * 
+     */
+
+    public final static long RETRY_DELAY_MS = 1000;
+
+    /**
+     * Longest wait the server may ask for with "429 Too Many Requests" and Retry-After: {@value} ms. 
+     * 
+     */
+
+    public final static long MAX_RETRY_AFTER_MS = 60 * 1000;
+
     @Override
     public void run() {
     	Log.d("HTTP POST url", fullURLString);
 
-        HttpPost httpPost = new HttpPost(fullURLString);
+        // Taken before the first try, the next send() may change the fields:
+        String urlString = fullURLString;
+        byte[] bodyBytes = null;
+        String bodyContentTypeString = null;
+        Object bodyFallbackObject = fallbackObject;
 
-        try {
-        	Log.d("HTTP POST data", uploadDataString);
+        if (uploadDataBytes != null && !(serverRejectsBytes && bodyFallbackObject != null)) {
+        	Log.d("HTTP POST data", uploadDataBytes.length + " bytes " + contentTypeString);
+
+        	bodyBytes = uploadDataBytes;
+        	bodyContentTypeString = contentTypeString;
+        }
+        else {
+        	String bodyString = (uploadDataBytes != null) ? new Gson().toJson(bodyFallbackObject) : uploadDataString;
+
+        	Log.d("HTTP POST data", bodyString);
+
+        	bodyBytes = jsonBody(bodyString);
+        	if (bodyBytes == null) {
+        		return;
+        	}
+        	bodyContentTypeString = HTTP.PLAIN_TEXT_TYPE + HTTP.CHARSET_PARAM + HTTP.DEFAULT_CONTENT_CHARSET;
+        	bodyFallbackObject = null;
+        }
+
+        long delayLong = RETRY_DELAY_MS;
+
+        for (int attemptInt = 1; attemptInt <= MAX_ATTEMPTS; attemptInt++) {
+        	try {
+        		int statusCodeInt = post(urlString, bodyBytes, bodyContentTypeString);
+
+        		if (statusCodeInt == 415 && bodyFallbackObject != null) {
+        			// Server without the binary format: send the same data as JSON, now and from now on.
+        			Log.w("HTTP POST", bodyContentTypeString + " not accepted, sending JSON");
+
+        			serverRejectsBytes = true;
+        			bodyBytes = jsonBody(new Gson().toJson(bodyFallbackObject));
+        			if (bodyBytes == null) {
+        				return;
+        			}
+        			bodyContentTypeString = HTTP.PLAIN_TEXT_TYPE + HTTP.CHARSET_PARAM + HTTP.DEFAULT_CONTENT_CHARSET;
+        			bodyFallbackObject = null;
+        			attemptInt--; // Not a failed try.
+        			continue;
+        		}
+        		if (statusCodeInt < 500) {
+        			return;
+        		}
+        		Log.w("HTTP POST", "Server error " + statusCodeInt + ", attempt " + attemptInt + "/" + MAX_ATTEMPTS);
+        	}
+        	catch (RetryLaterException retryLaterExceptionIncoming) {
+        		// The server is limiting uploads, wait as long as it asked instead of the backoff delay:
+        		Log.w("HTTP POST", "Server busy, retry after " + retryLaterExceptionIncoming.delayLong + " ms, attempt " + attemptInt + "/" + MAX_ATTEMPTS);
 
-            httpPost.setHeader(HTTP.USER_AGENT, "RoutineLibUploader");
-            httpPost.setHeader("Authorization", "Basic " + Base64.encodeToString("user:r-h/r-t?".getBytes(), Base64.NO_WRAP));
-            httpPost.setEntity(new StringEntity(uploadDataString));
+        		if (attemptInt < MAX_ATTEMPTS) {
+        			try {
+        				Thread.sleep(retryLaterExceptionIncoming.delayLong);
+        			}
+        			catch (InterruptedException interruptedExceptionIncoming) {
+        				Thread.currentThread().interrupt();
 
-            HttpResponse httpResponse = defaultHttpClient.execute(httpPost);
-            //httpResponse.getEntity().consumeContent();
+        				return;
+        			}
+        		}
+        		continue;
+        	}
+        	catch (IOException ioExceptionIncoming) {
+        		Log.w("HTTP POST", "Upload failed, attempt " + attemptInt + "/" + MAX_ATTEMPTS + ": " + ioExceptionIncoming.getMessage());
+        	}
 
-            String statusLineString = httpResponse.getStatusLine().toString();
+        	if (attemptInt < MAX_ATTEMPTS) {
+        		try {
+        			Thread.sleep(delayLong);
+        		}
+        		catch (InterruptedException interruptedExceptionIncoming) {
+        			Thread.currentThread().interrupt();
 
-            Log.d("HTTP POST RESPONSE statusLine", statusLineString);
+        			return;
+        		}
+        		delayLong *= 2;
+        	}
+        }
+        Log.w("HTTP POST", "Upload given up: " + urlString);
+    }
 
-            if (httpResponse.getEntity() != null) {
-            	String responseString = EntityUtils.toString(httpResponse.getEntity(), HTTP.UTF_8);
-            	Log.d("HTTP POST RESPONSE response", responseString);
-            }
+    /**
+     * Encodes a JSON upload as a StringEntity would. 
+     * 
+     * @return  The bytes, or null if the encoding is not available. 
+     * 
+     */
+
+    private static byte[] jsonBody(String jsonStringIncoming) {
+        try {
+        	return jsonStringIncoming.getBytes(HTTP.DEFAULT_CONTENT_CHARSET);
         }
         catch (IOException ioExceptionIncoming) {
         	ioExceptionIncoming.printStackTrace();
+
+        	return null;
         }
     }
 
+    /**
+     * Sends one upload try. 
+     * 
+     * @return  HTTP status code of the response. 
+     * 
+     * @throws  RetryLaterException  The server answered "429 Too Many Requests". 
+     * @throws  IOException  The connection failed or timed out. 
+     * 
+     */
+
+    private int post(String urlStringIncoming, byte[] bodyBytesIncoming, String contentTypeStringIncoming) throws IOException {
+        HttpPost httpPost = new HttpPost(urlStringIncoming);
+
+        httpPost.setHeader(HTTP.USER_AGENT, "RoutineLibUploader");
+        httpPost.setHeader("Authorization", "Basic " + Base64.encodeToString("user:r-h/r-t?".getBytes(), Base64.NO_WRAP));
+
+        byte[] bodyBytes = bodyBytesIncoming;
+
+        boolean gzipped = serverAcceptsGzip && bodyBytes.length >= GZIP_MIN_SIZE;
+
+        if (gzipped) {
+        	bodyBytes = gzip(bodyBytes);
+        	httpPost.setHeader(HTTP.CONTENT_ENCODING, "gzip");
+        }
+
+        ByteArrayEntity byteArrayEntity = new ByteArrayEntity(bodyBytes);
+        byteArrayEntity.setContentType(contentTypeStringIncoming);
+        httpPost.setEntity(byteArrayEntity);
+
+        HttpResponse httpResponse = defaultHttpClient.execute(httpPost);
+
+        String statusLineString = httpResponse.getStatusLine().toString();
+
+        Log.d("HTTP POST RESPONSE statusLine", statusLineString);
+
+        int statusCodeInt = httpResponse.getStatusLine().getStatusCode();
+
+        Header acceptEncodingHeader = httpResponse.getFirstHeader("Accept-Encoding");
+
+        if (gzipped && statusCodeInt == 415) {
+        	serverAcceptsGzip = false; // Old server, send uncompressed from now on.
+        	statusCodeInt = 503;       // Retried uncompressed.
+        }
+        else if (acceptEncodingHeader != null) {
+        	serverAcceptsGzip = acceptEncodingHeader.getValue().toLowerCase().contains("gzip");
+        }
+
+        if (httpResponse.getEntity() != null) {
+        	String responseString = EntityUtils.toString(httpResponse.getEntity(), HTTP.UTF_8);
+        	Log.d("HTTP POST RESPONSE response", responseString);
+        }
+
+        if (statusCodeInt == 429) {
+        	throw new RetryLaterException(retryAfter(httpResponse.getFirstHeader("Retry-After")));
+        }
+        return statusCodeInt;
+    }
+
+    /**
+     * Reads the wait time of a "429 Too Many Requests" response. 
+     * 
+     * @param  retryAfterHeaderIncoming  Retry-After header in seconds, may be null or an HTTP date (not supported). 
+     * 
+     * @return  The wait time in milliseconds, RETRY_DELAY_MS if not given, at most MAX_RETRY_AFTER_MS. 
+     * 
+     */
+
+    private static long retryAfter(Header retryAfterHeaderIncoming) {
+        if (retryAfterHeaderIncoming == null) {
+        	return RETRY_DELAY_MS;
+        }
+
+        try {
+        	long delayLong = Long.parseLong(retryAfterHeaderIncoming.getValue().trim()) * 1000;
+
+        	return Math.max(0, Math.min(delayLong, MAX_RETRY_AFTER_MS));
+        }
+        catch (NumberFormatException numberFormatExceptionIncoming) {
+        	return RETRY_DELAY_MS;
+        }
+    }
+
+    /**
+     * Thrown by post() when the server asks to send again later. 
+     * 
+     */
+
+    private static class RetryLaterException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long delayLong;
+
+        private RetryLaterException(long delayLongIncoming) {
+        	super("429 Too Many Requests");
+
+        	delayLong = delayLongIncoming;
+        }
+
+    }
+
+    /**
+     * Compresses the upload, used when the server has told that it accepts gzip compressed requests. 
+     * 
+     */
+
+    private static byte[] gzip(byte[] bytesIncoming) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(bytesIncoming.length / 4 + 64);
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream);
+
+        try {
+        	gzipOutputStream.write(bytesIncoming);
+        }
+        finally {
+        	gzipOutputStream.close();
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
     public void sendString(String uploadDataStringIncoming, String additionalPathStringIncoming) throws IOException {
         uploadDataString = uploadDataStringIncoming;
+        uploadDataBytes = null;
+        fallbackObject = null;
+        fullURLString = baseURLString + additionalPathStringIncoming;
+
+        Thread thread = new Thread(this);
+        thread.start();
+    }
+
+    /**
+     * Uploads binary data, for example raw data encoded with CompactCodec. 
+     * 
+     * @param  uploadDataBytesIncoming  The data to be uploaded. 
+     * @param  contentTypeStringIncoming  Content-Type of the data, for example CompactCodec.MEDIA_TYPE. 
+     * @param  additionalPathStringIncoming  Additional URL path. 
+     * 
+     * @see  fi.vtt.routinelibrary.common.CompactCodec 
+     * 
+     */
+
+    public void sendBytes(byte[] uploadDataBytesIncoming, String contentTypeStringIncoming, String additionalPathStringIncoming) throws IOException {
+        sendBytes(uploadDataBytesIncoming, contentTypeStringIncoming, null, additionalPathStringIncoming);
+    }
+
+    /**
+     * Uploads binary data, falling back to JSON if the server does not accept its Content-Type. 
+     * <p> 
+     * A server without support for the Content-Type answers "415 Unsupported Media Type". The same data is then sent at 
+     * once as JSON, and all later uploads of this HTTPUploader that have a fallback are sent as JSON. 
+     * 
+     * @param  uploadDataBytesIncoming  The data to be uploaded. 
+     * @param  contentTypeStringIncoming  Content-Type of the data, for example CompactCodec.MEDIA_TYPE. 
+     * @param  fallbackObjectIncoming  The same data as an object, serialized with Gson only when needed. May be null. 
+     * @param  additionalPathStringIncoming  Additional URL path. 
+     * 
+     */
+
+    public void sendBytes(byte[] uploadDataBytesIncoming, String contentTypeStringIncoming, Object fallbackObjectIncoming, String additionalPathStringIncoming) throws IOException {
+        uploadDataBytes = uploadDataBytesIncoming;
+        contentTypeString = contentTypeStringIncoming;
+        fallbackObject = fallbackObjectIncoming;
+        uploadDataString = null;
         fullURLString = baseURLString + additionalPathStringIncoming;
 
         Thread thread = new Thread(this);
@@ -31,6 +31,7 @@ package fi.vtt.routinelibrary.internal;
 
 import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
 import fi.vtt.routinelibrary.RoutineLibraryCallback;
 import fi.vtt.routinelibrary.common.Application;
@@ -71,6 +72,12 @@ public class InternalRoutine implements MyTimerListener {
     public final static String CONFIGURATION_FILE_NAME = "configuration.txt";
     public final static String STATE_FILE_NAME         = "old_state.txt";
 
+    // Upload sequence numbers survive restarts so that the server can recognize re-sent data:
+    private final static String PREFERENCES_NAME          = "fi.vtt.routinelibrary";
+    private final static String NEXT_SEQUENCE_NUMBER_KEY  = "nextSequenceNumber";
+
+    private SharedPreferences sharedPreferences = null;
+
     private boolean loadConfiguration() {
         Log.d("InternalRoutine", "loadConfiguration");
 
@@ -224,6 +231,8 @@ public class InternalRoutine implements MyTimerListener {
             saveConfiguration();
         }
 
+        sharedPreferences = contextIncoming.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
         loggerService = new LoggerService(contextIncoming);
 
         routineService = new RoutineService();
@@ -231,6 +240,21 @@ public class InternalRoutine implements MyTimerListener {
         myTimer = new MyTimer(this);
     }
 
+    /**
+     * Give the next upload sequence number of this device. Numbers grow by one and are never reused, even after a restart.
+     * 
+     * @return  Sequence number for a RawLogData or RoutineData object.
+     * 
+     */
+
+    private synchronized long nextSequenceNumber() {
+        long sequenceNumberLong = sharedPreferences.getLong(NEXT_SEQUENCE_NUMBER_KEY, 0);
+
+        sharedPreferences.edit().putLong(NEXT_SEQUENCE_NUMBER_KEY, sequenceNumberLong + 1).commit();
+
+        return sequenceNumberLong;
+    }
+
     public State getState() {
         return state;
     }
@@ -274,6 +298,8 @@ public class InternalRoutine implements MyTimerListener {
 
             long timeStampLong = System.currentTimeMillis();
 
+            rawLogData.setSequenceNumber(nextSequenceNumber());
+
             routineLibraryCallback.newRawLoggedData(rawLogData, timeStampLong, configuration.getUserIdHash());
 
             try {
@@ -291,6 +317,8 @@ public class InternalRoutine implements MyTimerListener {
 
                     boolean containsRoutineBoolean = state.containsRoutine(routineData);
 
+                    routineData.setSequenceNumber(nextSequenceNumber());
+
                     if (!containsRoutineBoolean) {
                         routineLibraryCallback.newRoutineLearned(routineData, timeStampLong, configuration.getUserIdHash());
                     }
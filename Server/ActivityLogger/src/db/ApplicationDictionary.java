@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.vtt.routinelib.common.Application;
+
+/** Shared in-memory dictionary from (application_name, package_class_name) to application.application_id
+ * <p>
+ *  The devices report the same applications all day, so almost every application lookup of the ingest paths is answered from
+ *  memory. The dictionary is preloaded from the application table at startup (fi.vtt.ActivityLoggerListener) and filled as new
+ *  applications are seen. Keys are made with Queries.applicationKey().
+ * </p>
+ * <p>
+ *  Missing applications are inserted with Queries.upsertApplication() (INSERT ... ON CONFLICT), which is safe under concurrent
+ *  ingest. Ids are cached only in auto commit mode because a JDBC transaction may still be rolled back. Callers that manage
+ *  transactions should therefore resolve the applications with resolve() before turning auto commit off.
+ * </p> */
+public class ApplicationDictionary {
+
+	/** Log4Java instance for this class. */
+    private final static Logger logger = LoggerFactory.getLogger(ApplicationDictionary.class);
+
+    private final static ConcurrentHashMap<String, Long> ids = new ConcurrentHashMap<String, Long>(256);
+
+    private final static AtomicLong hits    = new AtomicLong();
+    private final static AtomicLong misses  = new AtomicLong();
+    private final static AtomicLong inserts = new AtomicLong();
+
+    /** Utility class */
+    private ApplicationDictionary() {}
+
+    /** Load all existing applications into the dictionary
+     * @param connection routine_db PostgreSQL connection.
+     * @return Number of loaded applications.
+     * @throws SQLException The query or DB connection failed. */
+    public static int preload(Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        int count = 0;
+        try {
+            String sql = "SELECT application_id, application_name, package_class_name FROM application";
+            preparedStatement = connection.prepareStatement(sql);
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                ids.put(Queries.applicationKey(rs.getString(2), rs.getString(3)), rs.getLong(1));
+                count++;
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                preparedStatement.close();
+            }
+        }
+        logger.info("Application dictionary preloaded with " + count + " applications.");
+        return count;
+    }
+
+    /** Get the id of an application, inserting the application record if it does not exist
+     * @param connection routine_db PostgreSQL connection.
+     * @param name Name of the application.
+     * @param className The Java package and class name of the application.
+     * @return The application.application_id value.
+     * @throws SQLException The query or DB connection failed. */
+    public static long getId(Connection connection, String name, String className) throws SQLException {
+        String key = Queries.applicationKey(name, className);
+        Long id = ids.get(key);
+        if (id != null) {
+            hits.incrementAndGet();
+            return id;
+        }
+        misses.incrementAndGet();
+        return insertIfAbsent(connection, key, name, className);
+    }
+
+    /** Get the ids of all the given applications, inserting the missing application records
+     * @param connection routine_db PostgreSQL connection.
+     * @param applications Applications to resolve, may contain duplicates.
+     * @return application.application_id values keyed by Queries.applicationKey(name, class name).
+     * @throws SQLException The query or DB connection failed.
+     * <p>Applications not in the dictionary are first searched with one query, only the rest are inserted one by one.</p> */
+    public static Map<String, Long> resolve(Connection connection, Collection<Application> applications) throws SQLException {
+        Map<String, Long> resolved = new HashMap<String, Long>();
+        Map<String, Application> missing = new LinkedHashMap<String, Application>();
+        for (Application application : applications) {
+            String key = Queries.applicationKey(application.getName(), application.getClassName());
+            if (resolved.containsKey(key) || missing.containsKey(key)) {
+                continue;
+            }
+            Long id = ids.get(key);
+            if (id != null) {
+                hits.incrementAndGet();
+                resolved.put(key, id);
+            } else {
+                misses.incrementAndGet();
+                missing.put(key, application);
+            }
+        }
+        if (missing.isEmpty()) {
+            return resolved;
+        }
+
+        // Probably inserted by another server instance or missed by the preload:
+        boolean cacheable = connection.getAutoCommit();
+        List<String> names = new ArrayList<String>();
+        for (Application application : missing.values()) {
+            names.add(application.getName());
+        }
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT application_id, application_name, package_class_name FROM application WHERE application_name = ANY(?)";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            preparedStatement.setArray(1, connection.createArrayOf("text", names.toArray()));
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                String key = Queries.applicationKey(rs.getString(2), rs.getString(3));
+                if (missing.remove(key) != null) {
+                    resolved.put(key, rs.getLong(1));
+                    if (cacheable) {
+                        ids.put(key, rs.getLong(1));
+                    }
+                }
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+
+        for (Map.Entry<String, Application> entry : missing.entrySet()) {
+            Application application = entry.getValue();
+            resolved.put(entry.getKey(), insertIfAbsent(connection, entry.getKey(), application.getName(), application.getClassName()));
+        }
+        return resolved;
+    }
+
+    /** Insert an application record unless it exists (or another session just inserted it), and return its id */
+    private static long insertIfAbsent(Connection connection, String key, String name, String className) throws SQLException {
+        long id = Queries.upsertApplication(connection, name, className);
+        if (id < 0) {
+            throw new SQLException("Application " + name + " (" + className + ") could not be inserted or found!");
+        }
+        inserts.incrementAndGet();
+        if (connection.getAutoCommit()) {
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    /** Remove an application from the dictionary by its id (used when the application record is deleted)
+     * @param applicationId application.application_id of the removed application. */
+    public static void invalidate(long applicationId) {
+        Iterator<Long> it = ids.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().longValue() == applicationId) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Empty the dictionary */
+    public static void clear() {
+        ids.clear();
+    }
+
+    /** Snapshot of the dictionary counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("application_dictionary_size", ids.size());
+        metrics.put("application_dictionary_hits_total", hits.get());
+        metrics.put("application_dictionary_misses_total", misses.get());
+        metrics.put("application_dictionary_upserts_total", inserts.get());
+        return metrics;
+    }
+
+}
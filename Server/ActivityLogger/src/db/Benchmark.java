@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import fi.vtt.activitylogger.LoggerApplication;
+import fi.vtt.routinelib.common.Application;
+import fi.vtt.routinelib.common.CompactCodec;
+import fi.vtt.routinelib.common.GPSData;
+import fi.vtt.routinelib.common.RawLogData;
+
+/** Command line micro benchmarks for the routine_db access code
+ * <p>
+ *  Usage: java -cp ActivityLogger classes and libraries db.Benchmark jdbc-url user password mode [iterations]
+ *  (e.g. jdbc:postgresql://localhost:5432/routine_db). Each mode prints the latency per operation (mean, median and 95th
+ *  percentile in microseconds) for the compared variants. The measured writes are done in a transaction that is rolled back,
+ *  only the benchmark device, logger application and applications stay in the database.
+ * </p>
+ * <p>Modes:</p>
+ * <ul>
+ *  <li><em>insert</em>: Queries.insertRawMeasurement() with StatementCache disabled and enabled.</li>
+ *  <li><em>codec</em>: size, encoding and decoding time of raw data as JSON and in the compact format (CompactCodec), no
+ *   database is used (give any values for url, user and password).</li>
+ *  <li><em>filter</em>: Queries.getAllUserRoutines() for one device and one month, without and with the indexes of
+ *   add_routine_indexes.sql (they are dropped in a transaction that is rolled back). The first run adds FILTER_ROWS raw measurements
+ *   and user routines over FILTER_DEVICES devices (logger application "benchmark-filter"), which stay for later runs.
+ *   An optional sixth argument changes the number of rows. Use a small iteration count, e.g. 20.</li>
+ *  <li><em>routines</em>: throughput (routines per second) of building user routines from the rows grouped by the database:
+ *   Queries.getAllUserRoutines() for the whole year of one device whose routines are given ROUTINE_APPS applications each (in a
+ *   transaction that is rolled back), and paging through all routines with Queries.getUserRoutinesPage(), ROUTINE_PAGE routines per
+ *   page (iterations pages at most). Uses the data of the filter mode, the optional sixth argument is the same.</li>
+ * </ul> */
+public class Benchmark {
+
+    /** Default number of measured operations per variant: {@value} */
+    public final static int    DEFAULT_ITERATIONS = 2000;
+
+    /** Name of the device used by the benchmarks: {@value} */
+    public final static String DEVICE_NAME        = "benchmark-device";
+
+    /** Default number of raw measurements (one user routine each) of the filter benchmark: {@value} */
+    public final static int    FILTER_ROWS        = 10000000;
+
+    /** Number of devices (benchmark-device-1 ...) the filter benchmark data is spread over: {@value} */
+    public final static int    FILTER_DEVICES     = 1000;
+
+    /** Number of applications per routine of the device read by the routines benchmark: {@value} */
+    public final static int    ROUTINE_APPS       = 4;
+
+    /** Routines per page of the routines benchmark: {@value} */
+    public final static int    ROUTINE_PAGE       = 1000;
+
+    /** Logger application and routine class name of the filter benchmark data */
+    private final static String FILTER_NAME       = "benchmark-filter";
+
+    /** Indexes of add_routine_indexes.sql used by the filtered user routine query */
+    private final static String[] FILTER_INDEXES  = { "raw_measurements_device_time_index", "user_routines_measurement_index",
+                                                      "user_routines_time_index" };
+
+    /** Utility class */
+    private Benchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: Benchmark <jdbc url> <user> <password> <mode> [iterations]");
+            System.err.println("Modes: insert, codec, filter, routines");
+            System.exit(1);
+        }
+        int iterations = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_ITERATIONS;
+        if ("codec".equals(args[3])) {
+            benchmarkCodec(iterations);
+            return;
+        }
+        Class.forName("org.postgresql.Driver");
+        Connection connection = DriverManager.getConnection(args[0], args[1], args[2]);
+        try {
+            String mode = args[3];
+            if ("insert".equals(mode)) {
+                benchmarkInsert(connection, iterations);
+            } else if ("filter".equals(mode)) {
+                benchmarkFilter(connection, iterations, (args.length > 5) ? Integer.parseInt(args[5]) : FILTER_ROWS);
+            } else if ("routines".equals(mode)) {
+                benchmarkRoutines(connection, iterations, (args.length > 5) ? Integer.parseInt(args[5]) : FILTER_ROWS);
+            } else {
+                System.err.println("Unknown mode: " + mode);
+                System.exit(1);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /** Per-insert latency of insertRawMeasurement() without and with the prepared statement cache */
+    private static void benchmarkInsert(Connection connection, int iterations) throws Exception {
+        long deviceId = ReceiversCommon.findOrCreateDeviceId(DEVICE_NAME, connection);
+        LoggerApplication loggerApplication = ReceiversCommon.findOrCreateLoggerApp(connection, ReceiversCommon.LOGGER_APP_NAME);
+        RawLogData rawLogData = sampleRawLogData(3);
+        List<RawLogData> single = new ArrayList<RawLogData>();
+        single.add(rawLogData);
+        Queries.findOrInsertApplicationIds(connection, single); // Applications into the dictionary outside the transaction.
+
+        int[] sizes = { 0, StatementCache.DEFAULT_MAX_PER_CONNECTION };
+        String[] names = { "no statement cache", "statement cache" };
+        for (int v = 0; v < sizes.length; v++) {
+            StatementCache.setMaxPerConnection(sizes[v]);
+            long[] nanos = new long[iterations];
+            connection.setAutoCommit(false);
+            try {
+                for (int i = 0; i < iterations / 10; i++) { // Warm up (JIT, pgjdbc prepareThreshold).
+                    Queries.insertRawMeasurement(connection, deviceId, loggerApplication, rawLogData);
+                }
+                for (int i = 0; i < iterations; i++) {
+                    long started = System.nanoTime();
+                    Queries.insertRawMeasurement(connection, deviceId, loggerApplication, rawLogData);
+                    nanos[i] = System.nanoTime() - started;
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            report("insertRawMeasurement, 3 apps, " + names[v], nanos);
+        }
+        StatementCache.setMaxPerConnection(StatementCache.DEFAULT_MAX_PER_CONNECTION);
+    }
+
+    /** Latency of a device and month filtered user routine query, without and with the supporting indexes */
+    private static void benchmarkFilter(Connection connection, int iterations, int rows) throws Exception {
+        Statement statement = connection.createStatement();
+        for (String index : FILTER_INDEXES) {
+            ResultSet rs = statement.executeQuery("SELECT 1 FROM pg_indexes WHERE indexname = '" + index + "'");
+            boolean found = rs.next();
+            rs.close();
+            if (!found) {
+                statement.close();
+                System.err.println("Index " + index + " is missing, run add_routine_indexes.sql first.");
+                return;
+            }
+        }
+        statement.close();
+        populateFilterData(connection, rows);
+
+        String[] names = { "without indexes", "with indexes" };
+        for (int v = 0; v < names.length; v++) {
+            Random random = new Random(1); // The same devices and months for both variants.
+            long[] nanos = new long[iterations];
+            long routines = 0;
+            connection.setAutoCommit(false);
+            try {
+                if (v == 0) {
+                    statement = connection.createStatement();
+                    for (String index : FILTER_INDEXES) {
+                        statement.execute("DROP INDEX " + index); // Restored by the rollback.
+                    }
+                    statement.close();
+                }
+                for (int i = -1; i < iterations; i++) { // i = -1 is warm up.
+                    String deviceName = "benchmark-device-" + (1 + random.nextInt(FILTER_DEVICES));
+                    int month = 1 + random.nextInt(11);
+                    String startTime = String.format("2012-%02d-01T00:00:00Z", month);
+                    String endTime = String.format("2012-%02d-01T00:00:00Z", month + 1);
+                    long started = System.nanoTime();
+                    List<fi.vtt.activitylogger.UserRoutine> found =
+                            Queries.getAllUserRoutines(connection, deviceName, null, startTime, endTime);
+                    if (i >= 0) {
+                        nanos[i] = System.nanoTime() - started;
+                        routines += found.size();
+                    }
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            report("getAllUserRoutines, 1 device, 1 month of " + rows + " rows, " + names[v]
+                    + " (" + (iterations > 0 ? routines / iterations : 0) + " found)", nanos);
+        }
+    }
+
+    /** Throughput of the user routine queries that group the application rows of a routine in the database */
+    private static void benchmarkRoutines(Connection connection, int iterations, int rows) throws Exception {
+        populateFilterData(connection, rows);
+        long[] extraApplicationIds = new long[ROUTINE_APPS - 1];
+        for (int a = 0; a < extraApplicationIds.length; a++) { // Applications into the dictionary outside the transaction.
+            extraApplicationIds[a] = Queries.upsertApplication(connection,
+                    "Benchmark application " + (a + 1), "fi.vtt.benchmark.App" + (a + 1));
+        }
+        String deviceName = "benchmark-device-1";
+        connection.setAutoCommit(false);
+        try {
+            PreparedStatement extra = connection.prepareStatement(
+                    "INSERT INTO user_routines (start_time, end_time, routine_class_id_fk, application_id_fk, raw_measurement_id_fk, confidence) " +
+                    "SELECT ur.start_time, ur.end_time, ur.routine_class_id_fk, ?, ur.raw_measurement_id_fk, ur.confidence " +
+                    "FROM user_routines AS ur " +
+                    "INNER JOIN raw_measurements AS rm ON ur.raw_measurement_id_fk = rm.measurement_id " +
+                    "INNER JOIN devices AS d ON rm.device_id_fk = d.device_id " +
+                    "WHERE d.device_name = ? AND ur.application_id_fk <> ALL (?::bigint[])");
+            try {
+                StringBuilder ids = new StringBuilder("{");
+                for (int a = 0; a < extraApplicationIds.length; a++) {
+                    ids.append(a > 0 ? "," : "").append(extraApplicationIds[a]);
+                }
+                ids.append('}');
+                for (long applicationId : extraApplicationIds) {
+                    extra.setLong(1, applicationId);
+                    extra.setString(2, deviceName);
+                    extra.setString(3, ids.toString()); // Only the original row of each routine is copied.
+                    extra.executeUpdate();
+                }
+            } finally {
+                extra.close();
+            }
+
+            long[] nanos = new long[iterations];
+            long routines = 0;
+            for (int i = -1; i < iterations; i++) { // i = -1 is warm up.
+                long started = System.nanoTime();
+                List<fi.vtt.activitylogger.UserRoutine> found = Queries.getAllUserRoutines(connection, deviceName, null, null, null);
+                if (i >= 0) {
+                    nanos[i] = System.nanoTime() - started;
+                    routines += found.size();
+                }
+            }
+            report("getAllUserRoutines, 1 device, " + ROUTINE_APPS + " apps per routine", nanos);
+            reportThroughput(routines, nanos);
+        } finally {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+
+        long[] nanos = new long[iterations];
+        long routines = 0;
+        int pages = 0;
+        long after = 0;
+        Queries.getUserRoutinesPage(connection, after, ROUTINE_PAGE); // Warm up.
+        while (pages < iterations && after >= 0) {
+            long started = System.nanoTime();
+            Page<fi.vtt.activitylogger.UserRoutine> page = Queries.getUserRoutinesPage(connection, after, ROUTINE_PAGE);
+            nanos[pages++] = System.nanoTime() - started;
+            routines += page.getItems().size();
+            after = page.getNextAfter();
+        }
+        nanos = Arrays.copyOf(nanos, pages);
+        report("getUserRoutinesPage, " + ROUTINE_PAGE + " routines per page", nanos);
+        reportThroughput(routines, nanos);
+    }
+
+    /** Print the number of items per second over the given operations */
+    private static void reportThroughput(long items, long[] nanos) {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        System.out.println(String.format("%-60s %d routines, %.0f routines/s", "", items, (total > 0) ? items * 1e9 / total : 0));
+    }
+
+    /** Add the filter benchmark data (FILTER_DEVICES devices, one raw measurement and user routine per row over the year 2012) up to
+     *  the given number of rows, one million rows per transaction */
+    private static void populateFilterData(Connection connection, int rows) throws Exception {
+        Statement statement = connection.createStatement();
+        statement.executeUpdate("INSERT INTO devices (device_name, platform) SELECT 'benchmark-device-' || g, 'benchmark' " +
+                "FROM generate_series(1, " + FILTER_DEVICES + ") AS g ON CONFLICT (device_name) DO NOTHING");
+        long loggerApplicationId = ReceiversCommon.findOrCreateLoggerApp(connection, FILTER_NAME).getLoggerApplicationId();
+        long applicationId = Queries.upsertApplication(connection, "Benchmark application 0", "fi.vtt.benchmark.App0");
+        ResultSet rs = statement.executeQuery("SELECT id FROM routine_classes WHERE routine_class_name = '" + FILTER_NAME + "'");
+        if (!rs.next()) {
+            rs.close();
+            rs = statement.executeQuery("INSERT INTO routine_classes (routine_type_id, routine_class_name, owner_device_id_fk) " +
+                    "SELECT 0, '" + FILTER_NAME + "', device_id FROM devices WHERE device_name = 'benchmark-device-1' RETURNING id");
+            rs.next();
+        }
+        long routineClassId = rs.getLong(1);
+        rs.close();
+        rs = statement.executeQuery("SELECT count(*) FROM raw_measurements WHERE logger_application_id_fk = " + loggerApplicationId);
+        rs.next();
+        long existing = rs.getLong(1);
+        rs.close();
+
+        PreparedStatement measurements = connection.prepareStatement(
+                "INSERT INTO raw_measurements (measurement_timestamp, latitude, longitude, cell_id, logger_application_id_fk, device_id_fk) " +
+                "SELECT timestamp with time zone '2012-01-01 00:00:00+00' + g * ? * interval '1 second', " +
+                "       60.0 + (g % 1000) * 0.001, 24.0 + (g % 997) * 0.001, (g % 5000)::integer, ?, d.device_id " +
+                "FROM generate_series(?, ?) AS g " +
+                "INNER JOIN devices AS d ON d.device_name = 'benchmark-device-' || (1 + g % " + FILTER_DEVICES + ")");
+        PreparedStatement routines = connection.prepareStatement(
+                "INSERT INTO user_routines (start_time, end_time, routine_class_id_fk, application_id_fk, raw_measurement_id_fk, confidence) " +
+                "SELECT rm.measurement_timestamp, rm.measurement_timestamp + interval '10 minutes', ?, ?, rm.measurement_id, 0.9 " +
+                "FROM raw_measurements AS rm WHERE rm.logger_application_id_fk = ? AND rm.measurement_id > ?");
+        try {
+            for (long first = existing + 1; first <= rows; first += 1000000) {
+                long last = Math.min(rows, first + 999999);
+                System.out.println("Adding filter benchmark rows " + first + "-" + last + "...");
+                connection.setAutoCommit(false);
+                rs = statement.executeQuery("SELECT coalesce(max(measurement_id), 0) FROM raw_measurements");
+                rs.next();
+                long maxId = rs.getLong(1);
+                rs.close();
+                measurements.setDouble(1, 366 * 86400.0 / rows); // Spread over the (leap) year 2012.
+                measurements.setLong(2, loggerApplicationId);
+                measurements.setLong(3, first);
+                measurements.setLong(4, last);
+                measurements.executeUpdate();
+                routines.setLong(1, routineClassId);
+                routines.setLong(2, applicationId);
+                routines.setLong(3, loggerApplicationId);
+                routines.setLong(4, maxId);
+                routines.executeUpdate();
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+            statement.execute("ANALYZE raw_measurements");
+            statement.execute("ANALYZE user_routines");
+        } finally {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            measurements.close();
+            routines.close();
+            statement.close();
+        }
+    }
+
+    /** Size and encode/decode latency of one upload and of a batch of 60 uploads (one hour), JSON vs. compact format */
+    private static void benchmarkCodec(int iterations) throws Exception {
+        String[] names = { "Web browser", "Messaging", "Phone", "Email", "Calendar", "Maps", "Music", "Camera" };
+        String[] classNames = { "com.android.browser.BrowserActivity", "com.android.mms.ui.ConversationList",
+                "com.android.contacts.DialtactsActivity", "com.android.email.activity.Welcome",
+                "com.android.calendar.AllInOneActivity", "com.google.android.maps.MapsActivity",
+                "com.android.music.MusicBrowserActivity", "com.android.camera.Camera" };
+        List<RawLogData> batch = new ArrayList<RawLogData>();
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < 60; i++) {
+            RawLogData rawLogData = new RawLogData();
+            rawLogData.setTimestamp(timestamp + i * 60000L);
+            rawLogData.setTimeStringPresentation("2013-05-06 12:" + (i < 10 ? "0" : "") + i + ":00");
+            rawLogData.setCellId(12345 + i / 20);
+            rawLogData.setGpsData(new GPSData(timestamp + i * 60000L - 5000, 60.1699 + i * 0.0001, 24.9384 - i * 0.0001));
+            ArrayList<Application> apps = new ArrayList<Application>();
+            for (int a = 0; a < names.length; a++) {
+                apps.add(new Application(names[a], classNames[a], Queries.LAUNCH_TIME_NOT_USED));
+            }
+            rawLogData.setApps(apps);
+            batch.add(rawLogData);
+        }
+        Gson gson = new Gson();
+        java.lang.reflect.Type listType = new TypeToken<List<RawLogData>>() {}.getType();
+        Object[] payloads = { batch.get(0), batch };
+        String[] payloadNames = { "1 upload, 8 apps", "60 uploads, 8 apps" };
+        for (int p = 0; p < payloads.length; p++) {
+            Object payload = payloads[p];
+            boolean single = (payload instanceof RawLogData);
+            byte[] json = (single ? gson.toJson(payload) : gson.toJson(payload, listType)).getBytes("UTF-8");
+            byte[] compact = single ? CompactCodec.encode((RawLogData) payload) : CompactCodec.encode(batch);
+            System.out.println(String.format("%-60s json=%d bytes (gzip %d), compact=%d bytes (gzip %d)", payloadNames[p],
+                    json.length, gzippedLength(json), compact.length, gzippedLength(compact)));
+
+            long[] jsonEncode = new long[iterations];
+            long[] jsonDecode = new long[iterations];
+            long[] compactEncode = new long[iterations];
+            long[] compactDecode = new long[iterations];
+            for (int i = -iterations / 10; i < iterations; i++) { // Negative i is warm up.
+                long started = System.nanoTime();
+                String encoded = single ? gson.toJson(payload) : gson.toJson(payload, listType);
+                long encoded1 = System.nanoTime();
+                Object decoded = single ? gson.fromJson(new StringReader(encoded), RawLogData.class)
+                        : gson.fromJson(new StringReader(encoded), listType);
+                long decoded1 = System.nanoTime();
+                byte[] bytes = single ? CompactCodec.encode((RawLogData) payload) : CompactCodec.encode(batch);
+                long encoded2 = System.nanoTime();
+                decoded = CompactCodec.decode(new ByteArrayInputStream(bytes));
+                long decoded2 = System.nanoTime();
+                if (i >= 0 && decoded != null) {
+                    jsonEncode[i] = encoded1 - started;
+                    jsonDecode[i] = decoded1 - encoded1;
+                    compactEncode[i] = encoded2 - decoded1;
+                    compactDecode[i] = decoded2 - encoded2;
+                }
+            }
+            report(payloadNames[p] + ", JSON encode", jsonEncode);
+            report(payloadNames[p] + ", JSON decode", jsonDecode);
+            report(payloadNames[p] + ", compact encode", compactEncode);
+            report(payloadNames[p] + ", compact decode", compactDecode);
+        }
+    }
+
+    private static int gzippedLength(byte[] bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.size();
+    }
+
+    /** A raw data set with a location and the given number of applications */
+    static RawLogData sampleRawLogData(int applications) {
+        RawLogData rawLogData = new RawLogData();
+        rawLogData.setTimestamp(System.currentTimeMillis());
+        rawLogData.setCellId(12345);
+        rawLogData.setGpsData(new GPSData(System.currentTimeMillis(), 60.1699, 24.9384));
+        ArrayList<Application> apps = new ArrayList<Application>();
+        for (int i = 0; i < applications; i++) {
+            apps.add(new Application("Benchmark application " + i, "fi.vtt.benchmark.App" + i, Queries.LAUNCH_TIME_NOT_USED));
+        }
+        rawLogData.setApps(apps);
+        return rawLogData;
+    }
+
+    /** Print mean, median and 95th percentile of the measured durations in microseconds */
+    static void report(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long n : sorted) {
+            total += n;
+        }
+        double mean = (sorted.length > 0) ? total / 1000.0 / sorted.length : 0;
+        double median = (sorted.length > 0) ? sorted[sorted.length / 2] / 1000.0 : 0;
+        double p95 = (sorted.length > 0) ? sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.95))] / 1000.0 : 0;
+        System.out.println(String.format("%-60s n=%d mean=%.1f us median=%.1f us p95=%.1f us", name, sorted.length, mean, median, p95));
+    }
+
+}
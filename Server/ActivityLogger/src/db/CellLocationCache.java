@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+package db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import fi.vtt.activitylogger.CellLocation;
+
+/** Bounded in-memory read-through cache of the cell location aggregates (see CellLocations)
+ * <p>
+ *  Location routines resolve the same few cells over and over. get() returns a cached aggregate if it was read within ttlSeconds,
+ *  otherwise it reads the cell from cell_locations with a pooled connection and caches it, also when the cell has no aggregate
+ *  (so unknown cells do not query the database on every call either). The most recently used cells are kept (LRU eviction).
+ *  Settings are the cellCache.* context-params in web.xml.
+ * </p> */
+public class CellLocationCache {
+
+    /** Default maximum number of cached cells: {@value} */
+    public final static int DEFAULT_MAX_SIZE = 100000;
+    /** Default seconds an aggregate is used before it is read again: {@value} */
+    public final static int DEFAULT_TTL_SECONDS = 300;
+
+    private static volatile int maxSize = DEFAULT_MAX_SIZE;
+    private static volatile long ttlMillis = DEFAULT_TTL_SECONDS * 1000L;
+
+    /** A cached aggregate, location null if the cell has none */
+    private static class Cached {
+        final CellLocation location;
+        final long loaded;
+
+        Cached(CellLocation location, long loaded) {
+            this.location = location;
+            this.loaded = loaded;
+        }
+    }
+
+    /** Access ordered map, the eldest entry is the least recently used one. Guarded by itself. */
+    private final static LinkedHashMap<Integer, Cached> cache = new LinkedHashMap<Integer, Cached>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Cached> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    private final static AtomicLong hits   = new AtomicLong();
+    private final static AtomicLong misses = new AtomicLong();
+
+    /** Utility class */
+    private CellLocationCache() {}
+
+    /** Get the aggregate of a cell, from the cache or else from the database
+     * @param dataSource Connection pool, a connection is only taken on a miss.
+     * @param cellId The cell id.
+     * @return Centroid and spread of the GPS locations measured in the cell, or null if there are none.
+     * @throws SQLException If the cell was not cached and the query failed. */
+    public static CellLocation get(DataSource dataSource, int cellId) throws SQLException {
+        Cached entry;
+        synchronized (cache) {
+            entry = cache.get(cellId);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.loaded < ttlMillis) {
+            hits.incrementAndGet();
+            return entry.location;
+        }
+        misses.incrementAndGet();
+        CellLocation location;
+        Connection connection = Metrics.getConnection(dataSource);
+        try {
+            location = CellLocations.find(connection, cellId);
+        } finally {
+            connection.close();
+        }
+        synchronized (cache) {
+            cache.put(cellId, new Cached(location, now));
+        }
+        return location;
+    }
+
+    /** Empty the cache */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /** Set the maximum number of cached cells. Extra entries are evicted as new cells are added.
+     * @param size New maximum size, at least 1. */
+    public static void setMaxSize(int size) {
+        maxSize = Math.max(1, size);
+    }
+
+    /** Set how long an aggregate is used before it is read again
+     * @param seconds Time to live, 0 reads the database on every call. */
+    public static void setTtlSeconds(int seconds) {
+        ttlMillis = Math.max(0, seconds) * 1000L;
+    }
+
+    /** Snapshot of the cache counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        metrics.put("cell_cache_size", size);
+        metrics.put("cell_cache_max_size", maxSize);
+        metrics.put("cell_cache_hits_total", hits.get());
+        metrics.put("cell_cache_misses_total", misses.get());
+        return metrics;
+    }
+
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.vtt.activitylogger.CellLocation;
+
+/** Per-cell location aggregates (cell_locations table of add_cell_locations.sql) for .../rest/cells and CellLocationCache
+ * <p>
+ *  Most raw measurements have a cell_id but no GPS location. For each cell, cell_locations holds the number of the measurements
+ *  that have both, the mean of their coordinates (the centroid) and the sums of squared deviations from the mean (M2), from
+ *  which find() computes the spread. Sums of raw squared degrees would lose a spread of some 100 m (variance around 1e-6 deg^2)
+ *  to rounding next to values around 3600, so each chunk is merged with the parallel variance formula (Chan et al.):
+ *  n = na + nb, mean = ma + d nb / n and M2 = M2a + M2b + d^2 na nb / n, with d = mb - ma. The aggregates are only added to: a
+ *  background thread adds the measurements inserted since its last run, in measurement_id order,
+ *  chunkIds ids per transaction, and stores the last added id in cell_location_checkpoint in the same transaction. The first run
+ *  so aggregates all stored measurements, and the aggregates are kept when the retention job deletes the originals.
+ * </p>
+ * <p>
+ *  A run adds the ids up to the largest one reserved at an earlier run, once every transaction that was already open then has
+ *  ended (pg_stat_activity.xact_start), so no id below it can still be committed later. A transaction that stays open (e.g.
+ *  idle in transaction) holds the updates back until it ends; cell_locations_waiting_runs_total counts such runs. The database
+ *  role of ActivityLogger must see the other sessions that write raw measurements (the same role, or pg_read_all_stats). The
+ *  transaction ids of the snapshot (xmin) are not enough: nextval() does not give a transaction an id, so an ingest
+ *  transaction can reserve measurement ids before it has one. The checkpoint is advanced only from the value it was read with, so another
+ *  ActivityLogger instance of the same database cannot add the same measurements twice.
+ *  Settings are the cellLocations.* context-params in web.xml (intervalSeconds 0 disables the updates).
+ * </p> */
+public class CellLocations {
+
+    private final static Logger logger = LoggerFactory.getLogger(CellLocations.class); // Log4Java.
+
+    /** Default seconds between two updates: {@value} */
+    public final static int DEFAULT_INTERVAL_SECONDS = 60;
+    /** Default measurement ids per transaction: {@value} */
+    public final static int DEFAULT_CHUNK_IDS = 100000;
+    /** Pause between two transactions of an update, leaves the database to online ingest: {@value} */
+    private final static long PAUSE_MILLIS = 50;
+
+    /** Meters per degree of latitude on the sphere of Geohash.EARTH_RADIUS */
+    private final static double METERS_PER_DEGREE = Math.PI / 180.0 * Geohash.EARTH_RADIUS;
+
+    /** nb / n of the parallel variance formula, in floating point */
+    private final static String NB_PER_N =
+            "(EXCLUDED.observation_count::double precision / (c.observation_count + EXCLUDED.observation_count))";
+
+    /** Add the measurements with a cell and a GPS location in the id range (?, ?], returns the number of measurements and of cells */
+    private final static String ADD_SQL =
+            "WITH added AS (" +
+            "  SELECT rm.cell_id, count(*) AS n, avg(rm.latitude) AS latitude_mean, avg(rm.longitude) AS longitude_mean, " +
+            "         var_pop(rm.latitude) * count(*) AS latitude_m2, var_pop(rm.longitude) * count(*) AS longitude_m2, " +
+            "         max(rm.measurement_timestamp) AS last_observed " +
+            "  FROM raw_measurements AS rm " +
+            "  WHERE rm.measurement_id > ? AND rm.measurement_id <= ? AND rm.cell_id <> -1 " +
+            "  AND rm.latitude BETWEEN -90 AND 90 AND rm.longitude BETWEEN -180 AND 180 " + // Not Queries.LATLONG_NOT_AVAILABLE.
+            "  GROUP BY rm.cell_id), " +
+            "upserted AS (" +
+            "  INSERT INTO cell_locations AS c (cell_id, observation_count, latitude_mean, longitude_mean, " +
+            "    latitude_m2, longitude_m2, last_observed) " +
+            "  SELECT cell_id, n, latitude_mean, longitude_mean, latitude_m2, longitude_m2, last_observed " +
+            "  FROM added ORDER BY cell_id " + // Rows are locked in cell order.
+            "  ON CONFLICT (cell_id) DO UPDATE SET " + // All c. values are the old ones.
+            "    observation_count = c.observation_count + EXCLUDED.observation_count, " +
+            "    latitude_mean = c.latitude_mean + (EXCLUDED.latitude_mean - c.latitude_mean) * " + NB_PER_N + ", " +
+            "    longitude_mean = c.longitude_mean + (EXCLUDED.longitude_mean - c.longitude_mean) * " + NB_PER_N + ", " +
+            "    latitude_m2 = c.latitude_m2 + EXCLUDED.latitude_m2 + (EXCLUDED.latitude_mean - c.latitude_mean) * " +
+            "      (EXCLUDED.latitude_mean - c.latitude_mean) * c.observation_count * " + NB_PER_N + ", " +
+            "    longitude_m2 = c.longitude_m2 + EXCLUDED.longitude_m2 + (EXCLUDED.longitude_mean - c.longitude_mean) * " +
+            "      (EXCLUDED.longitude_mean - c.longitude_mean) * c.observation_count * " + NB_PER_N + ", " +
+            "    last_observed = greatest(c.last_observed, EXCLUDED.last_observed) " +
+            "  RETURNING 1) " +
+            "SELECT coalesce(sum(n), 0), (SELECT count(*) FROM upserted) FROM added";
+
+    private final static String FIND_SQL =
+            "SELECT observation_count, latitude_mean, longitude_mean, latitude_m2, longitude_m2, last_observed " +
+            "FROM cell_locations WHERE cell_id = ?";
+
+    private static ScheduledExecutorService scheduler = null; // Guarded by CellLocations.class.
+
+    private final static AtomicLong runs         = new AtomicLong();
+    private final static AtomicLong failures     = new AtomicLong();
+    private final static AtomicLong measurements = new AtomicLong();
+    private final static AtomicLong cellRows     = new AtomicLong();
+    private final static AtomicLong waitingRuns  = new AtomicLong();
+    private static volatile long checkpoint = -1;
+
+    /** Transactions of other client sessions of this database open since ? (not counting this one) */
+    private final static String OPEN_TRANSACTIONS_SQL =
+            "SELECT count(*) FROM pg_stat_activity WHERE datname = current_database() AND backend_type = 'client backend' " +
+            "AND pid <> pg_backend_pid() AND xact_start < ?";
+
+    /** Largest reserved measurement_id at an earlier run, and the database time right after it was read (null before) */
+    private long pendingUntil = -1;
+    private Timestamp pendingSince = null;
+    private final int chunkIds;
+
+    /** @param chunkIds Measurement ids per transaction. */
+    public CellLocations(int chunkIds) {
+        this.chunkIds = Math.max(1, chunkIds);
+    }
+
+    /** Update the aggregates in a background thread every intervalSeconds
+     * @param dataSource Connection pool.
+     * @param intervalSeconds Seconds from the end of one update to the start of the next, 0 disables the updates.
+     * @param chunkIds Measurement ids per transaction. */
+    public static synchronized void start(final DataSource dataSource, int intervalSeconds, int chunkIds) {
+        stop();
+        if (intervalSeconds <= 0 || dataSource == null) {
+            return;
+        }
+        final CellLocations cellLocations = new CellLocations(chunkIds);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CellLocations");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                Connection connection = null;
+                try {
+                    connection = Metrics.getConnection(dataSource);
+                    cellLocations.update(connection);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt(); // Stopped, the checkpoint has the progress.
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    logger.warn("Cell location update failed: " + e.getMessage());
+                } finally {
+                    if (connection != null) {
+                        try {
+                            connection.close();
+                        } catch (Exception e) {
+                            System.out.print(e.toString());
+                        }
+                    }
+                }
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Cell location updates started: every " + intervalSeconds + " seconds.");
+    }
+
+    /** Stop the background updates (a running update stops at its next pause) */
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /** Add the measurements up to the largest id reserved at an earlier call once the transactions open then have ended, then
+     *  remember the largest id reserved now
+     * @param connection PostgreSQL connection (autocommit, left so on return).
+     * @return Number of added measurements (with a cell and a location).
+     * @throws SQLException On database errors, the chunks committed so far stay in the checkpoint.
+     * @throws InterruptedException If the thread was interrupted during a pause. */
+    public long update(Connection connection) throws SQLException, InterruptedException {
+        runs.incrementAndGet();
+        long until = -1;
+        if (pendingSince != null) {
+            if (countOpenTransactions(connection, pendingSince) == 0) {
+                until = pendingUntil; // Every id up to it is committed or rolled back.
+                pendingSince = null;
+            } else {
+                waitingRuns.incrementAndGet();
+            }
+        }
+        if (pendingSince == null) {
+            // A transaction that reserved an id up to last_value started before clock_timestamp() is read after it:
+            pendingUntil = querySingleLong(connection, "SELECT last_value FROM raw_measurements_measurement_id_seq", 0);
+            pendingSince = queryTimestamp(connection, "SELECT clock_timestamp()");
+        }
+        long from = querySingleLong(connection, "SELECT last_measurement_id FROM cell_location_checkpoint WHERE id = 1", 0);
+        checkpoint = from;
+        long added = 0;
+        while (from < until) {
+            long to = Math.min(until, from + chunkIds);
+            added += addRange(connection, from, to);
+            from = to;
+            checkpoint = from;
+            Thread.sleep(PAUSE_MILLIS);
+        }
+        return added;
+    }
+
+    /** Add the ids (from, to] and move the checkpoint from from to to, in one transaction
+     * @throws SQLException Also if the checkpoint was not at from (moved by another instance), nothing is added then. */
+    private static long addRange(Connection connection, long from, long to) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        boolean done = false;
+        connection.setAutoCommit(false);
+        try {
+            preparedStatement = StatementCache.prepare(connection,
+                    "INSERT INTO cell_location_checkpoint (id, last_measurement_id) VALUES (1, ?) " +
+                    "ON CONFLICT (id) DO UPDATE SET last_measurement_id = EXCLUDED.last_measurement_id " +
+                    "WHERE cell_location_checkpoint.last_measurement_id = ?");
+            preparedStatement.setLong(1, to);
+            preparedStatement.setLong(2, from);
+            if (preparedStatement.executeUpdate() != 1) {
+                throw new SQLException("Cell location checkpoint moved by another instance from " + from + ".");
+            }
+            StatementCache.release(preparedStatement);
+            preparedStatement = null;
+            preparedStatement = StatementCache.prepare(connection, ADD_SQL);
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, to);
+            ResultSet rs = preparedStatement.executeQuery();
+            rs.next();
+            long count = rs.getLong(1);
+            long rows = rs.getLong(2);
+            rs.close();
+            StatementCache.release(preparedStatement);
+            preparedStatement = null;
+            connection.commit();
+            done = true;
+            cellRows.addAndGet(rows);
+            measurements.addAndGet(count);
+            return count;
+        } finally {
+            if (preparedStatement != null) {
+                try {
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+            if (!done) {
+                try {
+                    connection.rollback();
+                } catch (Exception e) {
+                }
+            }
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /** Read the aggregate of a cell
+     * @param connection PostgreSQL connection.
+     * @param cellId The cell id.
+     * @return Centroid and spread of the GPS locations measured in the cell, or null if there are none.
+     * @throws SQLException If problems arose with the query. */
+    public static CellLocation find(Connection connection, int cellId) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection, FIND_SQL);
+            preparedStatement.setInt(1, cellId);
+            rs = preparedStatement.executeQuery();
+            if (!rs.next() || rs.getLong(1) <= 0) {
+                return null;
+            }
+            long count = rs.getLong(1);
+            double latitude = rs.getDouble(2);
+            double longitude = rs.getDouble(3);
+            double latitudeVariance = Math.max(0.0, rs.getDouble(4) / count);
+            double longitudeVariance = Math.max(0.0, rs.getDouble(5) / count);
+            double cosLatitude = Math.cos(Math.toRadians(latitude)); // Degrees of longitude are shorter away from the equator.
+            double spread = Math.sqrt(latitudeVariance + longitudeVariance * cosLatitude * cosLatitude) * METERS_PER_DEGREE;
+            return new CellLocation(cellId, count, latitude, longitude, spread, rs.getString(6));
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** @return The value of a single value query, or defaultValue if there is no row. */
+    private static long querySingleLong(Connection connection, String sql, long defaultValue) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection, sql);
+            rs = preparedStatement.executeQuery();
+            return rs.next() ? rs.getLong(1) : defaultValue;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** @return Number of open transactions of other client sessions that started before since. */
+    private static long countOpenTransactions(Connection connection, Timestamp since) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection, OPEN_TRANSACTIONS_SQL);
+            preparedStatement.setTimestamp(1, since);
+            rs = preparedStatement.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** @return The value of a single timestamp query. */
+    private static Timestamp queryTimestamp(Connection connection, String sql) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection, sql);
+            rs = preparedStatement.executeQuery();
+            rs.next();
+            return rs.getTimestamp(1);
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** @return Counters for /rest/metrics. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("cell_locations_runs_total", runs.get());
+        metrics.put("cell_locations_failures_total", failures.get());
+        metrics.put("cell_locations_measurements_total", measurements.get());
+        metrics.put("cell_locations_rows_upserted_total", cellRows.get());
+        metrics.put("cell_locations_waiting_runs_total", waitingRuns.get());
+        metrics.put("cell_locations_checkpoint", checkpoint);
+        return metrics;
+    }
+
+}
@@ -32,6 +32,7 @@ package db;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.List;
 
 /** List common settings, constants and (static) methods used when accessing the routine_db */
 public class ConditionalAccess {
@@ -45,6 +46,9 @@ public class ConditionalAccess {
 	// Security role names defined in the tomcat-users.xml file (recommended way to provide additional access right checks because is user agnostic):
 	public static final String NAME_DB_ADMINISTRATOR_ROLE = "activity_logger-administrator";
 	public static final String NAME_DB_USER_ROLE = "activity_logger-user";
+
+	/** Place of the filtered query in the enclosingQuery of makeFilteredFutuDBSqlQuery() */
+	public static final String SUBQUERY = "/*subquery*/";
 	
 	// Fields
 	
@@ -79,13 +83,70 @@ public class ConditionalAccess {
      * @param endTimeName Name of the DB column against which the end time is compared in SQL. Can be the same as startTimeName.
      * @param endTime PostgreSQL/ISO8601 timestamp to limit returned devices to those added at the same or newer time than the given time.
 	 * @return The prepared SQL statement object created from the supplied SQL string concatenated with "WHERE ..." if any of the filter parameters is not
-	 *         empty and the connection is not null. Null is returned if problems arose. 
+	 *         empty and the connection is not null. Null is returned if problems arose. The statement comes from StatementCache, so the caller
+	 *         must give it back with StatementCache.release() instead of closing it. 
 	 * @throws SQLException Indicates problems in the database query. By throwing this up, we can issue a proper HTTP 500 "Internal server error" message.
 	 */
 	public static PreparedStatement makeFilteredFutuDBSqlQuery(
 			Connection connection , String sqlQuery , String deviceName , String loggerApplicationName ,
 			String startTimeName , String startTime , String endTimeName , String endTime )
 					throws SQLException {
+		return makeFilteredFutuDBSqlQuery( connection, sqlQuery, deviceName, loggerApplicationName,
+				startTimeName, startTime, endTimeName, endTime, null, 0, 0 );
+	}
+
+	/** Create a filtered query like makeFilteredFutuDBSqlQuery() above, restricted to one page of a keyset (cursor) pagination
+	 * <p>
+	 *  Adds "keyName > ?" to the filter clauses and "ORDER BY keyName LIMIT ?" after them, so that an index on keyName gives a range scan
+	 *  instead of sorting the whole table. The key and limit parameters are set after the filter parameters.
+	 * </p>
+	 * @param keyName Name of the unique, indexed DB column that orders the pages (e.g. "device_id"). Null disables paging.
+	 * @param after Only rows whose keyName is greater than this are returned (the last key of the previous page, 0 for the first page).
+	 * @param limit Maximum number of returned rows (ask for one more than the page size to find out if there is a next page), 0 for all rows
+	 *        in keyName order.
+	 * @see #makeFilteredFutuDBSqlQuery(Connection, String, String, String, String, String, String, String)
+	 */
+	public static PreparedStatement makeFilteredFutuDBSqlQuery(
+			Connection connection , String sqlQuery , String deviceName , String loggerApplicationName ,
+			String startTimeName , String startTime , String endTimeName , String endTime ,
+			String keyName , long after , int limit )
+					throws SQLException {
+		return makeFilteredFutuDBSqlQuery( connection, sqlQuery, deviceName, loggerApplicationName,
+				startTimeName, startTime, endTimeName, endTime, keyName, after, limit, null );
+	}
+
+	/** Create a filtered (and possibly paged) query like makeFilteredFutuDBSqlQuery() above and put it inside an enclosing query
+	 * <p>
+	 *  The filtered query replaces SUBQUERY in enclosingQuery, e.g. "SELECT ... FROM (" + SUBQUERY + ") AS w GROUP BY ...", so that the
+	 *  enclosing query works on the filtered rows only (a page of them with keyName). The enclosing query cannot have parameters of its own.
+	 * </p>
+	 * @param enclosingQuery SQL containing SUBQUERY once. Null gives the filtered query as such.
+	 * @see #makeFilteredFutuDBSqlQuery(Connection, String, String, String, String, String, String, String, String, long, int)
+	 */
+	public static PreparedStatement makeFilteredFutuDBSqlQuery(
+			Connection connection , String sqlQuery , String deviceName , String loggerApplicationName ,
+			String startTimeName , String startTime , String endTimeName , String endTime ,
+			String keyName , long after , int limit , String enclosingQuery )
+					throws SQLException {
+		return makeFilteredFutuDBSqlQuery( connection, sqlQuery, deviceName, loggerApplicationName,
+				startTimeName, startTime, endTimeName, endTime, keyName, after, limit, enclosingQuery, null, null );
+	}
+
+	/** Create a filtered query like makeFilteredFutuDBSqlQuery() above with one more filter clause of the caller
+	 * <p>
+	 *  The condition is added after the time filters (before the keyset), e.g. the geohash ranges and exact coordinates of a spatial query.
+	 *  Its parameters are set with setObject() in the given order, after those of the time filters.
+	 * </p>
+	 * @param condition SQL condition with '?' parameters only (no values from the request). Null adds nothing.
+	 * @param conditionParameters Values of the '?' parameters of the condition (Strings, Doubles...). Null if there are none.
+	 * @see #makeFilteredFutuDBSqlQuery(Connection, String, String, String, String, String, String, String, String, long, int, String)
+	 */
+	public static PreparedStatement makeFilteredFutuDBSqlQuery(
+			Connection connection , String sqlQuery , String deviceName , String loggerApplicationName ,
+			String startTimeName , String startTime , String endTimeName , String endTime ,
+			String keyName , long after , int limit , String enclosingQuery ,
+			String condition , List<Object> conditionParameters )
+					throws SQLException {
 		// Sanity test:
 		if ( connection == null || sqlQuery == null || sqlQuery.length() == 0 )
 			return null;
@@ -135,18 +196,48 @@ public class ConditionalAccess {
                 first = false;
                 sb.append( endTimeName );
                 sb.append(" <= ?::timestamp(0) with time zone");
+            }
+            // Condition of the caller:
+            if (condition != null) {
+                sb.append(addWHEREorAND(first));
+                first = false;
+                sb.append("(").append(condition).append(")");
+            }
+            // Keyset pagination:
+            if (keyName != null) {
+                sb.append(addWHEREorAND(first));
+                first = false;
+                sb.append(keyName).append(" > ?");
+                sb.append("\nORDER BY ").append(keyName).append(" ASC");
+                if (limit > 0)
+                	sb.append(" LIMIT ?");
             }
         	// Create and populate a prepared statement (a database query object) in the same order as the SQL was constructed above:
-           	preparedStatement = connection.prepareStatement(sb.toString());
+            String sql = sb.toString();
+            if (enclosingQuery != null)
+            	sql = enclosingQuery.replace(SUBQUERY, sql);
+           	preparedStatement = StatementCache.prepare(connection, sql);
            	if (dn)
            		preparedStatement.setString(i++, deviceName); // Use index i and increment it for the next possible insertion.
            	      // This method will insert the name as a string literal that cannot be escaped to cause an injection attack?
            	if (ln)
            		preparedStatement.setString(i++, loggerApplicationName);
+           	// The times are sent untyped, so PostgreSQL types the parameters from the casts above and compares the columns to
+           	// timestamp constants. With a text parameter the comparison would go through a (stable) text to timestamp cast, which
+           	// prevents partition pruning by the planner on partitioned tables (raw_measurements.measurement_timestamp, see PartitionManager):
            	if (st)
-           		preparedStatement.setString(i++, startTime);
+           		preparedStatement.setObject(i++, startTime, java.sql.Types.OTHER);
            	if (et)
-           		preparedStatement.setString(i++, endTime);
+           		preparedStatement.setObject(i++, endTime, java.sql.Types.OTHER);
+           	if (condition != null && conditionParameters != null) {
+           		for (Object parameter : conditionParameters)
+           			preparedStatement.setObject(i++, parameter);
+           	}
+           	if (keyName != null) {
+           		preparedStatement.setLong(i++, after);
+           		if (limit > 0)
+           			preparedStatement.setInt(i++, limit);
+           	}
            	/* Example of a complete SQL query (logger_application_name would not make sense in the context of this query):
         	String sql = "SELECT device_id, device_name, platform, device_creation_timestamp, mcc " +
     	           "FROM devices " +
@@ -159,7 +250,7 @@ public class ConditionalAccess {
            	// Clean up:
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {}
                 preparedStatement = null;
             }
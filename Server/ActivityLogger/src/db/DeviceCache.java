@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Bounded in-memory cache from device names (SHA1 hashes) to devices.device_id values
+ * <p>
+ *  Every ingest call needs the device_id of the sending device. The cache keeps the most recently used devices (LRU eviction)
+ *  so that steady-state ingest makes no device queries. Entries are added by ReceiversCommon.findOrCreateDeviceId() and
+ *  removed by Queries.deleteDevice(). The size can be configured with the deviceCache.maxSize context-param in web.xml.
+ * </p> */
+public class DeviceCache {
+
+    /** Default maximum number of cached devices: {@value} */
+    public final static int DEFAULT_MAX_SIZE = 10000;
+
+    private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+    /** Access ordered map, the eldest entry is the least recently used one. Guarded by itself. */
+    private final static LinkedHashMap<String, Long> cache = new LinkedHashMap<String, Long>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    private final static AtomicLong hits      = new AtomicLong();
+    private final static AtomicLong misses    = new AtomicLong();
+    private final static AtomicLong evictions = new AtomicLong();
+
+    /** Utility class */
+    private DeviceCache() {}
+
+    /** Look up a cached device id, counting a hit or a miss
+     * @param hash Device name (usually a SHA1 hash).
+     * @return The device_id, or -1 if the device is not cached. */
+    public static long get(String hash) {
+        Long deviceId;
+        synchronized (cache) {
+            deviceId = cache.get(hash);
+        }
+        if (deviceId == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        hits.incrementAndGet();
+        return deviceId;
+    }
+
+    /** Cache a device id (only ids of committed device records should be cached)
+     * @param hash Device name (usually a SHA1 hash).
+     * @param deviceId devices.device_id of the device. */
+    public static void put(String hash, long deviceId) {
+        synchronized (cache) {
+            int sizeBefore = cache.size();
+            boolean existed = cache.put(hash, deviceId) != null;
+            if (!existed && cache.size() == sizeBefore) {
+                evictions.incrementAndGet(); // removeEldestEntry() dropped one.
+            }
+        }
+    }
+
+    /** Remove a device from the cache by its id (used when the device record is deleted)
+     * @param deviceId devices.device_id of the removed device. */
+    public static void invalidate(long deviceId) {
+        synchronized (cache) {
+            Iterator<Long> it = cache.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().longValue() == deviceId) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Empty the cache */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /** Set the maximum number of cached devices. Extra entries are evicted as new devices are added.
+     * @param size New maximum size, at least 1. */
+    public static void setMaxSize(int size) {
+        maxSize = Math.max(1, size);
+    }
+
+    /** Snapshot of the cache counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        metrics.put("device_cache_size", size);
+        metrics.put("device_cache_max_size", maxSize);
+        metrics.put("device_cache_hits_total", hits.get());
+        metrics.put("device_cache_misses_total", misses.get());
+        metrics.put("device_cache_evictions_total", evictions.get());
+        return metrics;
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.vtt.routinelib.common.RawLogData;
+
+/** Bounded in-memory record of recently stored upload sequence numbers per device
+ * <p>
+ *  RoutineLibrary numbers its uploads (RawLogData.getSequenceNumber()) and re-sends them when an upload fails, so the same
+ *  data can arrive more than once. The raw_measurement_keys table (primary key device, sequence number) guarantees that each
+ *  one is stored only once. This class lets the receivers answer most re-sends without going to the database:
+ * </p>
+ * <ul>
+ *  <li>A sliding window of the last WINDOW_SIZE sequence numbers of the device, exact: a hit is a sure duplicate. Nothing is
+ *   inserted for it; only its original measurement id is looked up when the reply needs it.</li>
+ *  <li>A Bloom filter (two generations) of older sequence numbers that have left the window: a hit is a probable duplicate,
+ *   confirmed with one indexed lookup of raw_measurement_keys.</li>
+ * </ul>
+ * <p>
+ *  Only committed keys are recorded. The memory use is bounded by the number of devices (LRU eviction, about 1.2 kB per
+ *  device); forgotten devices are simply checked from the database again. The limit can be configured with the
+ *  duplicateSuppressor.maxDevices context-param in web.xml.
+ * </p>
+ * <p>
+ *  The keys themselves are kept for retention.keyDays (the client retry horizon, 30 days by default) and then deleted by
+ *  RetentionJob; a re-send older than that is no longer recognized.
+ * </p> */
+public class DuplicateSuppressor {
+
+    /** Default maximum number of devices tracked: {@value} */
+    public final static int DEFAULT_MAX_DEVICES = 10000;
+
+    /** Number of most recent sequence numbers per device kept exactly: {@value} (a power of two) */
+    public final static int WINDOW_SIZE = 256;
+
+    /** Bits per Bloom filter generation: {@value} */
+    private final static int BLOOM_BITS = 4096;
+    /** Hash functions of the Bloom filter: {@value} */
+    private final static int BLOOM_HASHES = 3;
+    /** Keys per generation before the filter is rotated, keeps the false positive rate around 3 %: {@value} */
+    private final static int BLOOM_CAPACITY = 512;
+
+    private static volatile int maxDevices = DEFAULT_MAX_DEVICES;
+
+    /** Access ordered map from devices.device_id to the recorded keys of the device. Guarded by itself. */
+    private final static LinkedHashMap<Long, Keys> devices = new LinkedHashMap<Long, Keys>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Keys> eldest) {
+            return size() > maxDevices;
+        }
+    };
+
+    private final static AtomicLong windowHits   = new AtomicLong();
+    private final static AtomicLong bloomHits    = new AtomicLong();
+    private final static AtomicLong databaseHits = new AtomicLong();
+    private final static AtomicLong recorded     = new AtomicLong();
+
+    /** Utility class */
+    private DuplicateSuppressor() {}
+
+    /** @return true if the key is in the window of the device, i.e. certainly stored already. */
+    public static boolean isDuplicate(long deviceId, long sequenceNumber) {
+        if (sequenceNumber < 0) {
+            return false;
+        }
+        boolean duplicate;
+        synchronized (devices) {
+            Keys keys = devices.get(deviceId);
+            duplicate = (keys != null) && keys.inWindow(sequenceNumber);
+        }
+        if (duplicate) {
+            windowHits.incrementAndGet();
+        }
+        return duplicate;
+    }
+
+    /** @return true if the key may have been stored (Bloom filter hit below the window), check raw_measurement_keys. */
+    public static boolean mightBeDuplicate(long deviceId, long sequenceNumber) {
+        if (sequenceNumber < 0) {
+            return false;
+        }
+        boolean candidate;
+        synchronized (devices) {
+            Keys keys = devices.get(deviceId);
+            candidate = (keys != null) && keys.bloomContains(sequenceNumber);
+        }
+        if (candidate) {
+            bloomHits.incrementAndGet();
+        }
+        return candidate;
+    }
+
+    /** Count a duplicate found in the database (not known by the window or the Bloom filter) */
+    public static void countDatabaseHit() {
+        databaseHits.incrementAndGet();
+    }
+
+    /** Record a committed key */
+    public static void record(long deviceId, long sequenceNumber) {
+        if (sequenceNumber < 0) {
+            return;
+        }
+        synchronized (devices) {
+            Keys keys = devices.get(deviceId);
+            if (keys == null) {
+                keys = new Keys();
+                devices.put(deviceId, keys);
+            }
+            keys.record(sequenceNumber);
+        }
+        recorded.incrementAndGet();
+    }
+
+    /** Record the keys of committed (or already stored) raw data sets of one device */
+    public static void recordAll(long deviceId, List<RawLogData> rawLogDatas) {
+        for (RawLogData rawLogData : rawLogDatas) {
+            record(deviceId, rawLogData.getSequenceNumber());
+        }
+    }
+
+    /** Forget a device (used when the device record is deleted) */
+    public static void invalidate(long deviceId) {
+        synchronized (devices) {
+            devices.remove(deviceId);
+        }
+    }
+
+    /** Forget all devices */
+    public static void clear() {
+        synchronized (devices) {
+            devices.clear();
+        }
+    }
+
+    /** Set the maximum number of tracked devices, at least 1. */
+    public static void setMaxDevices(int count) {
+        maxDevices = Math.max(1, count);
+    }
+
+    /** Snapshot of the counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        int size;
+        synchronized (devices) {
+            size = devices.size();
+        }
+        metrics.put("duplicate_suppressor_devices", size);
+        metrics.put("duplicate_suppressor_max_devices", maxDevices);
+        metrics.put("duplicate_suppressor_recorded_total", recorded.get());
+        metrics.put("duplicate_suppressor_window_hits_total", windowHits.get());
+        metrics.put("duplicate_suppressor_bloom_hits_total", bloomHits.get());
+        metrics.put("duplicate_suppressor_database_hits_total", databaseHits.get());
+        return metrics;
+    }
+
+    /** Recorded keys of one device: a ring buffer of bits for (highest - WINDOW_SIZE, highest] and the Bloom filter. */
+    private static class Keys {
+        private long highest = -1;
+        private final long[] window = new long[WINDOW_SIZE / 64];
+        private long[] current = new long[BLOOM_BITS / 64];
+        private long[] previous = null;
+        private int currentCount = 0;
+
+        boolean inWindow(long sequenceNumber) {
+            return highest >= 0 && sequenceNumber <= highest && sequenceNumber > highest - WINDOW_SIZE
+                    && isSet(window, (int) (sequenceNumber & (WINDOW_SIZE - 1)));
+        }
+
+        void record(long sequenceNumber) {
+            if (highest < 0) {
+                highest = sequenceNumber;
+            } else if (sequenceNumber > highest) {
+                // Slide the window: the keys falling out of it move to the Bloom filter. Each slot reused by the new range
+                // held the key of the old window (highest - WINDOW_SIZE, highest] with the same residue, also after a jump
+                // of more than WINDOW_SIZE, when every slot is reused.
+                long steps = Math.min(sequenceNumber - highest, WINDOW_SIZE);
+                for (long s = sequenceNumber - steps + 1; s <= sequenceNumber; s++) {
+                    int slot = (int) (s & (WINDOW_SIZE - 1));
+                    if (isSet(window, slot)) {
+                        bloomAdd(highest - ((highest - s) & (WINDOW_SIZE - 1)));
+                        window[slot >>> 6] &= ~(1L << slot);
+                    }
+                }
+                highest = sequenceNumber;
+            } else if (sequenceNumber <= highest - WINDOW_SIZE) {
+                bloomAdd(sequenceNumber); // Old key re-sent after a long time.
+                return;
+            }
+            int slot = (int) (sequenceNumber & (WINDOW_SIZE - 1));
+            window[slot >>> 6] |= 1L << slot;
+        }
+
+        boolean bloomContains(long sequenceNumber) {
+            long h1 = mix(sequenceNumber);
+            long h2 = mix(h1) | 1;
+            return contains(current, h1, h2) || (previous != null && contains(previous, h1, h2));
+        }
+
+        private void bloomAdd(long sequenceNumber) {
+            if (currentCount >= BLOOM_CAPACITY) {
+                previous = current;
+                current = new long[BLOOM_BITS / 64];
+                currentCount = 0;
+            }
+            long h1 = mix(sequenceNumber);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = (int) ((h1 + i * h2) & (BLOOM_BITS - 1));
+                current[bit >>> 6] |= 1L << bit;
+            }
+            currentCount++;
+        }
+
+        private static boolean contains(long[] bits, long h1, long h2) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                if (!isSet(bits, (int) ((h1 + i * h2) & (BLOOM_BITS - 1)))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isSet(long[] bits, int bit) {
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        /** 64-bit finalizer of MurmurHash3 */
+        private static long mix(long value) {
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            value *= 0xc4ceb9fe1a85ec53L;
+            value ^= value >>> 33;
+            return value;
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+package db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/** Geohash encoding of raw measurement locations and the prefix ranges that cover an area (raw_measurements.geohash)
+ * <p>
+ *  A geohash interleaves the bits of the longitude and latitude and writes them in base 32, so points close to each other mostly
+ *  share a prefix and all points of a geohash cell (a prefix) are one range in the sort order of the strings. An area is covered
+ *  with at most MAX_CELLS cells of the finest precision that fits, and adjacent cells are merged into one range. A query reads
+ *  the ranges with the raw_measurements_geohash_index and then filters the rows by their exact coordinates.
+ * </p> */
+public class Geohash {
+
+    /** Characters stored into raw_measurements.geohash: {@value} */
+    public final static int PRECISION = 12;
+    /** Largest number of cells covering an area: {@value} */
+    public final static int MAX_CELLS = 32;
+    /** Mean radius of the Earth in meters (the distances are great circle distances on a sphere): {@value} */
+    public final static double EARTH_RADIUS = 6371008.8;
+
+    private final static String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    /** Utility class */
+    private Geohash() {}
+
+    /** @return true if the coordinates are a location (not Queries.LATLONG_NOT_AVAILABLE, NaN or out of range). */
+    public static boolean isLocation(double latitude, double longitude) {
+        return latitude >= -90.0 && latitude <= 90.0 && longitude >= -180.0 && longitude <= 180.0;
+    }
+
+    /** @return Geohash of the location with PRECISION characters, or null if the coordinates are not a location. */
+    public static String encode(double latitude, double longitude) {
+        return isLocation(latitude, longitude) ? encode(latitude, longitude, PRECISION) : null;
+    }
+
+    /** @return Geohash of the location with the given number of characters. */
+    static String encode(double latitude, double longitude, int precision) {
+        double minLatitude = -90.0, maxLatitude = 90.0;
+        double minLongitude = -180.0, maxLongitude = 180.0;
+        StringBuilder sb = new StringBuilder(precision);
+        boolean even = true; // Bits alternate, starting with longitude.
+        int bits = 0;
+        int value = 0;
+        while (sb.length() < precision) {
+            if (even) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    value = (value << 1) | 1;
+                    minLongitude = middle;
+                } else {
+                    value = value << 1;
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    value = (value << 1) | 1;
+                    minLatitude = middle;
+                } else {
+                    value = value << 1;
+                    maxLatitude = middle;
+                }
+            }
+            even = !even;
+            if (++bits == 5) {
+                sb.append(BASE32.charAt(value));
+                bits = 0;
+                value = 0;
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Geohash ranges covering a bounding box
+     * @param south Smallest latitude.
+     * @param west Smallest longitude, greater than east if the box crosses the 180th meridian.
+     * @param north Largest latitude.
+     * @param east Largest longitude.
+     * @return {from, to} pairs: geohashes g with from &lt;= g &lt; to, to is null for no upper bound. Sorted and not overlapping. */
+    public static List<String[]> ranges(double south, double west, double north, double east) {
+        TreeSet<String> cells = new TreeSet<String>();
+        if (west > east) {
+            cells.addAll(cover(south, west, north, 180.0, MAX_CELLS / 2));
+            cells.addAll(cover(south, -180.0, north, east, MAX_CELLS / 2));
+        } else {
+            cells.addAll(cover(south, west, north, east, MAX_CELLS));
+        }
+        // A cell may contain a smaller one of the other half of a box crossing the 180th meridian:
+        List<String> prefixes = new ArrayList<String>();
+        for (String cell : cells) {
+            if (prefixes.isEmpty() || !cell.startsWith(prefixes.get(prefixes.size() - 1)))
+                prefixes.add(cell);
+        }
+        List<String[]> ranges = new ArrayList<String[]>();
+        for (String prefix : prefixes) {
+            String to = next(prefix);
+            String[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] != null && adjacent(last[1], prefix)) {
+                last[1] = to; // No geohash between the two cells.
+            } else {
+                ranges.add(new String[] { prefix, to });
+            }
+        }
+        return ranges;
+    }
+
+    /** Bounding box of a circle
+     * @return {south, west, north, east}, west is greater than east if the box crosses the 180th meridian. */
+    public static double[] boundingBox(double latitude, double longitude, double radius) {
+        double angle = radius / EARTH_RADIUS;
+        double south = latitude - Math.toDegrees(angle);
+        double north = latitude + Math.toDegrees(angle);
+        if (south <= -90.0 || north >= 90.0 || angle >= Math.PI / 2) {
+            return new double[] { Math.max(south, -90.0), -180.0, Math.min(north, 90.0), 180.0 }; // Includes a pole.
+        }
+        double ratio = Math.sin(angle) / Math.cos(Math.toRadians(latitude));
+        if (ratio >= 1.0) {
+            return new double[] { south, -180.0, north, 180.0 };
+        }
+        double delta = Math.toDegrees(Math.asin(ratio));
+        double west = longitude - delta;
+        double east = longitude + delta;
+        if (west < -180.0)
+            west += 360.0;
+        if (east > 180.0)
+            east -= 360.0;
+        return new double[] { south, west, north, east };
+    }
+
+    /** @return Great circle distance in meters (haversine formula). */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+        double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = sinLatitude * sinLatitude
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /** @return Cells of the finest precision whose number covering the box (west &lt;= east) is at most maxCells. */
+    private static List<String> cover(double south, double west, double north, double east, int maxCells) {
+        for (int precision = PRECISION; precision > 1; precision--) {
+            List<String> cells = cover(south, west, north, east, precision, maxCells);
+            if (cells != null)
+                return cells;
+        }
+        return cover(south, west, north, east, 1, BASE32.length());
+    }
+
+    /** @return Cells of the precision covering the box, or null if there would be more than maxCells. */
+    private static List<String> cover(double south, double west, double north, double east, int precision, int maxCells) {
+        int longitudeBits = (5 * precision + 1) / 2;
+        int latitudeBits = 5 * precision / 2;
+        double width = 360.0 / (1L << longitudeBits);
+        double height = 180.0 / (1L << latitudeBits);
+        long x0 = cell(west + 180.0, width, longitudeBits);
+        long x1 = cell(east + 180.0, width, longitudeBits);
+        long y0 = cell(south + 90.0, height, latitudeBits);
+        long y1 = cell(north + 90.0, height, latitudeBits);
+        if ((x1 - x0 + 1) * (y1 - y0 + 1) > maxCells)
+            return null;
+        List<String> cells = new ArrayList<String>();
+        for (long x = x0; x <= x1; x++) {
+            for (long y = y0; y <= y1; y++) {
+                cells.add(encode((y + 0.5) * height - 90.0, (x + 0.5) * width - 180.0, precision)); // Center of the cell.
+            }
+        }
+        return cells;
+    }
+
+    /** @return Index of the cell containing offset (0 .. 2^bits - 1). */
+    private static long cell(double offset, double size, int bits) {
+        return Math.max(0, Math.min((1L << bits) - 1, (long) Math.floor(offset / size)));
+    }
+
+    /** @return The first string after all geohashes starting with prefix, or null if there is none. */
+    private static String next(String prefix) {
+        int i = prefix.length() - 1;
+        while (i >= 0 && prefix.charAt(i) == 'z')
+            i--;
+        if (i < 0)
+            return null;
+        return prefix.substring(0, i) + BASE32.charAt(BASE32.indexOf(prefix.charAt(i)) + 1);
+    }
+
+    /** @return true if there is no geohash g with to &lt;= g &lt; from (from is to followed by zero or more '0's). */
+    private static boolean adjacent(String to, String from) {
+        if (!from.startsWith(to))
+            return false;
+        for (int i = to.length(); i < from.length(); i++) {
+            if (from.charAt(i) != '0')
+                return false;
+        }
+        return true;
+    }
+
+}
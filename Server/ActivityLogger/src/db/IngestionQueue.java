@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.vtt.activitylogger.LoggerApplication;
+import fi.vtt.routinelib.common.RawLogData;
+
+/** Write-behind queue for the raw data posted by the devices
+ * <p>
+ *  The REST receivers only validate the raw data and submit() it here. A small pool of writer threads drains the bounded queue
+ *  in batches (at most batchSize items, or whatever has arrived within flushIntervalMs) and commits each batch into the routine_db
+ *  in one transaction, so a slow database does not stall the Tomcat worker threads.
+ * </p>
+ * <p>
+ *  The items have already been answered "202 Accepted", so the clients do not send them again. A batch that fails for a
+ *  transient reason (no pooled connection, connection lost, database shutting down, deadlock or serialization failure) is
+ *  kept by its writer and retried with exponential backoff (RETRY_INITIAL_MS doubling up to RETRY_MAX_MS) for as long as the
+ *  queue runs; meanwhile the queue fills up and its overflow policy pushes back on the devices. A batch that fails otherwise
+ *  is split in halves, each written in its own transaction, so that only the bad items themselves are lost (logged and
+ *  counted in ingest_failed_total). Retrying is safe: the idempotency keys (raw_measurement_keys) keep an upload that was
+ *  committed before the connection broke from being stored twice.
+ * </p>
+ * <p>
+ *  The queue is started and stopped by fi.vtt.ActivityLoggerListener. Use getInstance() to reach the running queue, null is
+ *  returned if the queue is not running (the receivers then write synchronously).
+ * </p> */
+public class IngestionQueue {
+
+	/** Log4Java instance for this class. */
+    private final static Logger logger = LoggerFactory.getLogger(IngestionQueue.class);
+
+    /** What to do when a raw data item is submitted into a full queue */
+    public enum OverflowPolicy {
+        /** Refuse the new item immediately (the receiver answers "503 Service Unavailable"). */
+        REJECT,
+        /** Wait up to offerTimeoutMs for free space, then refuse the new item. */
+        BLOCK,
+        /** Throw away the oldest queued item to make room for the new one. */
+        DROP_OLDEST,
+        /** Write the new item synchronously in the calling (request) thread. */
+        CALLER_RUNS
+    }
+
+    /** One queued raw data set, the device (user) it came from and when it was received */
+    private static class Item {
+        final String     hash;
+        final RawLogData rawLogData;
+        /** Receipt time, stored as measurement_timestamp (the partition key) instead of the later flush time. */
+        final long       received = System.currentTimeMillis();
+
+        Item(String hash, RawLogData rawLogData) {
+            this.hash = hash;
+            this.rawLogData = rawLogData;
+        }
+    }
+
+    /** Default queue capacity: {@value} */
+    public final static int    DEFAULT_CAPACITY          = 10000;
+    /** Default maximum number of items committed in one transaction: {@value} */
+    public final static int    DEFAULT_BATCH_SIZE        = 500;
+    /** Default maximum time to wait for a batch to fill up (milliseconds): {@value} */
+    public final static long   DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    /** Default number of writer threads: {@value} */
+    public final static int    DEFAULT_WRITER_THREADS    = 2;
+    /** Default time to wait for free space with the BLOCK policy (milliseconds): {@value} */
+    public final static long   DEFAULT_OFFER_TIMEOUT_MS  = 2000;
+    /** First pause before retrying a batch after a transient failure (milliseconds): {@value} */
+    public final static long   RETRY_INITIAL_MS          = 500;
+    /** Longest pause between two retries of a batch (milliseconds): {@value} */
+    public final static long   RETRY_MAX_MS              = 30000;
+    /** Retries of a batch after the queue has been stopped, before its items are given up: {@value} */
+    private final static int   SHUTDOWN_RETRIES          = 3;
+
+    private static volatile IngestionQueue instance = null;
+
+    private final DataSource            dataSource;
+    private final BlockingQueue<Item>   queue;
+    private final int                   capacity;
+    private final int                   batchSize;
+    private final long                  flushIntervalMs;
+    private final long                  offerTimeoutMs;
+    private final OverflowPolicy        overflowPolicy;
+    private final List<Thread>          writers = new ArrayList<Thread>();
+    private volatile boolean            running = true;
+
+    // Counters for the metrics:
+    private final AtomicLong submitted     = new AtomicLong();
+    private final AtomicLong written       = new AtomicLong();
+    private final AtomicLong failed        = new AtomicLong();
+    private final AtomicLong rejected      = new AtomicLong();
+    private final AtomicLong duplicates    = new AtomicLong();
+    private final AtomicLong dropped       = new AtomicLong();
+    private final AtomicLong callerRuns    = new AtomicLong();
+    private final AtomicLong retries       = new AtomicLong();
+    private final AtomicLong splits        = new AtomicLong();
+    private final AtomicLong batches       = new AtomicLong();
+    private final AtomicLong flushMillis   = new AtomicLong();
+    private final AtomicLong lastBatchSize = new AtomicLong();
+
+    /** Constructor (use start() to create the shared instance) */
+    private IngestionQueue(DataSource dataSource, int capacity, int batchSize, long flushIntervalMs,
+            long offerTimeoutMs, OverflowPolicy overflowPolicy) {
+        this.dataSource = dataSource;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<Item>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /** Create and start the shared ingestion queue
+     * @param dataSource routine_db PostgreSQL connection pool.
+     * @param capacity Maximum number of queued raw data items.
+     * @param batchSize Maximum number of items committed in one transaction.
+     * @param flushIntervalMs Maximum time a writer waits for a batch to fill up before committing what it has.
+     * @param writerThreads Number of writer threads (each uses one pooled connection while committing).
+     * @param offerTimeoutMs How long submit() waits for free space with the BLOCK policy.
+     * @param overflowPolicy What to do when the queue is full.
+     * @return The started queue, also available from getInstance(). */
+    public static synchronized IngestionQueue start(DataSource dataSource, int capacity, int batchSize,
+            long flushIntervalMs, int writerThreads, long offerTimeoutMs, OverflowPolicy overflowPolicy) {
+        if (instance != null) {
+            instance.shutdown();
+        }
+        IngestionQueue ingestionQueue = new IngestionQueue(dataSource, capacity, batchSize, flushIntervalMs,
+                offerTimeoutMs, overflowPolicy);
+        for (int i = 0; i < writerThreads; i++) {
+            Thread writer = new Thread(ingestionQueue.new Writer(), "IngestionQueue-writer-" + i);
+            writer.setDaemon(true);
+            ingestionQueue.writers.add(writer);
+            writer.start();
+        }
+        instance = ingestionQueue;
+        logger.info("Ingestion queue started: capacity " + capacity + ", batch size " + batchSize + ", flush interval "
+                + flushIntervalMs + " ms, " + writerThreads + " writers, overflow policy " + overflowPolicy);
+        return ingestionQueue;
+    }
+
+    /** @return The running ingestion queue, or null if it has not been started. */
+    public static IngestionQueue getInstance() {
+        return instance;
+    }
+
+    /** Stop the shared ingestion queue (if running), writing the items still in the queue */
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /** Queue a raw data set of a device for writing
+     * @param hash Name of the device (user). Usually a SHA1 hash.
+     * @param rawLogData Validated raw data set.
+     * @return true if the item was queued (or written with the CALLER_RUNS policy), false if it was rejected.
+     * @throws InterruptedException The calling thread was interrupted while waiting for space (BLOCK policy). */
+    public boolean submit(String hash, RawLogData rawLogData) throws InterruptedException {
+        if (!running) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        Item item = new Item(hash, rawLogData);
+        boolean queued = queue.offer(item);
+        if (!queued) {
+            switch (overflowPolicy) {
+            case BLOCK:
+                queued = queue.offer(item, offerTimeoutMs, TimeUnit.MILLISECONDS);
+                break;
+            case DROP_OLDEST:
+                while (!queued) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                    queued = queue.offer(item);
+                }
+                break;
+            case CALLER_RUNS:
+                List<Item> single = new ArrayList<Item>(1);
+                single.add(item);
+                callerRuns.incrementAndGet();
+                // No retries in the request thread: a failed item is refused (503), so the device sends it again.
+                boolean written = flush(single, false);
+                if (written) {
+                    submitted.incrementAndGet();
+                }
+                return written;
+            default: // REJECT
+                break;
+            }
+        }
+        if (queued) {
+            submitted.incrementAndGet();
+        } else {
+            rejected.incrementAndGet();
+        }
+        return queued;
+    }
+
+    /** @return Number of raw data items waiting in the queue. */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /** @return Maximum number of raw data items in the queue. */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Snapshot of the queue state and counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("ingest_queue_depth", queue.size());
+        metrics.put("ingest_queue_capacity", capacity);
+        metrics.put("ingest_queue_remaining_capacity", queue.remainingCapacity());
+        metrics.put("ingest_writer_threads", writers.size());
+        metrics.put("ingest_batch_size_limit", batchSize);
+        metrics.put("ingest_flush_interval_ms", flushIntervalMs);
+        metrics.put("ingest_submitted_total", submitted.get());
+        metrics.put("ingest_written_total", written.get());
+        metrics.put("ingest_failed_total", failed.get());
+        metrics.put("ingest_rejected_total", rejected.get());
+        metrics.put("ingest_duplicates_total", duplicates.get());
+        metrics.put("ingest_dropped_total", dropped.get());
+        metrics.put("ingest_caller_runs_total", callerRuns.get());
+        metrics.put("ingest_retries_total", retries.get());
+        metrics.put("ingest_split_batches_total", splits.get());
+        metrics.put("ingest_batches_total", batches.get());
+        metrics.put("ingest_flush_millis_total", flushMillis.get());
+        metrics.put("ingest_last_batch_size", lastBatchSize.get());
+        return metrics;
+    }
+
+    /** Stop accepting new items, let the writers drain the queue and wait for them to finish */
+    private void shutdown() {
+        running = false;
+        for (Thread writer : writers) {
+            writer.interrupt();
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join(flushIntervalMs + 30000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // Writers may have given up (e.g. database down), report what is lost:
+        if (!queue.isEmpty()) {
+            logger.warn("Ingestion queue stopped with " + queue.size() + " unwritten raw data items.");
+        }
+        logger.info("Ingestion queue stopped.");
+    }
+
+    /** Writer thread: collects a batch and commits it, until stopped and the queue is empty */
+    private class Writer implements Runnable {
+        public void run() {
+            List<Item> batch = new ArrayList<Item>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    Item first = running ? queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + flushIntervalMs;
+                    while (batch.size() < batchSize) {
+                        long wait = deadline - System.currentTimeMillis();
+                        Item next = (running && wait > 0) ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } catch (InterruptedException ie) {
+                    // Shutting down: write what was collected and drain the rest without waiting.
+                }
+                if (!batch.isEmpty()) {
+                    flush(batch, true);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /** Write a batch of raw data items, retrying transient failures and splitting the batch on other failures
+     * @param batch Items to write, from any number of devices.
+     * @param retry true to retry transient failures with backoff (writer threads), false to fail at once (request threads).
+     * @return true if all the items were committed. */
+    private boolean flush(List<Item> batch, boolean retry) {
+        long started = System.currentTimeMillis();
+        long backoff = RETRY_INITIAL_MS;
+        int shutdownRetries = 0;
+        while (true) {
+            Exception failure;
+            try {
+                int duplicateCount = write(batch);
+                written.addAndGet(batch.size() - duplicateCount);
+                duplicates.addAndGet(duplicateCount);
+                batches.incrementAndGet();
+                lastBatchSize.set(batch.size());
+                flushMillis.addAndGet(System.currentTimeMillis() - started);
+                return true;
+            } catch (Exception e) {
+                failure = e;
+            }
+            if (isTransient(failure) && retry && (running || shutdownRetries++ < SHUTDOWN_RETRIES)) {
+                retries.incrementAndGet();
+                logger.warn("Ingestion batch of " + batch.size() + " raw data items failed, retrying in " + backoff + " ms: "
+                        + failure.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    // Shutting down, the remaining retries are made without waiting.
+                }
+                backoff = running ? Math.min(backoff * 2, RETRY_MAX_MS) : 0;
+                continue;
+            }
+            flushMillis.addAndGet(System.currentTimeMillis() - started);
+            if (!isTransient(failure) && batch.size() > 1) {
+                // Find the bad items: each half in its own transaction.
+                splits.incrementAndGet();
+                int half = batch.size() / 2;
+                boolean first = flush(new ArrayList<Item>(batch.subList(0, half)), retry);
+                boolean second = flush(new ArrayList<Item>(batch.subList(half, batch.size())), retry);
+                return first && second;
+            }
+            logger.warn("Ingestion batch of " + batch.size() + " raw data items failed: " + failure.getMessage());
+            failed.addAndGet(batch.size());
+            batches.incrementAndGet();
+            lastBatchSize.set(batch.size());
+            return false;
+        }
+    }
+
+    /** @return true if the failure may go away by itself: no connection from the pool, or SQLState class 08 (connection),
+     *  40 (transaction rollback: deadlock, serialization), 53 (insufficient resources) or 57P (database shutting down). */
+    private static boolean isTransient(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof PoolUnavailableException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                if (state != null && (state.startsWith("08") || state.startsWith("40") || state.startsWith("53")
+                        || state.startsWith("57P"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Failure to get a pooled connection (DBCP gives no SQLState for it) */
+    private static class PoolUnavailableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        PoolUnavailableException(SQLException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /** Commit a batch of raw data items into the routine_db in one transaction
+     * @param batch Items to write, from any number of devices.
+     * @return Number of items that were not inserted because they were stored already.
+     * @throws Exception The transaction was rolled back (or not started). */
+    private int write(List<Item> batch) throws Exception {
+        Connection connection = null;
+        int duplicateCount = 0;
+        try {
+            try {
+                connection = Metrics.getConnection(dataSource);
+            } catch (SQLException se) {
+                throw new PoolUnavailableException(se);
+            }
+            // Devices, the logger application and new applications are created in auto commit mode, as in the synchronous receivers:
+            Map<String, List<RawLogData>> byDevice = new LinkedHashMap<String, List<RawLogData>>();
+            Map<String, List<Long>> receivedByDevice = new LinkedHashMap<String, List<Long>>();
+            for (Item item : batch) {
+                List<RawLogData> rawLogDatas = byDevice.get(item.hash);
+                if (rawLogDatas == null) {
+                    rawLogDatas = new ArrayList<RawLogData>();
+                    byDevice.put(item.hash, rawLogDatas);
+                    receivedByDevice.put(item.hash, new ArrayList<Long>());
+                }
+                rawLogDatas.add(item.rawLogData);
+                receivedByDevice.get(item.hash).add(item.received);
+            }
+            Map<String, Long> deviceIds = new LinkedHashMap<String, Long>();
+            for (String hash : byDevice.keySet()) {
+                deviceIds.put(hash, ReceiversCommon.findOrCreateDeviceId(hash, connection));
+            }
+            LoggerApplication loggerApplication = ReceiversCommon.findOrCreateLoggerApp(connection,
+                    ReceiversCommon.LOGGER_APP_NAME);
+            List<RawLogData> all = new ArrayList<RawLogData>(batch.size());
+            for (Item item : batch) {
+                all.add(item.rawLogData);
+            }
+            Queries.findOrInsertApplicationIds(connection, all); // New applications into ApplicationDictionary before the transaction.
+
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, List<RawLogData>> entry : byDevice.entrySet()) {
+                    boolean[] skipped = new boolean[entry.getValue().size()];
+                    List<Long> received = receivedByDevice.get(entry.getKey());
+                    long[] receivedTimes = new long[received.size()];
+                    for (int i = 0; i < receivedTimes.length; i++) {
+                        receivedTimes[i] = received.get(i);
+                    }
+                    ReceiversCommon.insertRawMeasurementsOnce(connection, deviceIds.get(entry.getKey()), loggerApplication,
+                            entry.getValue(), skipped, receivedTimes);
+                    for (boolean duplicate : skipped) {
+                        if (duplicate) {
+                            duplicateCount++;
+                        }
+                    }
+                }
+                connection.commit();
+                for (Map.Entry<String, List<RawLogData>> entry : byDevice.entrySet()) {
+                    DuplicateSuppressor.recordAll(deviceIds.get(entry.getKey()), entry.getValue());
+                }
+            } catch (SQLException se) {
+                try {
+                    connection.rollback();
+                } catch (SQLException re) {
+                    // Connection broken, the original failure tells why.
+                }
+                throw (se.getNextException() != null) ? se.getNextException() : se;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ae) {
+                }
+            }
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    System.out.print(e.toString());
+                }
+            }
+        }
+        return duplicateCount;
+    }
+
+}
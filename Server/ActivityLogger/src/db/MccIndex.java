@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import fi.vtt.activitylogger.Mcc;
+
+/** In-memory copy of the static mccs table (mobile country codes of populate_mccs_table.sql)
+ * <p>
+ *  The table is loaded at deployment by ActivityLoggerListener (or on first use if the database was not available then) into a
+ *  dense array indexed by the code and a list sorted by the code, so .../rest/mccs and .../rest/mccs/&lt;mcc&gt; need no database
+ *  access. A load builds a new snapshot and publishes it with one volatile write, so readers never see a half-loaded index.
+ *  Administrators reload it with POST .../rest/mccs/reload after changing the table.
+ * </p> */
+public class MccIndex {
+
+    /** Immutable contents of the index */
+    private static class Snapshot {
+        final Mcc[] byCode;    // Index = mcc, null where there is no country.
+        final List<Mcc> sorted; // Unmodifiable, ascending mcc.
+
+        Snapshot(Mcc[] byCode, List<Mcc> sorted) {
+            this.byCode = byCode;
+            this.sorted = sorted;
+        }
+    }
+
+    private static volatile Snapshot snapshot = null;
+
+    /** Utility class */
+    private MccIndex() {}
+
+    /** Load (or reload) the index from the mccs table
+     * @param connection PostgreSQL connection.
+     * @return Number of loaded country codes.
+     * @throws SQLException If the query failed (the previous index stays in use). */
+    public static int load(Connection connection) throws SQLException {
+        List<Mcc> mccs = new ArrayList<Mcc>(Queries.getAllMccs(connection));
+        Collections.sort(mccs, new Comparator<Mcc>() {
+            @Override
+            public int compare(Mcc a, Mcc b) {
+                return (a.getMcc() < b.getMcc()) ? -1 : ((a.getMcc() == b.getMcc()) ? 0 : 1);
+            }
+        });
+        int max = mccs.isEmpty() ? 0 : Math.max(0, mccs.get(mccs.size() - 1).getMcc());
+        Mcc[] byCode = new Mcc[max + 1];
+        for (Mcc mcc : mccs) {
+            if (mcc.getMcc() >= 0) {
+                byCode[mcc.getMcc()] = mcc;
+            }
+        }
+        snapshot = new Snapshot(byCode, Collections.unmodifiableList(mccs));
+        ReferenceDataCache.invalidate(ReferenceDataCache.MCCS); // The cached .../rest/mccs bodies were made from the old index.
+        return mccs.size();
+    }
+
+    /** @return true if the index has been loaded. */
+    public static boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    /** Find a country by its mobile country code
+     * @param code Mobile country code.
+     * @return The country, or null if there is none with the code or the index is not loaded. */
+    public static Mcc find(int code) {
+        Snapshot current = snapshot;
+        if (current == null || code < 0 || code >= current.byCode.length) {
+            return null;
+        }
+        return current.byCode[code];
+    }
+
+    /** @return All countries in ascending mcc order (unmodifiable, empty if the index is not loaded). */
+    public static List<Mcc> getAll() {
+        Snapshot current = snapshot;
+        return (current == null) ? Collections.<Mcc>emptyList() : current.sorted;
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sql.DataSource;
+
+/** Latency and size histograms of the REST resources and database calls, written in the Prometheus text format
+ * <p>
+ *  Each Histogram counts values into power of two buckets (bucket i holds values up to 2^i - 1), like an HDR histogram with
+ *  one significant binary digit. Recording is a few atomic increments without allocation, so histograms can be updated on
+ *  every request. Histograms are created once per name and label and kept for the life of the application.
+ * </p>
+ * <p>
+ *  Recorded here:<br>
+ *  http_request_duration_seconds{resource="Class.method"}: Jersey resource methods (fi.vtt.TimingResourceFilterFactory).<br>
+ *  db_query_duration_seconds{method="Class.method"}: statements of Queries and ConditionalAccess, from StatementCache.prepare()
+ *  to release(), or only until executeQuery() for statements whose rows are streamed to a client (streaming()). The label is
+ *  the method that prepared the statement. Slow statements are also given to SlowQueryLog, except the streamed ones.<br>
+ *  db_query_rows{method="Class.method"}: rows changed by the statement, or the rows returned by the getAll methods of Queries
+ *  (reported with rows()).<br>
+ *  db_pool_wait_seconds: time spent in DataSource.getConnection() (use getConnection() of this class).
+ * </p> */
+public class Metrics {
+
+    /** Number of buckets of a histogram, the last one holds values of 2^62 and above. */
+    private final static int BUCKETS = 64;
+
+    /** Nested statements tracked per thread, deeper ones are not timed. */
+    private final static int MAX_DEPTH = 16;
+
+    /** Start time of a statement whose duration was recorded by streaming(). */
+    private final static long STREAMED = Long.MIN_VALUE;
+
+    public final static String HTTP_REQUEST_DURATION = "http_request_duration_seconds";
+    public final static String DB_QUERY_DURATION     = "db_query_duration_seconds";
+    public final static String DB_QUERY_ROWS         = "db_query_rows";
+    public final static String DB_POOL_WAIT          = "db_pool_wait_seconds";
+
+    /** Histogram of non-negative long values (nanoseconds or counts) */
+    public static class Histogram {
+        private final String name;
+        private final String labels;     // Prometheus label set like {method="Queries.findDevice"}, or "".
+        private final double scale;      // Multiplier from recorded values to exported values (1e-9 for nanoseconds).
+        private final int firstExported; // Smaller buckets are only included in the cumulative counts.
+        private final int lastExported;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        private Histogram(String name, String labels, double scale, int firstExported, int lastExported) {
+            this.name = name;
+            this.labels = labels;
+            this.scale = scale;
+            this.firstExported = firstExported;
+            this.lastExported = lastExported;
+        }
+
+        /** @param value Value to count, negative values are counted as 0. */
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+        }
+
+        /** Record the nanoseconds elapsed since a System.nanoTime() value */
+        public void recordSince(long startedNanos) {
+            record(System.nanoTime() - startedNanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        private void write(StringBuilder sb) {
+            String labelPrefix = labels.length() == 0 ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i <= lastExported; i++) {
+                cumulative += buckets.get(i);
+                if (i >= firstExported) {
+                    sb.append(name).append("_bucket").append(labelPrefix).append("le=\"")
+                      .append(format(((1L << i) - 1) * scale)).append("\"} ").append(cumulative).append('\n');
+                }
+            }
+            long total = count.get();
+            sb.append(name).append("_bucket").append(labelPrefix).append("le=\"+Inf\"} ").append(total).append('\n');
+            sb.append(name).append("_sum").append(labels).append(' ').append(format(sum.get() * scale)).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(total).append('\n');
+        }
+    }
+
+    /** Series key (name + labels) to histogram. */
+    private final static ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /** Histograms of the statements prepared by one method. */
+    private static class StatementMetrics {
+        final String method;
+        final Histogram duration;
+        final Histogram rows;
+
+        StatementMetrics(String method) {
+            this.method = method;
+            this.duration = timer(DB_QUERY_DURATION, "method", method);
+            this.rows = counts(DB_QUERY_ROWS, "method", method);
+        }
+    }
+
+    /** Statement SQL to the histograms of the method that prepares it, resolved once per SQL. */
+    private final static ConcurrentHashMap<String, StatementMetrics> statementMetrics = new ConcurrentHashMap<String, StatementMetrics>();
+
+    /** Statements of the current thread between StatementCache.prepare() and release(). */
+    private static class OpenStatements {
+        final PreparedStatement[] statements = new PreparedStatement[MAX_DEPTH];
+        final StatementMetrics[] metrics = new StatementMetrics[MAX_DEPTH];
+        final String[] sqls = new String[MAX_DEPTH];
+        final long[] started = new long[MAX_DEPTH];   // STREAMED when the duration is already recorded.
+        final long[] rows = new long[MAX_DEPTH];
+        int depth = 0;
+    }
+
+    private final static ThreadLocal<OpenStatements> openStatements = new ThreadLocal<OpenStatements>() {
+        @Override
+        protected OpenStatements initialValue() {
+            return new OpenStatements();
+        }
+    };
+
+    private final static Histogram poolWait = timer(DB_POOL_WAIT, null, null);
+
+    /** Utility class */
+    private Metrics() {}
+
+    /** Get or create a latency histogram, exported in seconds (about 1 s - 18 min)
+     * @param name Metric name, e.g. HTTP_REQUEST_DURATION.
+     * @param labelName Name of the label, or null for a histogram without labels.
+     * @param labelValue Value of the label.
+     * @return The histogram, record nanoseconds into it. */
+    public static Histogram timer(String name, String labelName, String labelValue) {
+        return histogram(name, labelName, labelValue, 1e-9, 10, 40);
+    }
+
+    /** Get or create a histogram of counts (0 - about 1 million exported separately)
+     * @see #timer(String, String, String) */
+    public static Histogram counts(String name, String labelName, String labelValue) {
+        return histogram(name, labelName, labelValue, 1, 0, 20);
+    }
+
+    private static Histogram histogram(String name, String labelName, String labelValue, double scale, int first, int last) {
+        String labels = (labelName == null) ? "" : "{" + labelName + "=\"" + escape(labelValue) + "\"}";
+        String key = name + labels;
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            Histogram created = new Histogram(name, labels, scale, first, last);
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /** Get a pooled connection, recording the time spent waiting for it in db_pool_wait_seconds
+     * @param dataSource The connection pool.
+     * @return A connection from the pool.
+     * @throws SQLException No connection was available. */
+    public static Connection getConnection(DataSource dataSource) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            return dataSource.getConnection();
+        } finally {
+            poolWait.recordSince(started);
+        }
+    }
+
+    /** Start timing a statement handed out by StatementCache.prepare()
+     * @param preparedStatement The statement.
+     * @param sql SQL of the statement, the histograms are looked up by it.
+     * @param startedNanos System.nanoTime() when prepare() was called. */
+    static void statementPrepared(PreparedStatement preparedStatement, String sql, long startedNanos) {
+        OpenStatements open = openStatements.get();
+        if (open.depth >= MAX_DEPTH) {
+            return;
+        }
+        StatementMetrics metrics = statementMetrics.get(sql);
+        if (metrics == null) {
+            metrics = new StatementMetrics(caller());
+            statementMetrics.put(sql, metrics);
+        }
+        int i = open.depth++;
+        open.statements[i] = preparedStatement;
+        open.metrics[i] = metrics;
+        open.sqls[i] = sql;
+        open.started[i] = startedNanos;
+        open.rows[i] = -1;
+    }
+
+    /** Report the number of rows a query read, counted into db_query_rows when the statement is released
+     * @param preparedStatement A statement from StatementCache.prepare(), not yet released.
+     * @param rows Number of rows read. */
+    public static void rows(PreparedStatement preparedStatement, long rows) {
+        OpenStatements open = openStatements.get();
+        for (int i = open.depth - 1; i >= 0; i--) {
+            if (open.statements[i] == preparedStatement) {
+                open.rows[i] = rows;
+                return;
+            }
+        }
+    }
+
+    /** Stop timing a query whose rows are about to be streamed to a client (call right after executeQuery())
+     * <p>The time the client takes to download the rows is not database time, and the query is not given to SlowQueryLog:
+     * an EXPLAIN ANALYZE of an unbounded export would read the whole table again.</p>
+     * @param preparedStatement A statement from StatementCache.prepare(), not yet released. */
+    public static void streaming(PreparedStatement preparedStatement) {
+        OpenStatements open = openStatements.get();
+        for (int i = open.depth - 1; i >= 0; i--) {
+            if (open.statements[i] == preparedStatement) {
+                if (open.started[i] != STREAMED) {
+                    open.metrics[i].duration.record(System.nanoTime() - open.started[i]);
+                    open.started[i] = STREAMED;
+                }
+                return;
+            }
+        }
+    }
+
+    /** Stop timing a statement given back to StatementCache.release()
+     * @param preparedStatement The statement (may be one that was not timed). */
+    static void statementReleased(PreparedStatement preparedStatement) {
+        OpenStatements open = openStatements.get();
+        for (int i = open.depth - 1; i >= 0; i--) {
+            if (open.statements[i] == preparedStatement) {
+                StatementMetrics metrics = open.metrics[i];
+                if (open.started[i] != STREAMED) {
+                    long duration = System.nanoTime() - open.started[i];
+                    metrics.duration.record(duration);
+                    if (SlowQueryLog.isSlow(duration)) {
+                        SlowQueryLog.record(preparedStatement, open.sqls[i], metrics.method, duration);
+                    }
+                }
+                long rows = open.rows[i];
+                if (rows < 0) {
+                    try {
+                        rows = preparedStatement.getUpdateCount(); // -1 for queries.
+                    } catch (SQLException se) {
+                        rows = -1;
+                    }
+                }
+                if (rows >= 0) {
+                    metrics.rows.record(rows);
+                }
+                // Remove the entry, keeping the order of the others:
+                for (int j = i + 1; j < open.depth; j++) {
+                    open.statements[j - 1] = open.statements[j];
+                    open.metrics[j - 1] = open.metrics[j];
+                    open.sqls[j - 1] = open.sqls[j];
+                    open.started[j - 1] = open.started[j];
+                    open.rows[j - 1] = open.rows[j];
+                }
+                open.depth--;
+                open.statements[open.depth] = null;
+                open.metrics[open.depth] = null;
+                open.sqls[open.depth] = null;
+                return;
+            }
+        }
+    }
+
+    /** @return "Class.method" of the first caller outside StatementCache, ConditionalAccess and this class (only when a new
+     * SQL is seen). The filtered queries of ConditionalAccess are named by the resource method that asks for them. */
+    private static String caller() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (!className.equals(Metrics.class.getName()) && !className.equals(StatementCache.class.getName())
+                    && !className.equals(ConditionalAccess.class.getName())) {
+                return className.substring(className.lastIndexOf('.') + 1) + "." + element.getMethodName();
+            }
+        }
+        return "unknown";
+    }
+
+    /** Append all the histograms that have values in the Prometheus text format (version 0.0.4), sorted by name
+     * @param sb Output. */
+    public static void writePrometheus(StringBuilder sb) {
+        Map<String, Histogram> sorted = new TreeMap<String, Histogram>(histograms);
+        String previousName = null;
+        for (Histogram histogram : sorted.values()) {
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            if (!histogram.name.equals(previousName)) {
+                sb.append("# TYPE ").append(histogram.name).append(" histogram\n");
+                previousName = histogram.name;
+            }
+            histogram.write(sb);
+        }
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.4g", value);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.util.List;
+
+/** One page of a keyset (cursor) paginated query: the rows and the key to continue after
+ * <p>
+ *  The next page is requested with the key of the last row on this page, so the database can continue with an index range scan
+ *  instead of skipping over OFFSET rows.
+ * </p>
+ * @param <T> Type of the rows.
+ */
+public class Page<T> {
+
+    private final List<T> items;
+    private final long nextAfter;
+
+    /** Create a page
+     * @param items Rows of this page.
+     * @param nextAfter Key of the last row when there are more rows, -1 if this is the last page. */
+    public Page(List<T> items, long nextAfter) {
+        this.items = items;
+        this.nextAfter = nextAfter;
+    }
+
+    /** @return Rows of this page (may be empty). */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /** @return The "after" value of the next page, or -1 if there is none. */
+    public long getNextAfter() {
+        return nextAfter;
+    }
+
+    /** @return true if there is a next page. */
+    public boolean hasNext() {
+        return nextAfter >= 0;
+    }
+}
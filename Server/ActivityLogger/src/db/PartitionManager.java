@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Creates the monthly partitions of raw_measurements and measurement_applications ahead of time
+ * <p>
+ *  With partition_raw_measurements.sql (or create_routine_tables.sql) both tables are range partitioned by measurement_timestamp,
+ *  one partition per calendar month in UTC (raw_measurements_pYYYY_MM, measurement_applications_pYYYY_MM). Rows outside the
+ *  monthly partitions go to the DEFAULT partitions. A background thread checks at start and every CHECK_INTERVAL_HOURS that the
+ *  current month and the next monthsAhead months have partitions in both tables, so inserts never land in the default partition
+ *  (a month cannot be added afterwards while the default partition holds rows of it). Nothing is done if raw_measurements is not
+ *  partitioned.
+ * </p>
+ * <p>
+ *  Settings are the partitions.* context-params in web.xml (monthsAhead 0 disables the manager).
+ * </p> */
+public class PartitionManager {
+
+    private final static Logger logger = LoggerFactory.getLogger(PartitionManager.class); // Log4Java.
+
+    /** Default number of future months that have partitions: {@value} */
+    public final static int DEFAULT_MONTHS_AHEAD = 3;
+    /** Hours between two checks: {@value} */
+    public final static int CHECK_INTERVAL_HOURS = 6;
+
+    /** Partitioned tables, measurement_applications follows the months of raw_measurements */
+    private final static String[] TABLES = { "raw_measurements", "measurement_applications" };
+
+    private static ScheduledExecutorService scheduler = null; // Guarded by PartitionManager.class.
+
+    private final static AtomicLong created  = new AtomicLong();
+    private final static AtomicLong checks   = new AtomicLong();
+    private final static AtomicLong failures = new AtomicLong();
+    private static volatile boolean partitioned = false;
+
+    /** Utility class */
+    private PartitionManager() {}
+
+    /** Check the partitions now and then in a background thread every CHECK_INTERVAL_HOURS (the first check runs in the calling
+     *  thread, so the partitions exist before ingest starts)
+     * @param dataSource Connection pool.
+     * @param monthsAhead Number of future months that must have partitions, 0 disables the manager. */
+    public static synchronized void start(final DataSource dataSource, final int monthsAhead) {
+        stop();
+        if (monthsAhead <= 0 || dataSource == null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PartitionManager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Runnable check = new Runnable() {
+            public void run() {
+                Connection connection = null;
+                try {
+                    connection = Metrics.getConnection(dataSource);
+                    ensurePartitions(connection, monthsAhead);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    logger.warn("Partition check failed: " + e.getMessage());
+                } finally {
+                    if (connection != null) {
+                        try {
+                            connection.close();
+                        } catch (Exception e) {
+                            System.out.print(e.toString());
+                        }
+                    }
+                }
+            }
+        };
+        check.run();
+        scheduler.scheduleWithFixedDelay(check, CHECK_INTERVAL_HOURS, CHECK_INTERVAL_HOURS, TimeUnit.HOURS);
+        logger.info("Partition manager started: " + monthsAhead + " months ahead.");
+    }
+
+    /** Stop the background checks */
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /** Create the missing partitions of the current month and monthsAhead months after it
+     * @param connection PostgreSQL connection (autocommit, each partition is created in its own statement).
+     * @param monthsAhead Number of future months.
+     * @return Number of created partitions (0 if raw_measurements is not partitioned).
+     * @throws SQLException If a partition could not be created (e.g. the default partition already holds rows of the month). */
+    public static int ensurePartitions(Connection connection, int monthsAhead) throws SQLException {
+        checks.incrementAndGet();
+        partitioned = isPartitioned(connection, TABLES[0]);
+        if (!partitioned) {
+            return 0;
+        }
+        Calendar month = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        month.set(Calendar.DAY_OF_MONTH, 1);
+        month.set(Calendar.HOUR_OF_DAY, 0);
+        month.set(Calendar.MINUTE, 0);
+        month.set(Calendar.SECOND, 0);
+        month.set(Calendar.MILLISECOND, 0);
+        List<String> existing = getPartitions(connection);
+        int count = 0;
+        for (int i = 0; i <= monthsAhead; i++) {
+            Calendar next = (Calendar) month.clone();
+            next.add(Calendar.MONTH, 1);
+            for (String table : TABLES) {
+                String name = partitionName(table, month);
+                if (!existing.contains(name)) {
+                    createPartition(connection, table, name, month, next);
+                    count++;
+                }
+            }
+            month = next;
+        }
+        return count;
+    }
+
+    /** @return Names of the partitions of raw_measurements and measurement_applications. */
+    public static List<String> getPartitions(Connection connection) throws SQLException {
+        List<String> partitions = new ArrayList<String>();
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection,
+                    "SELECT c.relname FROM pg_inherits AS i " +
+                    "INNER JOIN pg_class AS c ON i.inhrelid = c.oid " +
+                    "WHERE i.inhparent IN (to_regclass(?), to_regclass(?))");
+            preparedStatement.setString(1, TABLES[0]);
+            preparedStatement.setString(2, TABLES[1]);
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                partitions.add(rs.getString(1));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        return partitions;
+    }
+
+    /** @return true if the table is a partitioned table (relkind 'p'). */
+    public static boolean isPartitioned(Connection connection, String table) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection,
+                    "SELECT relkind = 'p' FROM pg_class WHERE oid = to_regclass(?)");
+            preparedStatement.setString(1, table);
+            rs = preparedStatement.executeQuery();
+            return rs.next() && rs.getBoolean(1);
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** @return Partition name of the table for the month, e.g. raw_measurements_p2013_05. */
+    static String partitionName(String table, Calendar month) {
+        return String.format("%s_p%04d_%02d", table, month.get(Calendar.YEAR), month.get(Calendar.MONTH) + 1);
+    }
+
+    /** CREATE TABLE ... PARTITION OF (DDL has no bind parameters, the name and bounds are generated here) */
+    private static void createPartition(Connection connection, String table, String name, Calendar from, Calendar to)
+            throws SQLException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss'+00'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String sql = "CREATE TABLE IF NOT EXISTS " + name + " PARTITION OF " + table +
+                " FOR VALUES FROM ('" + format.format(from.getTime()) + "') TO ('" + format.format(to.getTime()) + "')";
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+        created.incrementAndGet();
+        logger.info("Created partition " + name + ".");
+    }
+
+    /** @return Counters for /rest/metrics. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("partitions_raw_measurements_partitioned", partitioned ? 1 : 0);
+        metrics.put("partitions_created_total", created.get());
+        metrics.put("partitions_checks_total", checks.get());
+        metrics.put("partitions_check_failures_total", failures.get());
+        return metrics;
+    }
+
+}
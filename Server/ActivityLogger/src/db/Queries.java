@@ -29,6 +29,7 @@
 
 package db;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -37,7 +38,12 @@ import java.sql.Statement;
 //import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import fi.vtt.activitylogger.Device;
 import fi.vtt.activitylogger.LoggerApplication;
@@ -57,6 +63,43 @@ public class Queries {
 	
     /** Error message for using a "deprecated" device meta data field when adding a user routine the old way. */
     public final static String LAUNCH_TIME_NOT_USED = "launchTimeNotUsed!";
+
+    /** Magic number stored into raw_measurements.latitude and longitude when the location is not available: {@value} */
+    public final static double LATLONG_NOT_AVAILABLE = -1000.0;
+
+    /** Run a query that gives an id in the first column of at most one row
+     * @param connection routine_db PostgreSQL connection.
+     * @param sql The query, with a String parameter for each value.
+     * @param values The parameter values.
+     * @return The id, or -1 if the query gave no row.
+     * @throws SQLException The query or DB connection failed.
+     */
+    private static long queryId(Connection connection, String sql, String... values) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        long id = -1;
+        try {
+            preparedStatement = StatementCache.prepare(connection, sql);
+            for (int i = 0; i < values.length; i++) {
+                preparedStatement.setString(i + 1, values[i]);
+            }
+            rs = preparedStatement.executeQuery();
+            if (rs.next()) {
+                id = rs.getLong(1);
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        return id;
+    }
     
     // devices table of routine_db (DB helper methods)
     
@@ -72,7 +115,7 @@ public class Queries {
         boolean contains = false;
         try {
             String sql = "SELECT device_id FROM devices WHERE device_name = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, deviceName);
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
@@ -87,7 +130,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -107,7 +150,7 @@ public class Queries {
         try {
             String sql = "INSERT INTO devices (device_name, platform, device_creation_timestamp, mcc) "
                     + "VALUES(?, ?, ?, ?)";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, device.getDeviceName());
             preparedStatement.setString(2, device.getPlatform());
             
@@ -129,12 +172,57 @@ public class Queries {
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return ret;
     }
 
+    /** Insert a device record unless a device with the same name exists, and return the id of the record
+     * @param connection routine_db PostgreSQL connection.
+     * @param device Java object containing the device record values. Only the name is used if the device already exists.
+     * @return devices.device_id of the new or the existing device record.
+     * @throws SQLException The query or DB connection failed.
+     * <p>An existing device is only read (one round trip, no row lock). A new one is inserted with ON CONFLICT DO NOTHING
+     * (UNIQUE (device_name), PostgreSQL 9.5 or newer), and read again if a concurrent session inserted it first.</p>
+     */
+    public static long upsertDevice(Connection connection, Device device) throws SQLException {
+        String selectSql = "SELECT device_id FROM devices WHERE device_name = ?";
+        long deviceId = queryId(connection, selectSql, device.getDeviceName());
+        if (deviceId >= 0) {
+            return deviceId;
+        }
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            String sql = "INSERT INTO devices (device_name, platform, device_creation_timestamp, mcc) VALUES(?, ?, ?, ?) "
+                    + "ON CONFLICT (device_name) DO NOTHING RETURNING device_id";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            preparedStatement.setString(1, device.getDeviceName());
+            preparedStatement.setString(2, device.getPlatform());
+            preparedStatement.setTimestamp(3, java.sql.Timestamp.valueOf(device.getDeviceTimestamp())); // As in insertDevice().
+            preparedStatement.setInt(4, device.getMcc());
+            rs = preparedStatement.executeQuery();
+            if (rs.next()) {
+                deviceId = rs.getLong(1);
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        if (deviceId < 0) {
+            deviceId = queryId(connection, selectSql, device.getDeviceName()); // Inserted by a concurrent session.
+        }
+        return deviceId;
+    }
+
     /** Get an existing device record from the devices table of the routine_db data base
      * @param connection routine_db PostgreSQL connection.
      * @param deviceName Name of the searched device (user). Usually a SHA1 hash.
@@ -148,7 +236,7 @@ public class Queries {
         try {
             String sql = "SELECT device_id, device_name, platform, device_creation_timestamp, mcc "
                     + "FROM devices WHERE device_name = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, deviceName);
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
@@ -179,7 +267,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -198,15 +286,17 @@ public class Queries {
         PreparedStatement preparedStatement = null;
         String sql = "DELETE FROM devices WHERE device_id = ?";
         try {
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, deviceId);
             int removedCount = preparedStatement.executeUpdate();
             if (removedCount > 0) {
                 removed = true;
+                DeviceCache.invalidate(deviceId);
+                DuplicateSuppressor.invalidate(deviceId);
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return removed;
@@ -218,7 +308,7 @@ public class Queries {
      *  Verify strings before insertion to avoid SQL injection attacks. Timestamps are protected already. All strings are inserted with
      *  <em>preparedStatement.setString()</em> methods.
      * </p> 
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @param deviceName Limit results of the search only devices belonging to this user (only returns the same instance). Null or empty give all.
      * @param loggerApplicationName Limit results of the search only to logging context of the device/user. Null or empty give all.
      * @param startTime PostgreSQL/ISO8601 timestamp to limit returned devices to those added at the same or newer time than the given time. 
@@ -241,7 +331,7 @@ public class Queries {
                          "WHERE device_name = ? " +
                          "AND ?::timestamp(0) with time zone <= device_creation_timestamp " + // Cast "::timestamp(0) with time zone" forces the string to
                          "AND device_creation_timestamp <= ?::timestamp(0) with time zone ";  // be parsed as a valid timestamp.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, deviceName); // This will make the name a string literal that cannot be escaped to cause an injection attack?
             preparedStatement.setString(2, startTime);
             preparedStatement.setString(3, endTime);
@@ -252,14 +342,14 @@ public class Queries {
         	// because makeFilteredFutuDBSqlQuery() needs those tables for handling possible device_name and logger_application_name query parameters;
         	// alternatively you can set device_name and/or logger_application_name to null if it would not affect the query):
         	loggerApplicationName = null; // Make sure this is null because it is not needed in the query!
-            PreparedStatement newPreparedStatement = db.ConditionalAccess.makeFilteredFutuDBSqlQuery(
+            preparedStatement = db.ConditionalAccess.makeFilteredFutuDBSqlQuery(
             		connection,
             		"SELECT device_id, device_name, platform, device_creation_timestamp, mcc\n FROM devices ", // ",logger_applications" removed because
             		deviceName, loggerApplicationName,                                                         // it duplicates the results!
             		"device_creation_timestamp", startTime, // Specify what columns are used for filtering results by time
             		"device_creation_timestamp", endTime ); // and specify the time stamps.
-            System.out.println( "[Queries.java:getAllDevices()] New PostgreSQL prepared statement: " + newPreparedStatement.toString() ); // Debug print.
-            rs = newPreparedStatement.executeQuery(); // preparedStatement.executeQuery()
+            System.out.println( "[Queries.java:getAllDevices()] New PostgreSQL prepared statement: " + preparedStatement.toString() ); // Debug print.
+            rs = preparedStatement.executeQuery();
             while (rs.next()) {
                 long deviceId = rs.getLong(1);
                 String name = rs.getString(2);
@@ -287,14 +377,65 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, devices.size());
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
         }
         return devices;
     }
+
+    /** Get one page of devices in device_id order, for the .../rest/devices REST URL (same filters as getAllDevices())
+     * @param connection The PostgreSQL routine database connection.
+     * @param deviceName Limit results of the search only devices belonging to this user. Null or empty give all.
+     * @param loggerApplicationName Not used in the query (kept for symmetry with getAllDevices()).
+     * @param startTime PostgreSQL/ISO8601 timestamp to limit returned devices to those added at the same or newer time than the given time. 
+     * @param endTime PostgreSQL/ISO8601 timestamp to limit returned devices to those added at the same or older time than the given time.
+     * @param after Only devices whose device_id is greater than this are returned (the cursor of the previous page, 0 for the first).
+     * @param limit Maximum number of devices on the page.
+     * @return The devices and the cursor of the next page.
+     * @throws SQLException If problems arose with the query. */
+    public static Page<Device> getDevicesPage(Connection connection , String deviceName , String loggerApplicationName ,
+    		String startTime , String endTime , long after , int limit ) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        List<Device> devices = new ArrayList<Device>();
+        try {
+        	loggerApplicationName = null; // Not needed in the query, see getAllDevices().
+            preparedStatement = db.ConditionalAccess.makeFilteredFutuDBSqlQuery(
+            		connection,
+            		"SELECT device_id, device_name, platform, device_creation_timestamp, mcc\n FROM devices ",
+            		deviceName, loggerApplicationName,
+            		"device_creation_timestamp", startTime,
+            		"device_creation_timestamp", endTime,
+            		"device_id", after, limit + 1 ); // One more row tells if there is a next page.
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                devices.add(new Device(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getInt(5)));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, devices.size());
+                try {
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+        }
+        if (devices.size() > limit) {
+            devices.remove(limit);
+            return new Page<Device>(devices, devices.get(limit - 1).getDeviceId());
+        }
+        return new Page<Device>(devices, -1);
+    }
     
     // logger_applications table (helper DB methods)
 
@@ -311,7 +452,7 @@ public class Queries {
         boolean contains = false;
         try {
             String sql = "SELECT logger_application_id FROM logger_applications WHERE logger_application_name = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, loggerApplicationName);
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
@@ -326,7 +467,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -346,20 +487,45 @@ public class Queries {
         boolean ret = false;
         try {
             String sql = "INSERT INTO logger_applications (logger_application_name) VALUES (?)";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, loggerApp.getLoggerApplicationName());
             int insertCount = preparedStatement.executeUpdate();
             if (insertCount > 0) {
                 ret = true;
+                ReferenceDataCache.invalidate(ReferenceDataCache.LOGGER_APPLICATIONS);
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return ret;
     }
 
+    /** Insert a logger application record unless one with the same name exists, and return the id of the record
+     * @param connection routine_db PostgreSQL connection.
+     * @param loggerApplicationName A routine database wide identifier for a data logger application (context).
+     * @return logger_applications.logger_application_id of the new or the existing record.
+     * @throws SQLException The query or DB connection failed.
+     * <p>Called for every ingest, so an existing record is only read: no new row version and no row lock held until commit.
+     * A new one is inserted with ON CONFLICT DO NOTHING (UNIQUE (logger_application_name), PostgreSQL 9.5 or newer), and
+     * read again if a concurrent session inserted it first.</p>
+     */
+    public static long upsertLoggerApplication(Connection connection, String loggerApplicationName) throws SQLException {
+        String selectSql = "SELECT logger_application_id FROM logger_applications WHERE logger_application_name = ?";
+        long loggerApplicationId = queryId(connection, selectSql, loggerApplicationName);
+        if (loggerApplicationId >= 0) {
+            return loggerApplicationId;
+        }
+        loggerApplicationId = queryId(connection, "INSERT INTO logger_applications (logger_application_name) VALUES (?) "
+                + "ON CONFLICT (logger_application_name) DO NOTHING RETURNING logger_application_id", loggerApplicationName);
+        if (loggerApplicationId >= 0) {
+            ReferenceDataCache.invalidate(ReferenceDataCache.LOGGER_APPLICATIONS); // Only a row inserted here changes the table.
+            return loggerApplicationId;
+        }
+        return queryId(connection, selectSql, loggerApplicationName); // Inserted by a concurrent session.
+    }
+
     /** Fetch details of the named logger application from the database and create an instance
      *  (note that logger application is not tied to any specific device in the database!)
      * @param connection A postgreSQL database connection to the routine tables.
@@ -373,7 +539,7 @@ public class Queries {
         LoggerApplication loggerApplication = null;
         try {
             String sql = "SELECT logger_application_id, logger_application_name FROM logger_applications WHERE logger_application_name = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, loggerApplicationName);
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
@@ -390,7 +556,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -410,22 +576,23 @@ public class Queries {
         PreparedStatement preparedStatement = null;
         try {
             String sql = "DELETE FROM logger_applications WHERE logger_application_id = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, loggerApplicationId);
             int removedCount = preparedStatement.executeUpdate();
             if (removedCount > 0) {
                 removed = true;
+                ReferenceDataCache.invalidate(ReferenceDataCache.LOGGER_APPLICATIONS);
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return removed;
     }
 
     /** Get a list of all logger applications from the routine database, to be returned by the .../rest/logger_applications REST URL 
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @return A list of found logger applications (may be empty if none was found).
      * @throws SQLException If problems arose with the query. */
     public static List<LoggerApplication> getAllLoggerApplications(Connection connection) throws SQLException {
@@ -436,7 +603,7 @@ public class Queries {
         try {
             String sql = "SELECT logger_application_id, logger_application_name " +
                          "FROM logger_applications";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             rs = preparedStatement.executeQuery();
             while (rs.next()) {
                 long id = rs.getLong(1);
@@ -452,8 +619,9 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, applications.size());
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -477,7 +645,7 @@ public class Queries {
         boolean contains = false;
         try {
             String sql = "SELECT application_id FROM application WHERE application_name = ? AND package_class_name = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, name);
             preparedStatement.setString(2, className);
             rs = preparedStatement.executeQuery();
@@ -493,7 +661,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -514,23 +682,48 @@ public class Queries {
         boolean ret = false;
         try {
             String sql = "INSERT INTO application (application_name, package_class_name) VALUES(?, ?)";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, application.getName());
             preparedStatement.setString(2, application.getClassName());
             int insertCount = preparedStatement.executeUpdate();
             if (insertCount > 0) {
                 ret = true;
+                ReferenceDataCache.invalidate(ReferenceDataCache.APPLICATIONS);
             } else {
                 throw new SQLException("Application insert failure!");
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return ret;
     }
 
+    /** Insert an application record unless the same application exists, and return the id of the record
+     * @param connection routine_db PostgreSQL connection.
+     * @param name Name of the application.
+     * @param className The Java package and class name of the application.
+     * @return application.application_id of the new or the existing record.
+     * @throws SQLException The query or DB connection failed.
+     * <p>An existing record is only read (findApplicationId()). A new one is inserted with ON CONFLICT DO NOTHING
+     * (UNIQUE (application_name, package_class_name), PostgreSQL 9.5 or newer), and read again if a concurrent session inserted
+     * it first. Use ApplicationDictionary.getId() to avoid the round trip for known applications.</p>
+     */
+    public static long upsertApplication(Connection connection, String name, String className) throws SQLException {
+        long appId = findApplicationId(connection, name, className);
+        if (appId >= 0) {
+            return appId;
+        }
+        appId = queryId(connection, "INSERT INTO application (application_name, package_class_name) VALUES(?, ?) "
+                + "ON CONFLICT (application_name, package_class_name) DO NOTHING RETURNING application_id", name, className);
+        if (appId >= 0) {
+            ReferenceDataCache.invalidate(ReferenceDataCache.APPLICATIONS); // Only a row inserted here changes the table.
+            return appId;
+        }
+        return findApplicationId(connection, name, className); // Inserted by a concurrent session.
+    }
+
     /** Get the record id of an existing application record from the application table of the routine_db data base
      * @param connection routine_db PostgreSQL connection.
      * @param name Name of the application.
@@ -545,7 +738,7 @@ public class Queries {
         long appId = -1;
         try {
             String sql = "SELECT application_id FROM application WHERE application_name = ? AND package_class_name = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, name);
             preparedStatement.setString(2, className);
             rs = preparedStatement.executeQuery();
@@ -561,7 +754,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -583,7 +776,7 @@ public class Queries {
         Application app = null;
         try {
             String sql = "SELECT application_id, application_name, package_class_name FROM application WHERE application_id = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, appId);
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
@@ -602,7 +795,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -621,7 +814,7 @@ public class Queries {
         fi.vtt.activitylogger.Application app = null;
         try {
             String sql = "SELECT application_id, application_name, package_class_name FROM application WHERE application_name = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setString(1, applicationName );
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
@@ -639,7 +832,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -659,22 +852,24 @@ public class Queries {
         PreparedStatement preparedStatement = null;
         try {
             String sql = "DELETE FROM application WHERE application_id = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, appId);
             int removedCount = preparedStatement.executeUpdate();
             if (removedCount > 0) {
                 removed = true;
+                ApplicationDictionary.invalidate(appId);
+                ReferenceDataCache.invalidate(ReferenceDataCache.APPLICATIONS);
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return removed;
     }
 
     /** Get a list of all applications from the routine database, to be returned by the .../rest/applications REST URL 
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @return A list of found applications (may be empty if none was found).
      * @throws SQLException If problems arose with the query.
      * <p>
@@ -691,7 +886,7 @@ public class Queries {
         try {
             String sql = "SELECT application_id, application_name, package_class_name " +
                          "FROM application";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             rs = preparedStatement.executeQuery();
             while (rs.next()) {
                 long id = rs.getLong(1);
@@ -708,8 +903,9 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, applications.size());
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -731,15 +927,22 @@ public class Queries {
      * <p>This method is called by insertRawMeasurement().</p> */
     public static long insertBasicRawData(Connection connection, long deviceId,
             LoggerApplication loggerApp, RawLogData rawLogData) throws SQLException {
+        return insertBasicRawData(connection, deviceId, loggerApp, rawLogData, null);
+    }
+
+    /** insertBasicRawData() that also returns the measurement_timestamp given by the database
+     * @param measurementTimestamp Output, [0] is set to the measurement_timestamp of the new row if not null. It is needed for the
+     *        measurement_applications rows, which are partitioned by the same time (see PartitionManager). */
+    private static long insertBasicRawData(Connection connection, long deviceId,
+            LoggerApplication loggerApp, RawLogData rawLogData, Timestamp[] measurementTimestamp) throws SQLException {
         PreparedStatement preparedStatement = null;
         ResultSet rs = null;
         try {
-            String sql = "INSERT INTO raw_measurements (latitude, longitude, cell_id, logger_application_id_fk, device_id_fk) "
-                    + "VALUES (?, ?, ?, ?, ?) RETURNING measurement_id";
-            preparedStatement = connection.prepareStatement(sql);
+            String sql = "INSERT INTO raw_measurements (latitude, longitude, cell_id, logger_application_id_fk, device_id_fk, geohash) "
+                    + "VALUES (?, ?, ?, ?, ?, ?) RETURNING measurement_id, measurement_timestamp";
+            preparedStatement = StatementCache.prepare(connection, sql);
 
-            // A proper null handling for latitude & longitude would be nice instead of the magic number:
-            final double LATLONG_NOT_AVAILABLE = -1000.0;
+            // A proper null handling for latitude & longitude would be nice instead of the magic number (LATLONG_NOT_AVAILABLE):
             double latitude = LATLONG_NOT_AVAILABLE;
             double longitude = LATLONG_NOT_AVAILABLE;
             
@@ -754,12 +957,15 @@ public class Queries {
             preparedStatement.setInt(3, rawLogData.getCellId());
             preparedStatement.setLong(4, loggerApp.getLoggerApplicationId());
             preparedStatement.setLong(5, deviceId);
+            preparedStatement.setString(6, Geohash.encode(latitude, longitude)); // Null without a location.
             
             // raw_measurements.measurement_timestamp will get the value now() by default, i.e., the time of insertion.
 
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
                 long insertedMeasurentId = rs.getLong(1);
+                if (measurementTimestamp != null)
+                    measurementTimestamp[0] = rs.getTimestamp(2);
                 return insertedMeasurentId;
             } else {
                 throw new SQLException("insertBasicRawData failed!");
@@ -773,7 +979,7 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
     }
@@ -817,19 +1023,14 @@ public class Queries {
     public static long insertRawMeasurement(Connection connection, long deviceId,
             LoggerApplication loggerApp, RawLogData rawLogData) throws SQLException {
         // First insert the basic data
+        Timestamp[] measurementTimestamp = new Timestamp[1];
         long measurementId = Queries
-                .insertBasicRawData(connection, deviceId, loggerApp, rawLogData);
+                .insertBasicRawData(connection, deviceId, loggerApp, rawLogData, measurementTimestamp);
         // Then insert all applications belonging to this raw data set
         ArrayList<Application> apps = rawLogData.getApps();
         for (Application application : apps) {
-            String name = application.getName();
-            String className = application.getClassName();
-            boolean appExists = Queries.hasApplication(connection, name, className);
-            if (!appExists) {
-                Queries.insertApplication(connection, application);
-            }
-            long applicationId = Queries.findApplicationId(connection, name, className);
-            boolean insertOk = Queries.insertMeasurementApplication(connection, measurementId,
+            long applicationId = ApplicationDictionary.getId(connection, application.getName(), application.getClassName());
+            boolean insertOk = Queries.insertMeasurementApplication(connection, measurementId, measurementTimestamp[0],
                     applicationId);
             if (!insertOk) {
                 throw new SQLException("Failed to insert application with id: " + applicationId
@@ -839,6 +1040,316 @@ public class Queries {
         return measurementId;
     }
 
+    /** Reserve a block of raw_measurements.measurement_id values from the sequence in a single round trip
+     * @param connection routine_db PostgreSQL connection.
+     * @param count How many ids are needed.
+     * @return The reserved ids in ascending order (unused ids are simply skipped by the sequence later).
+     * @throws SQLException The query or DB connection failed.
+     * <p>Used by the batch inserts, which need to know the ids before the rows are written (JDBC batches cannot return them).</p> */
+    public static long[] reserveMeasurementIds(Connection connection, int count) throws SQLException {
+        long[] ids = new long[count];
+        if (count == 0) {
+            return ids;
+        }
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT nextval('raw_measurements_measurement_id_seq') FROM generate_series(1, ?)";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            preparedStatement.setInt(1, count);
+            rs = preparedStatement.executeQuery();
+            int i = 0;
+            while (rs.next() && i < count) {
+                ids[i++] = rs.getLong(1);
+            }
+            if (i < count) {
+                throw new SQLException("reserveMeasurementIds got only " + i + " ids out of " + count + "!");
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        return ids;
+    }
+
+    /** Key of an application in the maps returned by findOrInsertApplicationIds()
+     * @param applicationName application.application_name value.
+     * @param packageClassName application.package_class_name value.
+     * @return The combined key. */
+    public static String applicationKey(String applicationName, String packageClassName) {
+        return applicationName + '\u0000' + packageClassName;
+    }
+
+    /** Find (or insert when missing) the application records of all the applications in the given raw data sets
+     * @param connection routine_db PostgreSQL connection.
+     * @param rawLogDatas Raw data sets whose application lists are resolved.
+     * @return application.application_id values keyed by applicationKey(name, class name), one entry per distinct application.
+     * @throws SQLException The query or DB connection failed.
+     * @see ApplicationDictionary#resolve(Connection, java.util.Collection) */
+    public static Map<String, Long> findOrInsertApplicationIds(Connection connection, List<RawLogData> rawLogDatas)
+            throws SQLException {
+        List<Application> applications = new ArrayList<Application>();
+        for (RawLogData rawLogData : rawLogDatas) {
+            if (rawLogData.getApps() != null) {
+                applications.addAll(rawLogData.getApps());
+            }
+        }
+        return ApplicationDictionary.resolve(connection, applications);
+    }
+
+    /** Insert several raw data sets (including the lists of running applications) of one device into the routine DB using JDBC batches
+     * @param connection routine_db PostgreSQL connection.
+     * @param deviceId Value of the device_id_fk in the DB records, pointing to devices.device_id field.
+     * @param loggerApp The logger application record values as a Java object (REST compliant version of the class).
+     * @param rawLogDatas The raw measurements to insert, in order. Null entries are not allowed (filter them out before calling).
+     * @return raw_measurements.measurement_id values of the inserted rows, in the same order as rawLogDatas.
+     * @throws SQLException The query or DB connection failed.
+     * @see #insertRawMeasurement(Connection, long, LoggerApplication, RawLogData)	Does the same for a single measurement.
+     * <p>
+     *  The ids are reserved first with reserveMeasurementIds(), then raw_measurements and measurement_applications are both written with
+     *  PreparedStatement.addBatch(). The applications of the batch are resolved with findOrInsertApplicationIds().
+     * </p>
+     * <p>
+     *  <b>Note:</b> This method does not manage transactions. The caller should turn auto commit off and commit or roll back the whole batch.
+     * </p> */
+    public static long[] insertRawMeasurementBatch(Connection connection, long deviceId,
+            LoggerApplication loggerApp, List<RawLogData> rawLogDatas) throws SQLException {
+        return insertRawMeasurementBatch(connection, deviceId, loggerApp, rawLogDatas,
+                reserveMeasurementIds(connection, rawLogDatas.size()));
+    }
+
+    /** Insert several raw data sets of one device using already reserved measurement ids
+     * @param connection routine_db PostgreSQL connection.
+     * @param deviceId Value of the device_id_fk in the DB records, pointing to devices.device_id field.
+     * @param loggerApp The logger application record values as a Java object (REST compliant version of the class).
+     * @param rawLogDatas The raw measurements to insert, in order. Null entries are not allowed.
+     * @param measurementIds Ids from reserveMeasurementIds(), one per raw data set.
+     * @return measurementIds.
+     * @throws SQLException The query or DB connection failed.
+     * @see #insertRawMeasurementBatch(Connection, long, LoggerApplication, List)
+     * <p><b>Note:</b> This method does not manage transactions.</p> */
+    public static long[] insertRawMeasurementBatch(Connection connection, long deviceId,
+            LoggerApplication loggerApp, List<RawLogData> rawLogDatas, long[] measurementIds) throws SQLException {
+        return insertRawMeasurementBatch(connection, deviceId, loggerApp, rawLogDatas, measurementIds, null);
+    }
+
+    /** Insert several raw data sets of one device using already reserved measurement ids and their receipt times
+     * @param receivedTimes Time (System.currentTimeMillis()) each raw data set was received, stored as measurement_timestamp,
+     * or null to use the current time for all (e.g. IngestionQueue passes the enqueue times, which do not lag behind a slow database).
+     * @see #insertRawMeasurementBatch(Connection, long, LoggerApplication, List, long[]) for the other parameters. */
+    public static long[] insertRawMeasurementBatch(Connection connection, long deviceId, LoggerApplication loggerApp,
+            List<RawLogData> rawLogDatas, long[] measurementIds, long[] receivedTimes) throws SQLException {
+        if (rawLogDatas.isEmpty()) {
+            return measurementIds;
+        }
+        Map<String, Long> applicationIds = findOrInsertApplicationIds(connection, rawLogDatas);
+
+        // The same time for the raw_measurements and measurement_applications rows (their partition key), taken here as the
+        // database now() would differ between the two statements outside a transaction (RawDataBulkLoader does the same):
+        Timestamp[] timestamps = new Timestamp[rawLogDatas.size()];
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = (receivedTimes != null) ? new Timestamp(receivedTimes[i]) : now;
+        }
+        PreparedStatement preparedStatement = null;
+        try {
+            String sql = "INSERT INTO raw_measurements (measurement_id, measurement_timestamp, latitude, longitude, cell_id, "
+                    + "logger_application_id_fk, device_id_fk, geohash) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            for (int i = 0; i < rawLogDatas.size(); i++) {
+                RawLogData rawLogData = rawLogDatas.get(i);
+                double latitude = LATLONG_NOT_AVAILABLE;
+                double longitude = LATLONG_NOT_AVAILABLE;
+                GPSData gpsData = rawLogData.getGpsData(); // Location may not be available.
+                if (gpsData != null) {
+                    latitude = gpsData.getLatitude();
+                    longitude = gpsData.getLongitude();
+                }
+                preparedStatement.setLong(1, measurementIds[i]);
+                preparedStatement.setTimestamp(2, timestamps[i]);
+                preparedStatement.setDouble(3, latitude);
+                preparedStatement.setDouble(4, longitude);
+                preparedStatement.setInt(5, rawLogData.getCellId());
+                preparedStatement.setLong(6, loggerApp.getLoggerApplicationId());
+                preparedStatement.setLong(7, deviceId);
+                preparedStatement.setString(8, Geohash.encode(latitude, longitude));
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        } finally {
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+
+        preparedStatement = null;
+        try {
+            String sql = "INSERT INTO measurement_applications (measurement_id_fk, measurement_timestamp, application_id_fk) VALUES(?, ?, ?)";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            int batched = 0;
+            for (int i = 0; i < rawLogDatas.size(); i++) {
+                if (rawLogDatas.get(i).getApps() == null) {
+                    continue;
+                }
+                for (Application application : rawLogDatas.get(i).getApps()) {
+                    long applicationId = applicationIds.get(applicationKey(application.getName(), application.getClassName()));
+                    if (applicationId < 0) {
+                        throw new SQLException("Failed to insert application " + application.getName() + " to measurement: " + measurementIds[i]);
+                    }
+                    preparedStatement.setLong(1, measurementIds[i]);
+                    preparedStatement.setTimestamp(2, timestamps[i]);
+                    preparedStatement.setLong(3, applicationId);
+                    preparedStatement.addBatch();
+                    batched++;
+                }
+            }
+            if (batched > 0) {
+                preparedStatement.executeBatch();
+            }
+        } finally {
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        return measurementIds;
+    }
+
+    /** Claim the idempotency keys (device, sequence number) of raw data sets before inserting them
+     * @param connection routine_db PostgreSQL connection.
+     * @param deviceId devices.device_id of the sending device.
+     * @param rawLogDatas The raw data sets, RawLogData.getSequenceNumber() &lt; 0 means no key.
+     * @param measurementIds Ids reserved for the raw data sets (reserveMeasurementIds()), stored with the claimed keys.
+     * @param duplicates Output, set to true for the raw data sets whose key was already stored (by an earlier upload,
+     *  a concurrent transaction or earlier in the same list). These must not be inserted.
+     * @return For each raw data set its measurement id: the reserved one for new data, the stored one for duplicates
+     *  (-1 if the earlier measurement is not known).
+     * @throws SQLException The query or DB connection failed.
+     * <p>
+     *  The keys are inserted with one INSERT ... ON CONFLICT DO NOTHING (PostgreSQL 9.5 or newer) into raw_measurement_keys,
+     *  whose primary key makes the check safe between concurrent uploads. <b>Note:</b> This method does not manage transactions,
+     *  the keys must be committed together with the measurements.
+     * </p> */
+    public static long[] insertRawMeasurementKeys(Connection connection, long deviceId, List<RawLogData> rawLogDatas,
+            long[] measurementIds, boolean[] duplicates) throws SQLException {
+        long[] result = measurementIds.clone();
+        Map<Long, Integer> firstIndexes = new LinkedHashMap<Long, Integer>();
+        for (int i = 0; i < rawLogDatas.size(); i++) {
+            long sequenceNumber = rawLogDatas.get(i).getSequenceNumber();
+            if (sequenceNumber < 0) {
+                continue;
+            }
+            if (firstIndexes.containsKey(sequenceNumber)) {
+                duplicates[i] = true; // Same upload twice in one batch.
+            } else {
+                firstIndexes.put(sequenceNumber, i);
+            }
+        }
+        if (firstIndexes.isEmpty()) {
+            return result;
+        }
+
+        Long[] sequenceNumbers = new Long[firstIndexes.size()];
+        Long[] keyMeasurementIds = new Long[firstIndexes.size()];
+        int k = 0;
+        for (Map.Entry<Long, Integer> entry : firstIndexes.entrySet()) {
+            sequenceNumbers[k] = entry.getKey();
+            keyMeasurementIds[k] = measurementIds[entry.getValue()];
+            k++;
+        }
+        Set<Long> claimed = new HashSet<Long>();
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            String sql = "INSERT INTO raw_measurement_keys (device_id_fk, sequence_number, measurement_id_fk) "
+                    + "SELECT ?, k.sequence_number, k.measurement_id FROM unnest(?::bigint[], ?::bigint[]) AS k(sequence_number, measurement_id) "
+                    + "ON CONFLICT DO NOTHING RETURNING sequence_number";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            preparedStatement.setLong(1, deviceId);
+            preparedStatement.setArray(2, connection.createArrayOf("int8", sequenceNumbers));
+            preparedStatement.setArray(3, connection.createArrayOf("int8", keyMeasurementIds));
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                claimed.add(rs.getLong(1));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+
+        // Keys stored earlier: acknowledge with the measurement id of the first upload.
+        List<Long> stored = new ArrayList<Long>();
+        for (Map.Entry<Long, Integer> entry : firstIndexes.entrySet()) {
+            if (!claimed.contains(entry.getKey())) {
+                duplicates[entry.getValue()] = true;
+                result[entry.getValue()] = -1;
+                stored.add(entry.getKey());
+            }
+        }
+        if (!stored.isEmpty()) {
+            Map<Long, Long> storedIds = findMeasurementIdsByKeys(connection, deviceId, stored);
+            for (Long sequenceNumber : stored) {
+                Long measurementId = storedIds.get(sequenceNumber);
+                result[firstIndexes.get(sequenceNumber)] = (measurementId != null) ? measurementId : -1;
+            }
+        }
+        for (int i = 0; i < rawLogDatas.size(); i++) {
+            long sequenceNumber = rawLogDatas.get(i).getSequenceNumber();
+            if (duplicates[i] && sequenceNumber >= 0 && firstIndexes.get(sequenceNumber) != i) {
+                result[i] = result[firstIndexes.get(sequenceNumber)];
+            }
+        }
+        return result;
+    }
+
+    /** Find the measurement ids stored for idempotency keys of one device
+     * @param connection routine_db PostgreSQL connection.
+     * @param deviceId devices.device_id of the sending device.
+     * @param sequenceNumbers Sequence numbers to look up.
+     * @return raw_measurement_keys.measurement_id_fk values keyed by sequence number, missing keys are not in the map.
+     * @throws SQLException The query or DB connection failed. */
+    public static Map<Long, Long> findMeasurementIdsByKeys(Connection connection, long deviceId, List<Long> sequenceNumbers)
+            throws SQLException {
+        Map<Long, Long> measurementIds = new HashMap<Long, Long>();
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT sequence_number, measurement_id_fk FROM raw_measurement_keys "
+                    + "WHERE device_id_fk = ? AND sequence_number = ANY(?)";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            preparedStatement.setLong(1, deviceId);
+            preparedStatement.setArray(2, connection.createArrayOf("int8", sequenceNumbers.toArray()));
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                measurementIds.put(rs.getLong(1), rs.getLong(2));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        return measurementIds;
+    }
+
     /** Find measurement by its id from the routine_db database
      * @param connection PostgreSQL database connection.
      * @param measurement_id Database id of a raw measurement row.
@@ -857,7 +1368,7 @@ public class Queries {
       	                 "INNER JOIN logger_applications AS la ON rm.logger_application_id_fk=la.logger_application_id " +	// Merge with this table matching
                          "INNER JOIN devices ON rm.device_id_fk=devices.device_id " +										// foreign key value and id.
       	                 "WHERE rm.measurement_id = ?";																		// On this condition.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             // preparedStatement.setString(1, String.valueOf(measurement_id) );
               // "org.postgresql.util.PSQLException: ERROR: operator does not exist: bigint = character varying"
             preparedStatement.setLong(1, measurement_id );
@@ -881,7 +1392,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -903,7 +1414,7 @@ public class Queries {
         PreparedStatement preparedStatement = null;
         String sql = "DELETE FROM raw_measurements WHERE measurement_id = ?";
         try {
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, measurementId);
             int removedCount = preparedStatement.executeUpdate();
             if (removedCount > 0) {
@@ -911,7 +1422,7 @@ public class Queries {
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return removed;
@@ -919,7 +1430,7 @@ public class Queries {
 
     /** Get a list of all raw measurements (resolving references to other tables) from the routine database, to be returned by the
      *  .../rest/raw_measurements REST URL 
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @return A list of found raw_measurements (may be empty if none was found).
      * @throws SQLException If problems arose with the query.
      */
@@ -936,7 +1447,7 @@ public class Queries {
                          "FROM raw_measurements AS rm " +																	// Main table and its alias.
         	             "INNER JOIN logger_applications AS la ON rm.logger_application_id_fk=la.logger_application_id " +	// Merge with this table matching
                          "INNER JOIN devices ON rm.device_id_fk=devices.device_id";											// foreign key value and id.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             rs = preparedStatement.executeQuery();
             while (rs.next()) {
                 long id = rs.getLong(1);
@@ -957,14 +1468,240 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, measurements.size());
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
         }
         return measurements;
     }
+
+    /** Get one page of raw measurements in measurement_id order, for the .../rest/raw_measurements REST URL
+     * @param connection PostgreSQL connection.
+     * @param after Only measurements whose measurement_id is greater than this are returned (the cursor of the previous page, 0 for the first).
+     * @param limit Maximum number of measurements on the page.
+     * @return The measurements and the cursor of the next page (an index range scan on the primary key, one row more tells if there is a next page).
+     * @throws SQLException If problems arose with the query.
+     */
+    public static Page<RawMeasurement> getRawMeasurementsPage(Connection connection, long after, int limit) throws SQLException {
+        return getRawMeasurementsPage(connection, null, null, null, null, after, limit);
+    }
+
+    /** Get one page of the raw measurements matching the given filters (the same as for .../rest/devices)
+     * <p>
+     *  The time range is compared to measurement_timestamp, so on a partitioned raw_measurements (see PartitionManager) only the
+     *  partitions of the months in the range are scanned.
+     * </p>
+     * @param deviceName Only measurements of this device. Null or empty give all.
+     * @param loggerApplicationName Only measurements of this logger application. Null or empty give all.
+     * @param startTime PostgreSQL/ISO8601 timestamp, only measurements at this time or later. Null or empty give all.
+     * @param endTime PostgreSQL/ISO8601 timestamp, only measurements at this time or earlier. Null or empty give all.
+     * @return The measurements and the cursor of the next page.
+     * @throws SQLException If problems arose with the query (also an invalid timestamp).
+     * @see #getRawMeasurementsPage(Connection, long, int)
+     */
+    public static Page<RawMeasurement> getRawMeasurementsPage(Connection connection, String deviceName, String loggerApplicationName,
+            String startTime, String endTime, long after, int limit) throws SQLException {
+        return getRawMeasurementsPage(connection, deviceName, loggerApplicationName, startTime, endTime, null, null, after, limit);
+    }
+
+    /** Get one page of the raw measurements located in a bounding box, for the .../rest/raw_measurements/within REST URL
+     * <p>
+     *  The box is read as geohash ranges from raw_measurements_geohash_index and the rows are then checked against the exact
+     *  coordinates (see Geohash), so only the measurements in and around the box are read. Measurements without a location are
+     *  never returned.
+     * </p>
+     * @param south Smallest latitude.
+     * @param west Smallest longitude, greater than east if the box crosses the 180th meridian.
+     * @param north Largest latitude.
+     * @param east Largest longitude.
+     * @return The measurements in measurement_id order and the cursor of the next page.
+     * @throws SQLException If problems arose with the query (also an invalid timestamp).
+     * @see #getRawMeasurementsPage(Connection, String, String, String, String, long, int) for the other parameters. */
+    public static Page<RawMeasurement> getRawMeasurementsInBoxPage(Connection connection, double south, double west, double north,
+            double east, String deviceName, String loggerApplicationName, String startTime, String endTime, long after, int limit)
+                    throws SQLException {
+        List<Object> parameters = new ArrayList<Object>();
+        String condition = boxCondition(south, west, north, east, parameters);
+        return getRawMeasurementsPage(connection, deviceName, loggerApplicationName, startTime, endTime, condition, parameters,
+                after, limit);
+    }
+
+    /** Get one page of the raw measurements located within a distance of a point, for the .../rest/raw_measurements/near REST URL
+     * <p>
+     *  The geohash ranges of the bounding box of the circle are read from raw_measurements_geohash_index and the rows are then
+     *  filtered by their great circle distance from the point.
+     * </p>
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @param radius Distance in meters.
+     * @return The measurements in measurement_id order and the cursor of the next page.
+     * @throws SQLException If problems arose with the query (also an invalid timestamp).
+     * @see #getRawMeasurementsPage(Connection, String, String, String, String, long, int) for the other parameters. */
+    public static Page<RawMeasurement> getRawMeasurementsNearPage(Connection connection, double latitude, double longitude,
+            double radius, String deviceName, String loggerApplicationName, String startTime, String endTime, long after, int limit)
+                    throws SQLException {
+        List<Object> parameters = new ArrayList<Object>();
+        String condition = radiusCondition(latitude, longitude, radius, parameters);
+        return getRawMeasurementsPage(connection, deviceName, loggerApplicationName, startTime, endTime, condition, parameters,
+                after, limit);
+    }
+
+    /** getRawMeasurementsPage() with an additional condition of makeFilteredFutuDBSqlQuery() (null for none) */
+    private static Page<RawMeasurement> getRawMeasurementsPage(Connection connection, String deviceName, String loggerApplicationName,
+            String startTime, String endTime, String condition, List<Object> parameters, long after, int limit) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        List<RawMeasurement> measurements = new ArrayList<RawMeasurement>();
+        try {
+            preparedStatement = ConditionalAccess.makeFilteredFutuDBSqlQuery(
+                    connection, RAW_MEASUREMENTS_SELECT, deviceName, loggerApplicationName,
+                    "rm.measurement_timestamp", startTime, "rm.measurement_timestamp", endTime,
+                    "rm.measurement_id", after, limit + 1, // One more row tells if there is a next page.
+                    null, condition, parameters );
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                measurements.add(readRawMeasurement(rs));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, measurements.size());
+                try {
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+        }
+        if (measurements.size() > limit) {
+            measurements.remove(limit);
+            return new Page<RawMeasurement>(measurements, measurements.get(limit - 1).getMeasurementId());
+        }
+        return new Page<RawMeasurement>(measurements, -1);
+    }
+
+    /** Great circle distance in meters between rm.latitude, rm.longitude and the point given by the parameters latitude, latitude,
+     *  longitude (haversine formula, as Geohash.distance()) */
+    private final static String DISTANCE_SQL =
+            "2 * " + Geohash.EARTH_RADIUS + " * asin(least(1.0, sqrt(power(sin(radians(rm.latitude - ?) / 2), 2) " +
+            "+ cos(radians(?)) * cos(radians(rm.latitude)) * power(sin(radians(rm.longitude - ?) / 2), 2))))";
+
+    /** Condition of the measurements (alias rm) in a bounding box for makeFilteredFutuDBSqlQuery(): the geohash ranges of the box
+     *  (range scans of raw_measurements_geohash_index), then the exact coordinates
+     * @param parameters Receives the values of the parameters of the condition, in order.
+     * @return The condition. */
+    private static String boxCondition(double south, double west, double north, double east, List<Object> parameters) {
+        StringBuilder sb = new StringBuilder("(");
+        for (String[] range : Geohash.ranges(south, west, north, east)) {
+            if (sb.length() > 1)
+                sb.append(" OR ");
+            parameters.add(range[0]);
+            if (range[1] == null) {
+                sb.append("rm.geohash >= ?");
+            } else {
+                sb.append("(rm.geohash >= ? AND rm.geohash < ?)");
+                parameters.add(range[1]);
+            }
+        }
+        sb.append(") AND rm.latitude >= ? AND rm.latitude <= ? AND ");
+        parameters.add(south);
+        parameters.add(north);
+        sb.append(west > east ? "(rm.longitude >= ? OR rm.longitude <= ?)" : "rm.longitude >= ? AND rm.longitude <= ?");
+        parameters.add(west);
+        parameters.add(east);
+        return sb.toString();
+    }
+
+    /** Condition of the measurements (alias rm) within radius meters of a point for makeFilteredFutuDBSqlQuery(): the bounding box
+     *  of the circle as in boxCondition(), then the distance */
+    private static String radiusCondition(double latitude, double longitude, double radius, List<Object> parameters) {
+        double[] box = Geohash.boundingBox(latitude, longitude, radius);
+        String condition = boxCondition(box[0], box[1], box[2], box[3], parameters);
+        parameters.add(latitude);
+        parameters.add(latitude);
+        parameters.add(longitude);
+        parameters.add(radius);
+        return condition + " AND " + DISTANCE_SQL + " <= ?";
+    }
+
+    /** Columns and joins of the raw measurement queries (getRawMeasurementsPage(), streamRawMeasurements()), followed by WHERE or ORDER BY */
+    private final static String RAW_MEASUREMENTS_SELECT =
+            "SELECT rm.measurement_id, rm.measurement_timestamp, rm.latitude, rm.longitude, rm.cell_id, " +
+            "logger_applications.logger_application_name, devices.device_name " +
+            "FROM raw_measurements AS rm " +
+            "INNER JOIN logger_applications ON rm.logger_application_id_fk=logger_applications.logger_application_id " +
+            "INNER JOIN devices ON rm.device_id_fk=devices.device_id "; // No aliases for these two, see makeFilteredFutuDBSqlQuery().
+
+    /** Create a raw measurement from the current row of a RAW_MEASUREMENTS_SELECT query */
+    private static RawMeasurement readRawMeasurement(ResultSet rs) throws SQLException {
+        return new RawMeasurement(rs.getLong(1), rs.getString(2), rs.getDouble(3), rs.getDouble(4), rs.getInt(5),
+                rs.getString(6), rs.getString(7));
+    }
+
+    /** Pass all raw measurements in measurement_id order to a callback, without collecting them into memory (for full exports)
+     * <p>
+     *  The query runs in a transaction with the given fetch size, so the PostgreSQL JDBC driver reads the rows through a cursor
+     *  fetchSize rows at a time instead of loading the whole result set. Autocommit is restored before returning.
+     * </p>
+     * @param connection PostgreSQL connection.
+     * @param fetchSize Number of rows fetched from the server at a time.
+     * @param callback Receives each measurement.
+     * @return Number of measurements passed to the callback.
+     * @throws SQLException If problems arose with the query.
+     * @throws IOException If the callback failed (the query is stopped).
+     */
+    public static long streamRawMeasurements(Connection connection, int fetchSize, RowCallback<RawMeasurement> callback)
+            throws SQLException, IOException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        long count = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false); // The driver only uses a cursor inside a transaction.
+            preparedStatement = StatementCache.prepare(connection, RAW_MEASUREMENTS_SELECT + "ORDER BY rm.measurement_id ASC");
+            preparedStatement.setFetchSize(fetchSize);
+            rs = preparedStatement.executeQuery();
+            Metrics.streaming(preparedStatement); // The rest is the client's download time.
+            while (rs.next()) {
+                callback.row(readRawMeasurement(rs));
+                count++;
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, count);
+                try {
+                    preparedStatement.setFetchSize(0); // The statement is cached, do not leave the cursor mode to other callers.
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+            endStreaming(connection, autoCommit);
+        }
+        return count;
+    }
+
+    /** Finish the read-only transaction of a streamed query and restore the autocommit mode of the connection */
+    private static void endStreaming(Connection connection, boolean autoCommit) {
+        try {
+            connection.rollback(); // Nothing was written, closes the cursor.
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
 	
     // measurement_applications relation table helper methods (many measurement_applications records may belong to one raw measurement)
 
@@ -972,27 +1709,29 @@ public class Queries {
      *  (this table ties many applications to a single raw measurement)
      * @param connection PostgreSQL connection.
      * @param measurementId Database id of a raw measurement row (record).
+     * @param measurementTimestamp measurement_timestamp of the raw measurement row (part of its key, both tables are partitioned by it).
      * @param applicationId Reference to one of the application records.
      * @return true, if adding the reference was successful, false otherwise.
      * @throws SQLException The query or DB connection failed.
      */
-    public static boolean insertMeasurementApplication(Connection connection, long measurementId,
+    public static boolean insertMeasurementApplication(Connection connection, long measurementId, Timestamp measurementTimestamp,
             long applicationId) throws SQLException {
         PreparedStatement preparedStatement = null;
         boolean ret = false;
         try {
-            String sql = "INSERT INTO measurement_applications (measurement_id_fk, application_id_fk) "
-                    + "VALUES(?, ?)";
-            preparedStatement = connection.prepareStatement(sql);
+            String sql = "INSERT INTO measurement_applications (measurement_id_fk, measurement_timestamp, application_id_fk) "
+                    + "VALUES(?, ?, ?)";
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, measurementId);
-            preparedStatement.setLong(2, applicationId);
+            preparedStatement.setTimestamp(2, measurementTimestamp);
+            preparedStatement.setLong(3, applicationId);
             int insertCount = preparedStatement.executeUpdate();
             if (insertCount > 0) {
                 ret = true;
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return ret;
@@ -1035,7 +1774,7 @@ public class Queries {
         try {
             String sql = "SELECT id FROM routine_classes WHERE "
                     + "routine_type_id = ? AND routine_class_name = ? AND owner_device_id_fk = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setInt(1, typeId);
             preparedStatement.setString(2, routineClassName);
             preparedStatement.setLong(3, device.getDeviceId());
@@ -1054,7 +1793,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -1074,17 +1813,18 @@ public class Queries {
         try {
             String sql = "INSERT INTO routine_classes ( routine_type_id, routine_class_name, owner_device_id_fk) "
                     + "VALUES ( ?, ?, ?) RETURNING id";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setInt(1, routineClass.getRoutineTypeId());
             preparedStatement.setString(2, routineClass.getRoutineClassName());
             preparedStatement.setLong(3, routineClass.getDeviceId());
             ResultSet rs = preparedStatement.executeQuery();
             if (rs.next()) {
                 id = rs.getLong(1);
+                ReferenceDataCache.invalidate(ReferenceDataCache.ROUTINE_CLASSES);
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return id;
@@ -1102,15 +1842,16 @@ public class Queries {
         PreparedStatement preparedStatement = null;
         String sql = "DELETE FROM routine_classes WHERE id = ?";
         try {
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, routineClassId);
             int removedCount = preparedStatement.executeUpdate();
             if (removedCount > 0) {
                 removed = true;
+                ReferenceDataCache.invalidate(ReferenceDataCache.ROUTINE_CLASSES);
             }
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return removed;
@@ -1133,7 +1874,7 @@ public class Queries {
             			 "FROM routine_classes AS rc " +
             			 "INNER JOIN devices ON rc.owner_device_id_fk=devices.device_id " +
             			 "WHERE rc.id = ?";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setInt(1, routineClassId );
             rs = preparedStatement.executeQuery();
             long id = -1;
@@ -1159,7 +1900,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -1170,7 +1911,7 @@ public class Queries {
     
     /** Get a list of all routine classes (resolving references to other tables) from the routine database, to be returned by the
      *  .../rest/routine_classes REST URL 
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @return A list of found routine classes (may be empty if none was found).
      * @throws SQLException If problems arose with the query.
      */
@@ -1184,7 +1925,7 @@ public class Queries {
             String sql = "SELECT rc.id, rc.routine_type_id, rc.routine_class_name, rc.owner_device_id_fk, devices.device_name " +
                          "FROM routine_classes AS rc " +
                          "INNER JOIN devices ON rc.owner_device_id_fk=devices.device_id";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             rs = preparedStatement.executeQuery();
             // Introduce variables out of loop to save object allocating burden from the CPU and to avoid memory fragmentation: 
             long id = -1;
@@ -1210,8 +1951,9 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, routines.size());
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -1258,21 +2000,15 @@ public class Queries {
         try {
             // First insert all applications which do not already exist in application table
             ArrayList<fi.vtt.activitylogger.Application> apps = userRoutine.getApplication();
+            long [] applicationIds = new long [ apps.size() ];
             for(int i = 0 ; i < apps.size(); i++) {
-                // Should probably refactor this to use only the newer fi.vtt.activitylogger.Application class:
                 fi.vtt.activitylogger.Application app = apps.get(i);
-                Application sqlApp = new Application(app.getApplicationName(), app.getPackageClassName(), LAUNCH_TIME_NOT_USED);
-                if (!hasApplication(connection, sqlApp.getName(), sqlApp.getClassName())) {
-                    insertApplication(connection, sqlApp);
-                }
+                applicationIds[i] = ApplicationDictionary.getId(connection, app.getApplicationName(), app.getPackageClassName());
             }
             
             String loggerApplicationName = userRoutine.getLoggerApplicationName();
-            if (!hasLoggerApplication(connection, loggerApplicationName)) {
-                LoggerApplication newLoggerApp = new LoggerApplication(-1, loggerApplicationName);
-                insertLoggerApplication(connection, newLoggerApp);
-            }
-            LoggerApplication loggerApp = findLoggerApplication(connection, loggerApplicationName);
+            LoggerApplication loggerApp = new LoggerApplication(upsertLoggerApplication(connection, loggerApplicationName),
+                    loggerApplicationName);
             
             // We should not need raw measurements id for user routines but this hack was needed to overcome the design flaw in the DB schema:
             RawLogData dummyRawMeasurent = new RawLogData();
@@ -1292,11 +2028,10 @@ public class Queries {
             String sql =
             		"INSERT INTO user_routines (start_time, end_time, routine_class_id_fk, application_id_fk, raw_measurement_id_fk, confidence) " +
                     "VALUES (?, ?, ?, ?, ?, ?)";
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             // Now that all applications are in the application table, insert the same user routine applications count times (a hack):
             for(int i = 0 ; i < apps.size(); i++) {
-                fi.vtt.activitylogger.Application app = apps.get(i);
-                long applicationId = findApplicationId(connection, app.getApplicationName(), app.getPackageClassName());
+                long applicationId = applicationIds[i];
                 Timestamp startTimeStamp = java.sql.Timestamp.valueOf(userRoutine.getStartTime()); // Time zone information is lost here?
                 Timestamp endTimeStamp = java.sql.Timestamp.valueOf(userRoutine.getEndTime());
                 preparedStatement.setTimestamp(1, startTimeStamp);
@@ -1307,16 +2042,17 @@ public class Queries {
                 preparedStatement.setDouble(6, userRoutine.getConfidence());
                 preparedStatement.executeUpdate();
             }
+            RoutineRollups.add(connection, rawMeasurementId); // Daily rollup of the device (the rows differ only by the application).
         } finally {
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
     }
 
     /** Test inserting a POSTed (.../rest/user_routines/test) and GSON deserialized UserRoutine JSON object into the routine database TEMPORARILY and
      *  return all user routines (after that remove the added user routine and all the references it created)
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @return A list of found user routines (may be empty if none was found).
      * @throws SQLException If unexpected problems arose with the query (which then produces an internal server error HTTP 500 response).
      * <p>
@@ -1336,6 +2072,7 @@ public class Queries {
     public static List<UserRoutine> testInsertUserRoutine( Connection connection, UserRoutine userRoutine ) throws SQLException {
         PreparedStatement preparedStatement = null;
         ResultSet rs = null;
+        // UserRoutine routine = null;
         List<UserRoutine> routines = new ArrayList<UserRoutine>();
           // Return value to function and the corresponding REST service.
         StringBuilder sb = new StringBuilder();
@@ -1418,7 +2155,7 @@ public class Queries {
         	// Execute the created SQL:
         	sql = sb.toString();
         	System.out.println( "\n[Queries.testInsertUserRoutine()] Query sql:\n" + sql ); // Debug.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = connection.prepareStatement(sql); // One-off SQL with literal values, not worth caching.
             rs = preparedStatement.executeQuery();
             
             /* Debug examples from the console output:
@@ -1533,7 +2270,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {}
             }
         }
@@ -1542,7 +2279,7 @@ public class Queries {
     }
 
     /** Insert a POSTed (.../rest/user_routines) and GSON deserialized UserRoutine JSON object into the routine database
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @param userRoutine Details of the user routine to add. Field <em>userRoutinesId</em> is updated to contain the actual DB id value when method
      *                    returns.
      * @return null if everything went well, text to describe problems (that can be shown to the end user) if not.
@@ -1579,10 +2316,30 @@ public class Queries {
         	// General form of our query:
         	// "BEGIN; INSERT INTO table ( column1 , column2 , ... ) VALUES ( value1 , value 2 , ... ) RETURNING column1, column2, ...; COMMIT/ROLLBACK;"
 
+        	// Resolve the application ids before the transaction from the shared dictionary (inserting new applications), because
+        	// ApplicationDictionary cannot see the SQL level BEGIN below and would cache ids of rows that might be rolled back.
+        	// Application records are plain dictionary entries so they can safely outlive a cancelled user routine:
+            ArrayList<fi.vtt.activitylogger.Application> applications = userRoutine.getApplication();
+        	long [] applicationIndeces = null;
+            if (applications!= null && applications.size() > 0 ) {
+	        	applicationIndeces = new long [ applications.size() ];
+	            for( int i = 0 ; i < applications.size(); i++ ) {
+	            	fi.vtt.activitylogger.Application application = applications.get(i);
+	                applicationIndeces[i] = ApplicationDictionary.getId(
+	                		connection, application.getApplicationName(), application.getPackageClassName() );
+	            	application.setApplicationId(applicationIndeces[i]); // Save just in case it is needed for the the REST service response.
+	            }
+            } else {
+	        	applicationIndeces = new long [1];
+	        	applicationIndeces[0] = 1; // Default value meaning no applications.
+            }
+
         	// Start the database transaction with BEGIN (make sure that for compound SQL in sb each added piece has white space in the end):
         	// sb.append("BEGIN;\n");
-            preparedStatement = connection.prepareStatement("BEGIN;");
+            preparedStatement = StatementCache.prepare(connection, "BEGIN;");
             preparedStatement.execute(); // Ignore the boolean return value (false) as we don't use the (empty) result. May throw SQLException.
+            StatementCache.release(preparedStatement);
+            preparedStatement = null;
             
         	// 1) devices
             
@@ -1617,15 +2374,13 @@ public class Queries {
         	System.out.print( "\n[Queries.insertUserRoutine()] Finding or creating a logger application with the name: '" +
         			          userRoutine.getLoggerApplicationName() + "'.." ); // Debug.
         	loggerApplicationName = userRoutine.getLoggerApplicationName();
-            if (!hasLoggerApplication(connection, loggerApplicationName)) {
-                LoggerApplication newLoggerApp = new LoggerApplication(-1, loggerApplicationName);
-                insertLoggerApplication(connection, newLoggerApp);
-            }
-            loggerApplication = findLoggerApplication(connection, loggerApplicationName);
+            long loggerApplicationId = upsertLoggerApplication(connection, loggerApplicationName);
             // Check the result although the method call is more likely to throw an SQLException on any problems:
-            if (loggerApplication==null) {
+            if (loggerApplicationId < 0) {
             	transactionOk = false;
             	errorResponse += "The logger application name '" + loggerApplicationName + "' was not found from the database!";
+            } else {
+            	loggerApplication = new LoggerApplication(loggerApplicationId, loggerApplicationName);
             }
         	System.out.println( "\n .. Logger application part done." ); // Debug.
         	
@@ -1674,68 +2429,7 @@ public class Queries {
         	
         	// 5) application
 
-        	System.out.println( "\n[Queries.insertUserRoutine()] Creating entries for all used applications..." ); // Debug.
-        	  // We will create this many entries to both application and user_routines tables.
-        	// Add each application entry to the database and save its id for later (note that the DB enforces unique entries!):
-            ArrayList<fi.vtt.activitylogger.Application> applications = userRoutine.getApplication();
-        	long [] applicationIndeces = null;
-            if (applications!= null && applications.size() > 0 ) {
-	        	applicationIndeces = new long [ applications.size() ];
-	        	fi.vtt.activitylogger.Application application = null;
-	            for( int i = 0 ; i < applications.size(); i++ ) {
-	                application = applications.get(i);
-	                // First try to find an already existing id for the application description:
-	                try {
-	                    sql = "SELECT application_id FROM application WHERE application_name = ? AND package_class_name = ?";
-	                    preparedStatement = connection.prepareStatement(sql);
-	                    preparedStatement.setString(1, application.getApplicationName());
-	                    preparedStatement.setString(2, application.getPackageClassName());
-	                    rs = preparedStatement.executeQuery();
-	                    if (rs.next()) {
-	                        applicationIndeces[i] = rs.getLong(1);
-	                    	System.out.println( "[Queries.insertUserRoutine()] Found application DB entry: " +
-	                    			          applicationIndeces[i] + " '" + application.getApplicationName() + "' '" +
-	                    			          application.getPackageClassName() + "'" ); // Debug.
-	                    	application.setApplicationId(applicationIndeces[i]); // Save just in case it is needed for the the REST service response.
-	                    	continue; // Jump over the remaining code and advance to the next application.
-	                    }
-	                } finally {
-	                	// Overkill clean-up?
-	                    if (rs != null) {
-	                        try {
-	                            rs.close();
-	                        } catch (Exception e) {}
-	                    }
-	                    if (preparedStatement != null) {
-	                        try {
-	                            preparedStatement.close();
-	                        } catch (Exception e) {}
-	                    }
-	                }
-	                // No existing entry was found. Create a new entry:
-	                try {
-	                    sql = "INSERT INTO application ( application_name, package_class_name ) VALUES(?, ?) RETURNING application_id";
-	                    preparedStatement = connection.prepareStatement(sql);
-	                    preparedStatement.setString(1, application.getApplicationName());
-	                    preparedStatement.setString(2, application.getPackageClassName());
-	                    rs = preparedStatement.executeQuery();
-	                    if (rs.next()) {
-	                        applicationIndeces[i] = rs.getLong(1);
-	                    	System.out.println( "[Queries.insertUserRoutine()] Created application DB entry: " +
-	                    			          applicationIndeces[i] + " '" + application.getApplicationName() + "' '" +
-	                    			          application.getPackageClassName() + "'" ); // Debug.
-	                    	application.setApplicationId(applicationIndeces[i]); // Save just in case it is needed for the the REST service response.
-	                    }
-	                } finally {
-	                    if (preparedStatement != null) {
-	                        preparedStatement.close();
-	                    }
-	                }
-	            }
-            } else {
-	        	applicationIndeces = new long [1];
-	        	applicationIndeces[0] = 1; // Default value meaning no applications.
-            }
+        	// Application ids were resolved before BEGIN above.
             System.out.println( "\n .. Applications part done." );
         	
         	// 6) user_routines
@@ -1747,7 +2441,7 @@ public class Queries {
             // Now that all applications are in the application table we can insert the same user routine for each application
             // (it must be done this way due to DB restrictions):
             // for( int i = 0 ; i < applicationIndeces.length; i++ ) // WE NEED TO RUN THE BLOCK AT LEAST ONCE EVEN IF THERE ARE NO APPLICATIONS.
-           preparedStatement = connection.prepareStatement(sql);
+           preparedStatement = StatementCache.prepare(connection, sql);
            System.out.println( "\n[Queries.insertUserRoutine()] preparedStatement = \n" + preparedStatement.toString() ); // Debug.
         	long [] userRoutineIndices = new long [ applicationIndeces.length ];
         	int i = 0 ;
@@ -1798,19 +2492,26 @@ public class Queries {
                 }
                 if (preparedStatement != null) {
                     try {
-                        preparedStatement.close();
+                        StatementCache.release(preparedStatement);
                     } catch (Exception e) {}
+                    preparedStatement = null;
                 }
             }
             //  Save the first actual userRoutinesId from database statement to the userRoutine argument for returning the id to the user:
             userRoutine.setUserRoutinesId( userRoutineIndices[0] ); // The first one must be returned because it is the starting point in searching.
         	System.out.println( "\n .. User routines done!" );      // references to the application table.
+
+        	// 7) routine_daily_rollups
+
+        	// Counted in this transaction, so the daily rollup of the device changes exactly when the routine is committed:
+        	if (transactionOk)
+        		RoutineRollups.add(connection, rawMeasurementId);
         	
         	// Execute the created SQL:
         	/* Not needed for now.
         	sql = sb.toString();
         	System.out.println( "\n[Queries.testInsertUserRoutine()] Query sql:\n" + sql ); // Debug.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             rs = preparedStatement.executeQuery();
             */
             
@@ -1818,13 +2519,13 @@ public class Queries {
       	    System.out.println( "\nEnding the transaction.. " );
             if (transactionOk) {
             	// Save everything permanently into the database:
-                preparedStatement = connection.prepareStatement("COMMIT;");
+                preparedStatement = StatementCache.prepare(connection, "COMMIT;");
                 preparedStatement.execute();
                 errorResponse = null;
           	    System.out.println( "COMMIT done!" );
             } else {
             	// Undo everything:
-                preparedStatement = connection.prepareStatement("ROLLBACK;");
+                preparedStatement = StatementCache.prepare(connection, "ROLLBACK;");
                 preparedStatement.execute();
                 errorResponse += "\nTransaction cancelled: User routine was not saved."; // Append to any already existing explanation.
           	    System.out.println( "ROLLBACK done!" );
@@ -1839,7 +2540,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {}
             }
         }
@@ -1852,22 +2553,32 @@ public class Queries {
      * @param userRoutinesId Value of the user_routines.user_routines_id field in the DB record.
      * @return true, if removed, false otherwise.
      * @throws SQLException The query or DB connection failed.
+     * <p>If the record was the last one of its routine (one record per application), the routine is subtracted from the daily rollups.</p>
      */
     public static boolean deleteUserRoutine(Connection connection, long userRoutinesId)
             throws SQLException {
         boolean removed = false;
         PreparedStatement preparedStatement = null;
-        String sql = "DELETE FROM user_routines WHERE user_routines_id = ?";
+        ResultSet rs = null;
+        String sql = "DELETE FROM user_routines WHERE user_routines_id = ? " +
+                     "RETURNING raw_measurement_id_fk, routine_class_id_fk, start_time, end_time, confidence";
         try {
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setLong(1, userRoutinesId);
-            int removedCount = preparedStatement.executeUpdate();
-            if (removedCount > 0) {
+            rs = preparedStatement.executeQuery();
+            if (rs.next()) {
                 removed = true;
+                RoutineRollups.remove(connection, rs.getLong(1), rs.getLong(2), rs.getTimestamp(3), rs.getTimestamp(4), rs.getDouble(5));
             }
         } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
             if (preparedStatement != null) {
-                preparedStatement.close();
+                StatementCache.release(preparedStatement);
             }
         }
         return removed;
@@ -1887,7 +2598,7 @@ public class Queries {
                          "FROM user_routines AS ur " +					// From which table.
                          "INNER JOIN routine_classes.routine_class_name ON ur.routine_class_id_fk=routine_classes.id" +
       	                 "WHERE user_routines.routine_class_id_fk = ?";	// On this condition.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             // preparedStatement.setString(1, String.valueOf(measurement_id) );
               // "org.postgresql.util.PSQLException: ERROR: operator does not exist: bigint = character varying"
             preparedStatement.setInt(1, routineClassId );
@@ -1910,7 +2621,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -1959,7 +2670,7 @@ public class Queries {
 			5;"2012-10-04 10:00:00+03";"2012-10-05 07:30:00+03";4;4;6;0.85;"RoutineClient";"fi.vtt.testing.routine_client";"Yhdustelmrutiini kotona";
 			 61.31835;24.39843;40;"a619ed32f7d0de86a002757fbf8b29f4d1ab0aae";"Samsung_Galaxy_S_log"
           */
-          preparedStatement = connection.prepareStatement(sql);
+          preparedStatement = StatementCache.prepare(connection, sql);
           preparedStatement.setLong(1, userRoutineId ); // Add search condition to query at the first '?'.
           rs = preparedStatement.executeQuery();
 
@@ -2042,7 +2753,7 @@ public class Queries {
           }
           if (preparedStatement != null) {
               try {
-                  preparedStatement.close();
+                  StatementCache.release(preparedStatement);
               } catch (Exception e) {}
           }
       }
@@ -2052,31 +2763,63 @@ public class Queries {
     
     /* Get a list of all user routines from the routine database, to be returned by the .../rest/user_routines
      * REST URL 
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @return A list of found user routines (may be empty if none was found).
      * @throws SQLException If problems arose with the query.
      */
     public static List<UserRoutine> getAllUserRoutines(Connection connection) throws SQLException {
+        return getAllUserRoutines(connection, null, null, null, null);
+    }
+
+    /** Get the user routines matching the given filters (the same as for .../rest/devices), filtered in SQL by makeFilteredFutuDBSqlQuery()
+     * <p>
+     *  The device and logger application are those of the raw measurement the routine refers to. The time range selects routines that
+     *  start at or after startTime and end at or before endTime. The indexes of add_routine_indexes.sql let PostgreSQL go from the device to
+     *  its measurements (raw_measurements_device_time_index) and on to their routines (user_routines_measurement_index) instead of joining
+     *  the whole tables.
+     * </p>
+     * <p>
+     *  The rows of a routine (one per application) are grouped by the database, see USER_ROUTINES_GROUPED.
+     * </p>
+     * @param connection The PostgreSQL routine database connection.
+     * @param deviceName Only routines of this device. Null or empty give all.
+     * @param loggerApplicationName Only routines of this logger application. Null or empty give all.
+     * @param startTime PostgreSQL/ISO8601 timestamp, only routines starting at this time or later. Null or empty give all.
+     * @param endTime PostgreSQL/ISO8601 timestamp, only routines ending at this time or earlier. Null or empty give all.
+     * @return A list of found user routines (may be empty if none was found).
+     * @throws SQLException If problems arose with the query (also an invalid timestamp).
+     */
+    public static List<UserRoutine> getAllUserRoutines(Connection connection, String deviceName, String loggerApplicationName,
+            String startTime, String endTime) throws SQLException {
+        return getAllUserRoutines(connection, deviceName, loggerApplicationName, startTime, endTime, null, null);
+    }
+
+    /** Get the user routines whose raw measurement is located within a distance of a point, for the .../rest/user_routines/near REST URL
+     * <p>
+     *  The measurements are found as in getRawMeasurementsNearPage() and their routines through user_routines_measurement_index.
+     * </p>
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @param radius Distance in meters.
+     * @return A list of found user routines (may be empty if none was found).
+     * @throws SQLException If problems arose with the query (also an invalid timestamp).
+     * @see #getAllUserRoutines(Connection, String, String, String, String) for the other parameters. */
+    public static List<UserRoutine> getUserRoutinesNear(Connection connection, double latitude, double longitude, double radius,
+            String deviceName, String loggerApplicationName, String startTime, String endTime) throws SQLException {
+        List<Object> parameters = new ArrayList<Object>();
+        String condition = radiusCondition(latitude, longitude, radius, parameters);
+        return getAllUserRoutines(connection, deviceName, loggerApplicationName, startTime, endTime, condition, parameters);
+    }
+
+    /** getAllUserRoutines() with an additional condition of makeFilteredFutuDBSqlQuery() (null for none) */
+    private static List<UserRoutine> getAllUserRoutines(Connection connection, String deviceName, String loggerApplicationName,
+            String startTime, String endTime, String condition, List<Object> parameters) throws SQLException {
         PreparedStatement preparedStatement = null;
         ResultSet rs = null;
-        // UserRoutine routine = null;
         List<UserRoutine> routines = new ArrayList<UserRoutine>();
           // Return value to function and the corresponding REST service.
         try {
         	// Monster sized user routine query (from six tables at the same time to get all context information together):
-            String sql = "SELECT ur.user_routines_id, ur.start_time, ur.end_time, ur.routine_class_id_fk, " +
-            			 "       ur.application_id_fk, ur.raw_measurement_id_fk, ur.confidence, " +
-            		     "       a.application_name, a.package_class_name, " +
-            			 "       rc.routine_type_id, rc.routine_class_name, " +	// rc.routine_type_id added here to help adding new routine types.
-            		     "       rm.latitude, rm.longitude, rm.cell_id, " +
-            			 "       d.device_name, la.logger_application_name " +
-                         "FROM user_routines AS ur " +
-            			 "INNER JOIN application AS a ON ur.application_id_fk=a.application_id " +
-                         "INNER JOIN routine_classes AS rc ON ur.routine_class_id_fk=rc.id " +
-                         "INNER JOIN raw_measurements AS rm ON ur.raw_measurement_id_fk=rm.measurement_id " +
-            			 "INNER JOIN devices AS d ON rm.device_id_fk=d.device_id " +
-                         "INNER JOIN logger_applications AS la ON rm.logger_application_id_fk=la.logger_application_id " +
-            			 "ORDER BY ur.user_routines_id ASC";
             // Note that you cannot use aliases for tables devices and logger_applications in makeFilteredFutuDBSqlQuery() as they would mask the
             // search conditions on devices.device_name and logger_applications.logger_application_name.
             /* Results from the test data set (5 rows) but missing routine_type_id:
@@ -2090,81 +2833,141 @@ public class Queries {
 			 60.7617;23.4843;30;"Kyttj tai laite 1";"Samsung_Galaxy_S_log"
 			5;"2012-10-04 10:00:00+03";"2012-10-05 07:30:00+03";4;4;6;0.85;"RoutineClient";"fi.vtt.testing.routine_client";"Yhdustelmrutiini kotona";
 			 61.31835;24.39843;40;"a619ed32f7d0de86a002757fbf8b29f4d1ab0aae";"Samsung_Galaxy_S_log"
+			 Rows 3 and 4 are one routine with two applications.
             */
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = ConditionalAccess.makeFilteredFutuDBSqlQuery(
+                    connection, USER_ROUTINES_SELECT, deviceName, loggerApplicationName,
+                    "ur.start_time", startTime, "ur.end_time", endTime,
+                    null, 0, 0, USER_ROUTINES_GROUPED, // No keyset, the groups are ordered by USER_ROUTINES_GROUPED.
+                    condition, parameters );
             rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                routines.add(readUserRoutineGroup(rs));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, routines.size());
+                try {
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+        }
+        return routines;
+    }
+    
+    /** Columns and joins of the user routine rows (one per routine and application), followed by WHERE or ORDER BY. Used as the
+     *  subquery of USER_ROUTINES_GROUPED. */
+    private final static String USER_ROUTINES_SELECT =
+            "SELECT ur.user_routines_id, ur.start_time, ur.end_time, ur.routine_class_id_fk, " +
+            "       ur.application_id_fk, ur.raw_measurement_id_fk, ur.confidence, " +
+            "       a.application_name, a.package_class_name, " +
+            "       rc.routine_type_id, rc.routine_class_name, " +	// rc.routine_type_id added here to help adding new routine types.
+            "       rm.latitude, rm.longitude, rm.cell_id, " +
+            "       devices.device_name, logger_applications.logger_application_name " +
+            "FROM user_routines AS ur " +
+            "INNER JOIN application AS a ON ur.application_id_fk=a.application_id " +
+            "INNER JOIN routine_classes AS rc ON ur.routine_class_id_fk=rc.id " +
+            "INNER JOIN raw_measurements AS rm ON ur.raw_measurement_id_fk=rm.measurement_id " +
+            "INNER JOIN devices ON rm.device_id_fk=devices.device_id " + // No aliases for these two, see makeFilteredFutuDBSqlQuery().
+            "INNER JOIN logger_applications ON rm.logger_application_id_fk=logger_applications.logger_application_id ";
+
+    /** One row per user routine: the filtered USER_ROUTINES_SELECT rows grouped by the routine columns, with the applications of the
+     *  routine collected into arrays in user_routines_id order (array_agg(... ORDER BY ...)). Arrays rather than json_agg(): the JDBC
+     *  driver returns them typed through getArray(), so no JSON is built by the database and parsed again here. Columns: 1 smallest and
+     *  2 largest user_routines_id, 3 number of rows, 4-8 routine, 9-11 application id, name and package arrays, 12-18 context. The groups are
+     *  in the order of their first row, as the routines were listed before. */
+    private final static String USER_ROUTINES_GROUPED =
+            "SELECT min(w.user_routines_id), max(w.user_routines_id), count(*), " +
+            "       w.start_time, w.end_time, w.routine_class_id_fk, w.raw_measurement_id_fk, w.confidence, " +
+            "       array_agg(w.application_id_fk ORDER BY w.user_routines_id), " +
+            "       array_agg(w.application_name ORDER BY w.user_routines_id), " +
+            "       array_agg(w.package_class_name ORDER BY w.user_routines_id), " +
+            "       w.routine_type_id, w.routine_class_name, w.latitude, w.longitude, w.cell_id, w.device_name, w.logger_application_name " +
+            "FROM (" + ConditionalAccess.SUBQUERY + ") AS w " +
+            "GROUP BY w.start_time, w.end_time, w.routine_class_id_fk, w.raw_measurement_id_fk, w.confidence, " +
+            "         w.routine_type_id, w.routine_class_name, w.latitude, w.longitude, w.cell_id, w.device_name, w.logger_application_name " +
+            "ORDER BY 1";
+
+    /** Create a user routine from the current row of a USER_ROUTINES_GROUPED query
+     * @param rs The result set, positioned on a row.
+     * @return The routine, with its id from the first row and the applications of all its rows. Application id 1 ("No applications")
+     *         and smaller mean that the row has no application usage data and are left out.
+     * @throws SQLException Reading the row failed. */
+    private static UserRoutine readUserRoutineGroup(ResultSet rs) throws SQLException {
+        Object[] applicationIds = (Object[]) rs.getArray(9).getArray();
+        Object[] applicationNames = (Object[]) rs.getArray(10).getArray();
+        Object[] packageClassNames = (Object[]) rs.getArray(11).getArray();
+        ArrayList<fi.vtt.activitylogger.Application> applications =
+                new ArrayList<fi.vtt.activitylogger.Application>(applicationIds.length);
+        for (int i = 0; i < applicationIds.length; i++) {
+            long applicationId = ((Number) applicationIds[i]).longValue();
+            if (applicationId > 1)
+                applications.add( new fi.vtt.activitylogger.Application(applicationId,
+                        (String) applicationNames[i], (String) packageClassNames[i]) );
+        }
+        // Stored start and end time format: PostgreSQL "'2012-08-16 16:28:56.583+03'", not ISO-8601 "2012-08-16T13:28:56.583+00".
+        return new UserRoutine( rs.getLong(1), rs.getString(4), rs.getString(5), rs.getLong(6), rs.getLong(7),
+                                rs.getDouble(8), applications, rs.getInt(12),
+                                rs.getString(13), rs.getDouble(14), rs.getDouble(15), rs.getInt(16), rs.getString(17), rs.getString(18) );
+    }
 
-            // Introduce working variables. Array index 0 contains the previous value and 1 the current value?:
-            int ci = 1; // Current index. Which index, 0 or 1, denotes the current data in the tables below. Is inverted on each line read from the DB.
-            int pi = 0; // Previous index.
-            long  userRoutinesId = -1;
-            String [] startTime = new String[2]; // Store format: PostgreSQL "'2012-08-16 16:28:56.583+03'", not ISO-8601 "2012-08-16T13:28:56.583+00".
-            String [] endTime = new String[2];   //
-            long [] routineClassId = new long [2];
-            long applicationId; 		// Put these values into ArrayList<Application>.
-            String applicationName;		//
-            String packageClassName;	//
-            long [] rawMeasurementId = new long [] {0L,0L};
-            double [] confidence = { 0.0 , 0.0 };
-            ArrayList<fi.vtt.activitylogger.Application> applications = null; // Initialized in the loop instead, as needed.
-              // = new ArrayList<fi.vtt.activitylogger.Application>(); // (id,name,package) x n.
-            int [] routineTypeId = new int [] { -1 , -1 }; // Added.
-            String [] routineClassName = new String [] {null,null};
-            double [] latitude = new double [] {-1,-1};
-            double [] longitude = {-1.0,-1.0};
-            int [] cellId = new int [] {-1,-1};
-            String [] deviceName = new String [2];
-            String [] loggerApplicationName = new String [2];
+    /** The first row of a user routine: no row of the same routine (the routine columns of USER_ROUTINES_GROUPED that are not
+     *  determined by routine_class_id_fk and raw_measurement_id_fk) has a smaller user_routines_id. Looked up through
+     *  user_routines_measurement_index. */
+    private final static String USER_ROUTINE_FIRST_ROW =
+            "NOT EXISTS (SELECT 1 FROM user_routines AS e " +
+            "            WHERE e.raw_measurement_id_fk = ur.raw_measurement_id_fk AND e.start_time = ur.start_time " +
+            "            AND e.end_time = ur.end_time AND e.routine_class_id_fk = ur.routine_class_id_fk " +
+            "            AND e.confidence = ur.confidence AND e.user_routines_id < ur.user_routines_id)";
+
+    /** USER_ROUTINES_GROUPED over all rows of the routines whose first rows are given by SUBQUERY (one page of them) */
+    private final static String USER_ROUTINES_PAGE_GROUPED = USER_ROUTINES_GROUPED.replace(ConditionalAccess.SUBQUERY,
+            USER_ROUTINES_SELECT +
+            "WHERE (ur.raw_measurement_id_fk, ur.start_time, ur.end_time, ur.routine_class_id_fk, ur.confidence) IN (" +
+            "  SELECT f.raw_measurement_id_fk, f.start_time, f.end_time, f.routine_class_id_fk, f.confidence " +
+            "  FROM (" + ConditionalAccess.SUBQUERY + ") AS f)");
+
+    /** Get one page of user routines in the order of their first user_routines_id, for the .../rest/user_routines REST URL
+     * @param connection The PostgreSQL routine database connection.
+     * @param after Only routines whose first user_routines_id is greater than this are returned (the cursor of the previous page, 0 for
+     *        the first).
+     * @param limit Maximum number of routines on the page.
+     * @return The routines and the cursor of the next page.
+     * @throws SQLException If problems arose with the query.
+     * <p>A routine may span several rows (one per application) whose ids need not be consecutive, so the page is taken over the first
+     *  rows of the routines (USER_ROUTINE_FIRST_ROW, an index range scan on user_routines_id) and all rows of those routines are then
+     *  grouped by USER_ROUTINES_GROUPED. A routine is so always returned whole and on one page only.</p>
+     */
+    public static Page<UserRoutine> getUserRoutinesPage(Connection connection, long after, int limit) throws SQLException {
+        return getUserRoutinesPage(connection, null, null, null, null, after, limit);
+    }
 
-            // Process found rows. Application list is appended an entry when other fields are constant except
-            // user_routines_id and application_id_fk (application_name or package_class_name may have an old value in some cases):
+    /** Get one page of the user routines matching the given filters (see getAllUserRoutines() for the filters)
+     * @return The routines and the cursor of the next page.
+     * @throws SQLException If problems arose with the query.
+     */
+    public static Page<UserRoutine> getUserRoutinesPage(Connection connection, String deviceName, String loggerApplicationName,
+            String startTime, String endTime, long after, int limit) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        List<UserRoutine> routines = new ArrayList<UserRoutine>();
+        try {
+            // The filters hold for all rows of a routine alike (same measurement and times), so they can be applied to the first rows.
+            preparedStatement = ConditionalAccess.makeFilteredFutuDBSqlQuery(
+                    connection, USER_ROUTINES_SELECT, deviceName, loggerApplicationName,
+                    "ur.start_time", startTime, "ur.end_time", endTime,
+                    "ur.user_routines_id", after, limit + 1, // One more routine tells if there is a next page.
+                    USER_ROUTINES_PAGE_GROUPED, USER_ROUTINE_FIRST_ROW, null );
+            rs = preparedStatement.executeQuery();
             while (rs.next()) {
-            	System.out.println( "Processing user routine record " + rs.getLong(1) + "..." );
-            	// Switch indices for current and previous values (faster than copying values):
-            	ci = (ci==1)?0:1;
-            	pi = (ci==1)?0:1;
-            	// Read new values to variables from the next row (read in the order of the result values, differs from variable introduction):
-              	userRoutinesId = rs.getLong(1); // No need to save and compare current to previous value, they are always different.
-              	startTime[ci] = rs.getString(2);
-              	endTime[ci] = rs.getString(3);
-              	routineClassId[ci] = rs.getLong(4);
-              	applicationId = rs.getLong(5); // Will be different on every result row.
-              	rawMeasurementId[ci] = rs.getLong(6);
-              	confidence[ci] = rs.getDouble(7);
-              	applicationName = rs.getString(8);
-              	packageClassName = rs.getString(9);
-              	routineTypeId[ci] = rs.getInt(10);	// Added.
-              	routineClassName[ci] = rs.getString(11);
-              	latitude[ci] = rs.getDouble(12);
-              	longitude[ci] = rs.getDouble(13);
-              	cellId[ci] = rs.getInt(14);
-              	deviceName[ci] = rs.getString(15);
-              	loggerApplicationName[ci] = rs.getString(16);
-            	
-            	// Check if we need to add an application entry to an existing routine (the ArrayList<Application> should already exist):
-            	if ( startTime[ci].equals(startTime[pi]) && endTime[ci].equals(endTime[pi]) && routineClassId[ci]==routineClassId[pi] &&
-            		 rawMeasurementId[ci]==rawMeasurementId[pi] && confidence[ci]==confidence[pi] && routineTypeId[ci]==routineTypeId[pi] &&
-            		 routineClassName[ci].equals(routineClassName[pi]) &&
-            		 latitude[ci]==latitude[pi] && longitude[ci]==longitude[pi] && cellId[ci]==cellId[pi] && deviceName[ci].equals(deviceName[pi]) &&
-            		 loggerApplicationName[pi].equals(loggerApplicationName[pi]) &&
-            		 applications != null &&
-            		 applicationId > 1 ) { // Application reference with id 1 means that the routine has no application usage data ("No applications").
-            		System.out.println("Adding application to existing user routine list: applicationId = " + applicationId );
-            		applications.add( new fi.vtt.activitylogger.Application(applicationId,applicationName,packageClassName) );
-            	} else {
-            		// Append as a new routine instead:
-            		System.out.println("Creating a new user routine: userRoutinesId = " + userRoutinesId );
-            		applications = new ArrayList<fi.vtt.activitylogger.Application>(); // Create a new ArrayList for the new routine.
-            		if (applicationId>1) // Add application reference in the current routine entry, if it is a valid application record.
-            			applications.add( new fi.vtt.activitylogger.Application(applicationId,applicationName,packageClassName) );
-            		routines.add(
-            			new UserRoutine( userRoutinesId, startTime[ci], endTime[ci], routineClassId[ci], rawMeasurementId[ci] , // Added to constructor.
-            					         confidence[ci], applications, routineTypeId[ci],
-            					         routineClassName[ci], latitude[ci], longitude[ci], cellId[ci], deviceName[ci], loggerApplicationName[ci] ) );
-                  // public UserRoutine( long userRoutinesId, String startTime, String endTime, long routineClassId, /*long applicationId,*/ double confidence,
-       		      //         ArrayList<Application> applications, String routineClassName, double latitude, double longitude, int cellId,
-    		      //         String deviceName, String loggerApplicationName ) {
-            	}
+                routines.add(readUserRoutineGroup(rs));
             }
         } finally {
             if (rs != null) {
@@ -2174,13 +2977,44 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, routines.size());
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
         }
-        return routines;
+        if (routines.size() > limit) {
+            routines.remove(limit);
+            return new Page<UserRoutine>(routines, routines.get(limit - 1).getUserRoutinesId());
+        }
+        return new Page<UserRoutine>(routines, -1);
+    }
+
+    /** Pass all user routines in user_routines_id order to a callback, without collecting them into memory (for full exports)
+     * <p>
+     *  The routines are read with getUserRoutinesPage(), pageSize routines at a time, so the database groups only one page of rows at a time.
+     * </p>
+     * @param connection PostgreSQL connection.
+     * @param pageSize Number of routines read from the database at a time.
+     * @param callback Receives each user routine.
+     * @return Number of routines read.
+     * @throws SQLException If problems arose with the query.
+     * @throws IOException If the callback failed (the query is stopped).
+     */
+    public static long streamUserRoutines(Connection connection, int pageSize, RowCallback<UserRoutine> callback)
+            throws SQLException, IOException {
+        long count = 0;
+        long after = 0;
+        while (after >= 0) {
+            Page<UserRoutine> page = getUserRoutinesPage(connection, after, pageSize);
+            for (UserRoutine routine : page.getItems()) {
+                callback.row(routine);
+                count++;
+            }
+            after = page.getNextAfter();
+        }
+        return count;
     }
     
 /* -- filter by some start/end times
@@ -2207,7 +3041,7 @@ public class Queries {
             String sql = "SELECT * " +			// Which columns to take (all).
                          "FROM mccs " +			// From which table.
       	                 "WHERE mccs.mcc = ?";	// On this condition.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             preparedStatement.setInt(1, code );
             rs = preparedStatement.executeQuery();
             if (rs.next()) {
@@ -2225,7 +3059,7 @@ public class Queries {
             }
             if (preparedStatement != null) {
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
 
                 }
@@ -2236,7 +3070,7 @@ public class Queries {
     
     /* Get a list of all mobile country codes from the routine database, to be returned by the .../rest/mccs
      * REST URL 
-     * @param connection The PostgreSQL 9.0/9.1 routine database connection.
+     * @param connection The PostgreSQL routine database connection.
      * @return A list of found mccs (may be empty if none was found).
      * @throws SQLException If problems arose with the query.
      */
@@ -2249,7 +3083,7 @@ public class Queries {
         try {
             String sql = "SELECT mccs.mcc, mccs.abbr, mccs.name " +	// Which columns to take (mccs.* = ok also).
                          "FROM mccs";								// From which table.
-            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement = StatementCache.prepare(connection, sql);
             rs = preparedStatement.executeQuery();
             while (rs.next()) {
                 int m = rs.getInt(1);
@@ -2266,8 +3100,9 @@ public class Queries {
                 }
             }
             if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, mccs.size());
                 try {
-                    preparedStatement.close();
+                    StatementCache.release(preparedStatement);
                 } catch (Exception e) {
                 }
             }
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import fi.vtt.activitylogger.LoggerApplication;
+import fi.vtt.routinelib.common.Application;
+import fi.vtt.routinelib.common.GPSData;
+import fi.vtt.routinelib.common.RawLogData;
+
+/** Bulk loader writing raw data sets into raw_measurements and measurement_applications with PostgreSQL COPY
+ * <p>
+ *  Devices, the logger application and the applications are resolved up front with a few bulk queries, the measurement ids
+ *  are reserved from the sequence, and then both tables are streamed through the pgjdbc CopyManager. This is used by
+ *  ReceiversCommon.insertRawDataBatch() for large batches and by the command line loader main() for backfilling archives.
+ * </p>
+ * <p>
+ *  Pooled connections must give access to the underlying PostgreSQL connection. With Tomcat DBCP set
+ *  accessToUnderlyingConnectionAllowed="true" for the jdbc/postgres resource in context.xml.
+ * </p> */
+public class RawDataBulkLoader {
+
+	/** Log4Java instance for this class. */
+    private final static Logger logger = LoggerFactory.getLogger(RawDataBulkLoader.class);
+
+    /** Number of records the command line loader commits in one transaction: {@value} */
+    public final static int  LOAD_CHUNK_SIZE  = 10000;
+
+    /** Size of the text buffer sent to the server in one COPY data message: {@value} */
+    private final static int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** Find the PostgreSQL connection behind a (pooled) JDBC connection
+     * @param connection A pgjdbc connection or a connection pool wrapper around one.
+     * @return The PostgreSQL specific connection interface, or null if it is not reachable.
+     * @see StatementCache#physicalConnection(Connection) */
+    public static PGConnection getPGConnection(Connection connection) {
+        Connection physical = StatementCache.physicalConnection(connection);
+        return (physical instanceof PGConnection) ? (PGConnection) physical : null;
+    }
+
+    /** Find the device ids of the given device names with one query (DeviceCache first), inserting the missing devices
+     * @param connection routine_db PostgreSQL connection.
+     * @param hashes Device names (usually SHA1 hashes), may contain duplicates.
+     * @return devices.device_id values keyed by the device name.
+     * @throws SQLException The query or DB connection failed.
+     * @throws Exception If a device could not be created. */
+    public static Map<String, Long> findOrCreateDeviceIds(Connection connection, Set<String> hashes)
+            throws SQLException, Exception {
+        Map<String, Long> deviceIds = new HashMap<String, Long>();
+        List<String> uncached = new ArrayList<String>();
+        for (String hash : hashes) {
+            long deviceId = DeviceCache.get(hash);
+            if (deviceId >= 0) {
+                deviceIds.put(hash, deviceId);
+            } else {
+                uncached.add(hash);
+            }
+        }
+        if (uncached.isEmpty()) {
+            return deviceIds;
+        }
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            String sql = "SELECT device_name, device_id FROM devices WHERE device_name = ANY(?)";
+            preparedStatement = StatementCache.prepare(connection, sql);
+            preparedStatement.setArray(1, connection.createArrayOf("text", uncached.toArray()));
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                deviceIds.put(rs.getString(1), rs.getLong(2));
+                DeviceCache.put(rs.getString(1), rs.getLong(2));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        for (String hash : uncached) {
+            if (!deviceIds.containsKey(hash)) {
+                deviceIds.put(hash, ReceiversCommon.findOrCreateDeviceId(hash, connection));
+            }
+        }
+        return deviceIds;
+    }
+
+    /** Write raw data sets into raw_measurements and measurement_applications with COPY
+     * @param connection routine_db PostgreSQL connection (pooled connections are unwrapped with getPGConnection()).
+     * @param deviceIds devices.device_id of each raw data set, in the same order as rawLogDatas.
+     * @param loggerApplicationId logger_applications.logger_application_id of all the rows.
+     * @param rawLogDatas The raw data sets to write. Null entries are not allowed.
+     * @param deviceTimestamps true to store RawLogData.getTimestamp() as the measurement time (backfill), false to use the current
+     * server time as the other insert methods do. Items without a timestamp always get the current time. Device times before the
+     * period already compacted by RetentionJob are refused (SQLException, see RetentionJob.checkNotSummarized()).
+     * @return raw_measurements.measurement_id values of the written rows, in the same order as rawLogDatas.
+     * @throws SQLException The query, COPY or DB connection failed, or the PostgreSQL connection was not reachable.
+     * <p><b>Note:</b> This method does not manage transactions. The caller should turn auto commit off and commit or roll back.</p> */
+    public static long[] copyRawMeasurements(Connection connection, long[] deviceIds, long loggerApplicationId,
+            List<RawLogData> rawLogDatas, boolean deviceTimestamps) throws SQLException {
+        if (getPGConnection(connection) == null) {
+            throw new SQLException("COPY not available: PostgreSQL connection not reachable through " + connection.getClass().getName());
+        }
+        return copyRawMeasurements(connection, deviceIds, loggerApplicationId, rawLogDatas, deviceTimestamps,
+                Queries.reserveMeasurementIds(connection, rawLogDatas.size()));
+    }
+
+    /** Write raw data sets with COPY using already reserved measurement ids (see Queries.reserveMeasurementIds())
+     * @param measurementIds raw_measurements.measurement_id of each raw data set, in the same order as rawLogDatas.
+     * @return measurementIds.
+     * @see #copyRawMeasurements(Connection, long[], long, List, boolean) for the other parameters. */
+    public static long[] copyRawMeasurements(Connection connection, long[] deviceIds, long loggerApplicationId,
+            List<RawLogData> rawLogDatas, boolean deviceTimestamps, long[] measurementIds) throws SQLException {
+        return copyRawMeasurements(connection, deviceIds, loggerApplicationId, rawLogDatas, deviceTimestamps, measurementIds, null);
+    }
+
+    /** Write raw data sets with COPY using already reserved measurement ids and their receipt times
+     * @param receivedTimes Time (System.currentTimeMillis()) each raw data set was received, used instead of the current time
+     * (device timestamps still take precedence when deviceTimestamps is true), or null.
+     * @see #copyRawMeasurements(Connection, long[], long, List, boolean, long[]) for the other parameters. */
+    public static long[] copyRawMeasurements(Connection connection, long[] deviceIds, long loggerApplicationId,
+            List<RawLogData> rawLogDatas, boolean deviceTimestamps, long[] measurementIds, long[] receivedTimes)
+            throws SQLException {
+        PGConnection pgConnection = getPGConnection(connection);
+        if (pgConnection == null) {
+            throw new SQLException("COPY not available: PostgreSQL connection not reachable through " + connection.getClass().getName());
+        }
+        if (deviceTimestamps) {
+            // Old device times must not land in hours the retention job has already summarized (and will delete):
+            long oldest = Long.MAX_VALUE;
+            for (RawLogData rawLogData : rawLogDatas) {
+                if (rawLogData.getTimestamp() > 0) {
+                    oldest = Math.min(oldest, rawLogData.getTimestamp());
+                }
+            }
+            if (oldest != Long.MAX_VALUE) {
+                RetentionJob.checkNotSummarized(connection, new Timestamp(oldest));
+            }
+        }
+        Map<String, Long> applicationIds = Queries.findOrInsertApplicationIds(connection, rawLogDatas);
+        CopyManager copyManager = pgConnection.getCopyAPI();
+
+        SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS'+00'");
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String now = timestampFormat.format(new Date());
+        String[] timestamps = new String[rawLogDatas.size()]; // measurement_timestamp of each row, also written to measurement_applications.
+
+        StringBuilder sb = new StringBuilder(COPY_BUFFER_SIZE + 256);
+        CopyIn copyIn = copyManager.copyIn("COPY raw_measurements (measurement_id, measurement_timestamp, latitude, longitude, cell_id, "
+                + "logger_application_id_fk, device_id_fk, geohash) FROM STDIN");
+        try {
+            for (int i = 0; i < rawLogDatas.size(); i++) {
+                RawLogData rawLogData = rawLogDatas.get(i);
+                double latitude = Queries.LATLONG_NOT_AVAILABLE;
+                double longitude = Queries.LATLONG_NOT_AVAILABLE;
+                GPSData gpsData = rawLogData.getGpsData(); // Location may not be available.
+                if (gpsData != null) {
+                    latitude = gpsData.getLatitude();
+                    longitude = gpsData.getLongitude();
+                }
+                String timestamp = (deviceTimestamps && rawLogData.getTimestamp() > 0)
+                        ? timestampFormat.format(new Date(rawLogData.getTimestamp()))
+                        : (receivedTimes != null) ? timestampFormat.format(new Date(receivedTimes[i])) : now;
+                timestamps[i] = timestamp;
+                String geohash = Geohash.encode(latitude, longitude);
+                // Only numbers, timestamps and geohashes (base 32 letters), no COPY text format escaping needed:
+                sb.append(measurementIds[i]).append('\t').append(timestamp).append('\t').append(latitude).append('\t')
+                        .append(longitude).append('\t').append(rawLogData.getCellId()).append('\t').append(loggerApplicationId)
+                        .append('\t').append(deviceIds[i]).append('\t').append(geohash == null ? "\\N" : geohash).append('\n');
+                if (sb.length() >= COPY_BUFFER_SIZE) {
+                    writeToCopy(copyIn, sb);
+                }
+            }
+            writeToCopy(copyIn, sb);
+            copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+
+        copyIn = copyManager.copyIn("COPY measurement_applications (measurement_id_fk, measurement_timestamp, application_id_fk) FROM STDIN");
+        try {
+            for (int i = 0; i < rawLogDatas.size(); i++) {
+                if (rawLogDatas.get(i).getApps() == null) {
+                    continue;
+                }
+                for (Application application : rawLogDatas.get(i).getApps()) {
+                    long applicationId = applicationIds.get(Queries.applicationKey(application.getName(), application.getClassName()));
+                    sb.append(measurementIds[i]).append('\t').append(timestamps[i]).append('\t').append(applicationId).append('\n');
+                    if (sb.length() >= COPY_BUFFER_SIZE) {
+                        writeToCopy(copyIn, sb);
+                    }
+                }
+            }
+            writeToCopy(copyIn, sb);
+            copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+        return measurementIds;
+    }
+
+    /** Send the buffered COPY rows to the server and empty the buffer */
+    private static void writeToCopy(CopyIn copyIn, StringBuilder sb) throws SQLException {
+        if (sb.length() > 0) {
+            byte[] bytes;
+            try {
+                bytes = sb.toString().getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException uee) {
+                throw new SQLException(uee.getMessage());
+            }
+            copyIn.writeToCopy(bytes, 0, bytes.length);
+            sb.setLength(0);
+        }
+    }
+
+    /** Load raw data sets of several devices in one transaction
+     * @param connection routine_db PostgreSQL connection. Its auto commit mode is restored afterwards.
+     * @param hashes Device name of each raw data set.
+     * @param rawLogDatas The raw data sets, in the same order as hashes.
+     * @param deviceTimestamps true to keep the measurement times of the devices, false to use the current server time.
+     * @return raw_measurements.measurement_id values of the written rows, in the same order as rawLogDatas.
+     * @throws SQLException The query or DB connection failed. The transaction has been rolled back.
+     * @throws Exception If a device could not be created. */
+    public static long[] load(Connection connection, List<String> hashes, List<RawLogData> rawLogDatas,
+            boolean deviceTimestamps) throws SQLException, Exception {
+        Map<String, Long> deviceIdsByName = findOrCreateDeviceIds(connection, new HashSet<String>(hashes));
+        long[] deviceIds = new long[hashes.size()];
+        for (int i = 0; i < deviceIds.length; i++) {
+            deviceIds[i] = deviceIdsByName.get(hashes.get(i));
+        }
+        LoggerApplication loggerApplication = ReceiversCommon.findOrCreateLoggerApp(connection, ReceiversCommon.LOGGER_APP_NAME);
+        Queries.findOrInsertApplicationIds(connection, rawLogDatas); // New applications into ApplicationDictionary before the transaction.
+
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            long[] measurementIds = copyRawMeasurements(connection, deviceIds, loggerApplication.getLoggerApplicationId(),
+                    rawLogDatas, deviceTimestamps);
+            connection.commit();
+            return measurementIds;
+        } catch (SQLException se) {
+            connection.rollback();
+            throw se;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /** Command line bulk loader for backfilling device logs
+     * <p>
+     *  Usage: java -cp ActivityLogger classes and libraries db.RawDataBulkLoader jdbc-url user password file...
+     *  (e.g. jdbc:postgresql://localhost:5432/routine_db). Each line of the input files is a device name (SHA1 hash), a tab
+     *  and one RawLogData object as JSON, as POSTed by the devices. The device measurement times are kept. Bad lines are skipped.
+     * </p> */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: RawDataBulkLoader <jdbc url> <user> <password> <file>...");
+            System.exit(1);
+        }
+        Class.forName("org.postgresql.Driver");
+        Connection connection = DriverManager.getConnection(args[0], args[1], args[2]);
+        Gson gson = new Gson();
+        long total = 0;
+        long skipped = 0;
+        long started = System.currentTimeMillis();
+        try {
+            for (int f = 3; f < args.length; f++) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[f]), "UTF-8"));
+                try {
+                    List<String> hashes = new ArrayList<String>(LOAD_CHUNK_SIZE);
+                    List<RawLogData> rawLogDatas = new ArrayList<RawLogData>(LOAD_CHUNK_SIZE);
+                    String line;
+                    int lineNumber = 0;
+                    while ((line = reader.readLine()) != null) {
+                        lineNumber++;
+                        int tab = line.indexOf('\t');
+                        RawLogData rawLogData = null;
+                        if (tab > 0) {
+                            try {
+                                rawLogData = gson.fromJson(line.substring(tab + 1), RawLogData.class);
+                            } catch (JsonParseException jpe) {
+                                logger.warn(args[f] + ":" + lineNumber + ": " + jpe.getMessage());
+                            }
+                        }
+                        if (rawLogData == null) {
+                            skipped++;
+                            continue;
+                        }
+                        hashes.add(line.substring(0, tab));
+                        rawLogDatas.add(rawLogData);
+                        if (rawLogDatas.size() >= LOAD_CHUNK_SIZE) {
+                            total += load(connection, hashes, rawLogDatas, true).length;
+                            hashes.clear();
+                            rawLogDatas.clear();
+                            System.out.println(args[f] + ": " + total + " raw measurements loaded.");
+                        }
+                    }
+                    if (!rawLogDatas.isEmpty()) {
+                        total += load(connection, hashes, rawLogDatas, true).length;
+                    }
+                } finally {
+                    try {
+                        reader.close();
+                    } catch (IOException ioe) {
+                    }
+                }
+            }
+        } finally {
+            connection.close();
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - started);
+        System.out.println("Loaded " + total + " raw measurements (" + skipped + " lines skipped) in " + millis + " ms, "
+                + (total * 1000 / millis) + " rows/s.");
+    }
+
+}
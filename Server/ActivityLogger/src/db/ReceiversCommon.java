@@ -32,13 +32,20 @@ package db;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fi.vtt.activitylogger.Device;
 import fi.vtt.activitylogger.LoggerApplication;
+import fi.vtt.activitylogger.RawDataBatchItem;
+import fi.vtt.routinelib.common.RawLogData;
 
 /** Helper methods to create some records into routine_db for ActivityLogger REST API */
 public class ReceiversCommon {
@@ -49,24 +56,22 @@ public class ReceiversCommon {
     /** Default logger application name: {@value} */
     public final static String  LOGGER_APP_NAME = "RoutineLoggerX";
 
+    /** Batches of at least this many raw data items are written with COPY (RawDataBulkLoader) instead of JDBC batches: {@value} */
+    public final static int     COPY_THRESHOLD  = 100;
+
     /** Find or create a named logger application record from the logger_applications table in the routine_db
      * @param connection routine_db PostgreSQL connection.
      * @param loggerApplicationName Name of the searched/created logger application.
-     * @return A new LoggerApplication object initialized with the values taken from the database. Null is returned if the name was not found.
+     * @return A new LoggerApplication object initialized with the values taken from the database.
      * @throws SQLException The query or DB connection failed.
      */
     public static LoggerApplication findOrCreateLoggerApp(Connection connection,
             String loggerApplicationName) throws SQLException {
-        boolean exists = Queries.hasLoggerApplication(connection, loggerApplicationName);
-        if (!exists) {
-            final long idUnused = -1;
-            LoggerApplication loggerApp = new LoggerApplication(idUnused, loggerApplicationName);
-            Queries.insertLoggerApplication(connection, loggerApp);
+        long loggerApplicationId = Queries.upsertLoggerApplication(connection, loggerApplicationName);
+        if (loggerApplicationId < 0) {
+            throw new SQLException("Logger application: " + loggerApplicationName + " could not be created!");
         }
-
-        LoggerApplication loggerApplication = Queries.findLoggerApplication(connection,
-                loggerApplicationName);
-        return loggerApplication;
+        return new LoggerApplication(loggerApplicationId, loggerApplicationName);
     }
 
     /** Find or create a named device (user) record from the devices table in the routine_db
@@ -77,25 +82,251 @@ public class ReceiversCommon {
      */
     public static void findOrCreateDevice(String hash, Connection connection) throws SQLException,
             Exception {
-        boolean deviceExists = Queries.hasDevice(connection, hash);
-        if (!deviceExists) {
-            logger.debug("No such device, inserting new device with hash: " + hash);
-            final String TEST_PLATFORM = "plat";
-            final int NO_MCC_SET = 244; // mcc
-            Date now = new Date();
-            Timestamp deviceCreationTimestamp = new Timestamp(now.getTime());
-            Device newDevice = new Device(-1L, hash, TEST_PLATFORM,
-                    deviceCreationTimestamp.toString(), // Should be an ISO-8061
-                                                        // or PostgreSQL time
-                                                        // string?
-                    NO_MCC_SET);
-            Queries.insertDevice(connection, newDevice);
-            logger.debug("Inserted new device");
-            deviceExists = Queries.hasDevice(connection, hash);
-        }
-        if (!deviceExists) {
+        upsertDevice(hash, connection);
+    }
+
+    /** Get the device_id of a named device (user), creating the device record if needed
+     * @param hash Name of the searched/created device (user). Usually a SHA1 hash.
+     * @param connection routine_db PostgreSQL connection.
+     * @return devices.device_id of the device.
+     * @throws SQLException The query or DB connection failed.
+     * @throws Exception If the device with the given name could not be created.
+     * <p>Uses DeviceCache, so the database is only queried for devices not seen recently. Ids are cached only in auto commit mode
+     * to avoid caching a device whose creation is later rolled back.</p>
+     */
+    public static long findOrCreateDeviceId(String hash, Connection connection) throws SQLException, Exception {
+        long deviceId = DeviceCache.get(hash);
+        if (deviceId >= 0) {
+            return deviceId;
+        }
+        deviceId = upsertDevice(hash, connection);
+        if (connection.getAutoCommit()) {
+            DeviceCache.put(hash, deviceId);
+        }
+        return deviceId;
+    }
+
+    /** Insert the device with default values, or find the existing one, in a single statement */
+    private static long upsertDevice(String hash, Connection connection) throws SQLException, Exception {
+        final String TEST_PLATFORM = "plat";
+        final int NO_MCC_SET = 244; // mcc
+        Date now = new Date();
+        Timestamp deviceCreationTimestamp = new Timestamp(now.getTime());
+        Device newDevice = new Device(-1L, hash, TEST_PLATFORM,
+                deviceCreationTimestamp.toString(), // Should be an ISO-8061
+                                                    // or PostgreSQL time
+                                                    // string?
+                NO_MCC_SET);
+        long deviceId = Queries.upsertDevice(connection, newDevice);
+        if (deviceId < 0) {
             throw new Exception("Device with hash: " + hash + " does not exist!");
         }
+        return deviceId;
+    }
+
+    /** Store one raw data set, unless its sequence number was already stored by an earlier upload
+     * @param hash Name of the device (user) that sent the data. Usually a SHA1 hash. The device is created if needed.
+     * @param rawLogData The posted raw data set.
+     * @param connection routine_db PostgreSQL connection. Its auto commit mode is restored afterwards.
+     * @return The result with status RawDataBatchItem.STATUS_CREATED or STATUS_DUPLICATE and the measurement id.
+     * @throws SQLException The insert failed (the transaction was rolled back).
+     * @throws Exception If the device with the given name could not be created.
+     * <p>Data without a sequence number (older clients) is always inserted, with Queries.insertRawMeasurement().</p>
+     */
+    public static RawDataBatchItem insertRawData(String hash, RawLogData rawLogData, Connection connection)
+            throws SQLException, Exception {
+        long deviceId = findOrCreateDeviceId(hash, connection);
+        LoggerApplication loggerApplication = findOrCreateLoggerApp(connection, LOGGER_APP_NAME);
+        long sequenceNumber = rawLogData.getSequenceNumber();
+        if (sequenceNumber < 0) {
+            long measurementId = Queries.insertRawMeasurement(connection, deviceId, loggerApplication, rawLogData);
+            return new RawDataBatchItem(0, measurementId, RawDataBatchItem.STATUS_CREATED, null);
+        }
+        boolean sure = DuplicateSuppressor.isDuplicate(deviceId, sequenceNumber);
+        if (sure || DuplicateSuppressor.mightBeDuplicate(deviceId, sequenceNumber)) {
+            // Window hit (sure) or Bloom filter hit: one lookup gives the original id or decides, no ids are reserved.
+            Map<Long, Long> stored = Queries.findMeasurementIdsByKeys(connection, deviceId, Collections.singletonList(sequenceNumber));
+            if (stored.containsKey(sequenceNumber) || sure) {
+                Long measurementId = stored.get(sequenceNumber); // Null if RetentionJob has pruned the key since.
+                return new RawDataBatchItem(0, (measurementId != null) ? measurementId : -1, RawDataBatchItem.STATUS_DUPLICATE, null);
+            }
+        }
+
+        List<RawLogData> single = Collections.singletonList(rawLogData);
+        Queries.findOrInsertApplicationIds(connection, single); // New applications into ApplicationDictionary before the transaction.
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            boolean[] duplicates = new boolean[1];
+            long[] measurementIds = insertRawMeasurementsOnce(connection, deviceId, loggerApplication, single, duplicates);
+            connection.commit();
+            DuplicateSuppressor.record(deviceId, sequenceNumber);
+            return new RawDataBatchItem(0, measurementIds[0],
+                    duplicates[0] ? RawDataBatchItem.STATUS_DUPLICATE : RawDataBatchItem.STATUS_CREATED, null);
+        } catch (SQLException se) {
+            try {
+                connection.rollback();
+            } catch (SQLException re) {
+                logger.warn("Rollback failed: " + re.getMessage());
+            }
+            throw (se.getNextException() != null) ? se.getNextException() : se;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /** Insert the raw data sets of one device that have not been stored before (see Queries.insertRawMeasurementKeys())
+     * @param connection routine_db PostgreSQL connection, in a transaction (auto commit off).
+     * @param deviceId devices.device_id of the sending device.
+     * @param loggerApplication The logger application of all the rows.
+     * @param rawLogDatas The raw data sets. Null entries are not allowed.
+     * @param duplicates Output, true for the raw data sets that were not inserted because they were stored already.
+     * @return measurement id of each raw data set (of the first upload for duplicates, -1 if not known).
+     * @throws SQLException The query or DB connection failed.
+     * <p>
+     *  Sure duplicates are skipped with DuplicateSuppressor; their original ids are read with one indexed lookup of
+     *  raw_measurement_keys for all of them. The rest get reserved ids, their keys
+     *  are claimed and the new ones are written with COPY (at least COPY_THRESHOLD rows and a reachable PostgreSQL connection)
+     *  or JDBC batches. The caller commits and then records the keys with DuplicateSuppressor.recordAll().
+     * </p> */
+    public static long[] insertRawMeasurementsOnce(Connection connection, long deviceId, LoggerApplication loggerApplication,
+            List<RawLogData> rawLogDatas, boolean[] duplicates) throws SQLException {
+        return insertRawMeasurementsOnce(connection, deviceId, loggerApplication, rawLogDatas, duplicates, null);
+    }
+
+    /** Insert the raw data sets of one device that have not been stored before, with their receipt times
+     * @param receivedTimes Time (System.currentTimeMillis()) each raw data set was received, stored as measurement_timestamp,
+     * or null to use the current time.
+     * @see #insertRawMeasurementsOnce(Connection, long, LoggerApplication, List, boolean[]) for the other parameters. */
+    public static long[] insertRawMeasurementsOnce(Connection connection, long deviceId, LoggerApplication loggerApplication,
+            List<RawLogData> rawLogDatas, boolean[] duplicates, long[] receivedTimes) throws SQLException {
+        long[] result = new long[rawLogDatas.size()];
+        List<RawLogData> candidates = new ArrayList<RawLogData>(rawLogDatas.size());
+        List<Integer> candidateIndexes = new ArrayList<Integer>(rawLogDatas.size());
+        List<Long> knownKeys = new ArrayList<Long>();
+        for (int i = 0; i < rawLogDatas.size(); i++) {
+            if (DuplicateSuppressor.isDuplicate(deviceId, rawLogDatas.get(i).getSequenceNumber())) {
+                duplicates[i] = true;
+                result[i] = -1;
+                knownKeys.add(rawLogDatas.get(i).getSequenceNumber());
+            } else {
+                candidates.add(rawLogDatas.get(i));
+                candidateIndexes.add(i);
+            }
+        }
+        if (!knownKeys.isEmpty()) {
+            Map<Long, Long> stored = Queries.findMeasurementIdsByKeys(connection, deviceId, knownKeys);
+            for (int i = 0; i < rawLogDatas.size(); i++) {
+                Long measurementId = duplicates[i] ? stored.get(rawLogDatas.get(i).getSequenceNumber()) : null;
+                if (measurementId != null) {
+                    result[i] = measurementId;
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return result;
+        }
+
+        long[] reservedIds = Queries.reserveMeasurementIds(connection, candidates.size());
+        boolean[] stored = new boolean[candidates.size()];
+        long[] candidateIds = Queries.insertRawMeasurementKeys(connection, deviceId, candidates, reservedIds, stored);
+        List<RawLogData> fresh = new ArrayList<RawLogData>(candidates.size());
+        long[] freshIds = new long[candidates.size()];
+        long[] freshTimes = (receivedTimes != null) ? new long[candidates.size()] : null;
+        for (int c = 0; c < candidates.size(); c++) {
+            int i = candidateIndexes.get(c);
+            result[i] = candidateIds[c];
+            duplicates[i] = stored[c];
+            if (stored[c]) {
+                DuplicateSuppressor.countDatabaseHit();
+            } else {
+                if (freshTimes != null) {
+                    freshTimes[fresh.size()] = receivedTimes[i];
+                }
+                freshIds[fresh.size()] = reservedIds[c];
+                fresh.add(candidates.get(c));
+            }
+        }
+        freshIds = Arrays.copyOf(freshIds, fresh.size());
+        if (freshTimes != null) {
+            freshTimes = Arrays.copyOf(freshTimes, fresh.size());
+        }
+
+        if (fresh.size() >= COPY_THRESHOLD && RawDataBulkLoader.getPGConnection(connection) != null) {
+            long[] deviceIds = new long[fresh.size()];
+            Arrays.fill(deviceIds, deviceId);
+            RawDataBulkLoader.copyRawMeasurements(connection, deviceIds, loggerApplication.getLoggerApplicationId(),
+                    fresh, false, freshIds, freshTimes);
+        } else {
+            Queries.insertRawMeasurementBatch(connection, deviceId, loggerApplication, fresh, freshIds, freshTimes);
+        }
+        return result;
+    }
+
+    /** Store a batch of raw data sets of one device into the routine_db in a single transaction
+     * @param hash Name of the device (user) that sent the data. Usually a SHA1 hash. The device is created if needed.
+     * @param rawLogDatas The posted raw data sets. Null entries are rejected, the others are stored all or nothing.
+     * @param connection routine_db PostgreSQL connection. Its auto commit mode is restored afterwards.
+     * @return One result per posted item, in the same order. Items whose sequence number was already stored are marked with
+     * RawDataBatchItem.STATUS_DUPLICATE and not stored again. If the batch insert fails, the transaction is rolled back and
+     * all the accepted items are marked with RawDataBatchItem.STATUS_FAILED.
+     * @throws SQLException The device or logger application query failed.
+     * @throws Exception If the device with the given name could not be created.
+     */
+    public static List<RawDataBatchItem> insertRawDataBatch(String hash, List<RawLogData> rawLogDatas,
+            Connection connection) throws SQLException, Exception {
+        List<RawDataBatchItem> results = new ArrayList<RawDataBatchItem>(rawLogDatas.size());
+        List<RawLogData> accepted = new ArrayList<RawLogData>(rawLogDatas.size());
+        for (int i = 0; i < rawLogDatas.size(); i++) {
+            if (rawLogDatas.get(i) == null) {
+                results.add(new RawDataBatchItem(i, -1, RawDataBatchItem.STATUS_REJECTED, "Empty raw data item"));
+            } else {
+                results.add(new RawDataBatchItem(i, -1, RawDataBatchItem.STATUS_FAILED, null));
+                accepted.add(rawLogDatas.get(i));
+            }
+        }
+        if (accepted.isEmpty()) {
+            return results;
+        }
+
+        long deviceId = findOrCreateDeviceId(hash, connection);
+        LoggerApplication loggerApplication = findOrCreateLoggerApp(connection, LOGGER_APP_NAME);
+        Queries.findOrInsertApplicationIds(connection, accepted); // New applications into ApplicationDictionary before the transaction.
+
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            boolean[] duplicates = new boolean[accepted.size()];
+            long[] measurementIds = insertRawMeasurementsOnce(connection, deviceId, loggerApplication, accepted, duplicates);
+            connection.commit();
+            DuplicateSuppressor.recordAll(deviceId, accepted);
+            int j = 0;
+            for (RawDataBatchItem result : results) {
+                if (RawDataBatchItem.STATUS_FAILED.equals(result.getStatus())) {
+                    result.setMeasurementId(measurementIds[j]);
+                    result.setStatus(duplicates[j] ? RawDataBatchItem.STATUS_DUPLICATE : RawDataBatchItem.STATUS_CREATED);
+                    j++;
+                }
+            }
+            logger.debug("Inserted a batch of " + accepted.size() + " raw measurements for device: " + hash);
+        } catch (SQLException se) {
+            try {
+                connection.rollback();
+            } catch (SQLException re) {
+                logger.warn("Rollback failed: " + re.getMessage());
+            }
+            // getNextException() holds the actual cause of a failed JDBC batch:
+            SQLException cause = (se.getNextException() != null) ? se.getNextException() : se;
+            for (RawDataBatchItem result : results) {
+                if (RawDataBatchItem.STATUS_FAILED.equals(result.getStatus())) {
+                    result.setMessage(cause.getMessage());
+                }
+            }
+            logger.warn("Raw data batch of device " + hash + " rolled back: " + cause.getMessage());
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return results;
     }
 
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Server-side cache of serialized responses of the reference data tables (mccs, application, logger_applications, routine_classes)
+ * <p>
+ *  The list resources of these tables store the serialized body and its ETag here, one entry per table and media type, so a
+ *  repeated GET needs no database connection or serialization. Every table has a version number that the insert and delete
+ *  methods of Queries increment with invalidate(); an entry made at an older version is not returned. Entries also expire
+ *  after the referenceCache.ttlSeconds context-param of web.xml (default {@value #DEFAULT_TTL_SECONDS} s), which bounds the time
+ *  changes made outside this application (e.g. with psql) or uncommitted ones seen at invalidation stay hidden. The mccs entries
+ *  are made from MccIndex, which invalidates them when it is reloaded.
+ * </p> */
+public class ReferenceDataCache {
+
+    /** Table names used as cache keys */
+    public final static String MCCS                = "mccs";
+    public final static String APPLICATIONS        = "application";
+    public final static String LOGGER_APPLICATIONS = "logger_applications";
+    public final static String ROUTINE_CLASSES     = "routine_classes";
+
+    /** Default time to live of an entry in seconds: {@value} */
+    public final static int DEFAULT_TTL_SECONDS = 300;
+
+    /** A cached response body */
+    public static class Entry {
+        private final byte[] body;
+        private final String etag;
+        private final long   version;
+        private final long   created;
+
+        Entry(byte[] body, String etag, long version) {
+            this.body = body;
+            this.etag = etag;
+            this.version = version;
+            this.created = System.currentTimeMillis();
+        }
+
+        /** @return The serialized response (do not modify). */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /** @return The ETag value of the body, without quotes. */
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    private static volatile long ttlMillis = DEFAULT_TTL_SECONDS * 1000L;
+
+    private final static ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+    /** Keyed by table + ' ' + media type */
+    private final static ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final static AtomicLong hits          = new AtomicLong();
+    private final static AtomicLong misses        = new AtomicLong();
+    private final static AtomicLong invalidations = new AtomicLong();
+    private final static AtomicLong notModified   = new AtomicLong();
+
+    /** Utility class */
+    private ReferenceDataCache() {}
+
+    /** Current version of a table. Read it before loading the rows and give it to put(), so that rows loaded during an
+     *  invalidation are not cached as current.
+     * @param table One of the table name constants.
+     * @return The version number. */
+    public static long version(String table) {
+        return counter(table).get();
+    }
+
+    /** Look up a cached response, counting a hit or a miss
+     * @param table One of the table name constants.
+     * @param mediaType Media type of the representation, e.g. "application/json".
+     * @return The entry, or null if there is none for the current version of the table or it has expired. */
+    public static Entry get(String table, String mediaType) {
+        Entry entry = entries.get(table + ' ' + mediaType);
+        if (entry == null || entry.version != version(table) || System.currentTimeMillis() - entry.created > ttlMillis) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /** Cache a response
+     * @param table One of the table name constants.
+     * @param mediaType Media type of the representation.
+     * @param version version(table) read before the rows were loaded.
+     * @param body The serialized response.
+     * @param etag Its ETag value (without quotes).
+     * @return The new entry. */
+    public static Entry put(String table, String mediaType, long version, byte[] body, String etag) {
+        Entry entry = new Entry(body, etag, version);
+        if (version == version(table)) {
+            entries.put(table + ' ' + mediaType, entry);
+        }
+        return entry;
+    }
+
+    /** Drop the cached responses of a table (called by Queries after inserting or deleting its rows)
+     * @param table One of the table name constants. */
+    public static void invalidate(String table) {
+        counter(table).incrementAndGet();
+        invalidations.incrementAndGet();
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(table + ' ')) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Count a 304 Not Modified response given from an ETag (for getMetrics()) */
+    public static void recordNotModified() {
+        notModified.incrementAndGet();
+    }
+
+    /** Empty the cache */
+    public static void clear() {
+        entries.clear();
+    }
+
+    /** Set the time to live of the entries
+     * @param seconds Time to live, 0 disables the cache. */
+    public static void setTtlSeconds(int seconds) {
+        ttlMillis = (seconds > 0) ? seconds * 1000L : -1; // -1: every entry is expired.
+    }
+
+    private static AtomicLong counter(String table) {
+        AtomicLong version = versions.get(table);
+        if (version == null) {
+            versions.putIfAbsent(table, new AtomicLong());
+            version = versions.get(table);
+        }
+        return version;
+    }
+
+    /** Snapshot of the cache counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("reference_cache_entries", entries.size());
+        metrics.put("reference_cache_hits_total", hits.get());
+        metrics.put("reference_cache_misses_total", misses.get());
+        metrics.put("reference_cache_invalidations_total", invalidations.get());
+        metrics.put("reference_cache_not_modified_total", notModified.get());
+        return metrics;
+    }
+
+}
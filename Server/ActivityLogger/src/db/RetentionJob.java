@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Compacts raw measurements older than the retention period into hourly summaries and deletes the originals
+ * <p>
+ *  Old measurements are only needed at hour resolution. For each device and UTC hour, hourly_measurements gets the number of
+ *  measurements, the most frequent cell id and the centroid of the GPS locations, and hourly_application_usage the number of
+ *  measurements in which each application was running (tables of add_retention_tables.sql). Then the raw_measurements rows
+ *  (and their measurement_applications rows by ON DELETE CASCADE) are deleted in chunks of chunkRows, each in its own short
+ *  transaction. Measurements referenced by user_routines are kept, as the routines and their rollups join to them.
+ * </p>
+ * <p>
+ *  Progress is stored in the retention_checkpoints table: summarized_until (hours before it are summarized) advances in the
+ *  same transaction as the summaries of one day, and deleted_until follows it once the originals are deleted. A restarted job
+ *  so continues where it stopped, without summarizing an hour twice or deleting anything not yet summarized. Measurements
+ *  are normally stored with their receipt time, far ahead of the checkpoint; writers of device timestamps (RawDataBulkLoader)
+ *  call checkNotSummarized(), which refuses times before summarized_until, so no row lands behind the checkpoint.
+ * </p>
+ * <p>
+ *  The job also deletes upload idempotency keys (raw_measurement_keys) received more than keyDays ago, in chunks of chunkRows
+ *  by the received index. keyDays is the retry horizon: RoutineLibrary re-sends a failed upload within minutes to hours, so a
+ *  key that old only answers re-sends that no longer come. A re-send arriving after its key was pruned is stored again as a
+ *  new measurement. The horizon is independent of the measurement retention, as the keys have no foreign key to them.
+ * </p>
+ * <p>
+ *  To leave the database to online ingest, the job sleeps after each step at least pauseMillis and at least as long as the step
+ *  took (so it uses at most half of one connection), and waits while the IngestionQueue is more than half full. A PostgreSQL
+ *  advisory lock keeps the job of other ActivityLogger instances of the same database from running at the same time.
+ *  Settings are the retention.* context-params in web.xml (days or keyDays 0 disables that part, both 0 the job).
+ * </p> */
+public class RetentionJob {
+
+    private final static Logger logger = LoggerFactory.getLogger(RetentionJob.class); // Log4Java.
+
+    /** Default age in days after which measurements are compacted: {@value} */
+    public final static int DEFAULT_DAYS = 90;
+    /** Default number of raw measurements deleted per transaction: {@value} */
+    public final static int DEFAULT_CHUNK_ROWS = 5000;
+    /** Default minimum pause between two steps: {@value} */
+    public final static int DEFAULT_PAUSE_MILLIS = 100;
+    /** Default minutes between two runs: {@value} */
+    public final static int DEFAULT_INTERVAL_MINUTES = 60;
+    /** Default age in days after which upload idempotency keys are deleted (the client retry horizon): {@value} */
+    public final static int DEFAULT_KEY_DAYS = 30;
+
+    /** Hours summarized per transaction: {@value} */
+    private final static int WINDOW_HOURS = 24;
+    private final static long HOUR_MILLIS = 60L * 60L * 1000L;
+    /** retention_checkpoints.job of this job */
+    private final static String JOB = "raw_measurements";
+    /** pg_try_advisory_lock() key of this job */
+    private final static String LOCK_SQL = "SELECT pg_try_advisory_lock(hashtext('RetentionJob'))";
+    private final static String UNLOCK_SQL = "SELECT pg_advisory_unlock(hashtext('RetentionJob'))";
+
+    /** GPS location available (not NULL and not Queries.LATLONG_NOT_AVAILABLE) */
+    private final static String HAS_LOCATION =
+            "latitude IS NOT NULL AND longitude IS NOT NULL " +
+            "AND latitude <> " + Queries.LATLONG_NOT_AVAILABLE + " AND longitude <> " + Queries.LATLONG_NOT_AVAILABLE;
+
+    /** Hour of a measurement (UTC) */
+    private final static String HOUR = "date_trunc('hour', rm.measurement_timestamp AT TIME ZONE 'UTC') AT TIME ZONE 'UTC'";
+
+    /** Summaries of the measurements in [?, ?). DO NOTHING: a reset checkpoint never overwrites the summary of already deleted
+     *  measurements with the few kept ones. */
+    private final static String SUMMARIZE_MEASUREMENTS_SQL =
+            "INSERT INTO hourly_measurements " +
+            "  (device_id_fk, hour, measurement_count, cell_id, location_count, latitude, longitude) " +
+            "SELECT rm.device_id_fk, " + HOUR + ", count(*), " +
+            "       coalesce(mode() WITHIN GROUP (ORDER BY rm.cell_id) FILTER (WHERE rm.cell_id <> -1), -1), " +
+            "       count(*) FILTER (WHERE " + HAS_LOCATION + "), " +
+            "       avg(rm.latitude) FILTER (WHERE " + HAS_LOCATION + "), avg(rm.longitude) FILTER (WHERE " + HAS_LOCATION + ") " +
+            "FROM raw_measurements AS rm " +
+            "WHERE rm.measurement_timestamp >= ? AND rm.measurement_timestamp < ? " +
+            "GROUP BY 1, 2 " +
+            "ON CONFLICT (device_id_fk, hour) DO NOTHING";
+
+    /** Application usage of the measurements in [?, ?) (both tables pruned to the same partitions) */
+    private final static String SUMMARIZE_APPLICATIONS_SQL =
+            "INSERT INTO hourly_application_usage (device_id_fk, hour, application_id_fk, measurement_count) " +
+            "SELECT rm.device_id_fk, " + HOUR + ", ma.application_id_fk, count(DISTINCT rm.measurement_id) " +
+            "FROM raw_measurements AS rm " +
+            "INNER JOIN measurement_applications AS ma " +
+            "  ON ma.measurement_id_fk = rm.measurement_id AND ma.measurement_timestamp = rm.measurement_timestamp " +
+            "WHERE rm.measurement_timestamp >= ? AND rm.measurement_timestamp < ? " +
+            "AND ma.measurement_timestamp >= ? AND ma.measurement_timestamp < ? " +
+            "GROUP BY 1, 2, 3 " +
+            "ON CONFLICT (device_id_fk, hour, application_id_fk) DO NOTHING";
+
+    /** First checkpoint: the hour of the earliest measurement, or of ? if that is earlier (a writer of older rows). Scans the
+     *  measurements once, as measurement_timestamp does not follow measurement_id for backfilled rows. */
+    private final static String SEED_SQL =
+            "INSERT INTO retention_checkpoints (job, summarized_until, deleted_until) " +
+            "SELECT ?, h, h FROM (" +
+            "  SELECT date_trunc('hour', least(min(measurement_timestamp), ?::timestamptz) AT TIME ZONE 'UTC') AT TIME ZONE 'UTC' AS h " +
+            "  FROM raw_measurements) AS oldest " +
+            "WHERE h IS NOT NULL " +
+            "ON CONFLICT (job) DO NOTHING " +
+            "RETURNING summarized_until, deleted_until";
+
+    /** One chunk of the summarized measurements in [?, ?), except those of user routines */
+    private final static String DELETE_SQL =
+            "DELETE FROM raw_measurements WHERE (measurement_id, measurement_timestamp) IN (" +
+            "  SELECT rm.measurement_id, rm.measurement_timestamp FROM raw_measurements AS rm " +
+            "  WHERE rm.measurement_timestamp >= ? AND rm.measurement_timestamp < ? " +
+            "  AND NOT EXISTS (SELECT 1 FROM user_routines AS ur WHERE ur.raw_measurement_id_fk = rm.measurement_id) " +
+            "  LIMIT ?)";
+
+    /** One chunk of the idempotency keys received before ? (raw_measurement_keys_received_index) */
+    private final static String DELETE_KEYS_SQL =
+            "DELETE FROM raw_measurement_keys WHERE (device_id_fk, sequence_number) IN (" +
+            "  SELECT device_id_fk, sequence_number FROM raw_measurement_keys WHERE received < ? LIMIT ?)";
+
+    private static ScheduledExecutorService scheduler = null; // Guarded by RetentionJob.class.
+
+    private final static AtomicLong runs             = new AtomicLong();
+    private final static AtomicLong failures         = new AtomicLong();
+    private final static AtomicLong summarizedHours  = new AtomicLong();
+    private final static AtomicLong summaryRows      = new AtomicLong();
+    private final static AtomicLong deletedRows      = new AtomicLong();
+    private final static AtomicLong deletedKeys      = new AtomicLong();
+    private final static AtomicLong throttleMillis   = new AtomicLong();
+    private static volatile long backlogHours = 0;
+
+    private final int days;
+    private final int keyDays;
+    private final int chunkRows;
+    private final int pauseMillis;
+
+    /** @param days Measurements older than this many days are compacted, 0 never.
+     * @param keyDays Idempotency keys received more than this many days ago are deleted, 0 never.
+     * @param chunkRows Raw measurements (or keys) deleted per transaction.
+     * @param pauseMillis Minimum pause between two steps. */
+    public RetentionJob(int days, int keyDays, int chunkRows, int pauseMillis) {
+        this.days = days;
+        this.keyDays = keyDays;
+        this.chunkRows = Math.max(1, chunkRows);
+        this.pauseMillis = Math.max(0, pauseMillis);
+    }
+
+    /** Run the job in a background thread every intervalMinutes (the first run one minute after the start)
+     * @param dataSource Connection pool.
+     * @param days Retention period of the measurements in days, 0 keeps them.
+     * @param keyDays Retention period of the idempotency keys in days (client retry horizon), 0 keeps them.
+     * @param chunkRows Raw measurements (or keys) deleted per transaction.
+     * @param pauseMillis Minimum pause between two steps.
+     * @param intervalMinutes Minutes from the end of one run to the start of the next. */
+    public static synchronized void start(final DataSource dataSource, int days, int keyDays, int chunkRows, int pauseMillis,
+                                          int intervalMinutes) {
+        stop();
+        if ((days <= 0 && keyDays <= 0) || dataSource == null) {
+            return;
+        }
+        final RetentionJob job = new RetentionJob(days, keyDays, chunkRows, pauseMillis);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RetentionJob");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                Connection connection = null;
+                try {
+                    connection = Metrics.getConnection(dataSource);
+                    job.run(connection);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt(); // Stopped, the checkpoint has the progress.
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    logger.warn("Retention job failed: " + e.getMessage());
+                } finally {
+                    if (connection != null) {
+                        try {
+                            connection.close();
+                        } catch (Exception e) {
+                            System.out.print(e.toString());
+                        }
+                    }
+                }
+            }
+        }, 1, Math.max(1, intervalMinutes), TimeUnit.MINUTES);
+        logger.info("Retention job started: " + days + " days, keys " + keyDays + " days.");
+    }
+
+    /** Stop the background runs (a running step is interrupted at its next pause) */
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /** Summarize and delete everything older than the retention period and delete the idempotency keys older than keyDays,
+     *  unless another instance is running the job
+     * @param connection PostgreSQL connection (autocommit, left so on return).
+     * @return Number of deleted raw measurements.
+     * @throws SQLException On database errors, the work committed so far stays in the checkpoint.
+     * @throws InterruptedException If the thread was interrupted during a pause. */
+    public long run(Connection connection) throws SQLException, InterruptedException {
+        if (!queryBoolean(connection, LOCK_SQL)) {
+            logger.debug("Retention job running elsewhere.");
+            return 0;
+        }
+        runs.incrementAndGet();
+        long deleted = 0;
+        try {
+            if (keyDays > 0) {
+                deleteKeys(connection, new Timestamp(System.currentTimeMillis() - keyDays * 24L * HOUR_MILLIS));
+            }
+            if (days <= 0) {
+                return 0;
+            }
+            long cutoff = (System.currentTimeMillis() - days * 24L * HOUR_MILLIS) / HOUR_MILLIS * HOUR_MILLIS;
+            Timestamp[] checkpoint = getCheckpoint(connection);
+            if (checkpoint == null) {
+                return 0; // No measurements yet.
+            }
+            while (true) {
+                Timestamp summarizedUntil = checkpoint[0];
+                Timestamp deletedUntil = checkpoint[1];
+                if (deletedUntil.before(summarizedUntil)) {
+                    deleted += deleteSummarized(connection, deletedUntil, summarizedUntil);
+                    checkpoint[1] = summarizedUntil;
+                    setCheckpoint(connection, checkpoint);
+                    continue;
+                }
+                backlogHours = Math.max(0, (cutoff - summarizedUntil.getTime()) / HOUR_MILLIS);
+                if (summarizedUntil.getTime() >= cutoff) {
+                    break;
+                }
+                Timestamp to = new Timestamp(Math.min(summarizedUntil.getTime() + WINDOW_HOURS * HOUR_MILLIS, cutoff));
+                long start = System.currentTimeMillis();
+                summarize(connection, summarizedUntil, to);
+                checkpoint[0] = to;
+                throttle(System.currentTimeMillis() - start);
+            }
+            if (deleted > 0) {
+                logger.info("Retention job compacted " + deleted + " raw measurements, done until " + checkpoint[0] + ".");
+            }
+        } finally {
+            queryBoolean(connection, UNLOCK_SQL);
+        }
+        return deleted;
+    }
+
+    /** Insert the summaries of [from, to) and advance summarized_until to to, in one transaction */
+    private void summarize(Connection connection, Timestamp from, Timestamp to) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        boolean done = false;
+        connection.setAutoCommit(false);
+        try {
+            // The checkpoint row is updated (locked) first: a writer of older rows holding it FOR SHARE is waited for, and its
+            // rows are then seen by the summaries below; a writer coming later sees the new summarized_until.
+            preparedStatement = StatementCache.prepare(connection,
+                    "UPDATE retention_checkpoints SET summarized_until = ? WHERE job = ?");
+            preparedStatement.setTimestamp(1, to);
+            preparedStatement.setString(2, JOB);
+            preparedStatement.executeUpdate();
+            StatementCache.release(preparedStatement);
+            preparedStatement = StatementCache.prepare(connection, SUMMARIZE_MEASUREMENTS_SQL);
+            preparedStatement.setTimestamp(1, from);
+            preparedStatement.setTimestamp(2, to);
+            summaryRows.addAndGet(preparedStatement.executeUpdate());
+            StatementCache.release(preparedStatement);
+            preparedStatement = StatementCache.prepare(connection, SUMMARIZE_APPLICATIONS_SQL);
+            preparedStatement.setTimestamp(1, from);
+            preparedStatement.setTimestamp(2, to);
+            preparedStatement.setTimestamp(3, from);
+            preparedStatement.setTimestamp(4, to);
+            summaryRows.addAndGet(preparedStatement.executeUpdate());
+            StatementCache.release(preparedStatement);
+            preparedStatement = null;
+            connection.commit();
+            done = true;
+            summarizedHours.addAndGet((to.getTime() - from.getTime()) / HOUR_MILLIS);
+        } finally {
+            if (preparedStatement != null) {
+                try {
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+            if (!done) {
+                try {
+                    connection.rollback();
+                } catch (Exception e) {
+                }
+            }
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /** Delete the raw measurements of [from, to) in chunks, each chunk in its own (autocommit) transaction */
+    private long deleteSummarized(Connection connection, Timestamp from, Timestamp to)
+            throws SQLException, InterruptedException {
+        long deleted = 0;
+        int rows;
+        do {
+            long start = System.currentTimeMillis();
+            PreparedStatement preparedStatement = StatementCache.prepare(connection, DELETE_SQL);
+            try {
+                preparedStatement.setTimestamp(1, from);
+                preparedStatement.setTimestamp(2, to);
+                preparedStatement.setInt(3, chunkRows);
+                rows = preparedStatement.executeUpdate();
+            } finally {
+                StatementCache.release(preparedStatement);
+            }
+            deleted += rows;
+            deletedRows.addAndGet(rows);
+            throttle(System.currentTimeMillis() - start);
+        } while (rows == chunkRows);
+        return deleted;
+    }
+
+    /** Delete the idempotency keys received before the given time in chunks, each chunk in its own (autocommit) transaction.
+     *  Nothing is deleted if add_raw_measurement_keys.sql has not been run. */
+    private void deleteKeys(Connection connection, Timestamp before) throws SQLException, InterruptedException {
+        if (!queryBoolean(connection, "SELECT to_regclass('raw_measurement_keys') IS NOT NULL")) {
+            return;
+        }
+        long deleted = 0;
+        int rows;
+        do {
+            long start = System.currentTimeMillis();
+            PreparedStatement preparedStatement = StatementCache.prepare(connection, DELETE_KEYS_SQL);
+            try {
+                preparedStatement.setTimestamp(1, before);
+                preparedStatement.setInt(2, chunkRows);
+                rows = preparedStatement.executeUpdate();
+            } finally {
+                StatementCache.release(preparedStatement);
+            }
+            deleted += rows;
+            deletedKeys.addAndGet(rows);
+            throttle(System.currentTimeMillis() - start);
+        } while (rows == chunkRows);
+        if (deleted > 0) {
+            logger.info("Retention job deleted " + deleted + " idempotency keys received before " + before + ".");
+        }
+    }
+
+    /** Sleep at least pauseMillis and at least stepMillis, then as long as the ingestion queue is more than half full */
+    private void throttle(long stepMillis) throws InterruptedException {
+        long pause = Math.max(pauseMillis, stepMillis);
+        Thread.sleep(pause);
+        throttleMillis.addAndGet(pause);
+        IngestionQueue ingestionQueue = IngestionQueue.getInstance();
+        while (ingestionQueue != null && ingestionQueue.getDepth() * 2 > ingestionQueue.getCapacity()) {
+            Thread.sleep(Math.max(pauseMillis, 100));
+            throttleMillis.addAndGet(Math.max(pauseMillis, 100));
+        }
+    }
+
+    /** @return {summarized_until, deleted_until}, created at the hour of the earliest measurement if missing, or null if there
+     *  are no measurements (or a writer is creating the checkpoint, see checkNotSummarized()). */
+    private static Timestamp[] getCheckpoint(Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection,
+                    "SELECT summarized_until, deleted_until FROM retention_checkpoints WHERE job = ?");
+            preparedStatement.setString(1, JOB);
+            rs = preparedStatement.executeQuery();
+            if (rs.next()) {
+                return new Timestamp[] { rs.getTimestamp(1), rs.getTimestamp(2) };
+            }
+            rs.close();
+            rs = null;
+            StatementCache.release(preparedStatement);
+            preparedStatement = StatementCache.prepare(connection, SEED_SQL);
+            preparedStatement.setString(1, JOB);
+            preparedStatement.setTimestamp(2, null);
+            rs = preparedStatement.executeQuery();
+            if (rs.next()) {
+                return new Timestamp[] { rs.getTimestamp(1), rs.getTimestamp(2) };
+            }
+            return null;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** Refuse measurement times that the job has already summarized (for writers of device timestamps)
+     * @param connection PostgreSQL connection in the writer's transaction (auto commit off), the check holds until it ends.
+     * @param oldest The earliest measurement_timestamp written in the transaction.
+     * @throws SQLException If oldest is before summarized_until (the transaction must be rolled back), or on database errors.
+     * <p>The checkpoint row is locked FOR SHARE until the writer commits, and created at the earlier of oldest and the earliest
+     * measurement if it is missing. Nothing is checked if add_retention_tables.sql has not been run.</p> */
+    public static void checkNotSummarized(Connection connection, Timestamp oldest) throws SQLException {
+        if (!queryBoolean(connection, "SELECT to_regclass('retention_checkpoints') IS NOT NULL")) {
+            return;
+        }
+        Timestamp summarizedUntil = lockCheckpoint(connection);
+        if (summarizedUntil == null) {
+            PreparedStatement preparedStatement = StatementCache.prepare(connection, SEED_SQL);
+            try {
+                preparedStatement.setString(1, JOB);
+                preparedStatement.setTimestamp(2, oldest);
+                preparedStatement.executeQuery().close();
+            } finally {
+                StatementCache.release(preparedStatement);
+            }
+            summarizedUntil = lockCheckpoint(connection);
+        }
+        if (summarizedUntil != null && oldest.before(summarizedUntil)) {
+            throw new SQLException("Measurement time " + oldest + " is before " + summarizedUntil
+                    + ", already compacted by the retention job.");
+        }
+    }
+
+    /** @return summarized_until locked FOR SHARE, or null if there is no checkpoint. */
+    private static Timestamp lockCheckpoint(Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection,
+                    "SELECT summarized_until FROM retention_checkpoints WHERE job = ? FOR SHARE");
+            preparedStatement.setString(1, JOB);
+            rs = preparedStatement.executeQuery();
+            return rs.next() ? rs.getTimestamp(1) : null;
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** Store deleted_until (summarized_until is stored by summarize()) */
+    private static void setCheckpoint(Connection connection, Timestamp[] checkpoint) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepare(connection,
+                "UPDATE retention_checkpoints SET deleted_until = ? WHERE job = ?");
+        try {
+            preparedStatement.setTimestamp(1, checkpoint[1]);
+            preparedStatement.setString(2, JOB);
+            preparedStatement.executeUpdate();
+        } finally {
+            StatementCache.release(preparedStatement);
+        }
+    }
+
+    /** @return The boolean result of a single value query (advisory lock functions). */
+    private static boolean queryBoolean(Connection connection, String sql) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection, sql);
+            rs = preparedStatement.executeQuery();
+            return rs.next() && rs.getBoolean(1);
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** @return Counters for /rest/metrics. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("retention_runs_total", runs.get());
+        metrics.put("retention_failures_total", failures.get());
+        metrics.put("retention_summarized_hours_total", summarizedHours.get());
+        metrics.put("retention_summary_rows_total", summaryRows.get());
+        metrics.put("retention_deleted_measurements_total", deletedRows.get());
+        metrics.put("retention_deleted_keys_total", deletedKeys.get());
+        metrics.put("retention_throttle_millis_total", throttleMillis.get());
+        metrics.put("retention_backlog_hours", backlogHours);
+        return metrics;
+    }
+
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.vtt.activitylogger.RoutineSummary;
+
+/** Daily per-device routine rollups (routine_daily_rollups table of add_routine_rollups.sql) for .../rest/routine_summaries
+ * <p>
+ *  One row per device, day and routine class holds the number of routines that started on that day (UTC), the sum of their
+ *  durations and the sum of their confidences (for the mean). A routine is counted once, although user_routines has a row for
+ *  each of its applications. Queries.insertUserRoutine() calls add() in the transaction of the routine, so the rollups change when
+ *  the routine commits, and Queries.deleteUserRoutine() calls remove() when the last row of a routine is deleted. Daily and weekly
+ *  summaries are then read from the rollups only, without joining user_routines to raw_measurements.
+ * </p>
+ * <p>
+ *  backfill() recomputes the rollups of a range of days from user_routines, one month per transaction, for the routines stored
+ *  before the table existed (or changed by hand). It locks the table in SHARE ROW EXCLUSIVE mode for the month, so a concurrent
+ *  add() waits and is counted on top of the recomputed row. startBackfill() runs it for all routines in a background thread.
+ * </p> */
+public class RoutineRollups {
+
+    private final static Logger logger = LoggerFactory.getLogger(RoutineRollups.class); // Log4Java.
+
+    /** Summary periods of getSummaries() */
+    public final static String DAY  = "day";
+    public final static String WEEK = "week";
+
+    /** Add the routine of the given (new) raw measurement, one row of it is enough as they differ only by the application */
+    private final static String ADD_SQL =
+            "INSERT INTO routine_daily_rollups " +
+            "  (device_id_fk, day, routine_class_id_fk, total_duration_seconds, occurrence_count, confidence_sum) " +
+            "SELECT rm.device_id_fk, (ur.start_time AT TIME ZONE 'UTC')::date, ur.routine_class_id_fk, " +
+            "       extract(epoch FROM ur.end_time - ur.start_time), 1, ur.confidence " +
+            "FROM user_routines AS ur " +
+            "INNER JOIN raw_measurements AS rm ON ur.raw_measurement_id_fk = rm.measurement_id " +
+            "WHERE ur.raw_measurement_id_fk = ? " +
+            "ORDER BY ur.user_routines_id LIMIT 1 " +
+            "ON CONFLICT (device_id_fk, day, routine_class_id_fk) DO UPDATE SET " +
+            "  total_duration_seconds = routine_daily_rollups.total_duration_seconds + EXCLUDED.total_duration_seconds, " +
+            "  occurrence_count = routine_daily_rollups.occurrence_count + 1, " +
+            "  confidence_sum = routine_daily_rollups.confidence_sum + EXCLUDED.confidence_sum";
+
+    /** Subtract a deleted routine, unless rows of it (other applications) are left */
+    private final static String REMOVE_SQL =
+            "UPDATE routine_daily_rollups SET " +
+            "  total_duration_seconds = total_duration_seconds - extract(epoch FROM ?::timestamp with time zone - ?::timestamp with time zone), " +
+            "  occurrence_count = occurrence_count - 1, " +
+            "  confidence_sum = confidence_sum - ? " +
+            "WHERE device_id_fk = (SELECT device_id_fk FROM raw_measurements WHERE measurement_id = ?) " +
+            "AND day = (?::timestamp with time zone AT TIME ZONE 'UTC')::date " +
+            "AND routine_class_id_fk = ? " +
+            "AND NOT EXISTS (SELECT 1 FROM user_routines WHERE raw_measurement_id_fk = ? AND routine_class_id_fk = ? " +
+            "                AND start_time = ? AND end_time = ? AND confidence = ?)";
+
+    /** Recompute the rollups of the days [?, ?) from the distinct routines (start_time range scan of user_routines_time_index) */
+    private final static String BACKFILL_SQL =
+            "INSERT INTO routine_daily_rollups " +
+            "  (device_id_fk, day, routine_class_id_fk, total_duration_seconds, occurrence_count, confidence_sum) " +
+            "SELECT rm.device_id_fk, (r.start_time AT TIME ZONE 'UTC')::date, r.routine_class_id_fk, " +
+            "       sum(extract(epoch FROM r.end_time - r.start_time)), count(*), sum(r.confidence) " +
+            "FROM (SELECT DISTINCT start_time, end_time, routine_class_id_fk, raw_measurement_id_fk, confidence FROM user_routines " +
+            "      WHERE start_time >= ?::date::timestamp AT TIME ZONE 'UTC' AND start_time < ?::date::timestamp AT TIME ZONE 'UTC') AS r " +
+            "INNER JOIN raw_measurements AS rm ON r.raw_measurement_id_fk = rm.measurement_id " +
+            "GROUP BY 1, 2, 3";
+
+    /** Summaries of one device per period (date_trunc('day'/'week', ...), weeks start on Monday) and routine class */
+    private final static String SUMMARIES_SQL =
+            "SELECT date_trunc(?, r.day::timestamp)::date, r.routine_class_id_fk, rc.routine_class_name, rc.routine_type_id, " +
+            "       sum(r.occurrence_count), sum(r.total_duration_seconds), sum(r.confidence_sum) " +
+            "FROM routine_daily_rollups AS r " +
+            "INNER JOIN devices ON r.device_id_fk = devices.device_id " +
+            "INNER JOIN routine_classes AS rc ON r.routine_class_id_fk = rc.id " +
+            "WHERE devices.device_name = ? AND r.day >= ?::date AND r.day <= ?::date AND r.occurrence_count > 0 " +
+            "GROUP BY 1, 2, 3, 4 " +
+            "ORDER BY 1, 2";
+
+    /** First and last day of the summaries if not given */
+    private final static String FIRST_DAY = "1970-01-01";
+    private final static String LAST_DAY  = "9999-12-31";
+
+    private static Thread backfillThread = null; // Guarded by RoutineRollups.class.
+
+    private final static AtomicLong added            = new AtomicLong();
+    private final static AtomicLong removed          = new AtomicLong();
+    private final static AtomicLong backfilledMonths = new AtomicLong();
+    private final static AtomicLong backfillFailures = new AtomicLong();
+
+    /** Utility class */
+    private RoutineRollups() {}
+
+    /** Add a new routine to the rollups, in the same transaction as its user_routines rows
+     * @param connection PostgreSQL connection, inside the transaction that inserted the routine.
+     * @param rawMeasurementId raw_measurement_id_fk of the routine rows (each inserted routine has its own raw measurement).
+     * @throws SQLException If the update failed (the routine insertion should be rolled back). */
+    public static void add(Connection connection, long rawMeasurementId) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection, ADD_SQL);
+            preparedStatement.setLong(1, rawMeasurementId);
+            if (preparedStatement.executeUpdate() > 0) {
+                added.incrementAndGet();
+            }
+        } finally {
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** Subtract a deleted user_routines row from the rollups if it was the last row of its routine
+     * @param connection PostgreSQL connection, after the row was deleted.
+     * @param rawMeasurementId raw_measurement_id_fk of the deleted row.
+     * @param routineClassId routine_class_id_fk of the deleted row.
+     * @param startTime start_time of the deleted row.
+     * @param endTime end_time of the deleted row.
+     * @param confidence confidence of the deleted row.
+     * @throws SQLException If the update failed. */
+    public static void remove(Connection connection, long rawMeasurementId, long routineClassId, Timestamp startTime,
+            Timestamp endTime, double confidence) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection, REMOVE_SQL);
+            preparedStatement.setTimestamp(1, endTime);
+            preparedStatement.setTimestamp(2, startTime);
+            preparedStatement.setDouble(3, confidence);
+            preparedStatement.setLong(4, rawMeasurementId);
+            preparedStatement.setTimestamp(5, startTime);
+            preparedStatement.setLong(6, routineClassId);
+            preparedStatement.setLong(7, rawMeasurementId);
+            preparedStatement.setLong(8, routineClassId);
+            preparedStatement.setTimestamp(9, startTime);
+            preparedStatement.setTimestamp(10, endTime);
+            preparedStatement.setDouble(11, confidence);
+            if (preparedStatement.executeUpdate() > 0) {
+                removed.incrementAndGet();
+            }
+        } finally {
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+    }
+
+    /** Daily or weekly routine summaries of one device from the rollups
+     * @param connection PostgreSQL connection.
+     * @param deviceName The device (user).
+     * @param period DAY or WEEK.
+     * @param firstDay yyyy-mm-dd, only routines that started on this day or later (weekly: weeks of these days). Null or empty give all.
+     * @param lastDay yyyy-mm-dd, only routines that started on this day or earlier. Null or empty give all.
+     * @return Summaries in period and routine class order (may be empty).
+     * @throws SQLException If the query failed (also for an invalid day). */
+    public static List<RoutineSummary> getSummaries(Connection connection, String deviceName, String period, String firstDay,
+            String lastDay) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        List<RoutineSummary> summaries = new ArrayList<RoutineSummary>();
+        try {
+            preparedStatement = StatementCache.prepare(connection, SUMMARIES_SQL);
+            preparedStatement.setString(1, period);
+            preparedStatement.setString(2, deviceName);
+            preparedStatement.setString(3, (firstDay == null || firstDay.length() == 0) ? FIRST_DAY : firstDay);
+            preparedStatement.setString(4, (lastDay == null || lastDay.length() == 0) ? LAST_DAY : lastDay);
+            rs = preparedStatement.executeQuery();
+            while (rs.next()) {
+                long occurrences = rs.getLong(5);
+                summaries.add(new RoutineSummary(deviceName, period, rs.getString(1), rs.getLong(2), rs.getString(3), rs.getInt(4),
+                        occurrences, rs.getDouble(6), occurrences > 0 ? rs.getDouble(7) / occurrences : 0));
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                Metrics.rows(preparedStatement, summaries.size());
+                try {
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+        }
+        return summaries;
+    }
+
+    /** Recompute the rollups of all days that have routines, one month per transaction
+     * @param connection PostgreSQL connection (autocommit is restored at the end).
+     * @return Number of rollup rows written.
+     * @throws SQLException If a month failed (the months before it stay recomputed). */
+    public static long backfill(Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        String firstDay = null;
+        String lastDay = null;
+        try {
+            preparedStatement = StatementCache.prepare(connection,
+                    "SELECT (min(start_time) AT TIME ZONE 'UTC')::date, (max(start_time) AT TIME ZONE 'UTC')::date FROM user_routines");
+            rs = preparedStatement.executeQuery();
+            if (rs.next()) {
+                firstDay = rs.getString(1);
+                lastDay = rs.getString(2);
+            }
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        if (firstDay == null) {
+            return 0; // No routines.
+        }
+        return backfill(connection, firstDay, lastDay);
+    }
+
+    /** Recompute the rollups of the days firstDay...lastDay from user_routines, one month per transaction
+     * @param connection PostgreSQL connection (autocommit is restored at the end).
+     * @param firstDay yyyy-mm-dd (UTC).
+     * @param lastDay yyyy-mm-dd (UTC), inclusive.
+     * @return Number of rollup rows written.
+     * @throws SQLException If a month failed (the months before it stay recomputed) or a day is invalid. */
+    public static long backfill(Connection connection, String firstDay, String lastDay) throws SQLException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Calendar from = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        Calendar end = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        try {
+            from.setTime(format.parse(firstDay));
+            end.setTime(format.parse(lastDay));
+        } catch (ParseException pe) {
+            throw new SQLException("Invalid day: " + pe.getMessage());
+        }
+        end.add(Calendar.DAY_OF_MONTH, 1); // Exclusive.
+        long rows = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            while (from.before(end)) {
+                Calendar to = (Calendar) from.clone();
+                to.set(Calendar.DAY_OF_MONTH, 1);
+                to.add(Calendar.MONTH, 1);
+                if (to.after(end)) {
+                    to = end;
+                }
+                rows += backfillRange(connection, format.format(from.getTime()), format.format(to.getTime()));
+                backfilledMonths.incrementAndGet();
+                from = to;
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return rows;
+    }
+
+    /** Recompute the days [from, to) in one transaction */
+    private static long backfillRange(Connection connection, String from, String to) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        connection.setAutoCommit(false);
+        boolean done = false;
+        try {
+            preparedStatement = StatementCache.prepare(connection, "LOCK TABLE routine_daily_rollups IN SHARE ROW EXCLUSIVE MODE");
+            preparedStatement.execute();
+            StatementCache.release(preparedStatement);
+            preparedStatement = StatementCache.prepare(connection,
+                    "DELETE FROM routine_daily_rollups WHERE day >= ?::date AND day < ?::date");
+            preparedStatement.setString(1, from);
+            preparedStatement.setString(2, to);
+            preparedStatement.executeUpdate();
+            StatementCache.release(preparedStatement);
+            preparedStatement = StatementCache.prepare(connection, BACKFILL_SQL);
+            preparedStatement.setString(1, from);
+            preparedStatement.setString(2, to);
+            int rows = preparedStatement.executeUpdate();
+            StatementCache.release(preparedStatement);
+            preparedStatement = null;
+            connection.commit();
+            done = true;
+            return rows;
+        } finally {
+            if (preparedStatement != null) {
+                try {
+                    StatementCache.release(preparedStatement);
+                } catch (Exception e) {
+                }
+            }
+            if (!done) {
+                try {
+                    connection.rollback();
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    /** Run backfill() for all routines in a background thread, unless one is already running
+     * @param dataSource Connection pool.
+     * @return true if started, false if a backfill was already running. */
+    public static synchronized boolean startBackfill(final DataSource dataSource) {
+        if (backfillThread != null && backfillThread.isAlive()) {
+            return false;
+        }
+        backfillThread = new Thread(new Runnable() {
+            public void run() {
+                Connection connection = null;
+                try {
+                    connection = Metrics.getConnection(dataSource);
+                    long started = System.currentTimeMillis();
+                    long rows = backfill(connection);
+                    logger.info("Routine rollups backfilled: " + rows + " rows in " + (System.currentTimeMillis() - started) + " ms.");
+                } catch (Exception e) {
+                    backfillFailures.incrementAndGet();
+                    logger.warn("Routine rollup backfill failed: " + e.getMessage());
+                } finally {
+                    if (connection != null) {
+                        try {
+                            connection.close();
+                        } catch (Exception e) {
+                            System.out.print(e.toString());
+                        }
+                    }
+                }
+            }
+        }, "RoutineRollups-backfill");
+        backfillThread.setDaemon(true);
+        backfillThread.start();
+        return true;
+    }
+
+    /** Start a backfill if there are routines but no rollups yet (the first deployment after add_routine_rollups.sql)
+     * @param connection PostgreSQL connection for the check.
+     * @param dataSource Connection pool for the backfill thread.
+     * @return true if a backfill was started.
+     * @throws SQLException If the check failed (e.g. the table does not exist). */
+    public static boolean backfillIfEmpty(Connection connection, DataSource dataSource) throws SQLException {
+        PreparedStatement preparedStatement = null;
+        ResultSet rs = null;
+        boolean empty = false;
+        try {
+            preparedStatement = StatementCache.prepare(connection,
+                    "SELECT NOT EXISTS (SELECT 1 FROM routine_daily_rollups) AND EXISTS (SELECT 1 FROM user_routines)");
+            rs = preparedStatement.executeQuery();
+            empty = rs.next() && rs.getBoolean(1);
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (preparedStatement != null) {
+                StatementCache.release(preparedStatement);
+            }
+        }
+        return empty && startBackfill(dataSource);
+    }
+
+    /** @return true while a background backfill is running. */
+    public static synchronized boolean isBackfillRunning() {
+        return backfillThread != null && backfillThread.isAlive();
+    }
+
+    /** @return Counters for /rest/metrics. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        metrics.put("routine_rollups_added_total", added.get());
+        metrics.put("routine_rollups_removed_total", removed.get());
+        metrics.put("routine_rollups_backfill_running", isBackfillRunning() ? 1 : 0);
+        metrics.put("routine_rollups_backfilled_months_total", backfilledMonths.get());
+        metrics.put("routine_rollups_backfill_failures_total", backfillFailures.get());
+        return metrics;
+    }
+
+}
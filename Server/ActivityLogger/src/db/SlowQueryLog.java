@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.vtt.activitylogger.SlowQuery;
+
+/** Ring buffer of the most recent statements that took longer than a threshold, shown by /rest/slow_queries
+ * <p>
+ *  Statements are timed by Metrics from StatementCache.prepare() to release(); queries streamed to a client (exports) are
+ *  not recorded. A statement over thresholdMs is recorded
+ *  with the shape of its SQL (literals replaced by '?'), the types of its bind parameters, the calling method and the
+ *  duration. A statement over explainThresholdMs also gets its plan: a background thread runs EXPLAIN (ANALYZE, BUFFERS)
+ *  on a separate pooled connection, in a transaction that is rolled back. Statements that change data are only EXPLAINed
+ *  without ANALYZE. The same SQL shape is explained at most once per EXPLAIN_INTERVAL_MS, and explains that do not fit into
+ *  the small work queue are dropped, so that a slow database is not loaded further.
+ * </p>
+ * <p>
+ *  The bound parameter values are taken from the pgjdbc statement text (PreparedStatement.toString()) only for the explain and
+ *  are not stored. Settings are the slowQuery.* context-params in web.xml (thresholdMs 0 disables the log).
+ * </p> */
+public class SlowQueryLog {
+
+    private final static Logger logger = LoggerFactory.getLogger(SlowQueryLog.class); // Log4Java.
+
+    /** Default minimum duration of a recorded statement: {@value} ms */
+    public final static int DEFAULT_THRESHOLD_MS = 500;
+    /** Default minimum duration of a statement whose plan is captured: {@value} ms */
+    public final static int DEFAULT_EXPLAIN_THRESHOLD_MS = 2000;
+    /** Default number of recent slow statements kept: {@value} */
+    public final static int DEFAULT_CAPACITY = 100;
+    /** Minimum time between two explains of the same SQL shape: {@value} ms */
+    public final static long EXPLAIN_INTERVAL_MS = 10 * 60 * 1000L;
+    /** statement_timeout of the explain transaction: {@value} ms */
+    public final static int EXPLAIN_TIMEOUT_MS = 30000;
+    /** Longest SQL text kept: {@value} characters */
+    private final static int MAX_SQL_LENGTH = 4000;
+
+    private final static Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private final static Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w$.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+    private final static Pattern WHITESPACE     = Pattern.compile("\\s+");
+    private final static Pattern WRITES         = Pattern.compile("(?i)\\b(INSERT|UPDATE|DELETE|MERGE|COPY|CREATE|DROP|ALTER|TRUNCATE|LOCK|SELECT\\s+[^;]*\\bINTO)\\b|nextval\\s*\\(");
+
+    /** Thresholds in nanoseconds, Long.MAX_VALUE when disabled. */
+    private static volatile long thresholdNanos = Long.MAX_VALUE;
+    private static volatile long explainThresholdNanos = Long.MAX_VALUE;
+
+    private static DataSource dataSource = null;          // For the explains, guarded by SlowQueryLog.class.
+    private static ThreadPoolExecutor explainer = null;   // Guarded by SlowQueryLog.class.
+
+    /** Ring buffer, guarded by itself. */
+    private final static List<SlowQuery> ring = new ArrayList<SlowQuery>();
+    private static int capacity = DEFAULT_CAPACITY;        // Guarded by ring.
+    private static int next = 0;                           // Guarded by ring.
+
+    /** SQL shape to the time it was last sent for explaining. */
+    private final static ConcurrentHashMap<String, Long> lastExplained = new ConcurrentHashMap<String, Long>();
+
+    private final static AtomicLong recorded        = new AtomicLong();
+    private final static AtomicLong explained       = new AtomicLong();
+    private final static AtomicLong explainsDropped = new AtomicLong();
+    private final static AtomicLong explainsFailed  = new AtomicLong();
+
+    /** Utility class */
+    private SlowQueryLog() {}
+
+    /** Start recording slow statements
+     * @param source Connection pool for the explains.
+     * @param thresholdMs Minimum duration of a recorded statement, 0 disables recording.
+     * @param explainThresholdMs Minimum duration of a statement whose plan is captured, 0 disables the explains.
+     * @param size Number of recent slow statements kept. */
+    public static synchronized void start(DataSource source, int thresholdMs, int explainThresholdMs, int size) {
+        stop();
+        synchronized (ring) {
+            capacity = Math.max(1, size);
+            ring.clear();
+            next = 0;
+        }
+        dataSource = source;
+        if (explainThresholdMs > 0 && source != null) {
+            explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(4),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SlowQueryLog-explain");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new RejectedExecutionHandler() {
+                        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                            explainsDropped.incrementAndGet();
+                        }
+                    });
+            explainThresholdNanos = TimeUnit.MILLISECONDS.toNanos(explainThresholdMs);
+        }
+        thresholdNanos = (thresholdMs > 0) ? TimeUnit.MILLISECONDS.toNanos(thresholdMs) : Long.MAX_VALUE;
+        if (thresholdMs > 0) {
+            logger.info("Slow query log started: threshold " + thresholdMs + " ms, explain threshold " + explainThresholdMs
+                    + " ms, " + capacity + " entries");
+        }
+    }
+
+    /** Stop recording and the explain thread (the recorded statements are kept) */
+    public static synchronized void stop() {
+        thresholdNanos = Long.MAX_VALUE;
+        explainThresholdNanos = Long.MAX_VALUE;
+        if (explainer != null) {
+            explainer.shutdownNow();
+            explainer = null;
+        }
+        dataSource = null;
+    }
+
+    /** @return true if a statement that took this long should be recorded (cheap check for the hot path). */
+    static boolean isSlow(long durationNanos) {
+        return durationNanos >= thresholdNanos;
+    }
+
+    /** Record a slow statement, called by Metrics before the statement is given back to the cache
+     * @param preparedStatement The statement, its parameters still bound.
+     * @param sql SQL of the statement.
+     * @param method Class.method that ran it.
+     * @param durationNanos Duration of the statement. */
+    static void record(PreparedStatement preparedStatement, String sql, String method, long durationNanos) {
+        String shape = shape(sql);
+        SlowQuery slowQuery = new SlowQuery(timestamp(), method, shape, parameterTypes(preparedStatement),
+                durationNanos / 1e6);
+        synchronized (ring) {
+            if (ring.size() < capacity) {
+                ring.add(slowQuery);
+            } else {
+                ring.set(next, slowQuery);
+            }
+            next = (next + 1) % capacity;
+        }
+        recorded.incrementAndGet();
+        logger.warn("Slow query (" + Math.round(durationNanos / 1e6) + " ms) in " + method + ": " + shape);
+
+        if (durationNanos >= explainThresholdNanos) {
+            long now = System.currentTimeMillis();
+            Long last = lastExplained.get(shape);
+            if (last != null && now - last < EXPLAIN_INTERVAL_MS) {
+                return;
+            }
+            String boundSql = boundSql(preparedStatement, sql);
+            if (boundSql == null) {
+                slowQuery.setExplain("Not captured: parameter values not available.");
+                return;
+            }
+            lastExplained.put(shape, now);
+            explain(slowQuery, boundSql);
+        }
+    }
+
+    /** Queue an explain of the statement (dropped if the explain thread is busy) */
+    private static synchronized void explain(final SlowQuery slowQuery, final String boundSql) {
+        if (explainer == null) {
+            return;
+        }
+        final DataSource source = dataSource;
+        explainer.execute(new Runnable() {
+            public void run() {
+                slowQuery.setExplain(runExplain(source, boundSql));
+            }
+        });
+    }
+
+    /** Run EXPLAIN on a separate connection in a transaction that is always rolled back
+     * @return The plan text, or the reason why it is missing. */
+    private static String runExplain(DataSource source, String boundSql) {
+        boolean analyze = !WRITES.matcher(boundSql).find(); // ANALYZE executes the statement.
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet rs = null;
+        try {
+            connection = source.getConnection();
+            connection.setAutoCommit(false);
+            statement = connection.createStatement(); // Not from StatementCache: the explains are not timed themselves.
+            statement.execute("SET LOCAL statement_timeout = " + EXPLAIN_TIMEOUT_MS);
+            rs = statement.executeQuery((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + boundSql);
+            StringBuilder sb = new StringBuilder(1024);
+            while (rs.next()) {
+                sb.append(rs.getString(1)).append('\n');
+            }
+            explained.incrementAndGet();
+            return sb.toString();
+        } catch (SQLException se) {
+            explainsFailed.incrementAndGet();
+            logger.debug("Explain failed: " + se.getMessage());
+            return "Not captured: " + se.getMessage();
+        } finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                } catch (Exception e) {
+                }
+            }
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (Exception e) {
+                }
+            }
+            if (connection != null) {
+                try {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                    connection.close();
+                } catch (Exception e) {
+                    System.out.print(e.toString());
+                }
+            }
+        }
+    }
+
+    /** @return The SQL with the bound values of the statement, or null if they are not available. */
+    private static String boundSql(PreparedStatement preparedStatement, String sql) {
+        if (sql.indexOf('?') < 0) {
+            return sql;
+        }
+        String text = preparedStatement.toString(); // pgjdbc shows the statement with its parameter values.
+        if (text == null || text.equals(sql)) {
+            return null;
+        }
+        return text;
+    }
+
+    /** @return Comma separated bind parameter types, or null if the driver does not tell them. */
+    private static String parameterTypes(PreparedStatement preparedStatement) {
+        try {
+            ParameterMetaData metaData = preparedStatement.getParameterMetaData();
+            int count = metaData.getParameterCount();
+            StringBuilder sb = new StringBuilder(count * 8);
+            for (int i = 1; i <= count; i++) {
+                if (i > 1) {
+                    sb.append(", ");
+                }
+                sb.append(metaData.getParameterTypeName(i));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** @return The SQL with literals replaced by '?' and whitespace collapsed, at most MAX_SQL_LENGTH characters. */
+    static String shape(String sql) {
+        String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        shape = WHITESPACE.matcher(shape).replaceAll(" ").trim();
+        return (shape.length() > MAX_SQL_LENGTH) ? shape.substring(0, MAX_SQL_LENGTH) + "..." : shape;
+    }
+
+    private static String timestamp() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    /** @return The recorded slow statements, newest first. */
+    public static List<SlowQuery> getRecent() {
+        List<SlowQuery> recent = new ArrayList<SlowQuery>();
+        synchronized (ring) {
+            for (int i = 1; i <= ring.size(); i++) {
+                recent.add(ring.get((next - i + capacity) % capacity));
+            }
+        }
+        return recent;
+    }
+
+    /** Forget the recorded slow statements */
+    public static void clear() {
+        synchronized (ring) {
+            ring.clear();
+            next = 0;
+        }
+        lastExplained.clear();
+    }
+
+    /** Snapshot of the slow query counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        long threshold = thresholdNanos;
+        metrics.put("slow_query_threshold_ms", threshold == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(threshold));
+        metrics.put("slow_queries_total", recorded.get());
+        metrics.put("slow_query_explains_total", explained.get());
+        metrics.put("slow_query_explains_dropped_total", explainsDropped.get());
+        metrics.put("slow_query_explains_failed_total", explainsFailed.get());
+        return metrics;
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package db;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+
+/** Bounded cache of prepared statements per physical database connection, used by Queries and ConditionalAccess
+ * <p>
+ *  Use prepare() instead of connection.prepareStatement() and release() instead of preparedStatement.close(). The statements
+ *  are prepared on the physical PostgreSQL connection behind the pooled connection and kept open between requests, so the
+ *  same SQL is not parsed and planned again for every request, and pgjdbc's server side prepare (prepareThreshold) is reached.
+ * </p>
+ * <p>
+ *  Each physical connection has its own LRU list of at most maxPerConnection statements. The cached statements refer to
+ *  their connection, so the entries are removed explicitly: closed physical connections (retired or replaced by the pool)
+ *  are swept out when a new physical connection appears and at least every SWEEP_INTERVAL_MS. A statement that is already in use (e.g. the same query nested in a loop) is not shared: a
+ *  separate statement is prepared and closed by release(). If the physical connection is not reachable (with Tomcat DBCP
+ *  set accessToUnderlyingConnectionAllowed="true") or the cache is disabled (size 0), statements are simply prepared and closed.
+ * </p> */
+public class StatementCache {
+
+    /** Default maximum number of cached statements per physical connection: {@value} */
+    public final static int DEFAULT_MAX_PER_CONNECTION = 64;
+
+    /** Longest time between two sweeps of closed connections: {@value} ms */
+    public final static long SWEEP_INTERVAL_MS = 60 * 1000L;
+
+    private static volatile int maxPerConnection = DEFAULT_MAX_PER_CONNECTION;
+
+    /** Cached statements of one physical connection. Guarded by itself. */
+    private static class PerConnection {
+        /** SQL to statement, access ordered (LRU). */
+        final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(32, 0.75f, true);
+        /** Cached statement to its SQL. */
+        final IdentityHashMap<PreparedStatement, String> cached = new IdentityHashMap<PreparedStatement, String>();
+        /** Cached statements currently handed out by prepare(). */
+        final IdentityHashMap<PreparedStatement, Boolean> inUse = new IdentityHashMap<PreparedStatement, Boolean>();
+    }
+
+    /** Physical connection to its statements. Guarded by itself. */
+    private final static IdentityHashMap<Connection, PerConnection> caches = new IdentityHashMap<Connection, PerConnection>();
+    /** Time of the last sweep, guarded by caches. */
+    private static long lastSweep = System.currentTimeMillis();
+
+    /** getInnermostDelegate() methods of the pool wrapper classes (DBCP), or a marker for classes without one. */
+    private final static ConcurrentHashMap<Class<?>, Object> delegateMethods = new ConcurrentHashMap<Class<?>, Object>();
+    private final static Object NO_METHOD = new Object();
+
+    private final static AtomicLong hits        = new AtomicLong();
+    private final static AtomicLong misses      = new AtomicLong();
+    private final static AtomicLong busy        = new AtomicLong();
+    private final static AtomicLong uncacheable = new AtomicLong();
+    private final static AtomicLong evictions   = new AtomicLong();
+    private final static AtomicLong swept       = new AtomicLong();
+
+    /** Utility class */
+    private StatementCache() {}
+
+    /** Set the maximum number of cached statements per physical connection (0 disables caching for new statements)
+     * @param size New maximum size. */
+    public static void setMaxPerConnection(int size) {
+        maxPerConnection = Math.max(0, size);
+    }
+
+    /** Find the physical PostgreSQL connection behind a (pooled) JDBC connection
+     * @param connection A pgjdbc connection or a connection pool wrapper around one.
+     * @return The physical connection, or null if it is not reachable. */
+    public static Connection physicalConnection(Connection connection) {
+        if (connection instanceof PGConnection) {
+            return connection;
+        }
+        try {
+            if (connection.isWrapperFor(PGConnection.class)) {
+                return (Connection) connection.unwrap(PGConnection.class);
+            }
+        } catch (Throwable t) {
+            // Pool wrapper does not implement JDBC 4 unwrapping (e.g. Tomcat 6 DBCP), try the DBCP delegate below.
+        }
+        Object method = delegateMethods.get(connection.getClass());
+        if (method == null) {
+            try {
+                method = connection.getClass().getMethod("getInnermostDelegate");
+                ((Method) method).setAccessible(true);
+            } catch (Exception e) {
+                method = NO_METHOD; // Not a DBCP connection.
+            }
+            delegateMethods.put(connection.getClass(), method);
+        }
+        if (method != NO_METHOD) {
+            try {
+                Object delegate = ((Method) method).invoke(connection);
+                if (delegate instanceof PGConnection) {
+                    return (Connection) delegate;
+                }
+            } catch (Exception e) {
+            }
+        }
+        return null;
+    }
+
+    /** Get a prepared statement for the SQL, reusing a cached one of the same physical connection when possible
+     * @param connection routine_db PostgreSQL connection (pooled or physical).
+     * @param sql The SQL of the statement.
+     * @return A prepared statement with cleared parameters. Give it back with release() (not close()) after closing its result sets.
+     * @throws SQLException Preparing the statement failed.
+     * <p>The time until release() is recorded in Metrics (db_query_duration_seconds).</p> */
+    public static PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        long started = System.nanoTime();
+        PreparedStatement preparedStatement = prepareStatement(connection, sql);
+        Metrics.statementPrepared(preparedStatement, sql, started);
+        return preparedStatement;
+    }
+
+    private static PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        Connection physical = (maxPerConnection > 0) ? physicalConnection(connection) : null;
+        if (physical == null) {
+            uncacheable.incrementAndGet();
+            return connection.prepareStatement(sql);
+        }
+        PerConnection perConnection;
+        synchronized (caches) {
+            perConnection = caches.get(physical);
+            long now = System.currentTimeMillis();
+            if (perConnection == null || now - lastSweep >= SWEEP_INTERVAL_MS) {
+                lastSweep = now;
+                sweep();
+            }
+            if (perConnection == null) {
+                perConnection = new PerConnection();
+                caches.put(physical, perConnection);
+            }
+        }
+        synchronized (perConnection) {
+            PreparedStatement preparedStatement = perConnection.statements.get(sql);
+            if (preparedStatement != null) {
+                if (perConnection.inUse.containsKey(preparedStatement)) {
+                    busy.incrementAndGet();
+                    return physical.prepareStatement(sql); // Not cached, closed by release().
+                }
+                hits.incrementAndGet();
+                perConnection.inUse.put(preparedStatement, Boolean.TRUE);
+                return preparedStatement;
+            }
+            misses.incrementAndGet();
+            preparedStatement = physical.prepareStatement(sql);
+            perConnection.statements.put(sql, preparedStatement);
+            perConnection.cached.put(preparedStatement, sql);
+            perConnection.inUse.put(preparedStatement, Boolean.TRUE);
+            evict(perConnection);
+            return preparedStatement;
+        }
+    }
+
+    /** Give back a statement from prepare(): a cached statement is kept for reuse, others are closed
+     * @param preparedStatement The statement, may be null.
+     * @throws SQLException Clearing or closing the statement failed. */
+    public static void release(PreparedStatement preparedStatement) throws SQLException {
+        if (preparedStatement == null) {
+            return;
+        }
+        Metrics.statementReleased(preparedStatement);
+        PerConnection perConnection = null;
+        Connection connection = null;
+        try {
+            connection = preparedStatement.getConnection();
+        } catch (SQLException se) {
+            // Statement already closed.
+        }
+        if (connection != null) {
+            synchronized (caches) {
+                perConnection = caches.get(connection);
+            }
+        }
+        if (perConnection != null) {
+            synchronized (perConnection) {
+                if (perConnection.cached.containsKey(preparedStatement)) {
+                    perConnection.inUse.remove(preparedStatement);
+                    try {
+                        preparedStatement.clearParameters();
+                        return;
+                    } catch (SQLException se) {
+                        // Broken statement, drop it from the cache and close it below.
+                        perConnection.statements.remove(perConnection.cached.remove(preparedStatement));
+                    }
+                } else {
+                    perConnection.inUse.remove(preparedStatement); // Evicted while in use, close it now.
+                }
+            }
+        }
+        preparedStatement.close();
+    }
+
+    /** Drop the entries of closed physical connections (called with caches locked). Their statements are closed
+     *  unless they are in use, in which case release() closes them. */
+    private static void sweep() {
+        Iterator<Map.Entry<Connection, PerConnection>> it = caches.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Connection, PerConnection> entry = it.next();
+            boolean closed;
+            try {
+                closed = entry.getKey().isClosed();
+            } catch (SQLException se) {
+                closed = true;
+            }
+            if (!closed) {
+                continue;
+            }
+            it.remove();
+            swept.incrementAndGet();
+            PerConnection perConnection = entry.getValue();
+            synchronized (perConnection) {
+                for (PreparedStatement preparedStatement : perConnection.statements.values()) {
+                    if (!perConnection.inUse.containsKey(preparedStatement)) {
+                        try {
+                            preparedStatement.close();
+                        } catch (SQLException se) {
+                        }
+                    }
+                }
+                perConnection.statements.clear();
+                perConnection.cached.clear();
+            }
+        }
+    }
+
+    /** Drop the least recently used statements above the size limit (statements in use are closed by release()) */
+    private static void evict(PerConnection perConnection) {
+        Iterator<Map.Entry<String, PreparedStatement>> it = perConnection.statements.entrySet().iterator();
+        while (perConnection.statements.size() > maxPerConnection && it.hasNext()) {
+            PreparedStatement eldest = it.next().getValue();
+            it.remove();
+            perConnection.cached.remove(eldest);
+            evictions.incrementAndGet();
+            if (!perConnection.inUse.containsKey(eldest)) {
+                try {
+                    eldest.close();
+                } catch (SQLException se) {
+                }
+            }
+        }
+    }
+
+    /** Snapshot of the cache counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        int connections;
+        int statements = 0;
+        synchronized (caches) {
+            sweep();
+            lastSweep = System.currentTimeMillis();
+            connections = caches.size();
+            for (PerConnection perConnection : caches.values()) {
+                synchronized (perConnection) {
+                    statements += perConnection.statements.size();
+                }
+            }
+        }
+        metrics.put("statement_cache_connections", connections);
+        metrics.put("statement_cache_statements", statements);
+        metrics.put("statement_cache_max_per_connection", maxPerConnection);
+        metrics.put("statement_cache_hits_total", hits.get());
+        metrics.put("statement_cache_misses_total", misses.get());
+        metrics.put("statement_cache_busy_total", busy.get());
+        metrics.put("statement_cache_uncacheable_total", uncacheable.get());
+        metrics.put("statement_cache_evictions_total", evictions.get());
+        metrics.put("statement_cache_connections_swept_total", swept.get());
+        return metrics;
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.sql.Connection;
+
+import javax.naming.InitialContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import db.ApplicationDictionary;
+import db.CellLocationCache;
+import db.CellLocations;
+import db.DeviceCache;
+import db.DuplicateSuppressor;
+import db.IngestionQueue;
+import db.MccIndex;
+import db.Metrics;
+import db.PartitionManager;
+import db.ReferenceDataCache;
+import db.RetentionJob;
+import db.RoutineRollups;
+import db.SlowQueryLog;
+import db.StatementCache;
+
+/** Starts and stops the background services of ActivityLogger together with the web application
+ * <p>The settings are read from the context-param elements of web.xml, defaults are used for missing values.</p> */
+public class ActivityLoggerListener implements ServletContextListener {
+
+    private final static Logger logger = LoggerFactory.getLogger(ActivityLoggerListener.class); // Log4Java.
+
+    public void contextInitialized(ServletContextEvent event) {
+        ServletContext servletContext = event.getServletContext();
+        DeviceCache.setMaxSize(getInt(servletContext, "deviceCache.maxSize", DeviceCache.DEFAULT_MAX_SIZE));
+        DuplicateSuppressor.setMaxDevices(getInt(servletContext, "duplicateSuppressor.maxDevices",
+                DuplicateSuppressor.DEFAULT_MAX_DEVICES));
+        StatementCache.setMaxPerConnection(getInt(servletContext, "statementCache.maxPerConnection",
+                StatementCache.DEFAULT_MAX_PER_CONNECTION));
+        GsonMessageBodyReader.setMaxBytes(getInt(servletContext, "upload.maxBytes", GsonMessageBodyReader.DEFAULT_MAX_BYTES));
+        ReferenceDataCache.setTtlSeconds(getInt(servletContext, "referenceCache.ttlSeconds", ReferenceDataCache.DEFAULT_TTL_SECONDS));
+        CellLocationCache.setMaxSize(getInt(servletContext, "cellCache.maxSize", CellLocationCache.DEFAULT_MAX_SIZE));
+        CellLocationCache.setTtlSeconds(getInt(servletContext, "cellCache.ttlSeconds", CellLocationCache.DEFAULT_TTL_SECONDS));
+        DataSource dataSource = null;
+        javax.naming.Context context = null; // JDBC.
+        try {
+            context = new InitialContext();
+            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn("jdbc/postgres not found, background services not started: " + e.getMessage());
+            return;
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (Exception e) {
+                    System.out.print(e.toString());
+                }
+            }
+        }
+        PartitionManager.start(dataSource, getInt(servletContext, "partitions.monthsAhead", PartitionManager.DEFAULT_MONTHS_AHEAD));
+        preloadApplications(dataSource);
+        loadMccs(dataSource);
+        if (getBoolean(servletContext, "routineRollups.backfillIfEmpty", true)) {
+            backfillRoutineRollups(dataSource);
+        }
+        SlowQueryLog.start(dataSource,
+                getInt(servletContext, "slowQuery.thresholdMs", SlowQueryLog.DEFAULT_THRESHOLD_MS),
+                getInt(servletContext, "slowQuery.explainThresholdMs", SlowQueryLog.DEFAULT_EXPLAIN_THRESHOLD_MS),
+                getInt(servletContext, "slowQuery.bufferSize", SlowQueryLog.DEFAULT_CAPACITY));
+        CellLocations.start(dataSource,
+                getInt(servletContext, "cellLocations.intervalSeconds", CellLocations.DEFAULT_INTERVAL_SECONDS),
+                getInt(servletContext, "cellLocations.chunkIds", CellLocations.DEFAULT_CHUNK_IDS));
+        RetentionJob.start(dataSource,
+                getInt(servletContext, "retention.days", RetentionJob.DEFAULT_DAYS),
+                getInt(servletContext, "retention.keyDays", RetentionJob.DEFAULT_KEY_DAYS),
+                getInt(servletContext, "retention.chunkRows", RetentionJob.DEFAULT_CHUNK_ROWS),
+                getInt(servletContext, "retention.pauseMillis", RetentionJob.DEFAULT_PAUSE_MILLIS),
+                getInt(servletContext, "retention.intervalMinutes", RetentionJob.DEFAULT_INTERVAL_MINUTES));
+        if (getBoolean(servletContext, "ingest.enabled", true)) {
+            try {
+                IngestionQueue.start(dataSource,
+                        getInt(servletContext, "ingest.queueCapacity", IngestionQueue.DEFAULT_CAPACITY),
+                        getInt(servletContext, "ingest.batchSize", IngestionQueue.DEFAULT_BATCH_SIZE),
+                        getInt(servletContext, "ingest.flushIntervalMs", (int) IngestionQueue.DEFAULT_FLUSH_INTERVAL_MS),
+                        getInt(servletContext, "ingest.writerThreads", IngestionQueue.DEFAULT_WRITER_THREADS),
+                        getInt(servletContext, "ingest.offerTimeoutMs", (int) IngestionQueue.DEFAULT_OFFER_TIMEOUT_MS),
+                        IngestionQueue.OverflowPolicy.valueOf(getString(servletContext, "ingest.overflowPolicy",
+                                IngestionQueue.OverflowPolicy.REJECT.name()).trim().toUpperCase()));
+            } catch (Exception e) {
+                // Receivers fall back to synchronous writing when the queue is not running.
+                e.printStackTrace();
+                logger.warn("Ingestion queue not started: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Fill ApplicationDictionary from the application table (failure only makes the first lookups slower) */
+    private void preloadApplications(DataSource dataSource) {
+        Connection connection = null;
+        try {
+            connection = Metrics.getConnection(dataSource);
+            ApplicationDictionary.preload(connection);
+        } catch (Exception e) {
+            logger.warn("Application dictionary not preloaded: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    System.out.print(e.toString());
+                }
+            }
+        }
+    }
+
+    /** Load MccIndex from the mccs table (on failure it is loaded on the first .../rest/mccs request) */
+    private void loadMccs(DataSource dataSource) {
+        Connection connection = null;
+        try {
+            connection = Metrics.getConnection(dataSource);
+            logger.info("Loaded " + MccIndex.load(connection) + " mobile country codes.");
+        } catch (Exception e) {
+            logger.warn("Mobile country codes not loaded: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    System.out.print(e.toString());
+                }
+            }
+        }
+    }
+
+    /** Start the background backfill of the daily routine rollups if they have not been computed yet */
+    private void backfillRoutineRollups(DataSource dataSource) {
+        Connection connection = null;
+        try {
+            connection = Metrics.getConnection(dataSource);
+            if (RoutineRollups.backfillIfEmpty(connection, dataSource)) {
+                logger.info("Routine rollups are empty, backfill started.");
+            }
+        } catch (Exception e) {
+            logger.warn("Routine rollups not checked (run add_routine_rollups.sql): " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    System.out.print(e.toString());
+                }
+            }
+        }
+    }
+
+    public void contextDestroyed(ServletContextEvent event) {
+        IngestionQueue.stop();
+        CellLocations.stop();
+        PartitionManager.stop();
+        RetentionJob.stop();
+        SlowQueryLog.stop();
+    }
+
+    /** @return Value of the named context-param, or defaultValue if not set. */
+    static String getString(ServletContext servletContext, String name, String defaultValue) {
+        String value = servletContext.getInitParameter(name);
+        return (value == null || value.trim().length() == 0) ? defaultValue : value.trim();
+    }
+
+    /** @return Integer value of the named context-param, or defaultValue if not set or not a number. */
+    static int getInt(ServletContext servletContext, String name, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(servletContext, name, Integer.toString(defaultValue)));
+        } catch (NumberFormatException nfe) {
+            logger.warn("Bad value for context-param " + name + ", using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /** @return Boolean value of the named context-param, or defaultValue if not set. */
+    static boolean getBoolean(ServletContext servletContext, String name, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(servletContext, name, Boolean.toString(defaultValue)));
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Admission control for the data receivers (POSTs to rawdata, newroutinelearned and routinerecognized, mapped in web.xml)
+ * <p>A misbehaving device, or a fleet reconnecting after an outage, must not take all the pooled database connections
+ * from the other resources. Each device (the {shahash} path segment) has a token bucket: ratePerSecond uploads on average,
+ * bursts of up to burst uploads. At most maxConcurrent receiver requests are processed at the same time; a request waits
+ * at most acquireTimeoutMs for a free slot. Requests over either limit get "429 Too Many Requests" with a Retry-After
+ * header (seconds) instead of blocking on the connection pool. RoutineLibrary waits that long before sending again.</p>
+ * <p>maxConcurrent should stay below maxActive of the jdbc/postgres pool in context.xml, so that GET requests always find
+ * a connection. The buckets of at most maxDevices devices are kept (LRU eviction, an evicted device starts with a full
+ * bucket). Rejections are counted in the admission_* metrics of /rest/metrics.</p> */
+public class AdmissionFilter implements Filter {
+
+    private final static Logger logger = LoggerFactory.getLogger(AdmissionFilter.class); // Log4Java.
+
+    /** HTTP status code Too Many Requests (RFC 6585), no constant in the Servlet 2.5 API: {@value} */
+    public final static int SC_TOO_MANY_REQUESTS = 429;
+
+    public final static int DEFAULT_RATE_PER_SECOND = 2;
+    public final static int DEFAULT_BURST = 20;
+    public final static int DEFAULT_MAX_CONCURRENT = 16;
+    public final static int DEFAULT_ACQUIRE_TIMEOUT_MS = 100;
+    public final static int DEFAULT_MAX_DEVICES = 10000;
+
+    /** First path segments (under /rest) of the resources that take uploads from devices. */
+    private final static String[] RECEIVER_PATHS = { "rawdata", "newroutinelearned", "routinerecognized" };
+
+    private final static AtomicLong admitted           = new AtomicLong();
+    private final static AtomicLong rateLimited        = new AtomicLong();
+    private final static AtomicLong concurrencyLimited = new AtomicLong();
+    private static volatile AdmissionFilter instance = null; // For getMetrics().
+
+    private double ratePerSecond = DEFAULT_RATE_PER_SECOND;
+    private int burst = DEFAULT_BURST;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private long acquireTimeoutMs = DEFAULT_ACQUIRE_TIMEOUT_MS;
+    private int maxDevices = DEFAULT_MAX_DEVICES;
+    private Semaphore slots = null;
+
+    /** Access ordered map, the eldest entry is the least recently used device. Guarded by itself. */
+    private final LinkedHashMap<String, TokenBucket> buckets = new LinkedHashMap<String, TokenBucket>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > maxDevices;
+        }
+    };
+
+    public void init(FilterConfig filterConfig) throws ServletException {
+        ratePerSecond = Math.max(1, GzipFilter.getInt(filterConfig, "ratePerSecond", DEFAULT_RATE_PER_SECOND));
+        burst = Math.max(1, GzipFilter.getInt(filterConfig, "burst", DEFAULT_BURST));
+        maxConcurrent = Math.max(1, GzipFilter.getInt(filterConfig, "maxConcurrent", DEFAULT_MAX_CONCURRENT));
+        acquireTimeoutMs = Math.max(0, GzipFilter.getInt(filterConfig, "acquireTimeoutMs", DEFAULT_ACQUIRE_TIMEOUT_MS));
+        maxDevices = Math.max(1, GzipFilter.getInt(filterConfig, "maxDevices", DEFAULT_MAX_DEVICES));
+        slots = new Semaphore(maxConcurrent);
+        instance = this;
+        logger.info("Admission control: " + ratePerSecond + " uploads/s per device, burst " + burst + ", " + maxConcurrent
+                + " concurrent receiver requests");
+    }
+
+    public void destroy() {
+        instance = null;
+    }
+
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(servletRequest instanceof HttpServletRequest) || !(servletResponse instanceof HttpServletResponse)) {
+            chain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        String hash = receiverDevice(request);
+        if (hash == null) {
+            chain.doFilter(request, response); // Not an upload.
+            return;
+        }
+
+        long waitMs = bucket(hash).take(System.nanoTime());
+        if (waitMs > 0) {
+            rateLimited.incrementAndGet();
+            logger.debug("Upload rate of " + hash + " exceeded.");
+            reject(response, waitMs);
+            return;
+        }
+
+        boolean acquired = false;
+        try {
+            acquired = slots.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (!acquired) {
+            concurrencyLimited.incrementAndGet();
+            reject(response, 1000);
+            return;
+        }
+        try {
+            admitted.incrementAndGet();
+            chain.doFilter(request, response);
+        } finally {
+            slots.release();
+        }
+    }
+
+    /** @return The device name of a POST to one of the receivers, otherwise null. */
+    private static String receiverDevice(HttpServletRequest request) {
+        if (!"POST".equals(request.getMethod())) {
+            return null;
+        }
+        String path = request.getPathInfo(); // /rawdata/{shahash}[/batch] when mapped to /rest/*
+        if (path == null) {
+            return null;
+        }
+        String[] segments = path.split("/");
+        if (segments.length < 3 || segments[2].length() == 0) {
+            return null;
+        }
+        for (String receiverPath : RECEIVER_PATHS) {
+            if (receiverPath.equals(segments[1])) {
+                return segments[2];
+            }
+        }
+        return null;
+    }
+
+    private TokenBucket bucket(String hash) {
+        synchronized (buckets) {
+            TokenBucket bucket = buckets.get(hash);
+            if (bucket == null) {
+                bucket = new TokenBucket(burst, System.nanoTime());
+                buckets.put(hash, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    /** Answer 429 Too Many Requests without a body.
+     * @param waitMs Time until the request could succeed, sent rounded up to whole seconds in Retry-After. */
+    private static void reject(HttpServletResponse response, long waitMs) throws IOException {
+        response.setHeader("Retry-After", Long.toString(Math.max(1, (waitMs + 999) / 1000)));
+        response.sendError(SC_TOO_MANY_REQUESTS);
+    }
+
+    /** Snapshot of the admission counters for monitoring
+     * @return Metric names mapped to their current values, in a stable order. */
+    public static Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+        AdmissionFilter filter = instance;
+        int devices = 0;
+        if (filter != null) {
+            synchronized (filter.buckets) {
+                devices = filter.buckets.size();
+            }
+        }
+        metrics.put("admission_enabled", filter != null ? 1 : 0);
+        metrics.put("admission_in_flight", filter != null ? filter.maxConcurrent - filter.slots.availablePermits() : 0);
+        metrics.put("admission_max_concurrent", filter != null ? filter.maxConcurrent : 0);
+        metrics.put("admission_devices", devices);
+        metrics.put("admission_admitted_total", admitted.get());
+        metrics.put("admission_rate_limited_total", rateLimited.get());
+        metrics.put("admission_concurrency_limited_total", concurrencyLimited.get());
+        return metrics;
+    }
+
+    /** Token bucket of one device, refilled at ratePerSecond up to burst tokens. */
+    private class TokenBucket {
+        private double tokens;
+        private long refilledNanos;
+
+        TokenBucket(double tokens, long nowNanos) {
+            this.tokens = tokens;
+            this.refilledNanos = nowNanos;
+        }
+
+        /** Take one token if available.
+         * @return 0 if a token was taken, otherwise the milliseconds until the next token. */
+        synchronized long take(long nowNanos) {
+            tokens = Math.min(burst, tokens + (nowNanos - refilledNanos) * ratePerSecond / 1e9);
+            refilledNanos = nowNanos;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1000 / ratePerSecond);
+        }
+    }
+
+}
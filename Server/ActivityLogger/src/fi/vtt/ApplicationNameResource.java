@@ -29,6 +29,7 @@
 
 package fi.vtt;
 
+import db.Metrics;
 import db.Queries;
 import fi.vtt.activitylogger.Application;
 import java.sql.Connection;
@@ -81,7 +82,7 @@ public class ApplicationNameResource {
           logger.debug("intializing JDBC connection.");
           context = new InitialContext();
           dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-          connection = dataSource.getConnection();
+          connection = Metrics.getConnection(dataSource);
           logger.debug("Got connection..");
           // Get named device from the database:
           application = Queries.findApplicationByName(connection, applicationName ); // Returns first match only or null if no application.
@@ -30,20 +30,23 @@
 package fi.vtt;
 
 import db.Queries;
+import db.ReferenceDataCache;
 import fi.vtt.activitylogger.Application;
 import java.sql.Connection;
-import java.util.ArrayList;
+import java.sql.SQLException;
 import java.util.List;
-import javax.naming.InitialContext;
-import javax.sql.DataSource;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Providers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,42 +69,20 @@ public class ApplicationsResource {
 
     private final static Logger logger = LoggerFactory.getLogger(ApplicationsResource.class); // Log4Java.
 
+    /** All applications, served from ReferenceDataCache with a strong ETag (304 Not Modified for a matching If-None-Match) */
     @GET
     @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
       // Browser XML response, XML application response and JSON application response all in the same method automatically.
-    public List<Application> getApplications() {
+    public Response getApplications( @Context HttpHeaders headers , @Context Providers providers ) {
         logger.debug("URL .../rest/applications called.");
-        javax.naming.Context context = null; // JDBC.
-        DataSource dataSource = null;
-        Connection connection = null;
-        List<Application> applications = new ArrayList<Application>(); // Return value to function and the corresponding REST service.
-        try {
-            logger.debug("intializing JDBC connection.");
-            context = new InitialContext();
-            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
-            logger.debug("Got connection..");
-            // Get all devices from the database and collect them into the list:
-            applications.addAll(Queries.getAllApplications(connection)); // getAllApplications() also returns a List<Application> type.
-                                                                         // Note: other methods in Queries class return different Application class type!
-            logger.debug("Fetching applications done.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.warn(e.getMessage());
-        } finally {
-            if (context != null) {
-                try {
-                	connection.close();
-                    context.close();
-                } catch (Exception e) {
-                	System.out.print(e.toString());
-                }
-                context = null;
+        return CachedResponses.get( ReferenceDataCache.APPLICATIONS, request, headers, providers, new CachedResponses.DatabaseLoader() {
+            @Override
+            GenericEntity<?> load( Connection connection ) throws SQLException {
+                logger.debug("Fetching applications from the database.");
+                return new GenericEntity<List<Application>>( Queries.getAllApplications(connection) ) {};
+                  // Note: other methods in Queries class return different Application class type!
             }
-        }
-
-        return applications; // For some reason, the applications XML(JSON document is always sent in reverse index order (biggest first)
-                             // regardless of the source list order!
+        } );
     }
     
     // http://localhost:8080/ActivityLogger/rest/applications/<application_name>?
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.annotation.Annotation;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Variant;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+
+import db.Metrics;
+import db.ReferenceDataCache;
+
+/** Cached and conditional GET responses of the reference data lists (mccs, applications, logger_applications, routine_classes)
+ * <p>
+ *  The list is loaded and serialized (with the same JAXB/JSON providers Jersey would use) only when ReferenceDataCache has no current
+ *  entry for the table and the negotiated media type. Responses carry a strong ETag (a digest of the media type and the body) and
+ *  "Vary: Accept", and a request whose If-None-Match matches gets 304 Not Modified without a body. If-None-Match is compared
+ *  weakly, as GzipFilter turns the ETag of a compressed body into a weak one.
+ * </p>
+ */
+class CachedResponses {
+
+    /** Loads the rows of one table */
+    interface Loader {
+        /** @return The rows wrapped in an anonymous GenericEntity subclass (keeps the element type for the providers). */
+        GenericEntity<?> load() throws Exception;
+    }
+
+    /** Loader that queries the database, with a connection from the jdbc/postgres pool */
+    static abstract class DatabaseLoader implements Loader {
+        /** @return The rows wrapped in an anonymous GenericEntity subclass (keeps the element type for the providers). */
+        abstract GenericEntity<?> load(Connection connection) throws SQLException;
+
+        @Override
+        public GenericEntity<?> load() throws Exception {
+            javax.naming.Context context = null;
+            Connection connection = null;
+            try {
+                context = new InitialContext();
+                DataSource dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+                connection = Metrics.getConnection(dataSource);
+                return load(connection);
+            } finally {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (Exception e) {
+                    }
+                }
+                if (context != null) {
+                    try {
+                        context.close();
+                    } catch (Exception e) {
+                    }
+                }
+            }
+        }
+    }
+
+    /** The media types of the list resources, in the order of their @Produces */
+    private final static List<Variant> VARIANTS =
+            Variant.mediaTypes(MediaType.TEXT_XML_TYPE, MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE).add().build();
+
+    private final static Logger logger = LoggerFactory.getLogger(CachedResponses.class);
+
+    private CachedResponses() {}
+
+    /** Respond to a GET of a reference data list
+     * @param table ReferenceDataCache table name.
+     * @param request For the content negotiation.
+     * @param headers For If-None-Match.
+     * @param providers For serializing the list.
+     * @param loader Loads the list on a cache miss.
+     * @return 200 with the cached body, 304 if the client has it already, or 406 if no media type is acceptable.
+     * @throws WebApplicationException 500 if the list could not be loaded (nothing is cached). */
+    static Response get(String table, Request request, HttpHeaders headers, Providers providers, Loader loader) {
+        Variant variant = request.selectVariant(VARIANTS);
+        if (variant == null) {
+            return Response.notAcceptable(VARIANTS).build();
+        }
+        MediaType mediaType = variant.getMediaType();
+        ReferenceDataCache.Entry entry = ReferenceDataCache.get(table, mediaType.toString());
+        if (entry == null) {
+            long version = ReferenceDataCache.version(table); // Before loading, see ReferenceDataCache.version().
+            byte[] body = serialize(providers, load(loader), mediaType);
+            entry = ReferenceDataCache.put(table, mediaType.toString(), version, body, etag(mediaType, body));
+        }
+        EntityTag tag = new EntityTag(entry.getEtag());
+        if (matches(headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH), entry.getEtag())) {
+            ReferenceDataCache.recordNotModified();
+            return Response.notModified(tag).header("Vary", "Accept").build();
+        }
+        return Response.ok(entry.getBody(), mediaType).tag(tag).header("Vary", "Accept").build();
+    }
+
+    private static GenericEntity<?> load(Loader loader) {
+        try {
+            return loader.load();
+        } catch (WebApplicationException e) {
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+            throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR); // Do not cache an empty list.
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static byte[] serialize(Providers providers, GenericEntity<?> entity, MediaType mediaType) {
+        Annotation[] annotations = new Annotation[0];
+        MessageBodyWriter writer = providers.getMessageBodyWriter(entity.getRawType(), entity.getType(), annotations, mediaType);
+        if (writer == null) {
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        try {
+            writer.writeTo(entity.getEntity(), entity.getRawType(), entity.getType(), annotations, mediaType,
+                    new MultivaluedMapImpl(), out);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+        }
+        return out.toByteArray();
+    }
+
+    /** Strong ETag value: hex MD5 of the media type and the body (different representations get different tags) */
+    static String etag(MediaType mediaType, byte[] body) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(mediaType.toString().getBytes("UTF-8"));
+            md5.update((byte) 0);
+            byte[] digest = md5.digest(body);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e); // MD5 and UTF-8 are always available.
+        }
+    }
+
+    /** Weak comparison of If-None-Match values (e.g. "abc", W/"abc", *) with an ETag value */
+    static boolean matches(List<String> ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String header : ifNoneMatch) {
+            for (String value : header.split(",")) {
+                value = value.trim();
+                if (value.startsWith("W/")) {
+                    value = value.substring(2);
+                }
+                if (value.equals("*") || value.equals("\"" + etag + "\"")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
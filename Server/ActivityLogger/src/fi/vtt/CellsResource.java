@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+package fi.vtt;
+
+import java.sql.SQLException;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import db.CellLocationCache;
+import fi.vtt.activitylogger.CellLocation;
+
+// This class maps to requests http://localhost:8080/ActivityLogger/rest/cells
+// (or https://<your server>:<port>/ActivityLogger/rest/cells):
+@Path("/cells")
+public class CellsResource {
+
+    private final static Logger logger = LoggerFactory.getLogger(CellsResource.class); // Log4Java.
+
+    /** Location of a cell: the centroid and spread of the GPS locations of the raw measurements made in it (see db.CellLocations),
+     *  read through db.CellLocationCache
+     * @param cell_id The cell id of the raw measurements.
+     * @return The cell location. HTTP 400 for an invalid cell id, 404 if no measurement of the cell had a GPS location. */
+    @GET
+    @Path("{cell_id}") // https://<your server>:<port>/ActivityLogger/rest/cells/<cell_id>.
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+    public CellLocation getCellLocation( @PathParam("cell_id") String cell_id ) {
+        logger.debug("URL .../rest/cells/<cell_id> called.");
+        int cellId;
+        try {
+            cellId = Integer.parseInt(cell_id);
+        } catch (NumberFormatException e) {
+            throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.BAD_REQUEST);
+        }
+        if ( cellId == -1 )
+            throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.BAD_REQUEST); // -1 == no cell data.
+        CellLocation location = null;
+        javax.naming.Context context = null; // JDBC.
+        try {
+            context = new InitialContext();
+            DataSource dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            location = CellLocationCache.get(dataSource, cellId);
+        } catch ( SQLException se ) {
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+            throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+            throw new javax.ws.rs.WebApplicationException(e, javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (Exception e) {
+                	System.out.print(e.toString());
+                }
+            }
+        }
+        if ( location == null )
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.NOT_FOUND); // Proper HTTP 404 response when resource was not found.
+        return location;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.vtt.routinelib.common.CompactCodec;
+import fi.vtt.routinelib.common.RawLogData;
+import fi.vtt.routinelib.common.RoutineData;
+
+/** Decodes RawLogData, List&lt;RawLogData&gt; and RoutineData POSTed in the compact binary format of RoutineLibrary
+ * (Content-Type application/x-routine-compact, see CompactCodec). The JSON receivers accept it without changes.
+ * <p>Same size limit as for JSON (upload.maxBytes). Corrupted data, an unknown format version or a record of the
+ * wrong type gives "422 Unprocessable Entity".</p> */
+@Provider
+@Consumes(CompactCodec.MEDIA_TYPE)
+public class CompactMessageBodyReader implements MessageBodyReader<Object> {
+
+    private final static Logger logger = LoggerFactory.getLogger(CompactMessageBodyReader.class); // Log4Java.
+
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        if (type == RawLogData.class || type == RoutineData.class) {
+            return true;
+        }
+        if (List.class.isAssignableFrom(type) && genericType instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+            return arguments.length == 1 && arguments[0] == RawLogData.class;
+        }
+        return false;
+    }
+
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException, WebApplicationException {
+        long limit = GsonMessageBodyReader.getMaxBytes();
+        GsonMessageBodyReader.checkContentLength(httpHeaders, limit);
+        Object decoded = null;
+        try {
+            decoded = CompactCodec.decode(new BufferedInputStream(
+                    new GsonMessageBodyReader.LimitedInputStream(entityStream, limit), 8192));
+        } catch (GsonMessageBodyReader.TooLargeException tle) {
+            throw new WebApplicationException(413);
+        } catch (IOException ioe) {
+            logger.warn("Bad compact data: " + ioe.getMessage());
+            throw new WebApplicationException(422);
+        }
+        // A single RawLogData cannot be given to the batch method and vice versa:
+        if (!type.isInstance(decoded)) {
+            logger.warn("Compact record " + decoded.getClass().getSimpleName() + " POSTed for " + type.getSimpleName());
+            throw new WebApplicationException(422);
+        }
+        return decoded;
+    }
+
+}
@@ -55,6 +55,7 @@ import javax.ws.rs.core.UriInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import db.Metrics;
 import db.Queries;
 // import db.ConditionalAccess;	// Database user name constants.
 import fi.vtt.activitylogger.Device;
@@ -181,7 +182,7 @@ public class DeviceNameResource {
           logger.debug("intializing JDBC connection.");
           context = new InitialContext();
           dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-          connection = dataSource.getConnection();
+          connection = Metrics.getConnection(dataSource);
           logger.debug("Got connection..");
           // Get named device from the database:
           device = Queries.findDevice( connection, deviceName ); // Returns first match only or null if no device.
@@ -46,8 +46,10 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 // import javax.xml.bind.JAXBElement;
@@ -57,6 +59,8 @@ import org.slf4j.LoggerFactory;
 
 // import com.google.gson.Gson;
 
+import db.Metrics;
+import db.Page;
 import db.Queries;
 import db.ConditionalAccess;	// Database user name constants.
 
@@ -107,25 +111,33 @@ public class DevicesResource {
     String start_time = null;	// Use these two fields with ISO 8601 timestamps.
     @QueryParam("end_time")		//
     String end_time = null;		// 
+    @QueryParam("limit")		// Keyset pagination: at most this many devices (default Paging.DEFAULT_LIMIT)
+    String limit = null;		//
+    @QueryParam("after")		// whose device_id is greater than this (the "after" of the previous page's Link: rel="next" header).
+    String after = null;		//
     // String datetime = null;		// Alternative search period using a single, possibly incomplete, timestamp, e.g. "2012-10" (not implemented).
     
     private final static Logger logger = LoggerFactory.getLogger(DevicesResource.class);
 
     // Methods
     
-    /** Process HTTP GET request: returns the list of devices (users) in the routine_db database
+    /** Process HTTP GET request: returns one page of the devices (users) in the routine_db database
      * @param sc Jersey Security Context information for determining the user role (access rights)
-     * @return A list of device objects that can be serialized into JSON, text, XML or visual (browser) XML. */
+     * @return A list of device objects that can be serialized into JSON, text, XML or visual (browser) XML, with a Link header to the next page
+     *         if there is one. */
     @GET
     @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
       // Browser XML response, XML application response and JSON application response all in the same method automatically.
-    public List<Device> getDevices( @Context SecurityContext sc ) {
+    public Response getDevices( @Context SecurityContext sc ) {
     	
         logger.debug("URL /devices called.");
         javax.naming.Context context = null; // JDBC
         DataSource dataSource = null;
         Connection connection = null;
         List<Device> devices = new ArrayList<Device>(); // Return value to function and the corresponding REST service.
+        Page<Device> page = new Page<Device>(devices, -1);
+        int pageLimit = Paging.limit(limit); // HTTP 400 for invalid values.
+        long pageAfter = Paging.after(after);
         
         // Check access rights and filters
         
@@ -284,11 +296,11 @@ public class DevicesResource {
             logger.debug("intializing JDBC connection.");
             context = new InitialContext();
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
+            connection = Metrics.getConnection(dataSource);
             logger.debug("Got connection..");
-            // Get all devices from the database and collect them into the list:
-            devices.addAll( Queries.getAllDevices( connection , device_name , logger_application_name , start_time , end_time ) );
-              // Queries.java checks parameter validity. getAllDevices() also returns a List<Device> type.
+            // Get one page of devices from the database:
+            page = Queries.getDevicesPage( connection , device_name , logger_application_name , start_time , end_time , pageAfter , pageLimit );
+              // Queries.java checks parameter validity.
             // devices.add( new Device(0, "devicename", "platform", new Timestamp(System.currentTimeMillis()).toString(), 302)); // Test item, no timezone.
             logger.debug("Fetching devices done.");
         } catch ( SQLException se ) {
@@ -313,7 +325,7 @@ public class DevicesResource {
             }
         }
 
-        return devices;
+        return Paging.ok( uriInfo, page, new GenericEntity<List<Device>>(page.getItems()) {}, pageLimit );
     }
     
     // http://localhost:8080/ActivityLogger/rest/devices/<deviceName>
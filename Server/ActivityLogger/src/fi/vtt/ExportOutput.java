@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonWriter;
+
+import db.Metrics;
+import db.RowCallback;
+
+/** Response body of the full exports (.../rest/raw_measurements/export, .../rest/user_routines/export) written while the rows are read
+ * <p>
+ *  The list resources collect all rows into a List that JAXB or Jackson then serializes, so the whole table is in memory twice.
+ *  An export instead serializes each row to the response as soon as it comes from the database cursor (see Queries.streamRawMeasurements()),
+ *  so the heap use does not depend on the size of the table. JSON is a plain array like the list resources give, XML has the same
+ *  root element (e.g. &lt;rawMeasurements&gt;) around JAXB marshalled rows.
+ * </p>
+ * <p>
+ *  The database connection is taken when Jersey writes the response, not in the resource method. If the query fails after the first rows
+ *  have been sent, the status cannot be changed any more and the client gets a truncated document.
+ * </p>
+ * @param <T> JAXB annotated row type.
+ */
+abstract class ExportOutput<T> implements StreamingOutput {
+
+    /** Rows fetched from PostgreSQL at a time */
+    static final int FETCH_SIZE = 500;
+
+    private final static Logger logger = LoggerFactory.getLogger(ExportOutput.class);
+
+    private final Class<T> type;
+    private final String rootElement;
+    private final boolean json;
+
+    /** Create an export
+     * @param type Row type.
+     * @param rootElement Name of the XML root element.
+     * @param json true for JSON, false for XML. */
+    ExportOutput(Class<T> type, String rootElement, boolean json) {
+        this.type = type;
+        this.rootElement = rootElement;
+        this.json = json;
+    }
+
+    /** Run the query that passes every row to the callback (e.g. Queries.streamRawMeasurements())
+     * @return Number of rows (for the log). */
+    abstract long query(Connection connection, RowCallback<T> callback) throws SQLException, IOException;
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        javax.naming.Context context = null;
+        Connection connection = null;
+        try {
+            context = new InitialContext();
+            DataSource dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            connection = Metrics.getConnection(dataSource);
+            long rows = json ? writeJson(connection, output) : writeXml(connection, output);
+            logger.debug("Exported " + rows + " rows of " + type.getSimpleName() + ".");
+        } catch (SQLException se) {
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+            throw new WebApplicationException(se, javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        } catch (IOException e) {
+            throw e; // Usually the client went away.
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+            throw new WebApplicationException(e, javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                }
+            }
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    private long writeJson(Connection connection, OutputStream output) throws SQLException, IOException {
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(output, "UTF-8"));
+        writer.beginArray();
+        long rows = query(connection, new RowCallback<T>() {
+            @Override
+            public void row(T row) throws IOException {
+                GsonMessageBodyReader.GSON.toJson(row, type, writer); // Same field names as the FIELD accessed JAXB beans.
+            }
+        });
+        writer.endArray();
+        writer.flush();
+        return rows;
+    }
+
+    private long writeXml(Connection connection, OutputStream output) throws SQLException, IOException, JAXBException, XMLStreamException {
+        final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(output, "UTF-8");
+        final Marshaller marshaller = JAXBContext.newInstance(type).createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE); // No XML declaration before each row.
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement(rootElement);
+        long rows = query(connection, new RowCallback<T>() {
+            @Override
+            public void row(T row) throws IOException {
+                try {
+                    marshaller.marshal(row, writer);
+                } catch (JAXBException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+        });
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        return rows;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import fi.vtt.activitylogger.UserRoutine;
+import fi.vtt.routinelib.common.RawLogData;
+import fi.vtt.routinelib.common.RoutineData;
+
+/** Decodes POSTed JSON straight from the request stream into RawLogData, List&lt;RawLogData&gt;, RoutineData and UserRoutine
+ * <p>The body is never copied into a String. Text/plain is accepted too, because RoutineLibrary posts its JSON as a
+ * StringEntity. Bodies over the size limit get "413 Request Entity Too Large", bad JSON "422 Unprocessable Entity".</p> */
+@Provider
+@Consumes({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+public class GsonMessageBodyReader implements MessageBodyReader<Object> {
+
+    private final static Logger logger = LoggerFactory.getLogger(GsonMessageBodyReader.class); // Log4Java.
+
+    /** Default maximum request body size in bytes: {@value} */
+    public final static int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** Gson is thread-safe, one instance serves all requests. */
+    public final static Gson GSON = new Gson();
+
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    /** Set the maximum accepted request body size (see context-param upload.maxBytes in web.xml). */
+    public static void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+    }
+
+    public static long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        if (type == RawLogData.class || type == RoutineData.class || type == UserRoutine.class) {
+            return true;
+        }
+        if (List.class.isAssignableFrom(type) && genericType instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+            return arguments.length == 1 && arguments[0] == RawLogData.class;
+        }
+        return false;
+    }
+
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException, WebApplicationException {
+        long limit = maxBytes;
+        checkContentLength(httpHeaders, limit);
+        String charset = mediaType.getParameters().get("charset");
+        JsonReader jsonReader = new JsonReader(new InputStreamReader(new LimitedInputStream(entityStream, limit),
+                charset != null ? charset : "UTF-8"));
+        try {
+            return GSON.fromJson(jsonReader, genericType);
+        } catch (JsonParseException jpe) {
+            if (jpe.getCause() instanceof TooLargeException) { // Gson wraps the IOExceptions of the stream.
+                throw new WebApplicationException(413);
+            }
+            logger.warn(jpe.getMessage());
+            throw new WebApplicationException(422); // Bad JSON data.
+        }
+    }
+
+    /** Reject the request with "413 Request Entity Too Large" before reading anything, if Content-Length is over the limit. */
+    static void checkContentLength(MultivaluedMap<String, String> httpHeaders, long limit) {
+        String contentLength = httpHeaders.getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > limit) {
+                    throw new WebApplicationException(413);
+                }
+            } catch (NumberFormatException nfe) {
+                // Checked while reading instead.
+            }
+        }
+    }
+
+    /** Thrown by LimitedInputStream when the body grows over the limit. */
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Counts the bytes read and fails when more than the limit is read (also used by CompactMessageBodyReader). */
+    static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new TooLargeException();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** gzip compression for the REST API (mapped to /rest/* in web.xml)
+ * <p>Requests with "Content-Encoding: gzip" are decompressed before Jersey reads them. The size limit of the message body
+ * readers (upload.maxBytes) applies to the decompressed content. Other content encodings get "415 Unsupported Media Type".
+ * Every response advertises the support with "Accept-Encoding: gzip", so clients can start compressing their uploads.</p>
+ * <p>Responses are compressed when the request has "Accept-Encoding: gzip" and the body is at least minSize bytes. Smaller
+ * bodies are sent as such. The init-params compressionLevel (1 fastest - 9 smallest, default 6) and minSize (bytes, default
+ * 1024) are set in web.xml.</p> */
+public class GzipFilter implements Filter {
+
+    private final static Logger logger = LoggerFactory.getLogger(GzipFilter.class); // Log4Java.
+
+    public final static int DEFAULT_COMPRESSION_LEVEL = 6;
+    public final static int DEFAULT_MIN_SIZE = 1024;
+
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private int minSize = DEFAULT_MIN_SIZE;
+
+    public void init(FilterConfig filterConfig) throws ServletException {
+        compressionLevel = getInt(filterConfig, "compressionLevel", DEFAULT_COMPRESSION_LEVEL);
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            logger.warn("Bad compressionLevel " + compressionLevel + ", using default: " + DEFAULT_COMPRESSION_LEVEL);
+            compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        }
+        minSize = Math.max(0, getInt(filterConfig, "minSize", DEFAULT_MIN_SIZE));
+    }
+
+    public void destroy() {
+    }
+
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(servletRequest instanceof HttpServletRequest) || !(servletResponse instanceof HttpServletResponse)) {
+            chain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        response.setHeader("Accept-Encoding", "gzip");
+
+        String contentEncoding = request.getHeader("Content-Encoding");
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.trim())) {
+            if (!"gzip".equalsIgnoreCase(contentEncoding.trim()) && !"x-gzip".equalsIgnoreCase(contentEncoding.trim())) {
+                response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+                return;
+            }
+            request = new GzipRequestWrapper(request);
+        }
+
+        if (!acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            chain.doFilter(request, response);
+            return;
+        }
+        response.addHeader("Vary", "Accept-Encoding");
+        GzipResponseWrapper responseWrapper = new GzipResponseWrapper(response, compressionLevel, minSize);
+        try {
+            chain.doFilter(request, responseWrapper);
+        } finally {
+            responseWrapper.finish();
+        }
+    }
+
+    /** @return true if gzip is listed in the Accept-Encoding header value with a non-zero quality. */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!"gzip".equalsIgnoreCase(name) && !"x-gzip".equalsIgnoreCase(name)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException nfe) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** @return The value of an integer init-param, or defaultValue if it is missing or not a number (also used by AdmissionFilter). */
+    static int getInt(FilterConfig filterConfig, String name, int defaultValue) {
+        String value = filterConfig.getInitParameter(name);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            logger.warn("Bad value for init-param " + name + ", using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /** Request with the gzipped body decompressed, Content-Encoding and Content-Length headers hidden. */
+    private static class GzipRequestWrapper extends HttpServletRequestWrapper {
+        private ServletInputStream inputStream = null;
+        private BufferedReader reader = null;
+
+        GzipRequestWrapper(HttpServletRequest request) {
+            super(request);
+        }
+
+        private static boolean hidden(String name) {
+            return "Content-Encoding".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (reader != null) {
+                throw new IllegalStateException("getReader() has already been called");
+            }
+            if (inputStream == null) {
+                final InputStream gzipInputStream = new GZIPInputStream(super.getInputStream(), 8192);
+                inputStream = new ServletInputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        return gzipInputStream.read();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        return gzipInputStream.read(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        gzipInputStream.close();
+                    }
+                };
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                String encoding = getCharacterEncoding();
+                reader = new BufferedReader(new InputStreamReader(getInputStream(), encoding != null ? encoding : "ISO-8859-1"));
+            }
+            return reader;
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1; // Not known before decompressing.
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return hidden(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public int getIntHeader(String name) {
+            return hidden(name) ? -1 : super.getIntHeader(name);
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Enumeration getHeaders(String name) {
+            return hidden(name) ? Collections.enumeration(Collections.emptyList()) : super.getHeaders(name);
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Enumeration getHeaderNames() {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration e = super.getHeaderNames(); e.hasMoreElements();) {
+                String name = (String) e.nextElement();
+                if (!hidden(name)) {
+                    names.add(name);
+                }
+            }
+            return Collections.enumeration(names);
+        }
+    }
+
+    /** Response that buffers the first minSize bytes and then switches to gzip, or writes the small body as such in finish(). */
+    private static class GzipResponseWrapper extends HttpServletResponseWrapper {
+        private final int compressionLevel;
+        private final int minSize;
+        private CompressingOutputStream outputStream = null;
+        private PrintWriter writer = null;
+        private boolean encoded = false; // Content-Encoding set by the application, leave the body alone.
+        private String etag = null; // ETag set by the application, made weak if the body is compressed.
+
+        GzipResponseWrapper(HttpServletResponse response, int compressionLevel, int minSize) {
+            super(response);
+            this.compressionLevel = compressionLevel;
+            this.minSize = minSize;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return stream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (outputStream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        private CompressingOutputStream stream() {
+            if (outputStream == null) {
+                outputStream = new CompressingOutputStream(this);
+            }
+            return outputStream;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            // Decided in finish(): the length is only known for uncompressed bodies.
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                return;
+            }
+            if ("Content-Encoding".equalsIgnoreCase(name)) {
+                encoded = true;
+            }
+            if ("ETag".equalsIgnoreCase(name)) {
+                etag = value;
+            }
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                return;
+            }
+            if ("Content-Encoding".equalsIgnoreCase(name)) {
+                encoded = true;
+            }
+            if ("ETag".equalsIgnoreCase(name)) {
+                etag = value;
+            }
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (outputStream != null) {
+                outputStream.flush();
+            }
+            super.flushBuffer();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            outputStream = null;
+            writer = null;
+            encoded = false;
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (outputStream != null) {
+                outputStream.resetBuffer();
+            }
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (outputStream != null) {
+                outputStream.finish();
+            }
+        }
+
+        OutputStream originalOutputStream() throws IOException {
+            return super.getOutputStream();
+        }
+    }
+
+    private static class CompressingOutputStream extends ServletOutputStream {
+        private final GzipResponseWrapper response;
+        private byte[] buffer;
+        private int count = 0;
+        private OutputStream out = null; // Set when the compression has been decided.
+        private GZIPOutputStream gzip = null;
+        private boolean finished = false;
+
+        CompressingOutputStream(GzipResponseWrapper response) {
+            this.response = response;
+            this.buffer = new byte[Math.max(response.minSize, 1)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Response already finished");
+            }
+            if (out == null) {
+                if (count + len < buffer.length) {
+                    System.arraycopy(b, off, buffer, count, len);
+                    count += len;
+                    return;
+                }
+                startCompressing();
+            }
+            out.write(b, off, len);
+        }
+
+        private void startCompressing() throws IOException {
+            if (response.encoded) {
+                out = response.originalOutputStream();
+            } else {
+                response.getResponse().setContentLength(-1);
+                ((HttpServletResponse) response.getResponse()).setHeader("Content-Encoding", "gzip");
+                if (response.etag != null && !response.etag.startsWith("W/")) {
+                    // A strong ETag promises identical bytes, which the compressed body is not (CachedResponses compares weakly).
+                    ((HttpServletResponse) response.getResponse()).setHeader("ETag", "W/" + response.etag);
+                }
+                final int level = response.compressionLevel;
+                gzip = new GZIPOutputStream(response.originalOutputStream(), 8192) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+                out = gzip;
+            }
+            out.write(buffer, 0, count);
+            count = 0;
+            buffer = null;
+        }
+
+        void resetBuffer() {
+            if (out == null) {
+                count = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (out == null) {
+                // Small body, sent uncompressed.
+                if (count > 0) {
+                    response.getResponse().setContentLength(count);
+                    OutputStream original = response.originalOutputStream();
+                    original.write(buffer, 0, count);
+                    original.flush();
+                }
+                return;
+            }
+            if (gzip != null) {
+                gzip.finish();
+            }
+            out.flush();
+        }
+    }
+
+}
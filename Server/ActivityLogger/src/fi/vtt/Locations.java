@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+package fi.vtt;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/** Query parameters of the spatial listings (raw_measurements/within, raw_measurements/near, user_routines/near)
+ * <p>
+ *  Coordinates are WGS84 degrees and distances meters. Invalid or missing values give HTTP 400, like the paging parameters.
+ * </p>
+ */
+class Locations {
+
+    /** Distance when the radius query parameter is missing (meters) */
+    static final double DEFAULT_RADIUS = 1000.0;
+    /** Largest accepted distance (meters) */
+    static final double MAX_RADIUS = 100000.0;
+
+    private Locations() {}
+
+    /** Parse a latitude query parameter
+     * @throws WebApplicationException HTTP 400 if the value is missing or not a number between -90 and 90. */
+    static double latitude(String latitude) {
+        return parse(latitude, -90.0, 90.0);
+    }
+
+    /** Parse a longitude query parameter
+     * @throws WebApplicationException HTTP 400 if the value is missing or not a number between -180 and 180. */
+    static double longitude(String longitude) {
+        return parse(longitude, -180.0, 180.0);
+    }
+
+    /** Parse the radius query parameter
+     * @return DEFAULT_RADIUS if missing, otherwise the value.
+     * @throws WebApplicationException HTTP 400 if the value is not a number greater than 0 and at most MAX_RADIUS. */
+    static double radius(String radius) {
+        if (radius == null || radius.length() == 0)
+            return DEFAULT_RADIUS;
+        double value = parse(radius, 0.0, MAX_RADIUS);
+        if (value > 0.0)
+            return value;
+        throw new WebApplicationException(Response.Status.BAD_REQUEST);
+    }
+
+    /** @return The value, if it is a number between min and max (inclusive). */
+    private static double parse(String value, double min, double max) {
+        if (value != null) {
+            try {
+                double number = Double.parseDouble(value.trim());
+                if (number >= min && number <= max) // Also false for NaN.
+                    return number;
+            } catch (NumberFormatException e) {}
+        }
+        throw new WebApplicationException(Response.Status.BAD_REQUEST);
+    }
+
+}
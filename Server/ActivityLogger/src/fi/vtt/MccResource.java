@@ -29,10 +29,6 @@
 
 package fi.vtt;
 
-import java.sql.Connection;
-
-import javax.naming.InitialContext;
-import javax.sql.DataSource;
 import javax.ws.rs.GET;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
@@ -43,7 +39,7 @@ import javax.ws.rs.core.UriInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import db.Queries;
+import db.MccIndex;
 import fi.vtt.activitylogger.Mcc;
 
 //Jersey REST references:
@@ -78,32 +74,14 @@ public class MccResource {
     // Browser XML response, XML application response and JSON application response all in the same method automatically.
   public Mcc getMcc() {
       logger.debug("URL .../rest/mccs/<mcc> called.");
-      javax.naming.Context context = null; // JDBC
-      DataSource dataSource = null;
-      Connection connection = null;
+      if (!MccIndex.isLoaded()) // Loaded at deployment, unless the database was not available then (no lock on the read path).
+          MccsResource.loadMccIndex(false);
       Mcc code = null;
       try {
-          logger.debug("intializing JDBC connection.");
-          context = new InitialContext();
-          dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-          connection = dataSource.getConnection();
-          logger.debug("Got connection..");
-          // Get identified country from the database:
-          code = Queries.findMcc(connection, Integer.parseInt(mcc) ); // Returns null if no match.
-          logger.debug("Fetching mcc " + mcc + " done.");
-      } catch (Exception e) {
-          e.printStackTrace();
-          logger.warn(e.getMessage());
-      } finally {
-          if (context != null) {
-              try {
-            	  connection.close();
-                  context.close();
-              } catch (Exception e) {
-            	  System.out.print(e.toString());
-              }
-              context = null;
-          }
+          // Get identified country from the in-memory index (no database access):
+          code = MccIndex.find( Integer.parseInt(mcc) ); // Returns null if no match.
+      } catch (NumberFormatException e) {
+          logger.debug("Invalid mcc " + mcc + ".");
       }
       if(code==null)
           // throw new RuntimeException("GET: Mcc with the id " + mcc +  " not found!");
@@ -34,20 +34,28 @@ import java.sql.Connection;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Providers;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import db.Queries;
+import db.ConditionalAccess;
+import db.MccIndex;
+import db.Metrics;
+import db.ReferenceDataCache;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import fi.vtt.activitylogger.Mcc;
@@ -71,40 +79,64 @@ public class MccsResource {
 
     private final static Logger logger = LoggerFactory.getLogger(MccsResource.class); // Log4Java.
 
+    /** All mobile country codes from MccIndex (no database access), with a strong ETag (304 Not Modified for a matching If-None-Match) */
     @GET
     @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
       // Browser XML response, XML application response and JSON application response all in the same method automatically.
-    public List<Mcc> getMccs() {
+    public Response getMccs( @Context HttpHeaders headers , @Context Providers providers ) {
         logger.debug("URL .../rest/mccs called.");
+        return CachedResponses.get( ReferenceDataCache.MCCS, request, headers, providers, new CachedResponses.Loader() {
+            @Override
+            public GenericEntity<?> load() {
+                if ( !MccIndex.isLoaded() )
+                    loadMccIndex(false);
+                return new GenericEntity<List<Mcc>>( MccIndex.getAll() ) {};
+            }
+        } );
+    }
+
+    /** Reload MccIndex from the mccs table after it has been changed (administrators only)
+     * @return The number of loaded country codes as plain text. */
+    @POST
+    @Path("reload") // https://<your server>:<port>/ActivityLogger/rest/mccs/reload.
+    @Produces(MediaType.TEXT_PLAIN)
+    public String reloadMccs( @Context SecurityContext sc ) {
+        logger.debug("URL .../rest/mccs/reload called (POST).");
+        if ( !sc.isUserInRole( ConditionalAccess.NAME_DB_ADMINISTRATOR_ROLE ) )
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.FORBIDDEN);
+        return loadMccIndex(true) + " mobile country codes loaded.\n";
+    }
+
+    /** Load MccIndex from the database, unless it is already loaded and force is false
+     * @return Number of country codes in the index.
+     * @throws javax.ws.rs.WebApplicationException HTTP 500 if the database query failed (a loaded index stays in use). */
+    static synchronized int loadMccIndex( boolean force ) {
+        if ( MccIndex.isLoaded() && !force )
+            return MccIndex.getAll().size();
         javax.naming.Context context = null; // JDBC.
-        DataSource dataSource = null;
         Connection connection = null;
-        List<Mcc> mccs = new ArrayList<Mcc>(); // Return value to function and the corresponding REST service.
         try {
-            logger.debug("intializing JDBC connection.");
             context = new InitialContext();
-            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
-            logger.debug("Got connection..");
-            // Get all mccs from the database and collect them into the list:
-            mccs.addAll(Queries.getAllMccs(connection)); // getAllMccs() also returns a List<Mcc> type.
-            logger.debug("Fetching mobile country codes done.");
+            DataSource dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            connection = Metrics.getConnection(dataSource);
+            int count = MccIndex.load(connection);
+            logger.info("Loaded " + count + " mobile country codes.");
+            return count;
         } catch (Exception e) {
             e.printStackTrace();
             logger.warn(e.getMessage());
+            throw new javax.ws.rs.WebApplicationException(e, javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
         } finally {
             if (context != null) {
                 try {
-                	connection.close();
+                	if (connection != null)
+                		connection.close();
                     context.close();
                 } catch (Exception e) {
                 	System.out.print(e.toString());
                 }
-                context = null;
             }
         }
-
-        return mccs;
     }
     
     // http://localhost:8080/ActivityLogger/rest/mccs/<mcc>
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.SecurityContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import db.ApplicationDictionary;
+import db.CellLocationCache;
+import db.CellLocations;
+import db.ConditionalAccess;
+import db.DeviceCache;
+import db.DuplicateSuppressor;
+import db.IngestionQueue;
+import db.Metrics;
+import db.PartitionManager;
+import db.ReferenceDataCache;
+import db.RetentionJob;
+import db.RoutineRollups;
+import db.SlowQueryLog;
+import db.StatementCache;
+
+// This class maps to requests http://localhost:8080/ActivityLogger/rest/metrics
+// (or https://<your server>:<port>/ActivityLogger/rest/metrics):
+@Path("/metrics")
+public class MetricsResource {
+
+    private final static Logger logger = LoggerFactory.getLogger(MetricsResource.class); // Log4Java.
+
+    /** Server internal counters, one "name value" pair per line, and the latency histograms of db.Metrics (administrators only)
+     * <p>The output is in the Prometheus text exposition format 0.0.4 (the counters are untyped samples).</p> */
+    @GET
+    @Produces(MediaType.TEXT_PLAIN + "; version=0.0.4")
+    public String getMetrics( @Context SecurityContext sc ) {
+        logger.debug("URL .../rest/metrics called.");
+        if ( !sc.isUserInRole( ConditionalAccess.NAME_DB_ADMINISTRATOR_ROLE ) ) {
+            throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.FORBIDDEN);
+        }
+        StringBuilder sb = new StringBuilder(1024);
+        IngestionQueue ingestionQueue = IngestionQueue.getInstance();
+        sb.append("ingest_queue_running ").append(ingestionQueue != null ? 1 : 0).append('\n');
+        if (ingestionQueue != null) {
+            appendMetrics(sb, ingestionQueue.getMetrics());
+        }
+        appendMetrics(sb, AdmissionFilter.getMetrics());
+        appendMetrics(sb, DeviceCache.getMetrics());
+        appendMetrics(sb, DuplicateSuppressor.getMetrics());
+        appendMetrics(sb, ApplicationDictionary.getMetrics());
+        appendMetrics(sb, CellLocations.getMetrics());
+        appendMetrics(sb, CellLocationCache.getMetrics());
+        appendMetrics(sb, PartitionManager.getMetrics());
+        appendMetrics(sb, ReferenceDataCache.getMetrics());
+        appendMetrics(sb, RetentionJob.getMetrics());
+        appendMetrics(sb, RoutineRollups.getMetrics());
+        appendMetrics(sb, StatementCache.getMetrics());
+        appendMetrics(sb, SlowQueryLog.getMetrics());
+        Metrics.writePrometheus(sb);
+        return sb.toString();
+    }
+
+    private static void appendMetrics(StringBuilder sb, Map<String, Number> metrics) {
+        for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+            sb.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+    }
+
+}
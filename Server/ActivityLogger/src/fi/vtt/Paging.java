@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import db.Page;
+
+/** Query parameters and response headers shared by the keyset paginated listings (devices, raw_measurements, user_routines)
+ * <p>
+ *  A listing returns at most "limit" items whose id is greater than "after". If there are more, the response has a
+ *  Link: &lt;...?after=&lt;last id&gt;&amp;limit=&lt;limit&gt;&gt;; rel="next" header, so a client can follow the links until there is none.
+ * </p>
+ */
+class Paging {
+
+    /** Page size when the limit query parameter is missing */
+    static final int DEFAULT_LIMIT = 1000;
+    /** Largest accepted page size */
+    static final int MAX_LIMIT = 10000;
+
+    private Paging() {}
+
+    /** Parse the limit query parameter
+     * @param limit Value of the limit query parameter, may be null.
+     * @return DEFAULT_LIMIT if missing, otherwise the value.
+     * @throws WebApplicationException HTTP 400 if the value is not a number between 1 and MAX_LIMIT. */
+    static int limit(String limit) {
+        if (limit == null || limit.length() == 0)
+            return DEFAULT_LIMIT;
+        try {
+            int value = Integer.parseInt(limit.trim());
+            if (value >= 1 && value <= MAX_LIMIT)
+                return value;
+        } catch (NumberFormatException e) {}
+        throw new WebApplicationException(Response.Status.BAD_REQUEST);
+    }
+
+    /** Parse the after query parameter
+     * @param after Value of the after query parameter, may be null.
+     * @return 0 (from the beginning) if missing, otherwise the value.
+     * @throws WebApplicationException HTTP 400 if the value is not a non-negative number. */
+    static long after(String after) {
+        if (after == null || after.length() == 0)
+            return 0;
+        try {
+            long value = Long.parseLong(after.trim());
+            if (value >= 0)
+                return value;
+        } catch (NumberFormatException e) {}
+        throw new WebApplicationException(Response.Status.BAD_REQUEST);
+    }
+
+    /** Create a 200 OK response of a page, with a Link header to the next page if there is one
+     * @param uriInfo Request URI, whose other query parameters (filters) are kept in the next link.
+     * @param page The page returned by Queries.
+     * @param entity The items of the page wrapped in an anonymous GenericEntity subclass (keeps the element type for JAXB).
+     * @param limit Page size of this request.
+     * @return The response. */
+    static <T> Response ok(UriInfo uriInfo, Page<T> page, GenericEntity<List<T>> entity, int limit) {
+        Response.ResponseBuilder builder = Response.ok(entity);
+        if (page.hasNext()) {
+            String next = uriInfo.getRequestUriBuilder()
+                    .replaceQueryParam("after", page.getNextAfter())
+                    .replaceQueryParam("limit", limit)
+                    .build().toString();
+            builder.header("Link", "<" + next + ">; rel=\"next\"");
+        }
+        return builder.build();
+    }
+
+}
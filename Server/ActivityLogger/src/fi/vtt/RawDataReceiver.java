@@ -29,13 +29,17 @@
 
 package fi.vtt;
 
-import com.google.gson.Gson;
+import db.DeviceCache;
+import db.DuplicateSuppressor;
+import db.IngestionQueue;
+import db.Metrics;
 import db.Queries;
 import db.ReceiversCommon;
 import fi.vtt.activitylogger.Device;
-import fi.vtt.activitylogger.LoggerApplication;
+import fi.vtt.activitylogger.RawDataBatchItem;
 import fi.vtt.routinelib.common.RawLogData;
 import java.sql.Connection;
+import java.util.List;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
@@ -44,6 +48,10 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,40 +64,52 @@ public class RawDataReceiver {
 
     @POST
     @Produces("text/html")
-    public void postRawData(@PathParam("shahash") String hash, String content) {
+    public Response postRawData(@PathParam("shahash") String hash, RawLogData rawData) {
         logger.debug("hash: " + hash);
-        logger.debug("content: " + content);
-        Gson gson = new Gson();
-        RawLogData rawData = gson.fromJson(content, RawLogData.class);
+        // Body is decoded from the request stream by GsonMessageBodyReader (bad JSON gives 422, too large 413).
+        if (rawData == null) {
+            throw new WebApplicationException(422);
+        }
+
+        // A re-sent upload that is known to be stored already is acknowledged without touching the queue or the database:
+        long knownDeviceId = DeviceCache.get(hash);
+        if (knownDeviceId >= 0 && DuplicateSuppressor.isDuplicate(knownDeviceId, rawData.getSequenceNumber())) {
+            return Response.ok().build();
+        }
+
+        // Normally the data is written in the background by the ingestion queue (see ActivityLoggerListener):
+        IngestionQueue ingestionQueue = IngestionQueue.getInstance();
+        if (ingestionQueue != null) {
+            boolean queued = false;
+            try {
+                queued = ingestionQueue.submit(hash, rawData);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            if (!queued) {
+                logger.warn("Ingestion queue full, raw data of " + hash + " rejected.");
+                throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+            }
+            return Response.status(Response.Status.ACCEPTED).build();
+        }
+
         Context context = null; // JDBC
         DataSource dataSource = null;
         Connection connection = null;
+        RawDataBatchItem result = null;
         try {
             logger.debug("intializing JDBC connection.");
             context = new InitialContext();
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            String str = rawData.toString();
-            logger.debug("Deserialized: " + str);
-            connection = dataSource.getConnection();
-            logger.debug("Got connection..");
-            // Inserting users's device
-            ReceiversCommon.findOrCreateDevice(hash, connection);
-            //
-            Device device = Queries.findDevice(connection, hash);
-            // We now should have a valid device
-            logger.debug("deviceId: " + device.getDeviceId());
-
-            LoggerApplication loggerApplication = ReceiversCommon.findOrCreateLoggerApp(connection,
-                    ReceiversCommon.LOGGER_APP_NAME);
-            long insertedId = Queries.insertRawMeasurement(connection, device.getDeviceId(),
-                    loggerApplication, rawData);
-
-            if (insertedId > -1) {
-            	// OK
-            }
-            else {
-            	// NOT OK
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deserialized: " + rawData);
             }
+            connection = Metrics.getConnection(dataSource);
+            logger.debug("Got connection..");
+            // Inserting users's device (or finding it from the device cache) and the data, unless already stored:
+            result = ReceiversCommon.insertRawData(hash, rawData, connection);
+            logger.debug("measurementId: " + result.getMeasurementId() + ", status: " + result.getStatus());
+
             // Queries.insertUserRoutine(connection, userRoutine);
             // 2. insert routines if available
             // ...
@@ -109,6 +129,64 @@ public class RawDataReceiver {
                 context = null;
             }
         }
+        if (result != null && RawDataBatchItem.STATUS_DUPLICATE.equals(result.getStatus())) {
+            return Response.ok().build(); // Stored by an earlier upload.
+        }
+        return Response.noContent().build();
+    }
+
+    /** Maximum number of raw data items accepted in one batch POST: {@value} */
+    public final static int MAX_BATCH_SIZE = 1000;
+
+    // http://localhost:8080/ActivityLogger/rest/rawdata/123456/batch
+    // Content is a JSON array of RawLogData objects, written in one transaction. Response lists the result of each item.
+
+    @POST
+    @Path("batch")
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+    public Response postRawDataBatch(@PathParam("shahash") String hash, List<RawLogData> rawDatas) {
+        logger.debug("batch hash: " + hash);
+        if (rawDatas == null) {
+            throw new WebApplicationException(422);
+        }
+        if (rawDatas.size() > MAX_BATCH_SIZE) {
+            throw new WebApplicationException(413); // Request Entity Too Large.
+        }
+        logger.debug("batch size: " + rawDatas.size());
+
+        Context context = null; // JDBC
+        DataSource dataSource = null;
+        Connection connection = null;
+        List<RawDataBatchItem> results = null;
+        try {
+            context = new InitialContext();
+            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            connection = Metrics.getConnection(dataSource);
+            results = ReceiversCommon.insertRawDataBatch(hash, rawDatas, connection);
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (context != null) {
+                try {
+                	connection.close();
+                    context.close();
+                } catch (Exception e) {
+                	System.out.print(e.toString());
+                }
+                context = null;
+            }
+        }
+
+        Response.Status status = Response.Status.OK;
+        for (RawDataBatchItem result : results) {
+            if (RawDataBatchItem.STATUS_FAILED.equals(result.getStatus())) {
+                status = Response.Status.INTERNAL_SERVER_ERROR; // Transaction was rolled back, the client may retry the whole batch.
+                break;
+            }
+        }
+        return Response.status(status).entity(new GenericEntity<List<RawDataBatchItem>>(results) {}).build();
     }
 
     // Following just queries device info
@@ -127,7 +205,7 @@ public class RawDataReceiver {
         try {
             context = new InitialContext();
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
+            connection = Metrics.getConnection(dataSource);
             boolean found = Queries.hasDevice(connection, hash);
             if (!found) {
                 sb.append("No such device found!");
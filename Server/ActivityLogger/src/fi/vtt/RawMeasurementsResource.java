@@ -29,7 +29,9 @@
 
 package fi.vtt;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.SQLException;
 
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
@@ -37,15 +39,23 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import db.ConditionalAccess;
+import db.Metrics;
+import db.Page;
 import db.Queries;
+import db.RowCallback;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -71,24 +81,43 @@ public class RawMeasurementsResource {
 
     private final static Logger logger = LoggerFactory.getLogger(RawMeasurementsResource.class); // Log4Java.
 
+    /** One page of raw measurements in measurement_id order, optionally filtered like .../rest/devices (the filters are applied in SQL)
+     * @param device_name Only measurements of this device (user).
+     * @param logger_application_name Only measurements of this logging application of the user.
+     * @param start_time PostgreSQL/ISO 8601 timestamp, only measurements at this time or later.
+     * @param end_time PostgreSQL/ISO 8601 timestamp, only measurements at this time or earlier.
+     * @param limit Page size (default Paging.DEFAULT_LIMIT, at most Paging.MAX_LIMIT).
+     * @param after Return measurements whose measurement_id is greater than this (from the Link: rel="next" header of the previous page).
+     * @return The measurements, with a Link header to the next page if there is one. */
     @GET
     @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
       // Browser XML response, XML application response and JSON application response all in the same method automatically.
-    public List<RawMeasurement> getRawMeasurements() {
+    public Response getRawMeasurements( @QueryParam("device_name") String device_name ,
+                                        @QueryParam("logger_application_name") String logger_application_name ,
+                                        @QueryParam("start_time") String start_time , @QueryParam("end_time") String end_time ,
+                                        @QueryParam("limit") String limit , @QueryParam("after") String after ) {
         logger.debug("URL .../rest/raw_measurements called.");
         javax.naming.Context context = null; // JDBC.
         DataSource dataSource = null;
         Connection connection = null;
-        List<RawMeasurement> measurements = new ArrayList<RawMeasurement>(); // Return value to function and the corresponding REST service.
+        Page<RawMeasurement> page = new Page<RawMeasurement>(new ArrayList<RawMeasurement>(), -1); // Return value of the REST service.
+        int pageLimit = Paging.limit(limit); // HTTP 400 for invalid values.
+        long pageAfter = Paging.after(after);
         try {
             logger.debug("intializing JDBC connection.");
             context = new InitialContext();
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
+            connection = Metrics.getConnection(dataSource);
             logger.debug("Got connection..");
-            // Get all raw measurements from the database and collect them into the list:
-            measurements.addAll(Queries.getAllRawMeasurements(connection)); // getAllRawMeasurements() also returns a List<RawMeasurement> type.
+            // Get one page of raw measurements from the database:
+            page = Queries.getRawMeasurementsPage(connection, device_name, logger_application_name, start_time, end_time,
+                    pageAfter, pageLimit);
             logger.debug("Fetching raw measurements done.");
+        } catch ( SQLException se ) {
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        	  // A proper HTTP 500 response, e.g. for an invalid timestamp (as in DevicesResource).
         } catch (Exception e) {
             e.printStackTrace();
             logger.warn(e.getMessage());
@@ -104,7 +133,137 @@ public class RawMeasurementsResource {
             }
         }
 
-        return measurements;
+        return Paging.ok( uriInfo, page, new GenericEntity<List<RawMeasurement>>(page.getItems()) {}, pageLimit );
+    }
+
+    /** One page of the raw measurements located in a bounding box, in measurement_id order (geohash range scans, see Queries.getRawMeasurementsInBoxPage())
+     * @param south Smallest latitude.
+     * @param west Smallest longitude, greater than east if the box crosses the 180th meridian.
+     * @param north Largest latitude.
+     * @param east Largest longitude.
+     * @return The measurements, with a Link header to the next page if there is one. HTTP 400 for missing or invalid coordinates.
+     * @see #getRawMeasurements(String, String, String, String, String, String) for the other parameters. */
+    @GET
+    @Path("within") // https://<your server>:<port>/ActivityLogger/rest/raw_measurements/within?south=..&west=..&north=..&east=..
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+    public Response getRawMeasurementsWithin( @QueryParam("south") String south , @QueryParam("west") String west ,
+                                              @QueryParam("north") String north , @QueryParam("east") String east ,
+                                              @QueryParam("device_name") final String device_name ,
+                                              @QueryParam("logger_application_name") final String logger_application_name ,
+                                              @QueryParam("start_time") final String start_time , @QueryParam("end_time") final String end_time ,
+                                              @QueryParam("limit") String limit , @QueryParam("after") String after ) {
+        logger.debug("URL .../rest/raw_measurements/within called.");
+        final double boxSouth = Locations.latitude(south); // HTTP 400 for invalid values.
+        final double boxWest = Locations.longitude(west);
+        final double boxNorth = Locations.latitude(north);
+        final double boxEast = Locations.longitude(east);
+        if (boxSouth > boxNorth)
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.BAD_REQUEST);
+        return getPage( limit, after, new PageQuery() {
+            @Override
+            Page<RawMeasurement> query( Connection connection , long pageAfter , int pageLimit ) throws SQLException {
+                return Queries.getRawMeasurementsInBoxPage(connection, boxSouth, boxWest, boxNorth, boxEast,
+                        device_name, logger_application_name, start_time, end_time, pageAfter, pageLimit);
+            }
+        } );
+    }
+
+    /** One page of the raw measurements located within a distance of a point, in measurement_id order (geohash range scans and the
+     *  exact distance, see Queries.getRawMeasurementsNearPage())
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @param radius Distance in meters (default Locations.DEFAULT_RADIUS, at most Locations.MAX_RADIUS).
+     * @return The measurements, with a Link header to the next page if there is one. HTTP 400 for missing or invalid values.
+     * @see #getRawMeasurements(String, String, String, String, String, String) for the other parameters. */
+    @GET
+    @Path("near") // https://<your server>:<port>/ActivityLogger/rest/raw_measurements/near?latitude=..&longitude=..&radius=..
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+    public Response getRawMeasurementsNear( @QueryParam("latitude") String latitude , @QueryParam("longitude") String longitude ,
+                                            @QueryParam("radius") String radius ,
+                                            @QueryParam("device_name") final String device_name ,
+                                            @QueryParam("logger_application_name") final String logger_application_name ,
+                                            @QueryParam("start_time") final String start_time , @QueryParam("end_time") final String end_time ,
+                                            @QueryParam("limit") String limit , @QueryParam("after") String after ) {
+        logger.debug("URL .../rest/raw_measurements/near called.");
+        final double pointLatitude = Locations.latitude(latitude); // HTTP 400 for invalid values.
+        final double pointLongitude = Locations.longitude(longitude);
+        final double distance = Locations.radius(radius);
+        return getPage( limit, after, new PageQuery() {
+            @Override
+            Page<RawMeasurement> query( Connection connection , long pageAfter , int pageLimit ) throws SQLException {
+                return Queries.getRawMeasurementsNearPage(connection, pointLatitude, pointLongitude, distance,
+                        device_name, logger_application_name, start_time, end_time, pageAfter, pageLimit);
+            }
+        } );
+    }
+
+    /** Database query of one page of a spatial listing */
+    private static abstract class PageQuery {
+        abstract Page<RawMeasurement> query( Connection connection , long pageAfter , int pageLimit ) throws SQLException;
+    }
+
+    /** Run a page query with a pooled connection, as getRawMeasurements() does */
+    private Response getPage( String limit , String after , PageQuery pageQuery ) {
+        javax.naming.Context context = null; // JDBC.
+        DataSource dataSource = null;
+        Connection connection = null;
+        Page<RawMeasurement> page = new Page<RawMeasurement>(new ArrayList<RawMeasurement>(), -1); // Return value of the REST service.
+        int pageLimit = Paging.limit(limit); // HTTP 400 for invalid values.
+        long pageAfter = Paging.after(after);
+        try {
+            context = new InitialContext();
+            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            connection = Metrics.getConnection(dataSource);
+            page = pageQuery.query(connection, pageAfter, pageLimit);
+        } catch ( SQLException se ) {
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        	  // A proper HTTP 500 response, e.g. for an invalid timestamp (as in DevicesResource).
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+        } finally {
+            if (context != null) {
+                try {
+                	connection.close();
+                    context.close();
+                } catch (Exception e) {
+                	System.out.print(e.toString());
+                }
+                context = null;
+            }
+        }
+
+        return Paging.ok( uriInfo, page, new GenericEntity<List<RawMeasurement>>(page.getItems()) {}, pageLimit );
+    }
+
+    /** Full export of all raw measurements as JSON, streamed from a database cursor (administrators only, see ExportOutput) */
+    @GET
+    @Path("export") // https://<your server>:<port>/ActivityLogger/rest/raw_measurements/export.
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response exportJson( @Context SecurityContext sc ) {
+        return export( sc , true );
+    }
+
+    /** Full export of all raw measurements as XML, streamed from a database cursor (administrators only, see ExportOutput) */
+    @GET
+    @Path("export")
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML})
+    public Response exportXml( @Context SecurityContext sc ) {
+        return export( sc , false );
+    }
+
+    private Response export( SecurityContext sc , boolean json ) {
+        logger.debug("URL .../rest/raw_measurements/export called.");
+        if ( !sc.isUserInRole( ConditionalAccess.NAME_DB_ADMINISTRATOR_ROLE ) )
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.FORBIDDEN);
+        return Response.ok( new ExportOutput<RawMeasurement>( RawMeasurement.class, "rawMeasurements", json ) {
+            @Override
+            long query( Connection connection , RowCallback<RawMeasurement> callback ) throws SQLException, IOException {
+                return Queries.streamRawMeasurements( connection, FETCH_SIZE, callback );
+            }
+        } ).build();
     }
     
     // http://localhost:8080/ActivityLogger/rest/raw_measurements/<measurement_id>?
@@ -43,6 +43,7 @@ import javax.ws.rs.core.UriInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import db.Metrics;
 import db.Queries;
 import fi.vtt.activitylogger.RoutineClass;
 
@@ -85,7 +86,7 @@ public class RoutineClassIdResource {
           logger.debug("intializing JDBC connection.");
           context = new InitialContext();
           dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-          connection = dataSource.getConnection();
+          connection = Metrics.getConnection(dataSource);
           logger.debug("Got connection..");
           // Get identified routine class from the database:
           routine = Queries.findRoutineClassById(connection, Integer.parseInt(routineId) ); // Returns null if no match.
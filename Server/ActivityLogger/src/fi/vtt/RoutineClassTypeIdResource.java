@@ -43,6 +43,7 @@ import javax.ws.rs.core.UriInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import db.Metrics;
 import db.Queries;
 import fi.vtt.activitylogger.RoutineClass;
 
@@ -92,7 +93,7 @@ public class RoutineClassTypeIdResource {
           logger.debug("intializing JDBC connection.");
           context = new InitialContext();
           dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-          connection = dataSource.getConnection();
+          connection = Metrics.getConnection(dataSource);
           logger.debug("Got connection..");
           // Get identified routine class from the database:
           routine = Queries.findRoutineClassById(connection, Integer.parseInt(routineTypeId) ); // Returns null if no match.
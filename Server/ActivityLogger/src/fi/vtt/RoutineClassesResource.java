@@ -30,24 +30,27 @@
 package fi.vtt;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 
-import javax.naming.InitialContext;
-import javax.sql.DataSource;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Providers;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import db.Queries;
+import db.ReferenceDataCache;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import fi.vtt.activitylogger.RoutineClass;
@@ -71,40 +74,19 @@ public class RoutineClassesResource {
 
     private final static Logger logger = LoggerFactory.getLogger(RoutineClassesResource.class); // Log4Java.
 
+    /** All routine classes, served from ReferenceDataCache with a strong ETag (304 Not Modified for a matching If-None-Match) */
     @GET
     @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
       // Browser XML response, XML application response and JSON application response all in the same method automatically.
-    public List<RoutineClass> getRoutineClasses() {
+    public Response getRoutineClasses( @Context HttpHeaders headers , @Context Providers providers ) {
         logger.debug("URL .../rest/routine_classes called.");
-        javax.naming.Context context = null; // JDBC.
-        DataSource dataSource = null;
-        Connection connection = null;
-        List<RoutineClass> routines = new ArrayList<RoutineClass>(); // Return value to function and the corresponding REST service.
-        try {
-            logger.debug("intializing JDBC connection.");
-            context = new InitialContext();
-            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
-            logger.debug("Got connection..");
-            // Get all routine classes from the database and collect them into the list:
-            routines.addAll(Queries.getAllRoutineClasses(connection)); // getAllRoutineClasses() also returns a List<RoutineClass> type.
-            logger.debug("Fetching routine classes done.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.warn(e.getMessage());
-        } finally {
-            if (context != null) {
-                try {
-                	connection.close();
-                    context.close();
-                } catch (Exception e) {
-                	System.out.print(e.toString());
-                }
-                context = null;
+        return CachedResponses.get( ReferenceDataCache.ROUTINE_CLASSES, request, headers, providers, new CachedResponses.DatabaseLoader() {
+            @Override
+            GenericEntity<?> load( Connection connection ) throws SQLException {
+                logger.debug("Fetching routine classes from the database.");
+                return new GenericEntity<List<RoutineClass>>( Queries.getAllRoutineClasses(connection) ) {};
             }
-        }
-
-        return routines;
+        } );
     }
     
     // http://localhost:8080/ActivityLogger/rest/routine_classes/<routine_type_id>?
@@ -29,7 +29,7 @@
 
 package fi.vtt;
 
-import com.google.gson.Gson;
+import db.Metrics;
 import db.Queries;
 import db.ReceiversCommon;
 import fi.vtt.activitylogger.Device;
@@ -43,6 +43,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,18 +56,18 @@ public class RoutineRecognizedReceiver {
 
     @POST
     @Produces("text/html")
-    public void postRoutineRecognizedData(@PathParam("shahash") String hash, String content) {
+    public void postRoutineRecognizedData(@PathParam("shahash") String hash, RoutineData routineData) {
         logger.debug("hash: " + hash);
-        logger.debug("content: " + content);
-        Gson gson = new Gson();
-        RoutineData routineData = gson.fromJson(content, RoutineData.class);
+        if (routineData == null) {
+            throw new WebApplicationException(422);
+        }
         Context context = null; // JDBC
         DataSource dataSource = null;
         Connection connection = null;
         try {
             context = new InitialContext();
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
+            connection = Metrics.getConnection(dataSource);
             ReceiversCommon.findOrCreateDevice(hash, connection);
             Device device = Queries.findDevice(connection, hash);
             LoggerApplication loggerApplication = ReceiversCommon.findOrCreateLoggerApp(connection,
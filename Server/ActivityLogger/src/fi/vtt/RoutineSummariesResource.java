@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import db.ConditionalAccess;
+import db.Metrics;
+import db.RoutineRollups;
+import fi.vtt.activitylogger.RoutineSummary;
+
+// This class maps to requests http://localhost:8080/ActivityLogger/rest/routine_summaries
+// (or https://<your server>:<port>/ActivityLogger/rest/routine_summaries):
+@Path("/routine_summaries")
+public class RoutineSummariesResource {
+
+    private final static Logger logger = LoggerFactory.getLogger(RoutineSummariesResource.class); // Log4Java.
+
+    /** Daily or weekly routine summaries of one device, read from the daily rollups (see db.RoutineRollups)
+     * @param device_name The device (user), required.
+     * @param period "day" (default) or "week" (weeks start on Monday).
+     * @param start_day yyyy-mm-dd (UTC), only routines that started on this day or later.
+     * @param end_day yyyy-mm-dd (UTC), only routines that started on this day or earlier.
+     * @return Number of routines, total duration and mean confidence per period and routine class. */
+    @GET
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+    public List<RoutineSummary> getRoutineSummaries( @QueryParam("device_name") String device_name ,
+                                                     @QueryParam("period") String period ,
+                                                     @QueryParam("start_day") String start_day ,
+                                                     @QueryParam("end_day") String end_day ) {
+        logger.debug("URL .../rest/routine_summaries called.");
+        if ( device_name == null || device_name.length() == 0 )
+            throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.BAD_REQUEST); // Summaries are per device.
+        if ( period == null || period.length() == 0 )
+            period = RoutineRollups.DAY;
+        if ( !RoutineRollups.DAY.equals(period) && !RoutineRollups.WEEK.equals(period) )
+            throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.BAD_REQUEST);
+        javax.naming.Context context = null; // JDBC.
+        Connection connection = null;
+        try {
+            context = new InitialContext();
+            DataSource dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            connection = Metrics.getConnection(dataSource);
+            return RoutineRollups.getSummaries(connection, device_name, period, start_day, end_day);
+        } catch ( SQLException se ) {
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+            throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+              // E.g. an invalid day.
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+            throw new javax.ws.rs.WebApplicationException(e, javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (context != null) {
+                try {
+                	if (connection != null)
+                		connection.close();
+                    context.close();
+                } catch (Exception e) {
+                	System.out.print(e.toString());
+                }
+            }
+        }
+    }
+
+    /** Recompute the rollups of all routines from user_routines in the background (administrators only)
+     * @return 202 Accepted, or 409 Conflict if a backfill is already running. */
+    @POST
+    @Path("backfill") // https://<your server>:<port>/ActivityLogger/rest/routine_summaries/backfill.
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response backfill( @Context SecurityContext sc ) {
+        logger.debug("URL .../rest/routine_summaries/backfill called (POST).");
+        if ( !sc.isUserInRole( ConditionalAccess.NAME_DB_ADMINISTRATOR_ROLE ) )
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.FORBIDDEN);
+        javax.naming.Context context = null; // JDBC.
+        try {
+            context = new InitialContext();
+            DataSource dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            if ( !RoutineRollups.startBackfill(dataSource) )
+                return Response.status(Response.Status.CONFLICT).entity("A backfill is already running.\n").build();
+            return Response.status(Response.Status.ACCEPTED).entity("Backfill started, see routine_rollups_* in /rest/metrics.\n").build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+            throw new javax.ws.rs.WebApplicationException(e, javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (Exception e) {
+                	System.out.print(e.toString());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.jersey.api.model.AbstractMethod;
+import com.sun.jersey.api.model.AbstractSubResourceLocator;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ResourceFilter;
+import com.sun.jersey.spi.container.ResourceFilterFactory;
+
+import db.Metrics;
+
+/** Records the processing time of every resource method into http_request_duration_seconds{resource="Class.method"}
+ * <p>Registered for Jersey with the com.sun.jersey.spi.container.ResourceFilters init-param in web.xml. The histogram of each
+ * method is created once when Jersey builds its model; a request only reads the clock and updates the histogram. The time
+ * covers the resource method and the response filters, not the writing of the response body.</p> */
+public class TimingResourceFilterFactory implements ResourceFilterFactory {
+
+    /** Start time of the request being processed by the current thread (Jersey 1 calls both filters on the same thread). */
+    private final static ThreadLocal<long[]> started = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    public List<ResourceFilter> create(AbstractMethod abstractMethod) {
+        if (abstractMethod instanceof AbstractSubResourceLocator || abstractMethod.getMethod() == null) {
+            return null; // Timed by the method of the located resource.
+        }
+        String name = abstractMethod.getResource().getResourceClass().getSimpleName() + "."
+                + abstractMethod.getMethod().getName();
+        return Collections.<ResourceFilter>singletonList(new TimingFilter(Metrics.timer(Metrics.HTTP_REQUEST_DURATION,
+                "resource", name)));
+    }
+
+    private static class TimingFilter implements ResourceFilter, ContainerRequestFilter, ContainerResponseFilter {
+        private final Metrics.Histogram histogram;
+
+        TimingFilter(Metrics.Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        public ContainerRequestFilter getRequestFilter() {
+            return this;
+        }
+
+        public ContainerResponseFilter getResponseFilter() {
+            return this;
+        }
+
+        public ContainerRequest filter(ContainerRequest request) {
+            started.get()[0] = System.nanoTime();
+            return request;
+        }
+
+        public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+            long[] start = started.get();
+            if (start[0] != 0) {
+                histogram.recordSince(start[0]);
+                start[0] = 0;
+            }
+            return response;
+        }
+    }
+
+}
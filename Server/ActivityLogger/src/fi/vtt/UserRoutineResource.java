@@ -47,6 +47,7 @@ import javax.ws.rs.core.UriInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import db.Metrics;
 import db.Queries;
 import fi.vtt.activitylogger.UserRoutine;;
 
@@ -96,7 +97,7 @@ public class UserRoutineResource {
           logger.debug("intializing JDBC connection.");
           context = new InitialContext();
           dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-          connection = dataSource.getConnection();
+          connection = Metrics.getConnection(dataSource);
           logger.debug("Got connection..");
           // Get named routine class from the database:
           routine = Queries.findUserRoutineById(connection, Long.parseLong(userRoutineId) ); // Returns null if no match.
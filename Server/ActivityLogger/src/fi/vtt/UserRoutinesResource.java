@@ -29,6 +29,7 @@
 
 package fi.vtt;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 
@@ -41,19 +42,23 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
-
+import db.ConditionalAccess;
+import db.Metrics;
+import db.Page;
 import db.Queries;
+import db.RowCallback;
 //import db.ReceiversCommon;
 
 import java.util.ArrayList;
@@ -83,24 +88,42 @@ public class UserRoutinesResource {
 
     private final static Logger logger = LoggerFactory.getLogger(UserRoutinesResource.class); // Log4Java.
     
+    /** One page of user routines in user_routines_id order, optionally filtered like .../rest/devices (the filters are applied in SQL)
+     * @param device_name Only routines of this device (user).
+     * @param logger_application_name Only routines of this logging application of the user.
+     * @param start_time PostgreSQL/ISO 8601 timestamp, only routines starting at this time or later.
+     * @param end_time PostgreSQL/ISO 8601 timestamp, only routines ending at this time or earlier.
+     * @param limit Page size (default Paging.DEFAULT_LIMIT, at most Paging.MAX_LIMIT).
+     * @param after Return routines whose user_routines_id is greater than this (from the Link: rel="next" header of the previous page).
+     * @return The user routines, with a Link header to the next page if there is one. */
     @GET
     @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
       // Browser XML response, XML application response and JSON application response all in the same method automatically.
-    public List<UserRoutine> getUserRoutines() {
+    public Response getUserRoutines( @QueryParam("device_name") String device_name ,
+                                     @QueryParam("logger_application_name") String logger_application_name ,
+                                     @QueryParam("start_time") String start_time , @QueryParam("end_time") String end_time ,
+                                     @QueryParam("limit") String limit , @QueryParam("after") String after ) {
         logger.debug("URL .../rest/user_routines called.");
         javax.naming.Context context = null; // JDBC.
         DataSource dataSource = null;
         Connection connection =  null;
-        List<UserRoutine> routines = new ArrayList<UserRoutine>(); // Return value to function and the corresponding REST service.
+        Page<UserRoutine> page = new Page<UserRoutine>(new ArrayList<UserRoutine>(), -1); // Return value of the REST service.
+        int pageLimit = Paging.limit(limit); // HTTP 400 for invalid values.
+        long pageAfter = Paging.after(after);
         try {
             logger.debug("intializing JDBC connection.");
             context = new InitialContext();
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
+            connection = Metrics.getConnection(dataSource);
             logger.debug("Got connection..");
-            // Get all user routines from the database and collect them into the list:
-            routines.addAll(Queries.getAllUserRoutines(connection)); // getAllUserRoutines() also returns a List<UserRoutine> type.
+            // Get one page of user routines from the database:
+            page = Queries.getUserRoutinesPage(connection, device_name, logger_application_name, start_time, end_time, pageAfter, pageLimit);
             logger.debug("Fetching user routines done.");
+        } catch ( SQLException se ) {
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        	  // A proper HTTP 500 response, e.g. for an invalid timestamp (as in DevicesResource).
         } catch (Exception e) {
             e.printStackTrace();
             logger.warn(e.getMessage());
@@ -116,7 +139,88 @@ public class UserRoutinesResource {
             }
         }
 
-        return routines;
+        return Paging.ok( uriInfo, page, new GenericEntity<List<UserRoutine>>(page.getItems()) {}, pageLimit );
+    }
+
+    /** The user routines whose raw measurement is located within a distance of a point (geohash range scans and the exact distance,
+     *  see Queries.getUserRoutinesNear()), optionally filtered like getUserRoutines()
+     * @param latitude Latitude of the point.
+     * @param longitude Longitude of the point.
+     * @param radius Distance in meters (default Locations.DEFAULT_RADIUS, at most Locations.MAX_RADIUS).
+     * @return The user routines. HTTP 400 for missing or invalid values.
+     * @see #getUserRoutines(String, String, String, String, String, String) for the other parameters. */
+    @GET
+    @Path("near") // https://<your server>:<port>/ActivityLogger/rest/user_routines/near?latitude=..&longitude=..&radius=..
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+    public Response getUserRoutinesNear( @QueryParam("latitude") String latitude , @QueryParam("longitude") String longitude ,
+                                         @QueryParam("radius") String radius ,
+                                         @QueryParam("device_name") String device_name ,
+                                         @QueryParam("logger_application_name") String logger_application_name ,
+                                         @QueryParam("start_time") String start_time , @QueryParam("end_time") String end_time ) {
+        logger.debug("URL .../rest/user_routines/near called.");
+        double pointLatitude = Locations.latitude(latitude); // HTTP 400 for invalid values.
+        double pointLongitude = Locations.longitude(longitude);
+        double distance = Locations.radius(radius);
+        javax.naming.Context context = null; // JDBC.
+        DataSource dataSource = null;
+        Connection connection =  null;
+        List<UserRoutine> routines = new ArrayList<UserRoutine>(); // Return value of the REST service.
+        try {
+            context = new InitialContext();
+            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
+            connection = Metrics.getConnection(dataSource);
+            routines = Queries.getUserRoutinesNear(connection, pointLatitude, pointLongitude, distance,
+                    device_name, logger_application_name, start_time, end_time);
+            logger.debug("Fetching user routines near a point done.");
+        } catch ( SQLException se ) {
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR);
+        	  // A proper HTTP 500 response, e.g. for an invalid timestamp (as in DevicesResource).
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+        } finally {
+            if (context != null) {
+                try {
+                	connection.close();
+                    context.close();
+                } catch (Exception e) {
+                	System.out.print(e.toString());
+                }
+                context = null;
+            }
+        }
+
+        return Response.ok( new GenericEntity<List<UserRoutine>>(routines) {} ).build();
+    }
+
+    /** Full export of all user routines as JSON, streamed from a database cursor (administrators only, see ExportOutput) */
+    @GET
+    @Path("export") // https://<your server>:<port>/ActivityLogger/rest/user_routines/export.
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response exportJson( @Context SecurityContext sc ) {
+        return export( sc , true );
+    }
+
+    /** Full export of all user routines as XML, streamed from a database cursor (administrators only, see ExportOutput) */
+    @GET
+    @Path("export")
+    @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML})
+    public Response exportXml( @Context SecurityContext sc ) {
+        return export( sc , false );
+    }
+
+    private Response export( SecurityContext sc , boolean json ) {
+        logger.debug("URL .../rest/user_routines/export called.");
+        if ( !sc.isUserInRole( ConditionalAccess.NAME_DB_ADMINISTRATOR_ROLE ) )
+        	throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.FORBIDDEN);
+        return Response.ok( new ExportOutput<UserRoutine>( UserRoutine.class, "userRoutines", json ) {
+            @Override
+            long query( Connection connection , RowCallback<UserRoutine> callback ) throws SQLException, IOException {
+                return Queries.streamUserRoutines( connection, FETCH_SIZE, callback );
+            }
+        } ).build();
     }
 
     /** Test adding a new user routine and return the updated list of user routines, then undo the transaction in the database (no permanent change) */
@@ -124,26 +228,13 @@ public class UserRoutinesResource {
     @Path("/test") // https://<your server>:<port>/ActivityLogger/rest/user_routines/test/.
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON}) // Test response. Normally the response is empty.
-    public List<UserRoutine> postUserRoutineTest( String content ) {
+    public List<UserRoutine> postUserRoutineTest( UserRoutine userRoutineIn ) {
         logger.debug("URL .../rest/user_routines/test called (POST).");
-        logger.debug("content:\n" + content); // Should be JSON data.
 
         String insertionError = null; // Result of the PostgreSQL transaction. null = ok.
-        // Response response = null; // javax.ws.rs.core.Response.
-        Gson gson = new Gson();
-        UserRoutine userRoutineIn = null;
-        
-        // Attempt parsing the JSON:
-        try {
-        	userRoutineIn = gson.fromJson(content, UserRoutine.class);
-        	// Normally call the method "String insertUserRoutine( Connection connection, UserRoutine userRoutine ) throws SQLException" here.
-        } catch ( JsonSyntaxException jse ) {
-        	// Bad JSON data, either in syntax or when mapped towards the UserRoutine class:
-        	jse.printStackTrace();
-        	// Return correct HTTP error message ("422 Unprocessable Entity", "400 Bad Request" is for the HTTP protocol itself?):
-        	throw new javax.ws.rs.WebApplicationException(422); // Proper HTTP 422 response when message content is not suitable for the service.
-        	//throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.BAD_REQUEST); // Proper HTTP 400 response when protocol error.
-        	// javax.ws.rs.WebApplicationException() constructor can also take javax.ws.rs.core.Response object as an argument!
+        // The JSON was decoded from the request stream by GsonMessageBodyReader ("422 Unprocessable Entity" on bad JSON):
+        if ( userRoutineIn == null ) {
+        	throw new javax.ws.rs.WebApplicationException(422);
         }
         
         // Save a new user routine temporarily into the database and get the snapshot of the user routines then:
@@ -155,7 +246,7 @@ public class UserRoutinesResource {
             logger.debug("intializing JDBC connection.");
             context = new InitialContext();
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
-            connection = dataSource.getConnection();
+            connection = Metrics.getConnection(dataSource);
             logger.debug("Got connection..");
             
             // Get all user routines from the database and collect them into the list:
@@ -194,7 +285,7 @@ public class UserRoutinesResource {
             dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres");
             String str = rawData.toString();
             logger.debug("Deserialized: " + str);
-            Connection connection = dataSource.getConnection();
+            Connection connection = Metrics.getConnection(dataSource);
             logger.debug("Got connection..");
             // Inserting users's device
             ReceiversCommon.findOrCreateDevice(hash, connection);
@@ -270,15 +361,14 @@ public class UserRoutinesResource {
     // @Produces({MediaType.TEXT_XML, MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON}) // Test response. Normally the response is empty.
     // public UserRoutine postUserRoutine( /*@PathParam("shahash") String hash ,*/ String content ) {
     @Produces(MediaType.TEXT_PLAIN) // This response type is kept in order to return an error message, if needed? Normally the response body is empty.
-    public Response postUserRoutine( String content ) {
+    public Response postUserRoutine( UserRoutine userRoutineIn ) {
         logger.debug("URL .../rest/user_routines called (POST).");
         // logger.debug("hash: " + hash);
-        logger.debug("content: " + content); // Should be JSON data.
+        // The JSON was decoded from the request stream by GsonMessageBodyReader ("422 Unprocessable Entity" on bad JSON,
+        // "413 Request Entity Too Large" on too large content).
 
         String insertionError = null; // Result of the PostgreSQL transaction. null = ok.
         Response response = null; // javax.ws.rs.core.Response.
-        Gson gson = new Gson();
-        UserRoutine userRoutineIn = null;
         // UserRoutine userRoutineOut = new UserRoutine(); // Return value for the echo service.
 	        /* For a default UserRoutine the POST response is given as (no null items are listed): 
 	           {"userRoutinesId":"0","routineClassId":"0","rawMeasurementId":"0","confidence":"0.0","latitude":"0.0","longitude":"0.0","cellId":"0"} */
@@ -286,48 +376,37 @@ public class UserRoutinesResource {
         DataSource dataSource = null;
         Connection connection = null;
         
-		// Test responses:
-		if ("test error".equals(content)) {
-			insertionError = content; // POSTed text is the "result".
-		} else {
-			try {
-				userRoutineIn = gson.fromJson(content, UserRoutine.class);               // Throws JsonSyntaxException.
-				// Connect to the database:
-	            logger.debug("intializing JDBC connection.");
-	            context = new InitialContext(); 										 // Throws namingException. 
-	            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres"); //
-	            connection = dataSource.getConnection(); 								 // Throws SQLException.
-	            logger.debug("Got connection..");
-	            // Save the new user routine (fields, like UserRoutinesId, on the userRoutine parameter object may be updated by the method!):
-				insertionError = Queries.insertUserRoutine( connection, userRoutineIn ); // Throws SQLException.
-			} catch ( JsonSyntaxException jse ) {
-				// Bad JSON data, either in syntax or when mapped towards the UserRoutine class:
-				jse.printStackTrace();
-				// Return correct HTTP error message ("422 Unprocessable Entity", "400 Bad Request" is for the HTTP protocol itself):
-		      	throw new javax.ws.rs.WebApplicationException(422); // Proper HTTP 422 response when message content is not suitable for the service.
-		      	//throw new javax.ws.rs.WebApplicationException(javax.ws.rs.core.Response.Status.BAD_REQUEST);
-		      	  // Proper HTTP 400 response when protocol error.
-		      	// javax.ws.rs.WebApplicationException() constructor can also take javax.ws.rs.core.Response object as an argument!
-	        } catch ( SQLException se ) {
-	        	// Problems with the database, create a message for the user.
-	            se.printStackTrace();
-	            logger.warn(se.getMessage());
-	            insertionError = "DATABASE ERROR - Could not save the new user routine (bad JSON data values?):\n" + se.getMessage();
-	        } catch (Exception e) {
-	            e.printStackTrace();
-	            logger.warn(e.getMessage());
-	        } finally {
-	            if (context != null) {
-	                try {
-	                	connection.close();
-	                    context.close();
-	                } catch (Exception e) {
-	                	System.out.print(e.toString());
-	                }
-	                context = null;
-	            }
-	        }
+		if ( userRoutineIn == null ) {
+			throw new javax.ws.rs.WebApplicationException(422); // Empty content.
 		}
+		try {
+			// Connect to the database:
+            logger.debug("intializing JDBC connection.");
+            context = new InitialContext(); 										 // Throws namingException. 
+            dataSource = (DataSource) context.lookup("java:comp/env/jdbc/postgres"); //
+            connection = Metrics.getConnection(dataSource); 								 // Throws SQLException.
+            logger.debug("Got connection..");
+            // Save the new user routine (fields, like UserRoutinesId, on the userRoutine parameter object may be updated by the method!):
+			insertionError = Queries.insertUserRoutine( connection, userRoutineIn ); // Throws SQLException.
+        } catch ( SQLException se ) {
+        	// Problems with the database, create a message for the user.
+            se.printStackTrace();
+            logger.warn(se.getMessage());
+            insertionError = "DATABASE ERROR - Could not save the new user routine (bad JSON data values?):\n" + se.getMessage();
+        } catch (Exception e) {
+            e.printStackTrace();
+            logger.warn(e.getMessage());
+        } finally {
+            if (context != null) {
+                try {
+                	connection.close();
+                    context.close();
+                } catch (Exception e) {
+                	System.out.print(e.toString());
+                }
+                context = null;
+            }
+        }
 
 		// Check if everything went well with the DB:
         if (insertionError==null) {
@@ -354,6 +433,18 @@ public class UserRoutinesResource {
         return response; // "201 Created" (+ Location header & URL), "422 Unprocessable Entity" (+ error text) or "500 Internal Server Error" (empty).
     }
     
+    /** Test response for the POST error handling: the text "test error" POSTed as text/plain gives "500 Internal Server Error" with the text
+     * as the response body. Other plain text content gives "415 Unsupported Media Type", user routines are POSTed as JSON. */
+    @POST
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response postUserRoutineTestError( String content ) {
+        if ("test error".equals(content)) {
+        	return Response.serverError().type(MediaType.TEXT_PLAIN).entity(content).build(); // POSTed text is the "result".
+        }
+        throw new javax.ws.rs.WebApplicationException(Response.Status.UNSUPPORTED_MEDIA_TYPE);
+    }
+
     // http://localhost:8080/ActivityLogger/rest/user_routines/<user_routine_id>
 	@Path("{user_routine_id}")
   	public UserRoutineResource getUserRoutine(@PathParam("user_routine_id") String user_routine_id ) {
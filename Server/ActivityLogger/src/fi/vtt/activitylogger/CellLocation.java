@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+package fi.vtt.activitylogger;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+// JAX-RS supports an automatic mapping from JAXB annotated class to XML and JSON.
+// It is needed for automatic transforming of data object into a proper server response when using Jersey REST.
+@XmlRootElement
+public class CellLocation {
+
+    /** Default constructor needed for annotations to avoid exception at run time */
+    public CellLocation() {}
+
+	// We cannot have immutable (final) internal fields in order to be able to use this class also with Jersey REST API annotations:
+    private int cellId;                   // raw_measurements.cell_id
+    private long observationCount;        // Number of raw measurements of the cell with a GPS location.
+    private double latitude;              // Centroid of their locations.
+    private double longitude;
+    private double spreadMeters;          // Root mean square distance of the locations from the centroid.
+    private String lastObserved;          // Latest measurement_timestamp of them.
+
+    /** Constructor
+     * @param cellId The cell id.
+     * @param observationCount Number of raw measurements of the cell with a GPS location.
+     * @param latitude Latitude of the centroid of the locations.
+     * @param longitude Longitude of the centroid of the locations.
+     * @param spreadMeters Root mean square distance of the locations from the centroid in meters.
+     * @param lastObserved Time of the latest of the measurements.
+     */
+    public CellLocation(int cellId, long observationCount, double latitude, double longitude, double spreadMeters,
+            String lastObserved) {
+        this.cellId = cellId;
+        this.observationCount = observationCount;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.spreadMeters = spreadMeters;
+        this.lastObserved = lastObserved;
+    }
+
+    public int getCellId() {
+        return cellId;
+    }
+
+    public void setCellId( int cellId ) {
+        this.cellId = cellId;
+    }
+
+    public long getObservationCount() {
+        return observationCount;
+    }
+
+    public void setObservationCount( long observationCount ) {
+        this.observationCount = observationCount;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public void setLatitude( double latitude ) {
+        this.latitude = latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public void setLongitude( double longitude ) {
+        this.longitude = longitude;
+    }
+
+    public double getSpreadMeters() {
+        return spreadMeters;
+    }
+
+    public void setSpreadMeters( double spreadMeters ) {
+        this.spreadMeters = spreadMeters;
+    }
+
+    public String getLastObserved() {
+        return lastObserved;
+    }
+
+    public void setLastObserved( String lastObserved ) {
+        this.lastObserved = lastObserved;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt.activitylogger;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+// JAX-RS supports an automatic mapping from JAXB annotated class to XML and JSON.
+// It is needed for automatic transforming of data object into a proper server response when using Jersey REST.
+@XmlRootElement
+public class RawDataBatchItem {
+
+    /** Status of an item that was stored into the raw_measurements table: {@value} */
+    public final static String STATUS_CREATED  = "created";
+    /** Status of an item whose sequence number was already stored by an earlier upload (not stored again): {@value} */
+    public final static String STATUS_DUPLICATE = "duplicate";
+    /** Status of an item that was not stored because it was empty or invalid: {@value} */
+    public final static String STATUS_REJECTED = "rejected";
+    /** Status of a valid item that was not stored because the batch transaction was rolled back: {@value} */
+    public final static String STATUS_FAILED   = "failed";
+
+    /** Default constructor needed for annotations to avoid exception at run time */
+    // "IllegalAnnotationException: fi.vtt.activitylogger.RawDataBatchItem does not have a no-arg default constructor."
+    public RawDataBatchItem() {}
+
+	// We cannot have immutable (final) internal fields in order to be able to use this class also with Jersey REST API annotations:
+    private int    index;         // Position of the item in the posted JSON array.
+    private long   measurementId; // raw_measurements.measurement_id of the stored item (of the first upload for duplicates), -1 if not stored.
+    private String status;        // One of the STATUS_ constants.
+    private String message;       // Reason for rejection or failure, null when created.
+
+    /** Constructor
+     * @param index Position of the item in the posted JSON array (starting from 0).
+     * @param measurementId raw_measurements.measurement_id of the stored item, -1 if not stored.
+     * @param status One of STATUS_CREATED, STATUS_DUPLICATE, STATUS_REJECTED or STATUS_FAILED.
+     * @param message Reason for rejection or failure, null when created.
+     */
+    public RawDataBatchItem(int index, long measurementId, String status, String message) {
+        this.index = index;
+        this.measurementId = measurementId;
+        this.status = status;
+        this.message = message;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex( int index ) {
+        this.index = index;
+    }
+
+    public long getMeasurementId() {
+        return measurementId;
+    }
+
+    public void setMeasurementId( long measurementId ) {
+        this.measurementId = measurementId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus( String status ) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage( String message ) {
+        this.message = message;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt.activitylogger;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+// JAX-RS supports an automatic mapping from JAXB annotated class to XML and JSON.
+// It is needed for automatic transforming of data object into a proper server response when using Jersey REST.
+@XmlRootElement
+public class RoutineSummary {
+
+    /** Default constructor needed for annotations to avoid exception at run time */
+    public RoutineSummary() {}
+
+	// We cannot have immutable (final) internal fields in order to be able to use this class also with Jersey REST API annotations:
+    private String deviceName;
+    private String period;                // "day" or "week".
+    private String periodStart;           // First day of the period, yyyy-mm-dd (weeks start on Monday), in UTC.
+    private long routineClassId;          // routine_classes.id
+    private String routineClassName;
+    private int routineTypeId;            // 0=location, 1=application, 2=combination.
+    private long occurrences;             // Number of routines of the class that started in the period.
+    private double totalDurationSeconds;  // Sum of their durations.
+    private double meanConfidence;        // Mean of their confidences.
+
+    /** Constructor
+     * @param deviceName Device (user) of the routines.
+     * @param period "day" or "week".
+     * @param periodStart First day of the period, yyyy-mm-dd in UTC.
+     * @param routineClassId Value of routine_classes.id.
+     * @param routineClassName Name of the routine class.
+     * @param routineTypeId Type of the routine class.
+     * @param occurrences Number of routines that started in the period.
+     * @param totalDurationSeconds Sum of the durations of the routines.
+     * @param meanConfidence Mean confidence of the routines.
+     */
+    public RoutineSummary(String deviceName, String period, String periodStart, long routineClassId, String routineClassName,
+            int routineTypeId, long occurrences, double totalDurationSeconds, double meanConfidence) {
+        this.deviceName = deviceName;
+        this.period = period;
+        this.periodStart = periodStart;
+        this.routineClassId = routineClassId;
+        this.routineClassName = routineClassName;
+        this.routineTypeId = routineTypeId;
+        this.occurrences = occurrences;
+        this.totalDurationSeconds = totalDurationSeconds;
+        this.meanConfidence = meanConfidence;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public void setDeviceName( String deviceName ) {
+        this.deviceName = deviceName;
+    }
+
+    public String getPeriod() {
+        return period;
+    }
+
+    public void setPeriod( String period ) {
+        this.period = period;
+    }
+
+    public String getPeriodStart() {
+        return periodStart;
+    }
+
+    public void setPeriodStart( String periodStart ) {
+        this.periodStart = periodStart;
+    }
+
+    public long getRoutineClassId() {
+        return routineClassId;
+    }
+
+    public void setRoutineClassId( long routineClassId ) {
+        this.routineClassId = routineClassId;
+    }
+
+    public String getRoutineClassName() {
+        return routineClassName;
+    }
+
+    public void setRoutineClassName( String routineClassName ) {
+        this.routineClassName = routineClassName;
+    }
+
+    public int getRoutineTypeId() {
+        return routineTypeId;
+    }
+
+    public void setRoutineTypeId( int routineTypeId ) {
+        this.routineTypeId = routineTypeId;
+    }
+
+    public long getOccurrences() {
+        return occurrences;
+    }
+
+    public void setOccurrences( long occurrences ) {
+        this.occurrences = occurrences;
+    }
+
+    public double getTotalDurationSeconds() {
+        return totalDurationSeconds;
+    }
+
+    public void setTotalDurationSeconds( double totalDurationSeconds ) {
+        this.totalDurationSeconds = totalDurationSeconds;
+    }
+
+    public double getMeanConfidence() {
+        return meanConfidence;
+    }
+
+    public void setMeanConfidence( double meanConfidence ) {
+        this.meanConfidence = meanConfidence;
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt.activitylogger;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+// JAX-RS supports an automatic mapping from JAXB annotated class to XML and JSON.
+// It is needed for automatic transforming of data object into a proper server response when using Jersey REST.
+@XmlRootElement
+public class SlowQuery {
+
+    /** Default constructor needed for annotations to avoid exception at run time */
+    public SlowQuery() {}
+
+	// We cannot have immutable (final) internal fields in order to be able to use this class also with Jersey REST API annotations:
+    private String time;           // When the statement finished, ISO 8601 in UTC.
+    private String method;         // Class.method that ran the statement.
+    private String sql;            // SQL with literals replaced by '?' (the shape of the query).
+    private String parameterTypes; // Types of the bind parameters, comma separated, null if not known.
+    private double durationMs;     // Time from StatementCache.prepare() to release().
+    private volatile String explain; // EXPLAIN output, filled in later by the explain thread, null if not captured.
+
+    /** Constructor
+     * @param time When the statement finished, ISO 8601 in UTC.
+     * @param method Class.method that ran the statement.
+     * @param sql SQL with literals replaced by '?'.
+     * @param parameterTypes Types of the bind parameters, comma separated, null if not known.
+     * @param durationMs Duration of the statement in milliseconds.
+     */
+    public SlowQuery(String time, String method, String sql, String parameterTypes, double durationMs) {
+        this.time = time;
+        this.method = method;
+        this.sql = sql;
+        this.parameterTypes = parameterTypes;
+        this.durationMs = durationMs;
+    }
+
+    public String getTime() {
+        return time;
+    }
+
+    public void setTime( String time ) {
+        this.time = time;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod( String method ) {
+        this.method = method;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public void setSql( String sql ) {
+        this.sql = sql;
+    }
+
+    public String getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public void setParameterTypes( String parameterTypes ) {
+        this.parameterTypes = parameterTypes;
+    }
+
+    public double getDurationMs() {
+        return durationMs;
+    }
+
+    public void setDurationMs( double durationMs ) {
+        this.durationMs = durationMs;
+    }
+
+    public String getExplain() {
+        return explain;
+    }
+
+    public void setExplain( String explain ) {
+        this.explain = explain;
+    }
+
+}
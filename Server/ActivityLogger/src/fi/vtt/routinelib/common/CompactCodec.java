@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2013, VTT Technical Research Centre of Finland 
+ * All rights reserved. 
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution. 
+ * 3. Neither the name of the VTT Technical Research Centre of Finland nor the 
+ *    names of its contributors may be used to endorse or promote products 
+ *    derived from this software without specific prior written permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND 
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ * 
+ */
+
+package fi.vtt.routinelib.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of RawLogData, lists of RawLogData and RoutineData (Content-Type {@value #MEDIA_TYPE}).
+ * <p>
+ * Message layout: magic byte 'R', version byte, record type byte and the record(s). Integers are unsigned LEB128 varints,
+ * signed values are zigzag coded first. Timestamps and coordinates are deltas from the previous value in the same message
+ * (coordinates as microdegrees, about 0.1 m), so are the sequence numbers (version 2, not in version 1 messages). Strings are interned per message: 0 is null, 1 is a new string (varint
+ * length and UTF-8 bytes follow) and n &gt;= 2 refers to the (n - 2)th new string of the message, so repeating application
+ * names and class names cost one or two bytes.
+ * </p>
+ * <p>
+ * The same class is in RoutineLibrary (fi.vtt.routinelibrary.common.CompactCodec), keep the two in sync and increase
+ * VERSION on any change of the layout.
+ * </p>
+ */
+public class CompactCodec {
+
+    public final static String MEDIA_TYPE = "application/x-routine-compact";
+
+    public final static int MAGIC = 'R';
+    public final static int VERSION = 2;
+
+    /** Oldest version the decoder still reads. */
+    public final static int MIN_VERSION = 1;
+
+    public final static int TYPE_RAW_LOG_DATA = 1;
+    public final static int TYPE_RAW_LOG_DATA_LIST = 2;
+    public final static int TYPE_ROUTINE_DATA = 3;
+
+    private final static int FLAG_GPS = 1;
+    private final static double MICRODEGREES = 1000000.0;
+
+    /** Upper limit for counts and string lengths, protects the decoder from corrupted data. */
+    private final static int MAX_COUNT = 1 << 20;
+
+    public static byte[] encode(RawLogData rawLogData) {
+        Encoder encoder = new Encoder(TYPE_RAW_LOG_DATA);
+        encoder.writeRawLogData(rawLogData);
+        return encoder.toByteArray();
+    }
+
+    public static byte[] encode(List<RawLogData> rawLogDatas) {
+        Encoder encoder = new Encoder(TYPE_RAW_LOG_DATA_LIST);
+        encoder.writeVarint(rawLogDatas.size());
+        for (RawLogData rawLogData : rawLogDatas) {
+            encoder.writeRawLogData(rawLogData);
+        }
+        return encoder.toByteArray();
+    }
+
+    public static byte[] encode(RoutineData routineData) {
+        Encoder encoder = new Encoder(TYPE_ROUTINE_DATA);
+        encoder.writeZigzag(routineData.getRoutineId());
+        encoder.writeSequenceNumber(routineData.getSequenceNumber());
+        encoder.out.write(routineData.isRoutineChanged() ? 1 : 0);
+        encoder.writeApplications(routineData.getApps());
+        return encoder.toByteArray();
+    }
+
+    /**
+     * @return RawLogData, List&lt;RawLogData&gt; or RoutineData depending on the record type of the message.
+     * @throws IOException on truncated or corrupted data, unknown version or record type.
+     */
+    public static Object decode(InputStream in) throws IOException {
+        Decoder decoder = new Decoder(in);
+        if (decoder.readByte() != MAGIC) {
+            throw new IOException("Not a compact routine message");
+        }
+        int version = decoder.readByte();
+        decoder.version = version;
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Unsupported compact format version " + version);
+        }
+        int type = decoder.readByte();
+        switch (type) {
+        case TYPE_RAW_LOG_DATA:
+            return decoder.readRawLogData();
+        case TYPE_RAW_LOG_DATA_LIST:
+            int count = decoder.readCount();
+            List<RawLogData> rawLogDatas = new ArrayList<RawLogData>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                rawLogDatas.add(decoder.readRawLogData());
+            }
+            return rawLogDatas;
+        case TYPE_ROUTINE_DATA:
+            RoutineData routineData = new RoutineData();
+            routineData.setRoutineId((int) decoder.readZigzag());
+            routineData.setSequenceNumber(decoder.readSequenceNumber());
+            routineData.setRoutineChanged(decoder.readByte() != 0);
+            routineData.setApps(decoder.readApplications());
+            return routineData;
+        default:
+            throw new IOException("Unknown compact record type " + type);
+        }
+    }
+
+    private static class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+        private long previousTimestamp = 0;
+        private long previousSequenceNumber = 0;
+        private long previousLatitude = 0;
+        private long previousLongitude = 0;
+
+        Encoder(int type) {
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.write(type);
+        }
+
+        void writeRawLogData(RawLogData rawLogData) {
+            writeTimestamp(rawLogData.getTimestamp());
+            writeSequenceNumber(rawLogData.getSequenceNumber());
+            writeString(rawLogData.getTimeStringPresentation());
+            writeZigzag(rawLogData.getCellId());
+            GPSData gpsData = rawLogData.getGpsData();
+            out.write(gpsData != null ? FLAG_GPS : 0);
+            if (gpsData != null) {
+                writeTimestamp(gpsData.getTimestamp());
+                long latitude = Math.round(gpsData.getLatitude() * MICRODEGREES);
+                long longitude = Math.round(gpsData.getLongitude() * MICRODEGREES);
+                writeZigzag(latitude - previousLatitude);
+                writeZigzag(longitude - previousLongitude);
+                previousLatitude = latitude;
+                previousLongitude = longitude;
+            }
+            writeApplications(rawLogData.getApps());
+        }
+
+        void writeApplications(List<Application> applications) {
+            if (applications == null) {
+                writeVarint(0);
+                return;
+            }
+            writeVarint(applications.size());
+            for (Application application : applications) {
+                writeString(application.getName());
+                writeString(application.getClassName());
+                writeString(application.getLaunchTime());
+            }
+        }
+
+        void writeTimestamp(long timestamp) {
+            writeZigzag(timestamp - previousTimestamp);
+            previousTimestamp = timestamp;
+        }
+
+        void writeSequenceNumber(long sequenceNumber) {
+            writeZigzag(sequenceNumber - previousSequenceNumber);
+            previousSequenceNumber = sequenceNumber;
+        }
+
+        void writeString(String string) {
+            if (string == null) {
+                writeVarint(0);
+                return;
+            }
+            Integer index = strings.get(string);
+            if (index != null) {
+                writeVarint(index.intValue() + 2);
+                return;
+            }
+            strings.put(string, Integer.valueOf(strings.size()));
+            byte[] bytes;
+            try {
+                bytes = string.getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException uee) {
+                throw new IllegalStateException(uee); // UTF-8 is always supported.
+            }
+            writeVarint(1);
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeZigzag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    private static class Decoder {
+        private final InputStream in;
+        private final List<String> strings = new ArrayList<String>();
+        private int version = VERSION;
+        private long previousTimestamp = 0;
+        private long previousSequenceNumber = 0;
+        private long previousLatitude = 0;
+        private long previousLongitude = 0;
+
+        Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        RawLogData readRawLogData() throws IOException {
+            RawLogData rawLogData = new RawLogData();
+            rawLogData.setTimestamp(readTimestamp());
+            rawLogData.setSequenceNumber(readSequenceNumber());
+            rawLogData.setTimeStringPresentation(readString());
+            rawLogData.setCellId((int) readZigzag());
+            int flags = readByte();
+            if ((flags & FLAG_GPS) != 0) {
+                long timestamp = readTimestamp();
+                previousLatitude += readZigzag();
+                previousLongitude += readZigzag();
+                rawLogData.setGpsData(new GPSData(timestamp, previousLatitude / MICRODEGREES,
+                        previousLongitude / MICRODEGREES));
+            }
+            rawLogData.setApps(readApplications());
+            return rawLogData;
+        }
+
+        ArrayList<Application> readApplications() throws IOException {
+            int count = readCount();
+            ArrayList<Application> applications = new ArrayList<Application>(Math.min(count, 64));
+            for (int i = 0; i < count; i++) {
+                String name = readString();
+                String className = readString();
+                String launchTime = readString();
+                applications.add(new Application(name, className, launchTime));
+            }
+            return applications;
+        }
+
+        long readTimestamp() throws IOException {
+            previousTimestamp += readZigzag();
+            return previousTimestamp;
+        }
+
+        long readSequenceNumber() throws IOException {
+            if (version < 2) {
+                return -1;
+            }
+            previousSequenceNumber += readZigzag();
+            return previousSequenceNumber;
+        }
+
+        String readString() throws IOException {
+            int index = readCount();
+            if (index == 0) {
+                return null;
+            }
+            if (index >= 2) {
+                if (index - 2 >= strings.size()) {
+                    throw new IOException("Bad string reference " + index);
+                }
+                return strings.get(index - 2);
+            }
+            int length = readCount();
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int n = in.read(bytes, offset, length - offset);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                offset += n;
+            }
+            String string = new String(bytes, "UTF-8");
+            strings.add(string);
+            return string;
+        }
+
+        int readCount() throws IOException {
+            long value = readVarint();
+            if (value < 0 || value > MAX_COUNT) {
+                throw new IOException("Bad count " + value);
+            }
+            return (int) value;
+        }
+
+        long readZigzag() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+    }
+
+}
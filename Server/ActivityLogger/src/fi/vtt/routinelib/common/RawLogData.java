@@ -40,6 +40,9 @@ public class RawLogData extends Data {
     private int                    cellId                 = -1;
     private ArrayList<Application> apps                   = new ArrayList<Application>();
     private GPSData                gpsData                = null;
+    // increasing per device, set by RoutineLibrary; the server stores each (device, sequence number) only once.
+    // -1 (not set) disables the duplicate check.
+    private long                   sequenceNumber         = -1;
 
     /**
      * Constructor
@@ -87,6 +90,14 @@ public class RawLogData extends Data {
         this.gpsData = gpsData;
     }
 
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(long sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder(128);
@@ -36,6 +36,8 @@ public class RoutineData extends Data {
     private int                    routineId       = UNKNOWN_ROUTINE;
     private boolean                routineChanged  = false;
     private ArrayList<Application> apps            = new ArrayList<Application>();
+    // increasing per device (shared with RawLogData), set by RoutineLibrary to recognize re-sent uploads. -1 == not set.
+    private long                   sequenceNumber  = -1;
 
     /**
      * Constructor
@@ -67,6 +69,14 @@ public class RoutineData extends Data {
         this.apps = apps;
     }
 
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(long sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder(128);
@@ -0,0 +1,20 @@
+-- Adds the cell location aggregate tables to an existing routine_db (see create_routine_tables.sql).
+-- ActivityLogger aggregates all stored raw measurements in the background after the next deployment (db.CellLocations,
+-- cellLocations.* in web.xml) and then keeps the aggregates up to date.
+-- usage:
+-- psql -U routine -d routine_db -f add_cell_locations.sql
+
+CREATE TABLE IF NOT EXISTS cell_locations (
+    cell_id              integer PRIMARY KEY,
+    observation_count    bigint NOT NULL,
+    latitude_mean        double precision NOT NULL,
+    longitude_mean       double precision NOT NULL,
+    latitude_m2          double precision NOT NULL,
+    longitude_m2         double precision NOT NULL,
+    last_observed        timestamp with time zone NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS cell_location_checkpoint (
+    id                  integer PRIMARY KEY CHECK (id = 1),
+    last_measurement_id bigint NOT NULL
+);
@@ -0,0 +1,70 @@
+-- Adds the geohash column of raw measurement locations and its index to an existing routine_db (see create_routine_tables.sql).
+-- ActivityLogger fills the column of new measurements (db.Geohash), this script computes it for the stored ones and then builds
+-- raw_measurements_geohash_index for .../rest/raw_measurements/within, .../rest/raw_measurements/near and .../rest/user_routines/near.
+-- Run it after partition_raw_measurements.sql. The UPDATE rewrites every measurement that has a location, so run it at a quiet time.
+-- usage:
+-- psql -U routine -d routine_db -f add_geohash.sql
+
+\set ON_ERROR_STOP on
+
+-- "C" collation: the strings sort byte by byte, so all geohashes of a cell (prefix) are one index range.
+ALTER TABLE raw_measurements ADD COLUMN IF NOT EXISTS geohash varchar(12) COLLATE "C";
+
+-- The same encoding as db.Geohash.encode(): 12 base 32 characters, NULL for no location (latitude and longitude -1000).
+CREATE OR REPLACE FUNCTION routine_geohash(lat double precision, lon double precision) RETURNS varchar AS $$
+DECLARE
+    base32  CONSTANT text := '0123456789bcdefghjkmnpqrstuvwxyz';
+    min_lat double precision := -90;
+    max_lat double precision := 90;
+    min_lon double precision := -180;
+    max_lon double precision := 180;
+    middle  double precision;
+    hash    text := '';
+    bits    integer := 0;
+    value   integer := 0;
+    even    boolean := true;
+BEGIN
+    IF lat IS NULL OR lon IS NULL OR lat < -90 OR lat > 90 OR lon < -180 OR lon > 180 THEN
+        RETURN NULL;
+    END IF;
+    WHILE length(hash) < 12 LOOP
+        IF even THEN
+            middle := (min_lon + max_lon) / 2;
+            IF lon >= middle THEN
+                value := value * 2 + 1;
+                min_lon := middle;
+            ELSE
+                value := value * 2;
+                max_lon := middle;
+            END IF;
+        ELSE
+            middle := (min_lat + max_lat) / 2;
+            IF lat >= middle THEN
+                value := value * 2 + 1;
+                min_lat := middle;
+            ELSE
+                value := value * 2;
+                max_lat := middle;
+            END IF;
+        END IF;
+        even := NOT even;
+        bits := bits + 1;
+        IF bits = 5 THEN
+            hash := hash || substr(base32, value + 1, 1);
+            bits := 0;
+            value := 0;
+        END IF;
+    END LOOP;
+    RETURN hash;
+END
+$$ LANGUAGE plpgsql IMMUTABLE;
+
+UPDATE raw_measurements SET geohash = routine_geohash(latitude, longitude)
+WHERE geohash IS NULL AND latitude BETWEEN -90 AND 90 AND longitude BETWEEN -180 AND 180;
+
+DROP FUNCTION routine_geohash(double precision, double precision);
+
+-- Partial: measurements without a location are never searched by location.
+CREATE INDEX IF NOT EXISTS raw_measurements_geohash_index ON raw_measurements(geohash) WHERE geohash IS NOT NULL;
+
+ANALYZE raw_measurements;
@@ -0,0 +1,15 @@
+-- Adds the idempotency key table of raw measurement uploads to an existing routine_db (see create_routine_tables.sql).
+-- Uploads without a sequence number (older RoutineLibrary versions) are stored as before.
+-- usage:
+-- psql -U routine -d routine_db -f add_raw_measurement_keys.sql
+
+CREATE TABLE IF NOT EXISTS raw_measurement_keys (
+    device_id_fk      bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    sequence_number   bigint NOT NULL,
+    measurement_id_fk bigint NOT NULL,
+    received          timestamp with time zone DEFAULT now() NOT NULL,
+    PRIMARY KEY (device_id_fk, sequence_number)
+);
+
+-- For pruning keys older than the client retry horizon (RetentionJob, retention.keyDays in web.xml, 30 days by default):
+CREATE INDEX IF NOT EXISTS raw_measurement_keys_received_index ON raw_measurement_keys(received);
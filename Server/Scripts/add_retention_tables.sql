@@ -0,0 +1,34 @@
+-- Adds the tables of the retention job (db.RetentionJob) to an existing routine_db (see create_routine_tables.sql).
+-- ActivityLogger then compacts raw measurements older than retention.days (web.xml) into hourly summaries and deletes them.
+-- Requires the measurement_timestamp column of measurement_applications (partition_raw_measurements.sql).
+-- usage:
+-- psql -U routine -d routine_db -f add_retention_tables.sql
+
+CREATE TABLE IF NOT EXISTS hourly_measurements (
+    device_id_fk      bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    hour              timestamp with time zone NOT NULL,
+    measurement_count integer NOT NULL,
+    cell_id           integer DEFAULT (-1) NOT NULL,
+    location_count    integer DEFAULT 0 NOT NULL,
+    latitude          double precision,
+    longitude         double precision,
+    PRIMARY KEY (device_id_fk, hour)
+);
+
+CREATE TABLE IF NOT EXISTS hourly_application_usage (
+    device_id_fk      bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    hour              timestamp with time zone NOT NULL,
+    application_id_fk bigint NOT NULL REFERENCES application(application_id) ON DELETE CASCADE,
+    measurement_count integer NOT NULL,
+    PRIMARY KEY (device_id_fk, hour, application_id_fk)
+);
+
+CREATE TABLE IF NOT EXISTS retention_checkpoints (
+    job              text PRIMARY KEY,
+    summarized_until timestamp with time zone NOT NULL,
+    deleted_until    timestamp with time zone NOT NULL
+);
+
+-- The job reads raw_measurements one day at a time over all devices. measurement_timestamp grows with the insertion order,
+-- so a small BRIN index is enough for these range scans.
+CREATE INDEX IF NOT EXISTS raw_measurements_time_brin_index ON raw_measurements USING brin (measurement_timestamp);
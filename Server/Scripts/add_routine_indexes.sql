@@ -5,5 +5,18 @@
 
 -- add needed index fields here
 
-CREATE INDEX CONCURRENTLY device_id_fk_index ON raw_measurements(device_id_fk);
+-- Measurements of a device in time order (user routine and device filters). Also serves plain device_id_fk lookups,
+-- so it replaces the older device_id_fk_index. A partitioned raw_measurements (create_routine_tables.sql,
+-- partition_raw_measurements.sql) already has it; there CONCURRENTLY fails on the partitioned table and psql goes on.
+CREATE INDEX CONCURRENTLY raw_measurements_device_time_index ON raw_measurements(device_id_fk, measurement_timestamp);
+DROP INDEX CONCURRENTLY IF EXISTS device_id_fk_index;
 
+-- User routines of the measurements found above (filter on device_name / logger_application_name), and user routines
+-- within a start_time/end_time range (filter on time only).
+CREATE INDEX CONCURRENTLY user_routines_measurement_index ON user_routines(raw_measurement_id_fk, start_time);
+CREATE INDEX CONCURRENTLY user_routines_time_index ON user_routines(start_time, end_time);
+
+-- Device name (SHA1 hash) lookups use the index of the UNIQUE (device_name) constraint in create_routine_tables.sql.
+
+-- Pruning of old upload idempotency keys by RetentionJob (see add_raw_measurement_keys.sql).
+CREATE INDEX CONCURRENTLY raw_measurement_keys_received_index ON raw_measurement_keys(received);
@@ -0,0 +1,15 @@
+-- Adds the daily routine rollup table to an existing routine_db (see create_routine_tables.sql).
+-- ActivityLogger fills it from the existing user routines at the next deployment (routineRollups.backfillIfEmpty in web.xml),
+-- or on POST /ActivityLogger/rest/routine_summaries/backfill.
+-- usage:
+-- psql -U routine -d routine_db -f add_routine_rollups.sql
+
+CREATE TABLE IF NOT EXISTS routine_daily_rollups (
+    device_id_fk           bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    day                    date   NOT NULL,
+    routine_class_id_fk    bigint NOT NULL REFERENCES routine_classes(id) ON DELETE CASCADE,
+    total_duration_seconds double precision DEFAULT 0 NOT NULL,
+    occurrence_count       bigint DEFAULT 0 NOT NULL,
+    confidence_sum         double precision DEFAULT 0 NOT NULL,
+    PRIMARY KEY (device_id_fk, day, routine_class_id_fk)
+);
@@ -1,6 +1,8 @@
 
 -- create tables script, usage: 
 -- psql -U routine -d routine_db -f create_routine_tables.sql
+-- Requires PostgreSQL 12 or newer (ActivityLogger uses INSERT ... ON CONFLICT on the UNIQUE constraints, raw_measurements and
+-- measurement_applications are range partitioned with a foreign key between them).
 
 -- 
 -- mobile country codes
@@ -20,7 +22,8 @@ CREATE TABLE devices (
     device_name               text      DEFAULT 'Default user'::text NOT NULL,     -- hex presentation of device hash "0896e92e6f44d1c701cac642ca3e66ebe199caea"
     platform                  text      DEFAULT 'Default platform'::text NOT NULL, -- platform (e.g "Android 2.3")
     device_creation_timestamp timestamp with time zone DEFAULT now() NOT NULL,     -- device creation timestamp
-    mcc                       integer   REFERENCES mccs(mcc)
+    mcc                       integer   REFERENCES mccs(mcc),
+    UNIQUE (device_name)                                                        -- one record per device, needed by INSERT ... ON CONFLICT
 );
 
 
@@ -31,7 +34,8 @@ CREATE TABLE devices (
 -- 
 CREATE TABLE logger_applications (
     logger_application_id   bigserial PRIMARY KEY,
-    logger_application_name text      DEFAULT 'Default_routine_log'::text NOT NULL -- "mylogger", "routinelogger" ...
+    logger_application_name text      DEFAULT 'Default_routine_log'::text NOT NULL, -- "mylogger", "routinelogger" ...
+    UNIQUE (logger_application_name)                                               -- needed by INSERT ... ON CONFLICT
 );
 
 
@@ -48,28 +52,56 @@ CREATE TABLE application (
 
 -- 
 -- raw measurements, basic data
+-- Partitioned by month of measurement_timestamp (UTC). ActivityLogger creates the monthly partitions raw_measurements_pYYYY_MM
+-- ahead of time (db.PartitionManager), rows outside them go to raw_measurements_default.
+-- measurement_timestamp is part of the primary key, as a partitioned table can only have unique keys that include it.
 -- 
 CREATE TABLE raw_measurements (
-    measurement_id           bigserial PRIMARY KEY,
+    measurement_id           bigserial,
     measurement_timestamp    timestamp with time zone DEFAULT now() NOT NULL,                 -- time stamp of measurement
     latitude                 double precision,                                                -- GPS latitude if available
     longitude                double precision,                                                -- GPS longitude if available
     cell_id                  integer DEFAULT (-1) NOT NULL,                                   -- default value -1 == no data 
-    logger_application_id_fk bigserial REFERENCES logger_applications(logger_application_id), -- from which logger application the data is from?
-    device_id_fk             bigserial REFERENCES devices(device_id)                          -- each measurement must belong to only one device
-);
+    logger_application_id_fk bigint NOT NULL REFERENCES logger_applications(logger_application_id), -- from which logger application the data is from?
+    device_id_fk             bigint NOT NULL REFERENCES devices(device_id),                   -- each measurement must belong to only one device
+    geohash                  varchar(12) COLLATE "C",                                         -- geohash of latitude & longitude, NULL if not available
+    PRIMARY KEY (measurement_id, measurement_timestamp)
+) PARTITION BY RANGE (measurement_timestamp);
+CREATE TABLE raw_measurements_default PARTITION OF raw_measurements DEFAULT;
+CREATE INDEX raw_measurements_device_time_index ON raw_measurements(device_id_fk, measurement_timestamp);
+CREATE INDEX raw_measurements_geohash_index ON raw_measurements(geohash) WHERE geohash IS NOT NULL; -- location searches (db.Geohash)
+CREATE INDEX raw_measurements_time_brin_index ON raw_measurements USING brin (measurement_timestamp); -- time ranges of all devices (db.RetentionJob)
 
 
 -- 
 -- map raw application information to raw_measurements.measurement_id and to application.application_id 
+-- Partitioned like raw_measurements, measurement_timestamp is a copy of the one of the raw measurement.
 -- 
 CREATE TABLE measurement_applications (
-    measurement_applications_id bigserial PRIMARY KEY,                                 -- 
-	measurement_id_fk           bigserial REFERENCES raw_measurements(measurement_id), -- for which user_measurement does this data belong to?
-    application_id_fk           bigserial REFERENCES application(application_id)       -- which application
+    measurement_applications_id bigserial,                                             -- 
+	measurement_id_fk           bigint NOT NULL,                                       -- for which user_measurement does this data belong to?
+    measurement_timestamp       timestamp with time zone NOT NULL,                     -- raw_measurements.measurement_timestamp
+    application_id_fk           bigint NOT NULL REFERENCES application(application_id), -- which application
 -- Do we really need following two? removed for now
 --    launch_time                 text   NOT NULL,
 --    checked                     boolean DEFAULT false  
+    PRIMARY KEY (measurement_applications_id, measurement_timestamp),
+    FOREIGN KEY (measurement_id_fk, measurement_timestamp) REFERENCES raw_measurements(measurement_id, measurement_timestamp) ON DELETE CASCADE
+) PARTITION BY RANGE (measurement_timestamp);
+CREATE TABLE measurement_applications_default PARTITION OF measurement_applications DEFAULT;
+CREATE INDEX measurement_applications_measurement_index ON measurement_applications(measurement_id_fk, measurement_timestamp);
+
+-- 
+-- idempotency keys of uploaded raw measurements: (device, client sequence number) -> measurement. A re-sent upload with
+-- the same sequence number is acknowledged with the original measurement_id instead of being inserted again.
+-- No foreign key to raw_measurements, so measurements can be deleted (retention) independently of the keys.
+-- 
+CREATE TABLE raw_measurement_keys (
+    device_id_fk      bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    sequence_number   bigint NOT NULL,                                  -- RawLogData.sequenceNumber, increasing per device
+    measurement_id_fk bigint NOT NULL,                                  -- raw_measurements.measurement_id of the first upload
+    received          timestamp with time zone DEFAULT now() NOT NULL,  -- keys older than retention.keyDays are deleted by RetentionJob
+    PRIMARY KEY (device_id_fk, sequence_number)
 );
 
 -- ???
@@ -97,10 +129,83 @@ CREATE TABLE user_routines (
     end_time              timestamp with time zone NOT NULL,                -- routine end time
     routine_class_id_fk   bigserial REFERENCES routine_classes(id),         -- these routine applications belong to referenced routine_class
     application_id_fk     bigserial REFERENCES application(application_id), -- which application
-    raw_measurement_id_fk bigserial REFERENCES raw_measurements(measurement_id),
+    raw_measurement_id_fk bigint NOT NULL,                                   -- raw_measurements.measurement_id (no foreign key, it is not unique alone)
     confidence            double precision DEFAULT(1.0) NOT NULL,           -- range [0.0, 1.0], 1.0 == full confidence
     CHECK(confidence >= 0.0 AND confidence <= 1.0),
     CHECK(start_time < end_time)
 );
 
 
+-- 
+-- daily rollups of user routines per device, day (of start_time, UTC) and routine class for /rest/routine_summaries.
+-- A routine (one user_routines row per application) counts once. Maintained by ActivityLogger (db.RoutineRollups).
+-- 
+CREATE TABLE routine_daily_rollups (
+    device_id_fk           bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    day                    date   NOT NULL,                          -- (start_time AT TIME ZONE 'UTC')::date
+    routine_class_id_fk    bigint NOT NULL REFERENCES routine_classes(id) ON DELETE CASCADE,
+    total_duration_seconds double precision DEFAULT 0 NOT NULL,      -- sum of end_time - start_time
+    occurrence_count       bigint DEFAULT 0 NOT NULL,                -- number of routines
+    confidence_sum         double precision DEFAULT 0 NOT NULL,      -- mean confidence = confidence_sum / occurrence_count
+    PRIMARY KEY (device_id_fk, day, routine_class_id_fk)
+);
+
+
+-- 
+-- hourly summaries of the raw measurements older than the retention period (retention.days in web.xml), per device and
+-- UTC hour. The raw measurements are deleted after they are summarized, except those of user routines (db.RetentionJob).
+-- 
+CREATE TABLE hourly_measurements (
+    device_id_fk      bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    hour              timestamp with time zone NOT NULL,                -- date_trunc('hour', measurement_timestamp) in UTC
+    measurement_count integer NOT NULL,                                 -- number of raw measurements
+    cell_id           integer DEFAULT (-1) NOT NULL,                    -- most frequent cell_id, -1 == no data
+    location_count    integer DEFAULT 0 NOT NULL,                       -- raw measurements with a GPS location
+    latitude          double precision,                                 -- centroid of the GPS locations, NULL if none
+    longitude         double precision,
+    PRIMARY KEY (device_id_fk, hour)
+);
+
+-- 
+-- applications of the summarized hours: in how many raw measurements of the hour the application was running
+-- 
+CREATE TABLE hourly_application_usage (
+    device_id_fk      bigint NOT NULL REFERENCES devices(device_id) ON DELETE CASCADE,
+    hour              timestamp with time zone NOT NULL,
+    application_id_fk bigint NOT NULL REFERENCES application(application_id) ON DELETE CASCADE,
+    measurement_count integer NOT NULL,
+    PRIMARY KEY (device_id_fk, hour, application_id_fk)
+);
+
+-- 
+-- location of each cell_id from the raw measurements that have both a cell_id and a GPS location (the sums only grow, the
+-- aggregates are kept when the retention job deletes the measurements). Maintained by ActivityLogger (db.CellLocations).
+-- 
+CREATE TABLE cell_locations (
+    cell_id              integer PRIMARY KEY,                          -- raw_measurements.cell_id
+    observation_count    bigint NOT NULL,                              -- number of measurements with a location
+    latitude_mean        double precision NOT NULL,                    -- centroid
+    longitude_mean       double precision NOT NULL,
+    latitude_m2          double precision NOT NULL,                    -- sum of squared deviations from the mean, variance = m2 / count
+    longitude_m2         double precision NOT NULL,
+    last_observed        timestamp with time zone NOT NULL             -- latest measurement_timestamp
+);
+
+-- 
+-- last raw_measurements.measurement_id added to cell_locations (one row)
+-- 
+CREATE TABLE cell_location_checkpoint (
+    id                  integer PRIMARY KEY CHECK (id = 1),
+    last_measurement_id bigint NOT NULL
+);
+
+-- 
+-- progress of the retention job, so that it continues where it stopped
+-- 
+CREATE TABLE retention_checkpoints (
+    job              text PRIMARY KEY,                                  -- 'raw_measurements'
+    summarized_until timestamp with time zone NOT NULL,                 -- hours before this are in hourly_measurements
+    deleted_until    timestamp with time zone NOT NULL                  -- raw measurements before this are deleted
+);
+
+
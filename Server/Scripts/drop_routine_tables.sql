@@ -1,11 +1,18 @@
 
 DROP TABLE application CASCADE;
+DROP TABLE cell_location_checkpoint CASCADE;
+DROP TABLE cell_locations CASCADE;
+DROP TABLE hourly_application_usage CASCADE;
+DROP TABLE hourly_measurements CASCADE;
+DROP TABLE retention_checkpoints CASCADE;
 DROP TABLE devices CASCADE;
 DROP TABLE mccs CASCADE;
 DROP TABLE routine_applications CASCADE;
+DROP TABLE routine_daily_rollups CASCADE;
 DROP TABLE routine_classes CASCADE;
 DROP TABLE measurement_applications CASCADE;
 DROP TABLE user_routines CASCADE;
 DROP TABLE user_application_lists CASCADE;
 DROP TABLE logger_applications CASCADE;
+DROP TABLE raw_measurement_keys CASCADE;
 DROP TABLE raw_measurements CASCADE;
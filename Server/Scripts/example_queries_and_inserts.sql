@@ -38,18 +38,18 @@ SELECT application_id, application_name, package_class_name FROM application
   
 -- raw_measurements
 -- for device 777, MyTestLoggerApp (100) add some basic data
-INSERT INTO raw_measurements (measurement_id, latitude, longitude, cell_id, logger_application_id_fk, device_id_fk) 
-  VALUES (5555, 11.11, 22.22, 456, 100, 777);
+INSERT INTO raw_measurements (measurement_id, measurement_timestamp, latitude, longitude, cell_id, logger_application_id_fk, device_id_fk) 
+  VALUES (5555, '2012-09-01 12:00:00+00', 11.11, 22.22, 456, 100, 777);
 
 -- INSERT INTO raw_measurements ( latitude, longitude, cell_id, logger_application_id_fk, device_id_fk) 
 --   VALUES (1.11, 2.22, 6, 100, 777) RETURNING measurement_id;
   
 -- measurement_applications
--- put some applications (Myapp1 & Game1) to this raw_measurement 5555
-INSERT INTO measurement_applications (measurement_applications_id, measurement_id_fk, application_id_fk)
-  VALUES(80, 5555, 111);
-INSERT INTO measurement_applications (measurement_applications_id, measurement_id_fk, application_id_fk)
-  VALUES(81, 5555, 113);
+-- put some applications (Myapp1 & Game1) to this raw_measurement 5555 (measurement_timestamp is the one of the measurement)
+INSERT INTO measurement_applications (measurement_applications_id, measurement_id_fk, measurement_timestamp, application_id_fk)
+  VALUES(80, 5555, '2012-09-01 12:00:00+00', 111);
+INSERT INTO measurement_applications (measurement_applications_id, measurement_id_fk, measurement_timestamp, application_id_fk)
+  VALUES(81, 5555, '2012-09-01 12:00:00+00', 113);
 
 -- query application data belonging to measurement 5555
 SELECT measurement_id_fk, application.application_id, application.application_name, application.package_class_name
@@ -0,0 +1,44 @@
+-- One-time migration for databases created before devices.device_name and logger_applications.logger_application_name
+-- were made unique. Merges duplicate rows into the oldest one (smallest id), moves the references over and adds the
+-- UNIQUE constraints that ActivityLogger's INSERT ... ON CONFLICT upserts need (PostgreSQL 9.5 or newer).
+-- Stop ActivityLogger (or at least the uploads) while running this.
+-- usage:
+-- psql -U routine -d routine_db -f migrate_unique_dimensions.sql
+
+BEGIN;
+
+-- devices: duplicate names created by concurrent first uploads of the same device
+CREATE TEMPORARY TABLE device_duplicates ON COMMIT DROP AS
+    SELECT d.device_id AS duplicate_id, k.keep_id
+    FROM devices d
+    JOIN (SELECT device_name, MIN(device_id) AS keep_id FROM devices GROUP BY device_name HAVING COUNT(*) > 1) k
+      ON k.device_name = d.device_name
+    WHERE d.device_id <> k.keep_id;
+
+UPDATE raw_measurements r SET device_id_fk = dd.keep_id
+    FROM device_duplicates dd WHERE r.device_id_fk = dd.duplicate_id;
+UPDATE routine_classes c SET owner_device_id_fk = dd.keep_id
+    FROM device_duplicates dd WHERE c.owner_device_id_fk = dd.duplicate_id;
+DELETE FROM devices d USING device_duplicates dd WHERE d.device_id = dd.duplicate_id;
+
+-- logger_applications
+CREATE TEMPORARY TABLE logger_application_duplicates ON COMMIT DROP AS
+    SELECT l.logger_application_id AS duplicate_id, k.keep_id
+    FROM logger_applications l
+    JOIN (SELECT logger_application_name, MIN(logger_application_id) AS keep_id FROM logger_applications
+          GROUP BY logger_application_name HAVING COUNT(*) > 1) k
+      ON k.logger_application_name = l.logger_application_name
+    WHERE l.logger_application_id <> k.keep_id;
+
+UPDATE raw_measurements r SET logger_application_id_fk = ld.keep_id
+    FROM logger_application_duplicates ld WHERE r.logger_application_id_fk = ld.duplicate_id;
+DELETE FROM logger_applications l USING logger_application_duplicates ld WHERE l.logger_application_id = ld.duplicate_id;
+
+-- The constraint indexes replace the plain device name index (if it was created earlier):
+DROP INDEX IF EXISTS device_name_index;
+ALTER TABLE devices ADD CONSTRAINT devices_device_name_key UNIQUE (device_name);
+ALTER TABLE logger_applications ADD CONSTRAINT logger_applications_logger_application_name_key UNIQUE (logger_application_name);
+
+-- application already has UNIQUE (application_name, package_class_name) in create_routine_tables.sql.
+
+COMMIT;
@@ -0,0 +1,99 @@
+-- Moves raw_measurements and measurement_applications of an existing routine_db to monthly range partitions on
+-- measurement_timestamp (the layout of create_routine_tables.sql). Requires PostgreSQL 12 or newer.
+-- The tables are copied in one transaction that locks them, so stop ActivityLogger (or set ingest.enabled to false) first.
+-- Partitions are created for every month that has measurements and for the next 3 months; ActivityLogger creates the later
+-- ones (db.PartitionManager, partitions.monthsAhead in web.xml).
+-- usage:
+-- psql -U routine -d routine_db -f partition_raw_measurements.sql
+
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+LOCK TABLE raw_measurements, measurement_applications IN ACCESS EXCLUSIVE MODE;
+
+-- measurement_id is no longer unique alone, so user_routines cannot reference it with a foreign key.
+ALTER TABLE user_routines DROP CONSTRAINT IF EXISTS user_routines_raw_measurement_id_fk_fkey;
+ALTER TABLE user_routines ALTER COLUMN raw_measurement_id_fk DROP DEFAULT;
+DROP SEQUENCE IF EXISTS user_routines_raw_measurement_id_fk_seq;
+
+ALTER TABLE measurement_applications RENAME TO measurement_applications_unpartitioned;
+ALTER TABLE raw_measurements RENAME TO raw_measurements_unpartitioned;
+
+-- Renaming a table keeps the names of its indexes (primary keys included), so move them out of the way of the new ones.
+DO $$
+DECLARE
+    idx text;
+BEGIN
+    FOR idx IN SELECT c.relname FROM pg_index AS i INNER JOIN pg_class AS c ON c.oid = i.indexrelid
+               WHERE i.indrelid IN ('raw_measurements_unpartitioned'::regclass, 'measurement_applications_unpartitioned'::regclass) LOOP
+        EXECUTE format('ALTER INDEX %I RENAME TO %I', idx, left(idx, 49) || '_unpartitioned');
+    END LOOP;
+END
+$$;
+
+CREATE TABLE raw_measurements (
+    measurement_id           bigint DEFAULT nextval('raw_measurements_measurement_id_seq') NOT NULL,
+    measurement_timestamp    timestamp with time zone DEFAULT now() NOT NULL,
+    latitude                 double precision,
+    longitude                double precision,
+    cell_id                  integer DEFAULT (-1) NOT NULL,
+    logger_application_id_fk bigint NOT NULL REFERENCES logger_applications(logger_application_id),
+    device_id_fk             bigint NOT NULL REFERENCES devices(device_id),
+    PRIMARY KEY (measurement_id, measurement_timestamp)
+) PARTITION BY RANGE (measurement_timestamp);
+ALTER SEQUENCE raw_measurements_measurement_id_seq OWNED BY raw_measurements.measurement_id;
+
+CREATE TABLE measurement_applications (
+    measurement_applications_id bigint DEFAULT nextval('measurement_applications_measurement_applications_id_seq') NOT NULL,
+    measurement_id_fk           bigint NOT NULL,
+    measurement_timestamp       timestamp with time zone NOT NULL,
+    application_id_fk           bigint NOT NULL REFERENCES application(application_id),
+    PRIMARY KEY (measurement_applications_id, measurement_timestamp),
+    FOREIGN KEY (measurement_id_fk, measurement_timestamp) REFERENCES raw_measurements(measurement_id, measurement_timestamp) ON DELETE CASCADE
+) PARTITION BY RANGE (measurement_timestamp);
+ALTER SEQUENCE measurement_applications_measurement_applications_id_seq OWNED BY measurement_applications.measurement_applications_id;
+
+-- Monthly partitions (UTC) named like db.PartitionManager names them, and the default partitions for anything outside them.
+DO $$
+DECLARE
+    month date;
+    last  date;
+    tbl   text;
+BEGIN
+    SELECT date_trunc('month', coalesce(min(measurement_timestamp), now()) AT TIME ZONE 'UTC')::date
+      INTO month FROM raw_measurements_unpartitioned;
+    last := (date_trunc('month', now() AT TIME ZONE 'UTC') + interval '3 months')::date;
+    WHILE month <= last LOOP
+        FOREACH tbl IN ARRAY ARRAY['raw_measurements', 'measurement_applications'] LOOP
+            EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)',
+                           tbl || to_char(month, '"_p"YYYY"_"MM'), tbl,
+                           month::timestamp AT TIME ZONE 'UTC', (month + interval '1 month')::timestamp AT TIME ZONE 'UTC');
+        END LOOP;
+        month := (month + interval '1 month')::date;
+    END LOOP;
+END
+$$;
+CREATE TABLE raw_measurements_default PARTITION OF raw_measurements DEFAULT;
+CREATE TABLE measurement_applications_default PARTITION OF measurement_applications DEFAULT;
+
+INSERT INTO raw_measurements (measurement_id, measurement_timestamp, latitude, longitude, cell_id, logger_application_id_fk, device_id_fk)
+SELECT measurement_id, measurement_timestamp, latitude, longitude, cell_id, logger_application_id_fk, device_id_fk
+FROM raw_measurements_unpartitioned;
+
+INSERT INTO measurement_applications (measurement_applications_id, measurement_id_fk, measurement_timestamp, application_id_fk)
+SELECT ma.measurement_applications_id, ma.measurement_id_fk, rm.measurement_timestamp, ma.application_id_fk
+FROM measurement_applications_unpartitioned AS ma
+INNER JOIN raw_measurements_unpartitioned AS rm ON ma.measurement_id_fk = rm.measurement_id;
+
+-- Created after the copy (faster than maintaining them row by row), on the parents so that new partitions get them too.
+CREATE INDEX raw_measurements_device_time_index ON raw_measurements(device_id_fk, measurement_timestamp);
+CREATE INDEX measurement_applications_measurement_index ON measurement_applications(measurement_id_fk, measurement_timestamp);
+
+DROP TABLE measurement_applications_unpartitioned;
+DROP TABLE raw_measurements_unpartitioned CASCADE;
+
+COMMIT;
+
+ANALYZE raw_measurements;
+ANALYZE measurement_applications;